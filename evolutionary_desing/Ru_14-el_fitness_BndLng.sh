@@ -30,6 +30,11 @@ allowDuplicates=1 #0 for yes, 1 for no
 
 #Data from previous runs - if a candidate UID has been already evaluated it will be found here
 previousResults="$RUCBONDDESIGN/results/run_*"
+#Index of UIDs evaluated so far. If this file exists, it is used instead of searching
+#previousResults. Create it with 'UIDFitnessIndex update' (see FitnessRuCH2BndLng),
+#which also compacts it when needed. Lookups are answered by the FitnessServer, if
+#any (see fitnessServerPort), without reloading the whole index each time.
+uidIndex="$RUCBONDDESIGN/results/uid_fitness.idx"
 
 #Setting for the execution of DENOPTIM tools
 java="java"
@@ -61,6 +66,30 @@ ACCpath="$RUCBONDDESIGN/../tools/AutoCompChem/"
 
 #Fitness calculator
 fitnessCalculatorPath="$RUCBONDDESIGN/../tools/FitnessRuCH2BndLng"
+# JVM options for the short runs of FitnessRuCH2BndLng.jar that evaluate one
+# candidate. The class-data sharing archive is created by
+# build-fitnessruch2bndlng.sh with JDK 13 or later, and is ignored if it does
+# not match the JVM or the jar files.
+fitnessJavaOpts="-XX:+UseSerialGC -XX:TieredStopAtLevel=1 -Xmx512m"
+if [ -f "$fitnessCalculatorPath/FitnessRuCH2BndLng.jsa" ]; then
+    fitnessJavaOpts="$fitnessJavaOpts -XX:SharedArchiveFile=$fitnessCalculatorPath/FitnessRuCH2BndLng.jsa -Xlog:cds=off -Xlog:cds+dynamic=off"
+fi
+# Port of a running FitnessServer (leave empty to start a new JVM per candidate)
+fitnessServerPort=""
+fitnessServerToken="$HOME/.fitnessruch2bndlng_token"
+# Set to 1 to let FitnessRuCH2BndLng read the Gaussian output directly and
+# compare the connectivity of the optimized geometry with that of the initial
+# structure. Set to 0 to convert the output with OpenBabel and compare the
+# connectivities with AutoCompChem. The two perceptions of bonds disagree on
+# a few borderline Ru-C and Ru-Cl contacts, so the default stays with
+# OpenBabel and AutoCompChem.
+readDFTOutInJava=0
+# File collecting timings and outcome of each evaluation as JSON lines
+# (leave empty to disable)
+fitnessStatsLog=""
+# Folder of the columnar store collecting descriptors and geometries of all
+# candidates (leave empty to disable)
+columnStore=""
 
 #Gaussian
 submitDFTscript="submit_job_g16-C.01" #TODO back to submitDFTscript
@@ -73,6 +102,44 @@ minTimeUnit="m" # time unit: s (seconds), m (minutes), h (hours)
 step=5          # delay of each checking iteration
 stepunit="m"    # time unit: s (seconds), m (minutes), h (hours)
 maxwait=350     # 350*5m=29.2h # maximun number of checking iterations
+# The wall time and number of optimization steps of past DFT jobs are
+# summarized by 'TrajectoryAnalysis' (see FitnessRuCH2BndLng).
+# Geometric constraints on the DFT-optimized geometry (also applied to the
+# intermediate geometries when watching the DFT job)
+maxBndDist=2.50
+minAngle=90.0
+maxTorsion=20
+minNBDist=2.7
+# Set to 1 to follow the DFT job with GaussianLogWatcher instead of polling.
+# The watcher can recommend to cancel jobs that look hopeless.
+watchDFTInJava=0
+watchAbortSteps=0       # consecutive hopeless steps before cancelling (0: never)
+watchFitnessToBeat=""   # fitness needed to enter the population (empty: unknown)
+cancelDFTcommand="scancel"
+# Set to 1 to apply the geometric constraints to the 3D model before DFT and
+# skip the DFT optimization of candidates that fail them. The thresholds are
+# looser than those applied after DFT because the model comes from a
+# force-field conformational search, and are not yet calibrated: set to 2 to
+# only record in screening_dryrun.log the candidates that would be skipped
+# while still running their DFT optimization.
+screenBeforeDFT=0
+screenMaxBndDist=2.80
+screenMinAngle=80.0
+screenMaxTorsion=35
+screenMinNBDist=2.3
+# Surrogate model predicting the fitness at screening time (made with
+# fitnessruch2bndlng.SurrogateTrainer; empty: not used). Candidates whose
+# predicted fitness plus surrogateKappa standard deviations is below
+# surrogateMinFitness are flagged in the log. They are not sent to DFT only
+# if surrogateReject=1, which is not advisable until the model is trained on
+# pre-DFT geometries: the model is trained on DFT-optimized geometries and
+# its sigma underestimates the actual error.
+surrogateModel=""
+surrogateMinFitness=""
+surrogateKappa=2.0
+surrogateReject=0
+# Node-hours a DFT optimization typically takes (used to estimate savings)
+dftNodeHours=$((nodes * wt))
 
 #Exit code for uncomplete evaluation of fitness
 # -> set to 0 to return *FIT.sdf file with MOL_ERROR field
@@ -127,6 +194,12 @@ molName=$(basename "$inpSDF" _I.sdf)
 
 #Log of this script
 log="$wrkDir/${fname}_FProvider.log"
+#Log of the DFT jobs skipped by the screening (shared by all generations).
+#Node-hours saved per generation:
+#  awk -F'\t' '{h[$1]+=$3} END {for (g in h) print g, h[g]}' screening.log
+screeningLog="$(dirname "$wrkDir")/screening.log"
+#Same for the candidates that would be skipped (screenBeforeDFT=2)
+screeningDryRunLog="$(dirname "$wrkDir")/screening_dryrun.log"
 # From here redirect stdout and stderr to log file
 exec > "$log"
 exec 2>&1
@@ -188,8 +261,22 @@ fi
 #
 # Use results from previous evaluation of this candidate (if available)
 #
-echo "Searching for UID=$MOLUID in $previousResults"
-fitFilesFromPreviousRun="$( find $previousResults -name "*_FIT.sdf" -exec grep -l "$MOLUID" {} \; | xargs grep -l "FITNESS" )"
+if [ -f "$uidIndex" ]
+then
+    echo "Searching for UID=$MOLUID in $uidIndex"
+    if [ -n "$fitnessServerPort" ]; then
+        lookupParFile="$wrkDir/${fname}_Lookup.par"
+        echo "UIDINDEX=$uidIndex" > "$lookupParFile"
+        echo "LOOKUP=$MOLUID" >> "$lookupParFile"
+        fitFilesFromPreviousRun="$( bash "$fitnessCalculatorPath/fitness-client.sh" "$lookupParFile" "$fitnessServerPort" "$fitnessServerToken" | grep '^ENTRY=' | sed 's/^ENTRY=//' | cut -f 1 )"
+        rm -f "$lookupParFile"
+    else
+        fitFilesFromPreviousRun="$( "$java" $fitnessJavaOpts -cp "$fitnessCalculatorPath/FitnessRuCH2BndLng.jar" fitnessruch2bndlng.UIDFitnessIndex lookup "$uidIndex" "$MOLUID" | cut -f 1 )"
+    fi
+else
+    echo "Searching for UID=$MOLUID in $previousResults"
+    fitFilesFromPreviousRun="$( find $previousResults -name "*_FIT.sdf" -exec grep -l "$MOLUID" {} \; | xargs grep -l "FITNESS" )"
+fi
  if [[ -n $fitFilesFromPreviousRun ]]
 then
     echo "Trying to fetch fitness from ${fitFilesFromPreviousRun}."
@@ -290,6 +377,49 @@ else
 fi
 
 
+## Screening of the geometry before DFT
+if [ "$screenBeforeDFT" == 1 ] || [ "$screenBeforeDFT" == 2 ]; then
+    echo "Screening pre-DFT geometry"
+    screenParFile="$wrkDir/${fname}_Screen.par"
+    echo "SCREENING=yes" > "$screenParFile"
+    echo "INPSDF=$DenoptimCG3Dout" >> "$screenParFile"
+    if [ "$screenBeforeDFT" == 1 ]; then
+        echo "OUTSDF=$outSDF" >> "$screenParFile"
+    fi
+    echo "SCREENMAXBNDDIST=$screenMaxBndDist" >> "$screenParFile"
+    echo "SCREENMINANGLE=$screenMinAngle" >> "$screenParFile"
+    echo "SCREENMAXTORSION=$screenMaxTorsion" >> "$screenParFile"
+    echo "SCREENMINNBDIST=$screenMinNBDist" >> "$screenParFile"
+    if [ -n "$surrogateModel" ]; then
+        echo "SURROGATEMODEL=$surrogateModel" >> "$screenParFile"
+        echo "SURROGATEMINFITNESS=$surrogateMinFitness" >> "$screenParFile"
+        echo "SURROGATEKAPPA=$surrogateKappa" >> "$screenParFile"
+        if [ "$surrogateReject" == 1 ]; then
+            echo "SURROGATEREJECT=yes" >> "$screenParFile"
+        fi
+    fi
+    if [ -n "$fitnessServerPort" ]; then
+        screenOutcome="$(bash "$fitnessCalculatorPath/fitness-client.sh" "$screenParFile" "$fitnessServerPort" "$fitnessServerToken")"
+        screenStatus=$?
+        screenOutcome="$(echo "$screenOutcome" | grep '^SCREENING=' | sed 's/^SCREENING=//')"
+    else
+        screenOutcome="$("$java" $fitnessJavaOpts -jar "$fitnessCalculatorPath/FitnessRuCH2BndLng.jar" "$screenParFile")"
+        screenStatus=$?
+    fi
+    rm -f "$screenParFile"
+    if [ "$screenStatus" == 2 ] && [ "$screenBeforeDFT" == 2 ]; then
+        echo "Screening (not applied): $screenOutcome"
+        echo -e "$(basename "$wrkDir")\t$molName\t$dftNodeHours\t${screenOutcome#REJECTED }" >> "$screeningDryRunLog"
+    elif [ "$screenStatus" == 2 ]; then
+        echo "Screening: $screenOutcome"
+        # One line per skipped DFT job: generation, candidate, node-hours, reason
+        echo -e "$(basename "$wrkDir")\t$molName\t$dftNodeHours\t${screenOutcome#REJECTED }" >> "$screeningLog"
+        exit $E_OPTERROR
+    elif [ "$screenStatus" != 0 ]; then
+        echo "Screening could not be completed: running DFT anyway"
+    fi
+fi
+
 ## Prepare input file for DFT
 cp "$DenoptimCG3Dout" "$SDFtoDFT"
 ACCmakeInpLog="$wrkDir/${fname}_mkInp.log"
@@ -348,37 +478,84 @@ fi
 jobID=$(echo "$jobID" | grep "Submitted " | awk '{print $NF}')
 taskdone=1
 msg="";
-# Wait the minimum time before looping
-echo "Start waiting for completion of DFT: jobID $jobID"
-echo "Waiting for string 'GAUSSIAN JOB ENDED' in '$dftLogFile'"
-sleep $minTime$minTimeUnit
-echo "First check for completion of DFT"
-date
-# WARNING: this if.statment depends on the job submission script and its log. You might need to change it!
-if [ -f "$dftLogFile" ] && grep -q "GAUSSIAN JOB ENDED" "$dftLogFile" ; then
-    echo "Job done: stop waiting"
-    taskdone=0
+if [ "$watchDFTInJava" == 1 ]; then
+    watchParFile="$wrkDir/${fname}_Watch.par"
+    watchLog="$wrkDir/${fname}_Watch.log"
+    echo "Watching '$dftOutFile' until 'GAUSSIAN JOB ENDED' appears in '$dftLogFile'"
+    echo "INPSDF=$DenoptimCG3Dout" > "$watchParFile"
+    echo "DFTOUT=$dftOutFile" >> "$watchParFile"
+    echo "MAXBNDDIST=$maxBndDist" >> "$watchParFile"
+    echo "MINANGLE=$minAngle" >> "$watchParFile"
+    echo "MAXTORSION=$maxTorsion" >> "$watchParFile"
+    echo "MINNBDIST=$minNBDist" >> "$watchParFile"
+    echo "WATCHDONEFILE=$dftLogFile" >> "$watchParFile"
+    echo "WATCHDONEMARKER=GAUSSIAN JOB ENDED" >> "$watchParFile"
+    echo "WATCHABORTSTEPS=$watchAbortSteps" >> "$watchParFile"
+    if [ -n "$watchFitnessToBeat" ]; then
+        echo "WATCHFITNESS=$watchFitnessToBeat" >> "$watchParFile"
+    fi
+    case "$stepunit" in
+        h) stepSeconds=$((step*3600)) ;;
+        m) stepSeconds=$((step*60)) ;;
+        *) stepSeconds=$step ;;
+    esac
+    echo "WATCHTIMEOUT=$((stepSeconds*maxwait))" >> "$watchParFile"
+    echo "WATCHPOLL=$stepSeconds" >> "$watchParFile"
+    "$java" -cp "$fitnessCalculatorPath/FitnessRuCH2BndLng.jar" fitnessruch2bndlng.GaussianLogWatcher "$watchParFile" > "$watchLog"
+    watchStatus=$?
+    date
+    if [ $watchStatus == 0 ]; then
+        echo "Job completed: stop waiting"
+        taskdone=0
+    elif [ $watchStatus == 2 ]; then
+        errmsg="#WatchingDFT: $(grep "^ABORT" "$watchLog" | tail -n 1)"
+        echo "Cancelling job $jobID: $errmsg"
+        "$cancelDFTcommand" "$jobID"
+        "$obabel" -isdf "$DenoptimCG3Dout" -osdf -O "$outSDF" --property "MOL_ERROR" "$errmsg"
+        exit $E_OPTERROR
+    elif [ $watchStatus == 3 ]; then
+        errmsg="#WaitingDFT: time limit reached (task abbandoned)"
+        "$obabel" -isdf "$DenoptimCG3Dout" -osdf -O "$outSDF" --property "MOL_ERROR" "$errmsg"
+        exit $E_OPTERROR
+    else
+        errmsg="#WatchingDFT: non-zero exit status from GaussianLogWatcher"
+        "$obabel" -isdf "$DenoptimCG3Dout" -osdf -O "$outSDF" --property "MOL_ERROR" "$errmsg"
+        exit $E_OPTERROR
+    fi
+    cleanup "$watchParFile"
 else
-    echo "Starting job completion checking loop"
-    # Start checking for results
-    for i in $(seq 1 $maxwait)
-    do
-       sleep $step$stepunit
-       date
-       if [ -f "$dftLogFile" ] && grep -q "GAUSSIAN JOB ENDED" "$dftLogFile"
-       then
-          echo "Job completed: stop waiting"
-          taskdone=0
-          break
-       else
-          if [ $i == $maxwait ]
-          then
-             errmsg="#WaitingDFT: time limit reached (task abbandoned)"
-             "$obabel" -isdf "$DenoptimCG3Dout" -osdf -O "$outSDF" --property "MOL_ERROR" "$errmsg"
-             exit $E_OPTERROR
-          fi
-       fi
-    done
+    # Wait the minimum time before looping
+    echo "Start waiting for completion of DFT: jobID $jobID"
+    echo "Waiting for string 'GAUSSIAN JOB ENDED' in '$dftLogFile'"
+    sleep $minTime$minTimeUnit
+    echo "First check for completion of DFT"
+    date
+    # WARNING: this if.statment depends on the job submission script and its log. You might need to change it!
+    if [ -f "$dftLogFile" ] && grep -q "GAUSSIAN JOB ENDED" "$dftLogFile" ; then
+        echo "Job done: stop waiting"
+        taskdone=0
+    else
+        echo "Starting job completion checking loop"
+        # Start checking for results
+        for i in $(seq 1 $maxwait)
+        do
+           sleep $step$stepunit
+           date
+           if [ -f "$dftLogFile" ] && grep -q "GAUSSIAN JOB ENDED" "$dftLogFile"
+           then
+              echo "Job completed: stop waiting"
+              taskdone=0
+              break
+           else
+              if [ $i == $maxwait ]
+              then
+                 errmsg="#WaitingDFT: time limit reached (task abbandoned)"
+                 "$obabel" -isdf "$DenoptimCG3Dout" -osdf -O "$outSDF" --property "MOL_ERROR" "$errmsg"
+                 exit $E_OPTERROR
+              fi
+           fi
+        done
+    fi
 fi
 
 ## XYZ to SDF
@@ -390,66 +567,68 @@ if [ ! -f "$dftOutFile" ]; then
     "$obabel" -isdf "$DenoptimCG3Dout" -osdf -O "$outSDF" --property "MOL_ERROR" "$errmsg"
     exit $E_OPTERROR 
 fi
-"$obabel" -ig09 "$dftOutFile" -oxyz -O "$XYZpostDFT"
-if [ $? != 0 ]; then
-    errmsg="#G09toXYZ failure: non-zero exit status"
-    "$obabel" -isdf "$DenoptimCG3Dout" -osdf -O "$outSDF" --property "MOL_ERROR" "$errmsg"
-    exit $E_OPTERROR
-fi
-echo "Making PostDFT SDF: $SDFpostDFT"
-#NB: here we rely on the connectivity perception of OpenBabel!
-"$obabel" -ixyz "$XYZpostDFT" -osdf -O "$SDFpostDFT"
-if [ $? != 0 ]; then
-    errmsg="#XYZtoSDF failure: non-zero exit status"
-    "$obabel" -isdf "$DenoptimCG3Dout" -osdf -O "$outSDF" --property "MOL_ERROR" "$errmsg"
-    exit $E_OPTERROR
-fi
-if [ ! -f "$SDFpostDFT" ]; then
-    errmsg="#XYZtoSDF failure: "$SDFpostDFT" not found"
-    "$obabel" -isdf "$DenoptimCG3Dout" -osdf -O "$outSDF" --property "MOL_ERROR" "$errmsg"
-    exit $E_OPTERROR
-fi
+if [ "$readDFTOutInJava" != 1 ]; then
+    "$obabel" -ig09 "$dftOutFile" -oxyz -O "$XYZpostDFT"
+    if [ $? != 0 ]; then
+        errmsg="#G09toXYZ failure: non-zero exit status"
+        "$obabel" -isdf "$DenoptimCG3Dout" -osdf -O "$outSDF" --property "MOL_ERROR" "$errmsg"
+        exit $E_OPTERROR
+    fi
+    echo "Making PostDFT SDF: $SDFpostDFT"
+    #NB: here we rely on the connectivity perception of OpenBabel!
+    "$obabel" -ixyz "$XYZpostDFT" -osdf -O "$SDFpostDFT"
+    if [ $? != 0 ]; then
+        errmsg="#XYZtoSDF failure: non-zero exit status"
+        "$obabel" -isdf "$DenoptimCG3Dout" -osdf -O "$outSDF" --property "MOL_ERROR" "$errmsg"
+        exit $E_OPTERROR
+    fi
+    if [ ! -f "$SDFpostDFT" ]; then
+        errmsg="#XYZtoSDF failure: "$SDFpostDFT" not found"
+        "$obabel" -isdf "$DenoptimCG3Dout" -osdf -O "$outSDF" --property "MOL_ERROR" "$errmsg"
+        exit $E_OPTERROR
+    fi
 
 
-## Compare connectivity of optimized geometry against initial
-echo "Comparing connectivity"
-# prepare parameters for connectivity check
-echo "VERBOSITY: 2 " > "$ACCconnectParFile"
-echo "TASK: CompareTwoConnectivities" >> "$ACCconnectParFile"
-echo "INFILE: $SDFpostDFT" >> "$ACCconnectParFile"
-echo "REFERENCE: $DenoptimCG3Dout" >> "$ACCconnectParFile"
-echo "OUTFILE: $ACCconnectOut" >> "$ACCconnectParFile"
-# NOTE: the output is removed right after the execution of the task. 
-#       "$ACCconnectOut" not needed but OUTPUT option required.
+    ## Compare connectivity of optimized geometry against initial
+    echo "Comparing connectivity"
+    # prepare parameters for connectivity check
+    echo "VERBOSITY: 2 " > "$ACCconnectParFile"
+    echo "TASK: CompareTwoConnectivities" >> "$ACCconnectParFile"
+    echo "INFILE: $SDFpostDFT" >> "$ACCconnectParFile"
+    echo "REFERENCE: $DenoptimCG3Dout" >> "$ACCconnectParFile"
+    echo "OUTFILE: $ACCconnectOut" >> "$ACCconnectParFile"
+    # NOTE: the output is removed right after the execution of the task. 
+    #       "$ACCconnectOut" not needed but OUTPUT option required.
 
-"$java" -jar "$ACCpath/AutoCompChem.jar" "$ACCconnectParFile" > "$ACCconnectLog"
+    "$java" -jar "$ACCpath/AutoCompChem.jar" "$ACCconnectParFile" > "$ACCconnectLog"
 
-if [ ! -f "$ACCconnectLog" ]; then
-    errmsg="#Connectivity Check: "$ACCconnectLog" not found."
-    "$obabel" -isdf "$DenoptimCG3Dout" -osdf -O "$outSDF" --property "MOL_ERROR" "$errmsg"
-    exit $E_OPTERROR
-fi
-if ! grep -q "Termination status: 0" "$ACCconnectLog" ; then
-    errmsg="#Connectivity Check: non-zero exit status from AutoCompChem"
-    "$obabel" -isdf "$DenoptimCG3Dout" -osdf -O "$outSDF" --property "MOL_ERROR" "$errmsg"
-    exit $E_OPTERROR
-fi
-if grep -q "Inconsistent adjacency" "$ACCconnectLog" ; then
-    errmsg=$(grep "Inconsistent adjacency" "$ACCconnectLog")
-    errmsg="#Connectivity Check: $errmsg" 
-    "$obabel" -isdf "$DenoptimCG3Dout" -osdf -O "$outSDF" --property "MOL_ERROR" "$errmsg"
-    exit $E_OPTERROR
-fi
-if grep -q "Consistent connectivity" "$ACCconnectLog" ; then
-    echo "Consistent connectivity"
-else
-    errmsg="#Connectivity Check: Consistent connectivity flag not found"
-    "$obabel" -isdf "$DenoptimCG3Dout" -osdf -O "$outSDF" --property "MOL_ERROR" "$errmsg"
-    exit $E_OPTERROR
-fi
+    if [ ! -f "$ACCconnectLog" ]; then
+        errmsg="#Connectivity Check: "$ACCconnectLog" not found."
+        "$obabel" -isdf "$DenoptimCG3Dout" -osdf -O "$outSDF" --property "MOL_ERROR" "$errmsg"
+        exit $E_OPTERROR
+    fi
+    if ! grep -q "Termination status: 0" "$ACCconnectLog" ; then
+        errmsg="#Connectivity Check: non-zero exit status from AutoCompChem"
+        "$obabel" -isdf "$DenoptimCG3Dout" -osdf -O "$outSDF" --property "MOL_ERROR" "$errmsg"
+        exit $E_OPTERROR
+    fi
+    if grep -q "Inconsistent adjacency" "$ACCconnectLog" ; then
+        errmsg=$(grep "Inconsistent adjacency" "$ACCconnectLog")
+        errmsg="#Connectivity Check: $errmsg" 
+        "$obabel" -isdf "$DenoptimCG3Dout" -osdf -O "$outSDF" --property "MOL_ERROR" "$errmsg"
+        exit $E_OPTERROR
+    fi
+    if grep -q "Consistent connectivity" "$ACCconnectLog" ; then
+        echo "Consistent connectivity"
+    else
+        errmsg="#Connectivity Check: Consistent connectivity flag not found"
+        "$obabel" -isdf "$DenoptimCG3Dout" -osdf -O "$outSDF" --property "MOL_ERROR" "$errmsg"
+        exit $E_OPTERROR
+    fi
 
-#removing temporary file
-rm -f "$ACCconnectOut"
+    #removing temporary file
+    rm -f "$ACCconnectOut"
+fi
 
 
 ## Fitness calculation, this also prepares the final SDF file 
@@ -457,15 +636,34 @@ echo "Calculating descriptors and fitness"
 # Prepare the parameter file
 echo "INPSDF=$DenoptimCG3Dout" > "$fitParFile"
 echo "OUTSDF=$outSDF" >> "$fitParFile"
-echo "OPTSDF=$SDFpostDFT" >> "$fitParFile"
-echo "HPXYZ=$XYZpostDFT" >> "$fitParFile"
-echo "MAXBNDDIST=2.50" >> "$fitParFile"
-echo "MINANGLE=90.0" >> "$fitParFile"
-echo "MAXTORSION=20" >> "$fitParFile"
-echo "MINNBDIST=2.7" >> "$fitParFile"
+if [ "$readDFTOutInJava" == 1 ]; then
+    echo "DFTOUT=$dftOutFile" >> "$fitParFile"
+    echo "OUTXYZ=$XYZpostDFT" >> "$fitParFile"
+    echo "CHECKCONNECTIVITY=yes" >> "$fitParFile"
+else
+    echo "OPTSDF=$SDFpostDFT" >> "$fitParFile"
+    echo "HPXYZ=$XYZpostDFT" >> "$fitParFile"
+fi
+echo "MAXBNDDIST=$maxBndDist" >> "$fitParFile"
+echo "MINANGLE=$minAngle" >> "$fitParFile"
+echo "MAXTORSION=$maxTorsion" >> "$fitParFile"
+echo "MINNBDIST=$minNBDist" >> "$fitParFile"
 echo "WORKDIR=$wrkDir" >> "$fitParFile"
+if [ -f "$uidIndex" ]; then
+    echo "UIDINDEX=$uidIndex" >> "$fitParFile"
+fi
+if [ -n "$fitnessStatsLog" ]; then
+    echo "STATSLOG=$fitnessStatsLog" >> "$fitParFile"
+fi
+if [ -n "$columnStore" ]; then
+    echo "COLSTORE=$columnStore" >> "$fitParFile"
+fi
 
-"$java" -jar "$fitnessCalculatorPath/FitnessRuCH2BndLng.jar" "$fitParFile"
+if [ -n "$fitnessServerPort" ]; then
+    bash "$fitnessCalculatorPath/fitness-client.sh" "$fitParFile" "$fitnessServerPort" "$fitnessServerToken"
+else
+    "$java" $fitnessJavaOpts -jar "$fitnessCalculatorPath/FitnessRuCH2BndLng.jar" "$fitParFile"
+fi
 
 if [ $? != 0 ];then
     echo "FitnessRuCH2BndLng.jar failed execution."
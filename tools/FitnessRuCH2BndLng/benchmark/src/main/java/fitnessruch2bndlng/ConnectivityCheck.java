@@ -0,0 +1,114 @@
+package fitnessruch2bndlng;
+
+/*
+ *   Copyright (C) 2016
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Affero General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openscience.cdk.interfaces.IAtomContainer;
+
+/**
+ * Compares the bonds that {@link ConnectivityChecker} perceives from the
+ * DFT geometry stored in the <code>*_FIT.sdf</code> files under the given
+ * folders with the bonds stored in the same files. Those are the graph of
+ * the candidate, which the OpenBabel and AutoCompChem check found
+ * consistent with that geometry. Each disagreement is printed. Run with:
+ * <pre>
+ * java -cp target/benchmarks.jar fitnessruch2bndlng.ConnectivityCheck \
+ *      [-t tolerance] rootFolder [rootFolder ...]
+ * </pre>
+ * The exit status is the number of files where the two disagree.
+ */
+
+public class ConnectivityCheck
+{
+
+//------------------------------------------------------------------------------
+
+    /**
+     * @param args the command line arguments
+     */
+    public static void main(String[] args)
+    {
+        double tolerance = ConnectivityChecker.DEFAULTTOLERANCE;
+        int first = 0;
+        if (args.length > 1 && args[0].equals("-t"))
+        {
+            tolerance = Double.parseDouble(args[1]);
+            first = 2;
+        }
+        if (args.length <= first)
+        {
+            System.err.println("Usage: java -cp benchmarks.jar "
+                    + "fitnessruch2bndlng.ConnectivityCheck [-t tolerance] "
+                    + "rootFolder [rootFolder ...]");
+            System.exit(-1);
+        }
+        List<File> roots = new ArrayList<File>();
+        for (int i=first; i<args.length; i++)
+        {
+            roots.add(new File(args[i]));
+        }
+
+        final double tol = tolerance;
+        final AtomicInteger numFiles = new AtomicInteger();
+        final AtomicInteger numSkipped = new AtomicInteger();
+        final List<String> disagreements = Collections.synchronizedList(
+                                                   new ArrayList<String>());
+        new ResultFolderWalker(new ResultFolderWalker.Visitor() {
+            public void visit(File fitSdf, String base)
+            {
+                numFiles.incrementAndGet();
+                try
+                {
+                    IAtomContainer mol = SdfIO.readSingleSDFFile(
+                                                             fitSdf.getPath());
+                    String msg = ConnectivityChecker.compare(mol, mol, tol);
+                    if (msg != null)
+                    {
+                        disagreements.add(fitSdf.getPath() + ": " + msg);
+                    }
+                }
+                catch (Exception e)
+                {
+                    numSkipped.incrementAndGet();
+                    System.err.println("Skipping " + fitSdf + ": "
+                                       + e.getMessage());
+                }
+            }
+        }).walk(roots);
+
+        Collections.sort(disagreements);
+        for (String line : disagreements)
+        {
+            System.out.println(line);
+        }
+        int n = numFiles.get() - numSkipped.get();
+        System.out.println(String.format("%d files (%d skipped): %d "
+                + "consistent, %d different (tolerance %.3f).",
+                numFiles.get(), numSkipped.get(), n - disagreements.size(),
+                disagreements.size(), tol));
+        System.exit(disagreements.size());
+    }
+
+//------------------------------------------------------------------------------
+
+}
@@ -0,0 +1,161 @@
+package fitnessruch2bndlng;
+
+/*
+ *   Copyright (C) 2016
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Affero General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.io.File;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openscience.cdk.interfaces.IAtomContainer;
+
+/**
+ * Throughput of the steps of the evaluation of one candidate. Fixtures are
+ * the <code>*_FIT.sdf</code> and <code>*_DFT.xyz</code> files of evaluated
+ * candidates of different size. Run with <code>-prof gc</code> to get the 
+ * allocation rate.
+ */
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FitnessEvaluationBenchmark
+{
+    @Param({"../../../evolutionary_desing"})
+    public String root;
+
+    @Param({"results/run_1.0/Gen000/M00000020",
+            "results/run_1.0/Gen000/M00000001",
+            "results/run_1.0/Gen000/M00000031"})
+    public String candidate;
+
+    private String fitSdf;
+    private String hpXYZ;
+    private File outSdf;
+    private FitnessParameters params;
+    private IAtomContainer mol;
+    private Map<String,Integer> atomIndeces;
+    private DoubleVector descriptors;
+
+//------------------------------------------------------------------------------
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception
+    {
+        fitSdf = new File(root, candidate + "_FIT.sdf").getPath();
+        hpXYZ = new File(root, candidate + "_DFT.xyz").getPath();
+        outSdf = File.createTempFile("FitnessEvaluationBenchmark", ".sdf");
+
+        // Same thresholds as in Ru_14-el_fitness_BndLng.sh
+        FitnessParameters p = new FitnessParameters();
+        p.parseLine("MAXBNDDIST=2.50");
+        p.parseLine("MINANGLE=90.0");
+        p.parseLine("MAXTORSION=20");
+        p.parseLine("MINNBDIST=2.7");
+        p.parseLine("WORKDIR=" + outSdf.getParent());
+        params = p.forCandidate(fitSdf, fitSdf, hpXYZ, outSdf.getPath());
+
+        mol = SdfIO.readSingleSDFFile(fitSdf);
+        FitnessRuCH2BndLng.mergeHighPrecisionCoordinates(mol, hpXYZ);
+        atomIndeces = FitnessRuCH2BndLng.defineAtomIndexes(mol);
+        descriptors = new DoubleVector(GeometryKernel.NUMDESCRIPTORS);
+        FitnessRuCH2BndLng.calculateDescriptors(mol, atomIndeces, 
+                                                descriptors);
+    }
+
+//------------------------------------------------------------------------------
+
+    @TearDown(Level.Trial)
+    public void tearDown()
+    {
+        outSdf.delete();
+    }
+
+//------------------------------------------------------------------------------
+
+    @Benchmark
+    public IAtomContainer readSDF() throws Exception
+    {
+        return SdfIO.readSingleSDFFile(fitSdf);
+    }
+
+    @Benchmark
+    public IAtomContainer mergeHighPrecisionCoordinates() throws Exception
+    {
+        FitnessRuCH2BndLng.mergeHighPrecisionCoordinates(mol, hpXYZ);
+        return mol;
+    }
+
+    @Benchmark
+    public Map<String,Integer> defineAtomIndexes() throws Exception
+    {
+        return FitnessRuCH2BndLng.defineAtomIndexes(mol);
+    }
+
+    @Benchmark
+    public DoubleVector calculateDescriptors() throws Exception
+    {
+        FitnessRuCH2BndLng.calculateDescriptors(mol, atomIndeces, 
+                                                descriptors);
+        return descriptors;
+    }
+
+    @Benchmark
+    public double getMinimumNonBondedAtomDistance()
+    {
+        return FitnessRuCH2BndLng.getMinimumNonBondedAtomDistance(
+                                                          atomIndeces, mol);
+    }
+
+    @Benchmark
+    public String checkMolecule() throws Exception
+    {
+        return FitnessRuCH2BndLng.checkMolecule(atomIndeces, mol, params);
+    }
+
+    @Benchmark
+    public IAtomContainer writeSDF() throws Exception
+    {
+        SdfIO.writeMolecule(outSdf.getPath(), mol, false);
+        return mol;
+    }
+
+    @Benchmark
+    public FitnessResult evaluate()
+    {
+        return FitnessRuCH2BndLng.evaluate(params);
+    }
+
+//------------------------------------------------------------------------------
+
+}
@@ -0,0 +1,78 @@
+package fitnessruch2bndlng;
+
+/*
+ *   Copyright (C) 2016
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Affero General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Throughput of the extraction of the last geometry from Gaussian output
+ * files of the test run.
+ */
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class GaussianOutputBenchmark
+{
+    @Param({"../../../evolutionary_desing"})
+    public String root;
+
+    @Param({"test/RUN-TEST_tmpl/Gen000/M00000002_I_DFT.out",
+            "test/RUN-TEST_tmpl/Gen000/M00000005_I_DFT.out"})
+    public String dftOut;
+
+    private String filename;
+    private final XYZCoordinates xyz = new XYZCoordinates();
+
+//------------------------------------------------------------------------------
+
+    @Setup(Level.Trial)
+    public void setup()
+    {
+        filename = new File(root, dftOut).getPath();
+    }
+
+//------------------------------------------------------------------------------
+
+    @Benchmark
+    public XYZCoordinates readLastGeometry() throws Exception
+    {
+        GaussianOutputReader.readLastGeometry(filename, xyz);
+        return xyz;
+    }
+
+//------------------------------------------------------------------------------
+
+}
@@ -0,0 +1,149 @@
+package fitnessruch2bndlng;
+
+/*
+ *   Copyright (C) 2016
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Affero General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Compares the close pairs found by {@link NeighborGrid} with those of a
+ * brute-force all-pairs search on random sets of atoms, with random
+ * excluded pairs and cutoffs. The pairs found and the shortest distance
+ * must be the same. Run with:
+ * <pre>
+ * java -cp target/benchmarks.jar fitnessruch2bndlng.NeighborGridCheck \
+ *      [numSets [maxAtoms [seed]]]
+ * </pre>
+ * The exit status is the number of sets with different results.
+ */
+
+public class NeighborGridCheck
+{
+    //Coordinates before those of the first atom, to check the offset
+    private static final int OFFSET = 6;
+
+    //Edge of the box containing the atoms
+    private static final double BOX = 20.0;
+
+//------------------------------------------------------------------------------
+
+    /**
+     * @param args the command line arguments
+     */
+    public static void main(String[] args)
+    {
+        int numSets = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+        int maxAtoms = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+        long seed = args.length > 2 ? Long.parseLong(args[2]) : 1L;
+
+        Random rng = new Random(seed);
+        int numBad = 0;
+        for (int t=0; t<numSets; t++)
+        {
+            int n = 1 + rng.nextInt(maxAtoms);
+            double[] coords = new double[OFFSET + 3*n];
+            for (int i=0; i<coords.length; i++)
+            {
+                coords[i] = rng.nextDouble() * BOX - BOX / 2.0;
+            }
+            BondedPairMask mask = new BondedPairMask(n);
+            for (int k=0; k<n; k++)
+            {
+                mask.set(rng.nextInt(n), rng.nextInt(n));
+            }
+            double cutoff = 0.5 + rng.nextDouble() * 3.0;
+
+            List<int[]> pairs = new ArrayList<int[]>();
+            double minDist = new NeighborGrid(coords, OFFSET, n, cutoff)
+                                                 .findClosePairs(mask, pairs);
+
+            List<int[]> expected = new ArrayList<int[]>();
+            double expectedMin = bruteForce(coords, n, cutoff, mask,
+                                            expected);
+            if (minDist != expectedMin || !samePairs(pairs, expected, n))
+            {
+                numBad++;
+                System.out.println(String.format("Set %d (%d atoms, cutoff "
+                        + "%.3f): grid %d pairs, min %f; brute force %d "
+                        + "pairs, min %f", t, n, cutoff, pairs.size(),
+                        minDist, expected.size(), expectedMin));
+            }
+        }
+        System.out.println(String.format("%d sets of up to %d atoms: %d "
+                + "different from brute force.", numSets, maxAtoms, numBad));
+        System.exit(numBad);
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * @return the shortest distance among the pairs closer than the cutoff
+     */
+    private static double bruteForce(double[] coords, int n, double cutoff,
+                                     BondedPairMask mask, List<int[]> pairs)
+    {
+        double minDist = Double.MAX_VALUE;
+        for (int i=0; i<n; i++)
+        {
+            for (int j=i+1; j<n; j++)
+            {
+                if (mask.get(i, j))
+                {
+                    continue;
+                }
+                double dx = coords[OFFSET + 3*i] - coords[OFFSET + 3*j];
+                double dy = coords[OFFSET + 3*i + 1] - coords[OFFSET + 3*j + 1];
+                double dz = coords[OFFSET + 3*i + 2] - coords[OFFSET + 3*j + 2];
+                double d = Math.sqrt(dx*dx + dy*dy + dz*dz);
+                if (d < cutoff)
+                {
+                    pairs.add(new int[] {i, j});
+                    minDist = Math.min(minDist, d);
+                }
+            }
+        }
+        return minDist;
+    }
+
+//------------------------------------------------------------------------------
+
+    private static boolean samePairs(List<int[]> a, List<int[]> b, int n)
+    {
+        if (a.size() != b.size())
+        {
+            return false;
+        }
+        BondedPairMask inA = new BondedPairMask(n);
+        for (int[] p : a)
+        {
+            inA.set(p[0], p[1]);
+        }
+        for (int[] p : b)
+        {
+            if (!inA.get(p[0], p[1]))
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+//------------------------------------------------------------------------------
+
+}
@@ -0,0 +1,189 @@
+package fitnessruch2bndlng;
+
+/*
+ *   Copyright (C) 2016
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Affero General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Compares the clusters defined by {@link RmsdClustering} with those of a
+ * brute-force Butina clustering, where the exact RMSD of every pair of
+ * structures is computed without any of the bounds used to skip
+ * comparisons. The clusters, their centroids, and the order of their
+ * members must be the same. Memory and time grow with the square of the
+ * number of structures, so this is meant for a few thousand structures.
+ * Run with:
+ * <pre>
+ * java -cp target/benchmarks.jar fitnessruch2bndlng.RmsdClusteringCheck \
+ *      cutoff rootFolder [rootFolder ...]
+ * </pre>
+ * The exit status is 0 if the clusters are the same, 1 otherwise.
+ */
+
+public class RmsdClusteringCheck
+{
+
+//------------------------------------------------------------------------------
+
+    /**
+     * @param args the command line arguments
+     */
+    public static void main(String[] args)
+    {
+        if (args.length < 2)
+        {
+            System.err.println("Usage: java -cp benchmarks.jar "
+                    + "fitnessruch2bndlng.RmsdClusteringCheck cutoff "
+                    + "rootFolder [rootFolder ...]");
+            System.exit(-1);
+        }
+
+        boolean same = false;
+        try
+        {
+            double cutoff = Double.parseDouble(args[0]);
+            List<File> roots = new ArrayList<File>();
+            for (int i=1; i<args.length; i++)
+            {
+                roots.add(new File(args[i]));
+            }
+            RmsdClustering clustering = new RmsdClustering(cutoff,
+                                 Runtime.getRuntime().availableProcessors());
+            clustering.collect(roots);
+            List<int[]> clusters = clustering.cluster();
+
+            long start = System.nanoTime();
+            List<int[]> expected = bruteForce(clustering, cutoff);
+            System.out.println(String.format("Brute force: %d clusters in "
+                    + "%.2f s.", expected.size(),
+                    (System.nanoTime() - start) / 1.0e9));
+
+            same = clusters.size() == expected.size();
+            for (int k=0; same && k<clusters.size(); k++)
+            {
+                same = Arrays.equals(clusters.get(k), expected.get(k));
+                if (!same)
+                {
+                    System.out.println("First difference in cluster " + k
+                            + ": " + Arrays.toString(clusters.get(k))
+                            + " instead of "
+                            + Arrays.toString(expected.get(k)));
+                }
+            }
+            System.out.println(String.format("%d clusters from "
+                    + "RmsdClustering, %d from brute force: %s.",
+                    clusters.size(), expected.size(),
+                    same ? "same clusters" : "DIFFERENT"));
+        }
+        catch (Exception e)
+        {
+            e.printStackTrace();
+            System.exit(-1);
+        }
+        System.exit(same ? 0 : 1);
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Butina clustering on the exact RMSD of all pairs. Centroids are taken
+     * by decreasing number of neighbours, then by index, and clusters are
+     * sorted by decreasing size, as in {@link RmsdClustering#cluster}.
+     */
+    private static List<int[]> bruteForce(RmsdClustering clustering,
+                                          double cutoff)
+    {
+        int n = clustering.getStructureCount();
+        double[] rot = new double[9];
+
+        // Lower triangle: neighbours[i][j] for j < i
+        boolean[][] neighbours = new boolean[n][];
+        final int[] counts = new int[n];
+        for (int i=0; i<n; i++)
+        {
+            neighbours[i] = new boolean[i];
+            for (int j=0; j<i; j++)
+            {
+                if (clustering.superpose(i, j, rot) <= cutoff)
+                {
+                    neighbours[i][j] = true;
+                    counts[i]++;
+                    counts[j]++;
+                }
+            }
+        }
+
+        Integer[] order = new Integer[n];
+        for (int i=0; i<n; i++)
+        {
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            public int compare(Integer a, Integer b)
+            {
+                int c = Integer.compare(counts[b], counts[a]);
+                return c != 0 ? c : Integer.compare(a, b);
+            }
+        });
+        boolean[] assigned = new boolean[n];
+        List<int[]> clusters = new ArrayList<int[]>();
+        for (Integer centroid : order)
+        {
+            int c = centroid;
+            if (assigned[c])
+            {
+                continue;
+            }
+            List<Integer> members = new ArrayList<Integer>();
+            members.add(c);
+            assigned[c] = true;
+            for (int j=0; j<n; j++)
+            {
+                if (assigned[j])
+                {
+                    continue;
+                }
+                if (j < c ? neighbours[c][j] : neighbours[j][c])
+                {
+                    members.add(j);
+                    assigned[j] = true;
+                }
+            }
+            int[] cluster = new int[members.size()];
+            for (int k=0; k<cluster.length; k++)
+            {
+                cluster[k] = members.get(k);
+            }
+            clusters.add(cluster);
+        }
+        Collections.sort(clusters, new Comparator<int[]>() {
+            public int compare(int[] a, int[] b)
+            {
+                return Integer.compare(b.length, a.length);
+            }
+        });
+        return clusters;
+    }
+
+//------------------------------------------------------------------------------
+
+}
@@ -1,14 +1,17 @@
 #!/bin/bash
 
-# Building FitnessRuCH2BndLng
-if [ ! -f ../DENOPTIM/build/DENOPTIM-GUI.jar ]; then
-	echo "Cannot locate DENOPTIM-GUI.jar file. First build DENOPTIM, then run this script."
-    exit -1
-fi
-cp ../DENOPTIM/build/DENOPTIM-GUI.jar lib
+# Building FitnessRuCH2BndLng. Besides the JDK, only CDK and vecmath (in lib)
+# are needed: SDF reading/writing and the math come with the sources.
+for dep in lib/cdk-1.4.19.jar lib/vecmath.jar
+do
+    if [ ! -f "$dep" ]; then
+        echo "Cannot locate $dep file."
+        exit -1
+    fi
+done
 
 find src/ -name *.java > javafiles.txt
-javac -cp lib/cdk-1.4.19.jar:lib/vecmath.jar:lib/DENOPTIM-GUI.jar @javafiles.txt -encoding utf-8 -d .
+javac -cp lib/cdk-1.4.19.jar:lib/vecmath.jar @javafiles.txt -encoding utf-8 -d .
 
 
 if [ "$?" != "0" ]; then
@@ -22,10 +25,10 @@ rm javafiles.txt
 
 echo "Manifest-Version: 1.0" > manifest.mf
 echo "Main-Class: fitnessruch2bndlng.FitnessRuCH2BndLng" >> manifest.mf
-echo "Class-Path: lib/cdk-1.4.19.jar lib/vecmath.jar lib/DENOPTIM-GUI.jar" >> manifest.mf
+echo "Class-Path: lib/cdk-1.4.19.jar lib/vecmath.jar" >> manifest.mf
 echo >> manifest.mf
 
-jar cvfm FitnessRuCH2BndLng.jar manifest.mf fitnessruch2bndlng 
+jar cvfm FitnessRuCH2BndLng.jar manifest.mf fitnessruch2bndlng
 
 
 if [ "$?" = "0" ]; then
@@ -35,4 +38,41 @@ else
     exit -1
 fi
 
+# Class-data sharing archive (JDK 13 or later): the classes loaded while
+# evaluating one candidate of the results are stored in
+# FitnessRuCH2BndLng.jsa, which is mapped by later launches done with
+#   java -XX:SharedArchiveFile=FitnessRuCH2BndLng.jsa -jar FitnessRuCH2BndLng.jar
+# The archive is valid only for the JVM that created it and as long as the
+# jar files are not moved or rebuilt.
+rm -f FitnessRuCH2BndLng.jsa
+if java -XX:+PrintFlagsFinal -version 2> /dev/null | grep -qw ArchiveClassesAtExit
+then
+    trainingSdf=""
+    for sdf in ../../evolutionary_desing/results/run_*/Gen*/*_FIT.sdf
+    do
+        if [ -f "${sdf%_FIT.sdf}_DFT.xyz" ]; then
+            trainingSdf="$sdf"
+            break
+        fi
+    done
+    if [ -n "$trainingSdf" ]; then
+        trainingDir="$(mktemp -d)"
+        parFile="$trainingDir/training.par"
+        echo "INPSDF=$trainingSdf" > "$parFile"
+        echo "OPTSDF=$trainingSdf" >> "$parFile"
+        echo "HPXYZ=${trainingSdf%_FIT.sdf}_DFT.xyz" >> "$parFile"
+        echo "OUTSDF=$trainingDir/training_FIT.sdf" >> "$parFile"
+        echo "CHECKCONNECTIVITY=yes" >> "$parFile"
+        java -XX:ArchiveClassesAtExit=FitnessRuCH2BndLng.jsa -Xlog:cds=off \
+            -Xlog:cds+dynamic=off -jar "$(pwd)/FitnessRuCH2BndLng.jar" \
+            "$parFile" > "$trainingDir/training.log" 2>&1
+        rm -rf "$trainingDir"
+    fi
+    if [ -f FitnessRuCH2BndLng.jsa ]; then
+        echo "Created class-data sharing archive FitnessRuCH2BndLng.jsa."
+    else
+        echo "WARNING: could not create class-data sharing archive."
+    fi
+fi
+
 echo "--------------------- Done building FitnessRuCH2BndLng.jar ---------------------"
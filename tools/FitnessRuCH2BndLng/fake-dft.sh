@@ -0,0 +1,53 @@
+#!/bin/bash
+#
+# Stand-in for a DFT job, for testing the CandidateOrchestrator without
+# submitting anything. It waits for a while and then writes a Gaussian-like
+# output with the geometry of the given SDF file (V2000) as the optimized
+# geometry. Use it with
+#   ORCHSUBMITTER=local
+#   ORCHLOCALCMD=/path/to/fake-dft.sh {sdf3d} {out} 30
+#
+# Usage: fake-dft.sh <geometry.sdf> <output.out> [seconds]
+#
+
+if [ "$#" -lt 2 ]
+then
+    echo "Usage: `basename $0` <geometry.sdf> <output.out> [seconds]"
+    exit -1
+fi
+
+sdf="$1"
+out="$2"
+seconds="${3:-10}"
+
+if [ ! -f "$sdf" ]; then
+    echo "Cannot find '$sdf'."
+    exit -1
+fi
+
+sleep "$seconds"
+
+awk 'BEGIN {
+        n = split("H He Li Be B C N O F Ne Na Mg Al Si P S Cl Ar K Ca " \
+                  "Sc Ti V Cr Mn Fe Co Ni Cu Zn Ga Ge As Se Br Kr Rb Sr " \
+                  "Y Zr Nb Mo Tc Ru Rh Pd Ag Cd In Sn Sb Te I Xe", sym, " ");
+        for (i=1; i<=n; i++) z[sym[i]] = i;
+        sep = " ---------------------------------------------------------------------";
+     }
+     NR == 4 { numAtoms = substr($0, 1, 3) + 0;
+               print " Entering Gaussian System (fake-dft.sh)";
+               print "                          Input orientation:";
+               print sep;
+               print " Center     Atomic      Atomic             Coordinates (Angstroms)";
+               print " Number     Number       Type             X           Y           Z";
+               print sep; }
+     NR > 4 && NR <= 4 + numAtoms {
+               if (!($4 in z)) { print "Unknown element " $4 > "/dev/stderr"; exit 1 }
+               printf " %6d %10d %11d %15.6f %11.6f %11.6f\n", NR-4, z[$4], 0, $1, $2, $3; }
+     NR == 4 + numAtoms + 1 { print sep;
+               print " Normal termination of Gaussian (fake-dft.sh)"; }' \
+    "$sdf" > "$out"
+status=$?
+
+echo "GAUSSIAN JOB ENDED"
+exit $status
@@ -0,0 +1,48 @@
+#!/bin/bash
+#
+# Sends a parameter file to a running FitnessServer and waits for the result.
+# This is a drop-in replacement for
+#   java -jar FitnessRuCH2BndLng.jar <parameterFile>
+# that does not start any JVM. The server must have been started with
+#   java -cp FitnessRuCH2BndLng.jar fitnessruch2bndlng.FitnessServer <port> <tokenFile>
+#
+# Usage: fitness-client.sh <parameterFile> <port> <tokenFile>
+#
+
+if [ "$#" -lt 3 ]
+then
+    echo "Usage: `basename $0` <parameterFile> <port> <tokenFile>"
+    exit -1
+fi
+
+paramFile="$1"
+port="$2"
+tokenFile="$3"
+
+if [ ! -f "$tokenFile" ]; then
+    echo "Cannot find token file '$tokenFile'. Is the FitnessServer running?"
+    exit -1
+fi
+
+exec 3<>"/dev/tcp/127.0.0.1/$port"
+if [ $? != 0 ]; then
+    echo "Cannot connect to FitnessServer on port $port."
+    exit -1
+fi
+
+echo "TOKEN=$(head -n 1 "$tokenFile")" >&3
+cat "$paramFile" >&3
+echo "" >&3
+echo "END" >&3
+
+exitStatus=-1
+while IFS= read -r line <&3
+do
+    echo "$line"
+    case "$line" in
+        EXIT=*) exitStatus="${line#EXIT=}" ;;
+    esac
+done
+exec 3<&-
+
+exit $exitStatus
@@ -0,0 +1,401 @@
+package fitnessruch2bndlng;
+
+/*
+ *   Copyright (C) 2016
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Affero General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+import java.io.BufferedInputStream;
+import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.GZIPInputStream;
+
+import org.openscience.cdk.interfaces.IAtomContainer;
+
+/**
+ * Evaluates the candidates stored in <code>tar.gz</code> archives, such as
+ * those of <code>fragment_space/enumeration</code>, without extracting
+ * them. Each archive is read as a stream through the decompressor and a
+ * tar reader, and its entries are parsed in memory:
+ * <ul>
+ * <li><code>*_FIT.sdf</code> entries are evaluated with the coordinates of
+ * the matching <code>*_DFT.xyz</code> (or <code>*.xyz</code>) entry, if the
+ * archive has one,</li>
+ * <li>any other SDF entry (e.g., the <code>*_inp.sdf</code> 3D models of
+ * the enumeration) is evaluated with its own geometry.</li>
+ * </ul>
+ * Descriptors, constraints, and fitness are those of
+ * {@link FitnessRuCH2BndLng}, with the thresholds of the parameter file
+ * (the screening thresholds if SCREENING is set). Archives are processed in
+ * parallel, one per thread, and one tab-separated line per candidate is
+ * appended to a single output file. Nothing is written to disk besides the
+ * output file.
+ */
+
+public class ArchiveScanner
+{
+    private static final Logger LOGGER = Logger.getLogger(
+            ArchiveScanner.class.getName());
+
+    private final FitnessParameters params;
+    private final BufferedWriter writer;
+    private final AtomicInteger numCandidates = new AtomicInteger();
+    private final AtomicInteger numOK = new AtomicInteger();
+    private final AtomicInteger numViolations = new AtomicInteger();
+    private final AtomicInteger numFailures = new AtomicInteger();
+    private final EvaluationSummary summary = new EvaluationSummary();
+
+    private final ThreadLocal<XYZReader> xyzReader =
+                                                new ThreadLocal<XYZReader>() {
+        @Override
+        protected XYZReader initialValue()
+        {
+            return new XYZReader();
+        }
+    };
+
+//------------------------------------------------------------------------------
+
+    /**
+     * @param args the command line arguments
+     */
+    public static void main(String[] args)
+    {
+        if (args.length < 3)
+        {
+            System.err.println("Usage: java -cp FitnessRuCH2BndLng.jar "
+                    + "fitnessruch2bndlng.ArchiveScanner parameterFile "
+                    + "outputFile archiveOrFolder [archiveOrFolder ...]");
+            System.exit(-1);
+        }
+
+        BufferedWriter writer = null;
+        try
+        {
+            FitnessParameters params = FitnessParameters.readParameters(
+                                                                      args[0]);
+            if (params.isScreening())
+            {
+                params = params.forScreening();
+            }
+            writer = new BufferedWriter(new FileWriter(args[1]));
+            List<File> archives = new ArrayList<File>();
+            for (int i=2; i<args.length; i++)
+            {
+                collectArchives(new File(args[i]), archives);
+            }
+            ArchiveScanner scanner = new ArchiveScanner(params, writer);
+            scanner.run(archives, Runtime.getRuntime().availableProcessors());
+        }
+        catch (Exception e)
+        {
+            LOGGER.log(Level.SEVERE, null, e);
+            System.exit(-1);
+        }
+        finally
+        {
+            if (writer != null)
+            {
+                try
+                {
+                    writer.close();
+                }
+                catch (IOException e)
+                {
+                    LOGGER.log(Level.SEVERE, null, e);
+                }
+            }
+        }
+        System.exit(0);
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Adds the given archive, or the archives found in the given folder.
+     */
+    private static void collectArchives(File f, List<File> archives)
+    {
+        if (!f.isDirectory())
+        {
+            archives.add(f);
+            return;
+        }
+        File[] files = f.listFiles();
+        if (files == null)
+        {
+            LOGGER.warning("Cannot list content of " + f);
+            return;
+        }
+        Arrays.sort(files);
+        for (File child : files)
+        {
+            String name = child.getName();
+            if (child.isDirectory() || name.endsWith(".tar.gz")
+                || name.endsWith(".tgz"))
+            {
+                collectArchives(child, archives);
+            }
+        }
+    }
+
+//------------------------------------------------------------------------------
+
+    public ArchiveScanner(FitnessParameters params, BufferedWriter writer)
+    {
+        this.params = params;
+        this.writer = writer;
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Evaluates the candidates of all the archives and prints a summary.
+     * @param archives the archives
+     * @param numThreads the number of archives read at the same time
+     */
+    public void run(List<File> archives, int numThreads) throws Exception
+    {
+        writer.write("#archive\tentry\tUID\tstatus\tfitness\tdescriptors"
+                     + "\tMOL_ERROR");
+        writer.newLine();
+
+        long start = System.nanoTime();
+        ExecutorService pool = Executors.newFixedThreadPool(numThreads);
+        List<Future<?>> tasks = new ArrayList<Future<?>>();
+        for (final File archive : archives)
+        {
+            tasks.add(pool.submit(new Runnable() {
+                public void run()
+                {
+                    try
+                    {
+                        scanArchive(archive);
+                    }
+                    catch (Exception e)
+                    {
+                        LOGGER.log(Level.SEVERE, "Could not read " + archive,
+                                   e);
+                    }
+                }
+            }));
+        }
+        for (Future<?> task : tasks)
+        {
+            task.get();
+        }
+        pool.shutdown();
+        double seconds = (System.nanoTime() - start) / 1.0e9;
+
+        int n = numCandidates.get();
+        System.out.println(String.format("Scanned %d candidates from %d "
+                + "archives in %.2f s (%.1f candidates/s) using %d threads.",
+                n, archives.size(), seconds, n / Math.max(seconds, 1.0e-9),
+                numThreads));
+        System.out.println(String.format("  with fitness: %d%n"
+                + "  violating constraints: %d%n  failed: %d", numOK.get(),
+                numViolations.get(), numFailures.get()));
+        System.out.println(summary);
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Reads one archive as a stream and evaluates its candidates.
+     * SDF files waiting for their XYZ file, and XYZ files waiting for their
+     * SDF file, are the only content kept in memory.
+     */
+    private void scanArchive(File archive) throws Exception
+    {
+        Map<String,byte[]> pendingSdf = new LinkedHashMap<String,byte[]>();
+        Map<String,byte[]> pendingXyz = new HashMap<String,byte[]>();
+        InputStream is = new GZIPInputStream(new BufferedInputStream(
+                                     new FileInputStream(archive), 1 << 16),
+                                     1 << 16);
+        try
+        {
+            TarStreamReader tar = new TarStreamReader(is);
+            while (tar.next())
+            {
+                String name = tar.getName();
+                if (!tar.isFile())
+                {
+                    continue;
+                }
+                if (name.endsWith(ResultFolderWalker.FITSUFFIX))
+                {
+                    String base = name.substring(0, name.length()
+                                   - ResultFolderWalker.FITSUFFIX.length());
+                    byte[] xyz = pendingXyz.remove(base);
+                    if (xyz == null)
+                    {
+                        pendingSdf.put(base, tar.readContent());
+                    }
+                    else
+                    {
+                        evaluateEntry(archive, name, tar.readContent(), xyz);
+                    }
+                }
+                else if (name.endsWith(".sdf"))
+                {
+                    evaluateEntry(archive, name, tar.readContent(), null);
+                }
+                else if (name.endsWith(".xyz"))
+                {
+                    int len = name.endsWith(ResultFolderWalker.XYZSUFFIX)
+                                   ? ResultFolderWalker.XYZSUFFIX.length() : 4;
+                    String base = name.substring(0, name.length() - len);
+                    byte[] sdf = pendingSdf.remove(base);
+                    if (sdf == null)
+                    {
+                        pendingXyz.put(base, tar.readContent());
+                    }
+                    else
+                    {
+                        evaluateEntry(archive,
+                                      base + ResultFolderWalker.FITSUFFIX,
+                                      sdf, tar.readContent());
+                    }
+                }
+            }
+        }
+        finally
+        {
+            is.close();
+        }
+
+        // Results without DFT geometry are evaluated with their own
+        for (Map.Entry<String,byte[]> e : pendingSdf.entrySet())
+        {
+            evaluateEntry(archive, e.getKey() + ResultFolderWalker.FITSUFFIX,
+                          e.getValue(), null);
+        }
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Evaluates one candidate read from an archive.
+     * @param archive the archive
+     * @param entry the path of the SDF entry
+     * @param sdf the content of the SDF entry
+     * @param xyz the content of the XYZ entry, or null
+     */
+    private void evaluateEntry(File archive, String entry, byte[] sdf,
+                               byte[] xyz)
+    {
+        numCandidates.incrementAndGet();
+        EvaluationStats stats = new EvaluationStats();
+        FitnessResult result;
+        IAtomContainer mol = null;
+        try
+        {
+            stats.begin(EvaluationStats.Phase.READ_SDF);
+            mol = SdfIO.parseSDF(sdf, entry);
+            FitnessRuCH2BndLng.removeResultProperties(mol);
+            if (xyz != null)
+            {
+                stats.begin(EvaluationStats.Phase.READ_GEOMETRY);
+                XYZCoordinates coords = new XYZCoordinates();
+                xyzReader.get().read(new ByteArrayInputStream(xyz), entry,
+                                     coords);
+                FitnessRuCH2BndLng.mergeHighPrecisionCoordinates(mol, coords);
+            }
+            result = FitnessRuCH2BndLng.evaluateGeometry(mol, params, stats);
+            stats.end();
+        }
+        catch (Exception e)
+        {
+            EvaluationStats.Phase phase = stats.end();
+            if (phase == EvaluationStats.Phase.CORE)
+            {
+                stats.setReason(FailureReason.CORE_IDENTIFICATION);
+            }
+            else if (phase == EvaluationStats.Phase.READ_SDF
+                     || phase == EvaluationStats.Phase.READ_GEOMETRY)
+            {
+                stats.setReason(FailureReason.INPUT);
+            }
+            else
+            {
+                stats.setReason(FailureReason.OTHER);
+            }
+            result = FitnessResult.failure(mol, "#Fitness Evaluation: "
+                                                            + e.getMessage());
+        }
+        result.setStats(stats);
+        summary.add(stats);
+
+        StringBuilder line = new StringBuilder();
+        line.append(archive.getName()).append("\t").append(entry).append("\t");
+        Object uid = mol == null ? null : mol.getProperty("UID");
+        Object descriptors = mol == null ? null
+                                         : mol.getProperty("Descriptors");
+        line.append(uid == null ? "" : uid.toString().trim()).append("\t");
+        if (result.hasFitness())
+        {
+            numOK.incrementAndGet();
+            line.append("OK\t");
+            line.append(String.format("%8.5f", result.getFitness()).trim());
+            line.append("\t").append(descriptors).append("\t");
+        }
+        else
+        {
+            if (result.isFailure())
+            {
+                numFailures.incrementAndGet();
+                line.append("FAILED\t\t");
+            }
+            else
+            {
+                numViolations.incrementAndGet();
+                line.append("MOL_ERROR\t\t");
+            }
+            line.append(descriptors == null ? "" : descriptors).append("\t");
+            line.append(result.getMolError());
+        }
+        synchronized (writer)
+        {
+            try
+            {
+                writer.write(line.toString());
+                writer.newLine();
+            }
+            catch (IOException e)
+            {
+                LOGGER.log(Level.SEVERE, "Could not write results.", e);
+            }
+        }
+    }
+
+//------------------------------------------------------------------------------
+
+}
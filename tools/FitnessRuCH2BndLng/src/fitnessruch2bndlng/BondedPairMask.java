@@ -0,0 +1,178 @@
+package fitnessruch2bndlng;
+
+/*
+ *   Copyright (C) 2016
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Affero General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+import org.openscience.cdk.interfaces.IAtom;
+import org.openscience.cdk.interfaces.IAtomContainer;
+import org.openscience.cdk.interfaces.IBond;
+
+/**
+ * Symmetric bitset marking pairs of atoms. The pairs marked depend on the
+ * factory: {@link #fromMolecule} and {@link #fromNeighbours} mark the pairs
+ * that are bonded (1-2) or share a bonded neighbour (1-3), which are 
+ * excluded from the search of steric clashes, while {@link #bondsOf} marks
+ * only the bonded pairs, as used to compare connectivities.
+ */
+
+public class BondedPairMask
+{
+    private final int numAtoms;
+    private final long[] bits;
+
+//------------------------------------------------------------------------------
+
+    public BondedPairMask(int numAtoms)
+    {
+        this.numAtoms = numAtoms;
+        this.bits = new long[(numAtoms * numAtoms + 63) >>> 6];
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Creates the mask of 1-2 and 1-3 pairs from the connectivity of a
+     * molecule.
+     */
+    public static BondedPairMask fromMolecule(IAtomContainer mol)
+    {
+        return fromNeighbours(getNeighbours(mol));
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Creates the mask of 1-2 pairs only, i.e., the bonds of a molecule.
+     */
+    public static BondedPairMask bondsOf(IAtomContainer mol)
+    {
+        int[][] nbrs = getNeighbours(mol);
+        BondedPairMask mask = new BondedPairMask(nbrs.length);
+        for (int i=0; i<nbrs.length; i++)
+        {
+            for (int j : nbrs[i])
+            {
+                mask.set(i, j);
+            }
+        }
+        return mask;
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * @return the indexes of the atoms bonded to each atom of a molecule
+     */
+    public static int[][] getNeighbours(IAtomContainer mol)
+    {
+        int n = mol.getAtomCount();
+        Map<IAtom,Integer> ids = new IdentityHashMap<IAtom,Integer>();
+        for (int i=0; i<n; i++)
+        {
+            ids.put(mol.getAtom(i), i);
+        }
+
+        int[] degree = new int[n];
+        int[][] nbrs = new int[n][];
+        for (IBond bnd : mol.bonds())
+        {
+            degree[ids.get(bnd.getAtom(0))]++;
+            degree[ids.get(bnd.getAtom(1))]++;
+        }
+        for (int i=0; i<n; i++)
+        {
+            nbrs[i] = new int[degree[i]];
+            degree[i] = 0;
+        }
+        for (IBond bnd : mol.bonds())
+        {
+            int a = ids.get(bnd.getAtom(0));
+            int b = ids.get(bnd.getAtom(1));
+            nbrs[a][degree[a]++] = b;
+            nbrs[b][degree[b]++] = a;
+        }
+        return nbrs;
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Creates the mask of 1-2 and 1-3 pairs from lists of bonded neighbours.
+     */
+    public static BondedPairMask fromNeighbours(int[][] nbrs)
+    {
+        int n = nbrs.length;
+        BondedPairMask mask = new BondedPairMask(n);
+        for (int i=0; i<n; i++)
+        {
+            for (int j : nbrs[i])
+            {
+                mask.set(i, j);
+                for (int k : nbrs[j])
+                {
+                    if (k != i)
+                    {
+                        mask.set(i, k);
+                    }
+                }
+            }
+        }
+        return mask;
+    }
+
+//------------------------------------------------------------------------------
+
+    public void set(int i, int j)
+    {
+        int a = i * numAtoms + j;
+        int b = j * numAtoms + i;
+        bits[a >>> 6] |= 1L << a;
+        bits[b >>> 6] |= 1L << b;
+    }
+
+//------------------------------------------------------------------------------
+
+    public boolean get(int i, int j)
+    {
+        int a = i * numAtoms + j;
+        return (bits[a >>> 6] & (1L << a)) != 0;
+    }
+
+//------------------------------------------------------------------------------
+
+    public int getAtomCount()
+    {
+        return numAtoms;
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * @return true if the two masks mark exactly the same pairs
+     */
+    public boolean sameAs(BondedPairMask other)
+    {
+        return numAtoms == other.numAtoms && Arrays.equals(bits, other.bits);
+    }
+
+//------------------------------------------------------------------------------
+
+}
@@ -0,0 +1,935 @@
+package fitnessruch2bndlng;
+
+/*
+ *   Copyright (C) 2016
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Affero General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Evaluates many candidates as an asynchronous pipeline, in place of one
+ * blocking <code>Ru_14-el_fitness_BndLng.sh</code> process per candidate.
+ * The stages are:
+ * <ol>
+ * <li>build3d: builds the 3D model with an external command (e.g., a
+ * wrapper of DenoptimCG),</li>
+ * <li>screen: checks the 3D model against the screening thresholds
+ * (see {@link FitnessRuCH2BndLng#screen}) and, if SURROGATEMODEL is given,
+ * predicts its fitness,</li>
+ * <li>prepare: writes the DFT input with an external command (e.g.,
+ * AutoCompChem),</li>
+ * <li>dft: submits the DFT job and waits for it (see {@link DftStage});
+ * candidates waiting for a free slot are submitted in order of decreasing
+ * optimistic predicted fitness, if any,</li>
+ * <li>evaluate: reads the optimized geometry from the DFT output, checks
+ * connectivity and constraints, and calculates the fitness (see
+ * {@link FitnessRuCH2BndLng#evaluate}). Since the bash script always 
+ * checks the connectivity, CHECKCONNECTIVITY must be given explicitly:
+ * parameter files without it are rejected.</li>
+ * </ol>
+ * A candidate does not own a thread: it is a chain of futures that moves
+ * from stage to stage, and each stage has its own bounded pool of threads.
+ * Candidates waiting for their DFT job only cost the memory of their chain,
+ * so that a single process can follow hundreds of them. The number of
+ * candidates waiting, running, done, and failed in each stage is logged at
+ * regular intervals and, optionally, written to a status file.
+ * Candidates that do not get a fitness get an output SDF with MOL_ERROR,
+ * as done by the bash script.
+ * <br><br>
+ * The parameter file contains the keys of {@link FitnessParameters}
+ * (thresholds, screening, connectivity check, logs) and the following:
+ * <ul>
+ * <li>ORCHCANDIDATES: file listing the candidates, one per line as
+ * <code>inputSDF outputSDF [workingDirectory]</code> (default working
+ * directory: WORKDIR, or the folder of the output SDF)</li>
+ * <li>ORCHBUILD3DCMD: command building the 3D model (default: none, the
+ * input SDF is already a 3D model)</li>
+ * <li>ORCHPREPARECMD: command writing the DFT input (default: none)</li>
+ * <li>ORCHSUBMITTER: <code>slurm</code> or <code>local</code>
+ * (default: slurm)</li>
+ * <li>ORCHSUBMITCMD: command submitting a job to SLURM</li>
+ * <li>ORCHQUEUECMD: command listing the SLURM jobs of the user
+ * (default: <code>{@value SlurmJobSubmitter#DEFAULTQUEUECOMMAND}</code>)</li>
+ * <li>ORCHCANCELCMD: command cancelling a SLURM job
+ * (default: <code>{@value SlurmJobSubmitter#DEFAULTCANCELCOMMAND}</code>)</li>
+ * <li>ORCHLOCALCMD: command running a job locally</li>
+ * <li>ORCHMAXBUILD3D, ORCHMAXSCREEN, ORCHMAXPREPARE, ORCHMAXEVALUATE:
+ * threads of the stages (default: number of processors)</li>
+ * <li>ORCHMAXSUBMIT: submissions made at once (default: 2)</li>
+ * <li>ORCHMAXINFLIGHT: jobs submitted and not completed (default: 200)</li>
+ * <li>ORCHPOLL: seconds between checks of the jobs (default: 60)</li>
+ * <li>ORCHDFTTIMEOUT: seconds after which a job is cancelled
+ * (default: 0, never)</li>
+ * <li>ORCHSTATUSFILE: file where to write the status of the stages</li>
+ * <li>ORCHSTATUSINTERVAL: seconds between status reports
+ * (default: 60)</li>
+ * </ul>
+ * Commands are split on white space and run without a shell, from the
+ * working directory of the candidate. These placeholders are replaced in
+ * each word:
+ * <code>{name}</code> the name of the input SDF without extension,
+ * <code>{wrk}</code> the working directory,
+ * <code>{inpsdf}</code> the input SDF,
+ * <code>{outsdf}</code> the output SDF,
+ * <code>{sdf3d}</code> the 3D model (<code>{wrk}/{name}_3DpreDFT.sdf</code>),
+ * <code>{inp}</code> the DFT input (<code>{wrk}/{name}_DFT.inp</code>),
+ * <code>{inpname}</code> the file name of the DFT input,
+ * <code>{out}</code> the DFT output (<code>{wrk}/{name}_DFT.out</code>),
+ * <code>{log}</code> the log of the DFT job
+ * (<code>{wrk}/{name}_DFT.log</code>).
+ * The output of the external commands of build3d and prepare goes to
+ * <code>{wrk}/{name}_build3d.log</code> and
+ * <code>{wrk}/{name}_prepare.log</code>.
+ */
+
+public class CandidateOrchestrator
+{
+    private static final Logger LOGGER = Logger.getLogger(
+            CandidateOrchestrator.class.getName());
+
+    private final FitnessParameters params;
+    private String candidatesFile;
+    private String build3dCommand;
+    private String prepareCommand;
+    private String submitterType = "slurm";
+    private String submitCommand;
+    private String queueCommand = SlurmJobSubmitter.DEFAULTQUEUECOMMAND;
+    private String cancelCommand = SlurmJobSubmitter.DEFAULTCANCELCOMMAND;
+    private String localCommand;
+    private int maxBuild3d = Runtime.getRuntime().availableProcessors();
+    private int maxScreen = Runtime.getRuntime().availableProcessors();
+    private int maxPrepare = Runtime.getRuntime().availableProcessors();
+    private int maxEvaluate = Runtime.getRuntime().availableProcessors();
+    private int maxSubmit = 2;
+    private int maxInFlight = 200;
+    private long pollSeconds = 60;
+    private long dftTimeout = 0;
+    private String statusFile;
+    private long statusInterval = 60;
+
+    private final AtomicInteger numOK = new AtomicInteger();
+    private final AtomicInteger numViolations = new AtomicInteger();
+    private final AtomicInteger numFailures = new AtomicInteger();
+    private final EvaluationSummary summary = new EvaluationSummary();
+
+//------------------------------------------------------------------------------
+
+    /**
+     * The files of one candidate.
+     */
+    public static class Candidate
+    {
+        private final String name;
+        private final String inpSdf;
+        private final String outSdf;
+        private final File wrkDir;
+        private final String sdf3d;
+        private final String dftInp;
+        private final String dftOut;
+        private final String dftLog;
+        private final String outXyz;
+        private volatile String jobId;
+        private volatile double priority = 0.0;
+
+        /**
+         * @param inpSdf the graph representation of the candidate
+         * @param outSdf the output with FITNESS or MOL_ERROR
+         * @param wrkDir the working directory
+         * @param inputIs3D use the input as 3D model instead of building
+         * one
+         */
+        Candidate(String inpSdf, String outSdf, File wrkDir,
+                  boolean inputIs3D)
+        {
+            String fname = new File(inpSdf).getName();
+            if (fname.toLowerCase().endsWith(".sdf"))
+            {
+                fname = fname.substring(0, fname.length() - 4);
+            }
+            this.name = fname;
+            // Commands run in the working directory: relative paths would
+            // point to the wrong place
+            this.inpSdf = new File(inpSdf).getAbsolutePath();
+            this.outSdf = new File(outSdf).getAbsolutePath();
+            this.wrkDir = wrkDir.getAbsoluteFile();
+            String base = new File(this.wrkDir, name).getPath();
+            this.sdf3d = inputIs3D ? this.inpSdf : base + "_3DpreDFT.sdf";
+            this.dftInp = base + "_DFT.inp";
+            this.dftOut = base + "_DFT.out";
+            this.dftLog = base + "_DFT.log";
+            this.outXyz = base + ResultFolderWalker.XYZSUFFIX;
+        }
+
+        public String getName()
+        {
+            return name;
+        }
+
+        public File getWorkDir()
+        {
+            return wrkDir;
+        }
+
+        /**
+         * @return the rank of the candidate in the queue of the DFT stage
+         * (higher first)
+         */
+        public double getPriority()
+        {
+            return priority;
+        }
+
+        public String getSdf3D()
+        {
+            return sdf3d;
+        }
+
+        public String getDFTInput()
+        {
+            return dftInp;
+        }
+
+        public String getDFTOutput()
+        {
+            return dftOut;
+        }
+
+        public String getDFTLog()
+        {
+            return dftLog;
+        }
+
+        public String getJobId()
+        {
+            return jobId;
+        }
+
+        void setJobId(String jobId)
+        {
+            this.jobId = jobId;
+        }
+
+        /**
+         * @return the values of the placeholders in commands
+         */
+        public Map<String,String> getPlaceholders()
+        {
+            Map<String,String> values = new HashMap<String,String>();
+            values.put("name", name);
+            values.put("wrk", wrkDir.getPath());
+            values.put("inpsdf", inpSdf);
+            values.put("outsdf", outSdf);
+            values.put("sdf3d", sdf3d);
+            values.put("inp", dftInp);
+            values.put("inpname", new File(dftInp).getName());
+            values.put("out", dftOut);
+            values.put("log", dftLog);
+            return values;
+        }
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * @param args the command line arguments
+     */
+    public static void main(String[] args)
+    {
+        if (args.length < 1)
+        {
+            System.err.println("Usage: java -cp FitnessRuCH2BndLng.jar "
+                    + "fitnessruch2bndlng.CandidateOrchestrator "
+                    + "parameterFile");
+            System.exit(-1);
+        }
+
+        try
+        {
+            CandidateOrchestrator orchestrator = new CandidateOrchestrator(
+                                                                     args[0]);
+            orchestrator.run();
+        }
+        catch (Exception e)
+        {
+            LOGGER.log(Level.SEVERE, null, e);
+            System.exit(-1);
+        }
+        System.exit(0);
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * @param paramFile the parameter file with the keys of
+     * {@link FitnessParameters} and those of the orchestrator
+     */
+    public CandidateOrchestrator(String paramFile) throws Exception
+    {
+        this.params = FitnessParameters.readParameters(paramFile);
+        BufferedReader br = null;
+        String line;
+        try
+        {
+            br = new BufferedReader(new FileReader(paramFile));
+            while ((line = br.readLine()) != null)
+            {
+                parseLine(line);
+            }
+        }
+        finally
+        {
+            if (br != null)
+            {
+                br.close();
+            }
+        }
+
+        if (candidatesFile == null)
+        {
+            throw new Exception("List of candidates (ORCHCANDIDATES) not "
+                                + "supplied. Check parameter file.");
+        }
+        if (submitterType.equals("slurm") && submitCommand == null)
+        {
+            throw new Exception("Submission command (ORCHSUBMITCMD) not "
+                                + "supplied. Check parameter file.");
+        }
+        if (submitterType.equals("local") && localCommand == null)
+        {
+            throw new Exception("Local command (ORCHLOCALCMD) not "
+                                + "supplied. Check parameter file.");
+        }
+        if (!submitterType.equals("slurm") && !submitterType.equals("local"))
+        {
+            throw new Exception("Unknown submitter '" + submitterType
+                                + "'. Check parameter file.");
+        }
+
+        if (!params.isCheckConnectivityGiven())
+        {
+            throw new Exception("Connectivity check (CHECKCONNECTIVITY) not "
+                                + "specified. Check parameter file.");
+        }
+        if (!params.getCheckConnectivity())
+        {
+            LOGGER.warning("Connectivity of the optimized geometries will "
+                           + "not be checked (CHECKCONNECTIVITY=no).");
+        }
+
+        // Compiled once and shared by all the candidates
+        params.getConstraints();
+        params.getScreeningConstraints();
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Interprets the lines of the parameter file that are specific to the
+     * orchestrator. Other lines are ignored.
+     */
+    private void parseLine(String line) throws Exception
+    {
+        line = line.trim();
+        if (line.length() == 0 || line.startsWith("#")
+            || line.indexOf("=") < 0)
+        {
+            return;
+        }
+        String key = line.substring(0, line.indexOf("=")).trim()
+                                                               .toUpperCase();
+        String option = line.substring(line.indexOf("=") + 1).trim();
+        if (option.length() == 0)
+        {
+            return;
+        }
+
+        try
+        {
+            if (key.equals("ORCHCANDIDATES"))
+            {
+                candidatesFile = option;
+            }
+            else if (key.equals("ORCHBUILD3DCMD"))
+            {
+                build3dCommand = option;
+            }
+            else if (key.equals("ORCHPREPARECMD"))
+            {
+                prepareCommand = option;
+            }
+            else if (key.equals("ORCHSUBMITTER"))
+            {
+                submitterType = option.toLowerCase();
+            }
+            else if (key.equals("ORCHSUBMITCMD"))
+            {
+                submitCommand = option;
+            }
+            else if (key.equals("ORCHQUEUECMD"))
+            {
+                queueCommand = option;
+            }
+            else if (key.equals("ORCHCANCELCMD"))
+            {
+                cancelCommand = option;
+            }
+            else if (key.equals("ORCHLOCALCMD"))
+            {
+                localCommand = option;
+            }
+            else if (key.equals("ORCHMAXBUILD3D"))
+            {
+                maxBuild3d = Integer.parseInt(option);
+            }
+            else if (key.equals("ORCHMAXSCREEN"))
+            {
+                maxScreen = Integer.parseInt(option);
+            }
+            else if (key.equals("ORCHMAXPREPARE"))
+            {
+                maxPrepare = Integer.parseInt(option);
+            }
+            else if (key.equals("ORCHMAXEVALUATE"))
+            {
+                maxEvaluate = Integer.parseInt(option);
+            }
+            else if (key.equals("ORCHMAXSUBMIT"))
+            {
+                maxSubmit = Integer.parseInt(option);
+            }
+            else if (key.equals("ORCHMAXINFLIGHT"))
+            {
+                maxInFlight = Integer.parseInt(option);
+            }
+            else if (key.equals("ORCHPOLL"))
+            {
+                pollSeconds = Long.parseLong(option);
+            }
+            else if (key.equals("ORCHDFTTIMEOUT"))
+            {
+                dftTimeout = Long.parseLong(option);
+            }
+            else if (key.equals("ORCHSTATUSFILE"))
+            {
+                statusFile = option;
+            }
+            else if (key.equals("ORCHSTATUSINTERVAL"))
+            {
+                statusInterval = Long.parseLong(option);
+            }
+        }
+        catch (NumberFormatException e)
+        {
+            throw new Exception("Unexpected value for " + key + ": "
+                                + option);
+        }
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Reads the list of candidates.
+     */
+    private List<Candidate> readCandidates() throws Exception
+    {
+        List<Candidate> candidates = new ArrayList<Candidate>();
+        BufferedReader br = null;
+        String line;
+        int lineNum = 0;
+        try
+        {
+            br = new BufferedReader(new FileReader(candidatesFile));
+            while ((line = br.readLine()) != null)
+            {
+                lineNum++;
+                line = line.trim();
+                if (line.length() == 0 || line.startsWith("#"))
+                {
+                    continue;
+                }
+                String[] parts = line.split("\\s+");
+                if (parts.length < 2 || parts.length > 3)
+                {
+                    throw new Exception("Expecting INPSDF OUTSDF [WORKDIR] "
+                               + "on line " + lineNum + " of " + candidatesFile);
+                }
+                File dir;
+                if (parts.length == 3)
+                {
+                    dir = new File(parts[2]);
+                }
+                else if (params.getWorkDir() != null)
+                {
+                    dir = new File(params.getWorkDir());
+                }
+                else
+                {
+                    dir = new File(parts[1]).getAbsoluteFile().getParentFile();
+                }
+                candidates.add(new Candidate(parts[0], parts[1], dir,
+                                             build3dCommand == null));
+            }
+        }
+        finally
+        {
+            if (br != null)
+            {
+                br.close();
+            }
+        }
+        return candidates;
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Runs all the candidates through the pipeline and returns when all of
+     * them have an output SDF.
+     */
+    public void run() throws Exception
+    {
+        List<Candidate> candidates = readCandidates();
+
+        // Load the surrogate model once for all candidates
+        params.getSurrogateModel();
+        JobSubmitter submitter;
+        if (submitterType.equals("local"))
+        {
+            submitter = new LocalJobSubmitter(localCommand);
+        }
+        else
+        {
+            submitter = new SlurmJobSubmitter(submitCommand, queueCommand,
+                                              cancelCommand);
+        }
+
+        final PipelineStage build3d = new PipelineStage("build3d",
+                                                        maxBuild3d);
+        final PipelineStage screen = new PipelineStage("screen", maxScreen);
+        final PipelineStage prepare = new PipelineStage("prepare",
+                                                        maxPrepare);
+        final DftStage dft = new DftStage(submitter, maxSubmit, maxInFlight,
+                                          pollSeconds, dftTimeout);
+        final PipelineStage evaluate = new PipelineStage("evaluate",
+                                                         maxEvaluate);
+        final PipelineStage[] stages = new PipelineStage[] {
+                build3d, screen, prepare, dft, evaluate};
+
+        ScheduledExecutorService reporter =
+               Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r)
+            {
+                Thread t = new Thread(r, "status");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        reporter.scheduleWithFixedDelay(new Runnable() {
+            public void run()
+            {
+                reportStatus(stages);
+            }
+        }, statusInterval, statusInterval, TimeUnit.SECONDS);
+
+        LOGGER.info("Starting the evaluation of " + candidates.size()
+                    + " candidates.");
+        List<CompletableFuture<Void>> all =
+                                        new ArrayList<CompletableFuture<Void>>();
+        for (Candidate c : candidates)
+        {
+            all.add(process(c, build3d, screen, prepare, dft, evaluate));
+        }
+        try
+        {
+            CompletableFuture.allOf(all.toArray(
+                                   new CompletableFuture<?>[all.size()])).join();
+        }
+        finally
+        {
+            reporter.shutdownNow();
+            for (PipelineStage stage : stages)
+            {
+                stage.shutdown();
+            }
+        }
+        reportStatus(stages);
+        LOGGER.info("Pipeline completed: " + candidates.size()
+                    + " candidates, " + numOK.get() + " with fitness, "
+                    + numViolations.get() + " violating constraints, "
+                    + numFailures.get() + " failed.");
+        LOGGER.info(summary.toString());
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Chains the stages for one candidate. Each stage yields null to let
+     * the candidate proceed, or the final result of the candidate.
+     */
+    private CompletableFuture<Void> process(final Candidate c,
+            PipelineStage build3d, final PipelineStage screen,
+            final PipelineStage prepare, final DftStage dft,
+            final PipelineStage evaluate)
+    {
+        CompletableFuture<FitnessResult> f;
+        if (build3dCommand == null)
+        {
+            f = CompletableFuture.completedFuture(null);
+        }
+        else
+        {
+            f = build3d.submit(new Callable<FitnessResult>() {
+                public FitnessResult call() throws Exception
+                {
+                    runStep(build3dCommand, c, "build3d", c.getSdf3D(),
+                            "#DenoptimCG");
+                    return null;
+                }
+            });
+        }
+
+        f = f.thenCompose(next(screen, new Callable<FitnessResult>() {
+            public FitnessResult call() throws Exception
+            {
+                FitnessResult r = FitnessRuCH2BndLng.screen(
+                      params.forCandidate(c.getSdf3D(), null, null, c.outSdf));
+                if (r.isFailure())
+                {
+                    throw new Exception(r.getMolError());
+                }
+                Object mean = r.getMolecule().getProperty("SURROGATE_FITNESS");
+                Object sigma = r.getMolecule().getProperty("SURROGATE_SIGMA");
+                if (mean != null && sigma != null)
+                {
+                    c.priority = Double.parseDouble(mean.toString().trim())
+                                 + params.getSurrogateKappa()
+                                 * Double.parseDouble(sigma.toString().trim());
+                }
+                return r.hasFitness() ? null : r;
+            }
+        }));
+
+        if (prepareCommand != null)
+        {
+            f = f.thenCompose(next(prepare, new Callable<FitnessResult>() {
+                public FitnessResult call() throws Exception
+                {
+                    runStep(prepareCommand, c, "prepare", c.getDFTInput(),
+                            "#MakeDFTInp");
+                    return null;
+                }
+            }));
+        }
+
+        f = f.thenCompose(new Function<FitnessResult,
+                                       CompletionStage<FitnessResult>>() {
+            public CompletionStage<FitnessResult> apply(FitnessResult r)
+            {
+                if (r != null)
+                {
+                    return CompletableFuture.completedFuture(r);
+                }
+                return dft.run(c).thenApply(new Function<Candidate,
+                                                         FitnessResult>() {
+                    public FitnessResult apply(Candidate done)
+                    {
+                        return null;
+                    }
+                });
+            }
+        });
+
+        f = f.thenCompose(next(evaluate, new Callable<FitnessResult>() {
+            public FitnessResult call() throws Exception
+            {
+                FitnessParameters p = params.forDFTOutput(c.getSdf3D(),
+                                  c.getDFTOutput(), c.outXyz, c.outSdf,
+                                  c.getWorkDir().getPath());
+                p.checkParameters();
+                return FitnessRuCH2BndLng.evaluate(p);
+            }
+        }));
+
+        return f.handle(new BiFunction<FitnessResult,Throwable,Void>() {
+            public Void apply(FitnessResult r, Throwable t)
+            {
+                finish(c, r, t);
+                return null;
+            }
+        });
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * @return a function passing on the final result of a candidate, or
+     * running the given task in the given stage if there is none yet
+     */
+    private static Function<FitnessResult,CompletionStage<FitnessResult>>
+            next(final PipelineStage stage, final Callable<FitnessResult> task)
+    {
+        return new Function<FitnessResult,CompletionStage<FitnessResult>>() {
+            public CompletionStage<FitnessResult> apply(FitnessResult r)
+            {
+                if (r != null)
+                {
+                    return CompletableFuture.completedFuture(r);
+                }
+                return stage.submit(task);
+            }
+        };
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Writes the output SDF of a candidate.
+     */
+    private void finish(Candidate c, FitnessResult result, Throwable t)
+    {
+        if (t != null)
+        {
+            if (t instanceof CompletionException && t.getCause() != null)
+            {
+                t = t.getCause();
+            }
+            String msg = t.getMessage();
+            if (msg == null || !msg.startsWith("#"))
+            {
+                LOGGER.log(Level.SEVERE, "Pipeline failed for " + c.inpSdf, t);
+                msg = "#Pipeline: " + t;
+            }
+            result = FitnessResult.failure(null, msg);
+        }
+        if (result.getStats() == null)
+        {
+            EvaluationStats stats = new EvaluationStats();
+            stats.setReason(FailureReason.OTHER);
+            result.setStats(stats);
+        }
+
+        String inp = new File(c.getSdf3D()).exists() ? c.getSdf3D()
+                                                     : c.inpSdf;
+        FitnessRuCH2BndLng.writeResult(params.forCandidate(inp, null,
+                                             c.outXyz, c.outSdf), result);
+        summary.add(result.getStats());
+        if (result.isFailure())
+        {
+            numFailures.incrementAndGet();
+        }
+        else if (result.hasFitness())
+        {
+            numOK.incrementAndGet();
+        }
+        else
+        {
+            numViolations.incrementAndGet();
+        }
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Runs an external command of a candidate and checks that it produced
+     * the expected file.
+     * @param template the command
+     * @param c the candidate
+     * @param stage the name of the stage, used to name the log
+     * @param expected the file that the command must produce
+     * @param tag the beginning of MOL_ERROR messages
+     */
+    private static void runStep(String template, Candidate c, String stage,
+                                String expected, String tag) throws Exception
+    {
+        List<String> cmd = expand(template, c.getPlaceholders());
+        File log = new File(c.getWorkDir(), c.getName() + "_" + stage
+                                                                     + ".log");
+        ProcessBuilder pb = new ProcessBuilder(cmd);
+        pb.directory(c.getWorkDir());
+        pb.redirectErrorStream(true);
+        pb.redirectOutput(log);
+        int status;
+        try
+        {
+            status = pb.start().waitFor();
+        }
+        catch (Exception e)
+        {
+            throw new Exception(tag + ": cannot run " + cmd.get(0) + ": "
+                                + e.getMessage());
+        }
+        if (status != 0)
+        {
+            throw new Exception(tag + ": non-zero exit status (" + status
+                                + "). See " + log);
+        }
+        if (!new File(expected).exists())
+        {
+            throw new Exception(tag + ": " + expected + " not found.");
+        }
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Runs a command and collects its output.
+     * @param cmd the command
+     * @param dir the directory where to run it (null: current directory)
+     * @return standard output and error
+     * @throws Exception if the command cannot be run or terminates with
+     * non-zero exit status
+     */
+    static String runForOutput(List<String> cmd, File dir) throws Exception
+    {
+        ProcessBuilder pb = new ProcessBuilder(cmd);
+        if (dir != null)
+        {
+            pb.directory(dir);
+        }
+        pb.redirectErrorStream(true);
+        Process p = pb.start();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        InputStream in = p.getInputStream();
+        try
+        {
+            byte[] buf = new byte[4096];
+            int n;
+            while ((n = in.read(buf)) > 0)
+            {
+                out.write(buf, 0, n);
+            }
+        }
+        finally
+        {
+            in.close();
+        }
+        String output = new String(out.toByteArray(), StandardCharsets.UTF_8);
+        int status = p.waitFor();
+        if (status != 0)
+        {
+            throw new Exception("Non-zero exit status (" + status + ") from "
+                                + cmd.get(0) + ": " + output.trim());
+        }
+        return output;
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Splits a command template on white space and replaces the
+     * placeholders in each word.
+     * @param template the command
+     * @param values the value of each placeholder, by name
+     * @return the words of the command
+     */
+    static List<String> expand(String template, Map<String,String> values)
+    {
+        List<String> cmd = new ArrayList<String>();
+        for (String word : template.trim().split("\\s+"))
+        {
+            for (Map.Entry<String,String> e : values.entrySet())
+            {
+                word = word.replace("{" + e.getKey() + "}", e.getValue());
+            }
+            cmd.add(word);
+        }
+        return cmd;
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Logs the number of candidates in each stage and, if requested, writes
+     * it to the status file.
+     */
+    private void reportStatus(PipelineStage[] stages)
+    {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("%-10s %8s %8s %8s %8s%n", "stage",
+                                "waiting", "running", "done", "failed"));
+        for (PipelineStage stage : stages)
+        {
+            int[] n = stage.getCounts();
+            sb.append(String.format("%-10s %8d %8d %8d %8d%n",
+                                    stage.getName(), n[0], n[1], n[2], n[3]));
+        }
+        LOGGER.info("Status of the pipeline:" + System.lineSeparator() + sb);
+        if (statusFile == null)
+        {
+            return;
+        }
+
+        // Written aside and renamed, so that readers never see half a table
+        File file = new File(statusFile);
+        File tmp = new File(statusFile + ".tmp");
+        FileWriter fw = null;
+        try
+        {
+            fw = new FileWriter(tmp);
+            fw.write(sb.toString());
+            fw.close();
+            fw = null;
+            if (!tmp.renameTo(file))
+            {
+                file.delete();
+                tmp.renameTo(file);
+            }
+        }
+        catch (Exception e)
+        {
+            LOGGER.log(Level.WARNING, "Could not write " + statusFile, e);
+        }
+        finally
+        {
+            if (fw != null)
+            {
+                try
+                {
+                    fw.close();
+                }
+                catch (Exception e)
+                {
+                    // Nothing to do
+                }
+            }
+        }
+    }
+
+//------------------------------------------------------------------------------
+
+}
@@ -0,0 +1,342 @@
+package fitnessruch2bndlng;
+
+/*
+ *   Copyright (C) 2016
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Affero General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+import java.util.Arrays;
+
+import org.openscience.cdk.interfaces.IAtomContainer;
+import org.openscience.cdk.interfaces.IBond;
+
+/**
+ * Circular fingerprints in the style of the Morgan (ECFP) fingerprints of
+ * RDKit, as used in the analysis of the results. Hydrogen atoms are not
+ * part of the graph, but are counted in the initial identifier of the heavy
+ * atoms, which combines atomic number, number of heavy neighbours, number of
+ * hydrogens, and ring membership. At each iteration, the identifier of an
+ * atom is combined with the bond orders and identifiers of its neighbours.
+ * All identifiers, from radius 0 to the given radius, are folded into a
+ * bitset stored as <code>long</code> words.
+ * <br><br>
+ * The bits do not match those of RDKit (different hashing, and bonds are
+ * taken with the orders of the SDF file), but the fingerprints describe the
+ * same circular environments.
+ */
+
+public class CircularFingerprint
+{
+    /**
+     * Default radius of the environments (as for ECFP4).
+     */
+    public static final int DEFAULTRADIUS = 2;
+
+    /**
+     * Default length of the fingerprint.
+     */
+    public static final int DEFAULTBITS = 2048;
+
+//------------------------------------------------------------------------------
+
+    /**
+     * @param numBits the length of the fingerprint
+     * @return the number of <code>long</code> words of a fingerprint
+     */
+    public static int getWordCount(int numBits)
+    {
+        return (numBits + 63) / 64;
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Calculates the fingerprint of a molecule.
+     * @param mol the molecule
+     * @param radius the radius of the environments
+     * @param numBits the length of the fingerprint
+     * @return the fingerprint
+     */
+    public static long[] compute(IAtomContainer mol, int radius, int numBits)
+    {
+        int[] atomicNumbers = new int[mol.getAtomCount()];
+        for (int i=0; i<atomicNumbers.length; i++)
+        {
+            atomicNumbers[i] = PeriodicTable.getAtomicNumber(
+                                                mol.getAtom(i).getSymbol());
+        }
+        int numBonds = mol.getBondCount();
+        int[] begin = new int[numBonds];
+        int[] end = new int[numBonds];
+        int[] order = new int[numBonds];
+        for (int b=0; b<numBonds; b++)
+        {
+            IBond bond = mol.getBond(b);
+            begin[b] = mol.getAtomNumber(bond.getAtom(0));
+            end[b] = mol.getAtomNumber(bond.getAtom(1));
+            order[b] = bond.getOrder() == null ? 1
+                                               : bond.getOrder().ordinal() + 1;
+        }
+        long[] fp = new long[getWordCount(numBits)];
+        compute(atomicNumbers, begin, end, order, radius, numBits, fp, 0);
+        return fp;
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Calculates the fingerprint from the graph given as flat arrays.
+     * @param atomicNumbers the atomic number of each atom
+     * @param begin the first atom of each bond
+     * @param end the second atom of each bond
+     * @param order the order of each bond (1, 2, 3...)
+     * @param radius the radius of the environments
+     * @param numBits the length of the fingerprint
+     * @param out array where to set the bits of the fingerprint, which are
+     * not cleared beforehand
+     * @param outOffset index of the first word of the fingerprint
+     */
+    static void compute(int[] atomicNumbers, int[] begin, int[] end,
+                        int[] order, int radius, int numBits, long[] out,
+                        int outOffset)
+    {
+        int numAtoms = atomicNumbers.length;
+
+        // Adjacency of heavy atoms, and hydrogens by heavy atom
+        int[] degree = new int[numAtoms];
+        int[] numH = new int[numAtoms];
+        for (int b=0; b<begin.length; b++)
+        {
+            int i = begin[b];
+            int j = end[b];
+            if (atomicNumbers[i] == 1 || atomicNumbers[j] == 1)
+            {
+                numH[i] += atomicNumbers[j] == 1 ? 1 : 0;
+                numH[j] += atomicNumbers[i] == 1 ? 1 : 0;
+                continue;
+            }
+            degree[i]++;
+            degree[j]++;
+        }
+        int[] start = new int[numAtoms + 1];
+        for (int i=0; i<numAtoms; i++)
+        {
+            start[i + 1] = start[i] + degree[i];
+        }
+        int[] nbr = new int[start[numAtoms]];
+        int[] nbrBond = new int[start[numAtoms]];
+        int[] fill = Arrays.copyOf(start, numAtoms);
+        for (int b=0; b<begin.length; b++)
+        {
+            int i = begin[b];
+            int j = end[b];
+            if (atomicNumbers[i] == 1 || atomicNumbers[j] == 1)
+            {
+                continue;
+            }
+            nbr[fill[i]] = j;
+            nbrBond[fill[i]++] = b;
+            nbr[fill[j]] = i;
+            nbrBond[fill[j]++] = b;
+        }
+        boolean[] inRing = findRingAtoms(numAtoms, start, nbr, nbrBond,
+                                         begin.length);
+
+        int[] ids = new int[numAtoms];
+        for (int i=0; i<numAtoms; i++)
+        {
+            if (atomicNumbers[i] == 1)
+            {
+                continue;
+            }
+            int h = hash(0, atomicNumbers[i]);
+            h = hash(h, degree[i]);
+            h = hash(h, numH[i]);
+            h = hash(h, inRing[i] ? 1 : 0);
+            ids[i] = finish(h);
+            setBit(out, outOffset, ids[i], numBits);
+        }
+
+        int[] next = new int[numAtoms];
+        long[] pairs = new long[numAtoms];
+        for (int r=1; r<=radius; r++)
+        {
+            for (int i=0; i<numAtoms; i++)
+            {
+                if (atomicNumbers[i] == 1)
+                {
+                    continue;
+                }
+                // Neighbours in a canonical order
+                int n = 0;
+                for (int k=start[i]; k<start[i+1]; k++)
+                {
+                    pairs[n++] = ((long) order[nbrBond[k]] << 32)
+                                 | (ids[nbr[k]] & 0xffffffffL);
+                }
+                Arrays.sort(pairs, 0, n);
+                int h = hash(r, ids[i]);
+                for (int k=0; k<n; k++)
+                {
+                    h = hash(h, (int) (pairs[k] >>> 32));
+                    h = hash(h, (int) pairs[k]);
+                }
+                next[i] = finish(h);
+                setBit(out, outOffset, next[i], numBits);
+            }
+            int[] tmp = ids;
+            ids = next;
+            next = tmp;
+        }
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Finds the atoms in rings, i.e., those with a bond that is not a
+     * bridge of the graph, with the depth-first search of Tarjan.
+     */
+    private static boolean[] findRingAtoms(int numAtoms, int[] start,
+                                  int[] nbr, int[] nbrBond, int numBonds)
+    {
+        boolean[] inRing = new boolean[numAtoms];
+        int[] disc = new int[numAtoms];
+        int[] low = new int[numAtoms];
+        int[] parentBond = new int[numAtoms];
+        int[] cursor = new int[numAtoms];
+        int[] stack = new int[numAtoms];
+        int time = 0;
+        for (int root=0; root<numAtoms; root++)
+        {
+            if (disc[root] != 0 || start[root] == start[root+1])
+            {
+                continue;
+            }
+            int top = 0;
+            stack[top++] = root;
+            disc[root] = low[root] = ++time;
+            parentBond[root] = -1;
+            cursor[root] = start[root];
+            while (top > 0)
+            {
+                int v = stack[top - 1];
+                if (cursor[v] < start[v+1])
+                {
+                    int k = cursor[v]++;
+                    int w = nbr[k];
+                    if (nbrBond[k] == parentBond[v])
+                    {
+                        continue;
+                    }
+                    if (disc[w] == 0)
+                    {
+                        disc[w] = low[w] = ++time;
+                        parentBond[w] = nbrBond[k];
+                        cursor[w] = start[w];
+                        stack[top++] = w;
+                    }
+                    else
+                    {
+                        // Back edge: v and w are on a cycle
+                        low[v] = Math.min(low[v], disc[w]);
+                    }
+                }
+                else
+                {
+                    top--;
+                    if (top > 0)
+                    {
+                        int u = stack[top - 1];
+                        low[u] = Math.min(low[u], low[v]);
+                        if (low[v] <= disc[u])
+                        {
+                            // The bond u-v is not a bridge
+                            inRing[u] = true;
+                            inRing[v] = true;
+                        }
+                    }
+                }
+            }
+        }
+        return inRing;
+    }
+
+//------------------------------------------------------------------------------
+
+    private static int hash(int h, int value)
+    {
+        int k = value * 0xcc9e2d51;
+        k = Integer.rotateLeft(k, 15) * 0x1b873593;
+        h ^= k;
+        return Integer.rotateLeft(h, 13) * 5 + 0xe6546b64;
+    }
+
+    private static int finish(int h)
+    {
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        return h ^ (h >>> 16);
+    }
+
+    private static void setBit(long[] fp, int offset, int id, int numBits)
+    {
+        int bit = (id & 0x7fffffff) % numBits;
+        fp[offset + (bit >>> 6)] |= 1L << (bit & 63);
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Calculates the Tanimoto similarity of two fingerprints.
+     * @param a flat array containing the first fingerprint
+     * @param offA index of the first word of the first fingerprint
+     * @param countA number of bits set in the first fingerprint
+     * @param b flat array containing the second fingerprint
+     * @param offB index of the first word of the second fingerprint
+     * @param countB number of bits set in the second fingerprint
+     * @param words number of words per fingerprint
+     * @return the similarity (1 for two empty fingerprints)
+     */
+    public static double tanimoto(long[] a, int offA, int countA,
+                                  long[] b, int offB, int countB, int words)
+    {
+        int common = 0;
+        for (int w=0; w<words; w++)
+        {
+            common += Long.bitCount(a[offA + w] & b[offB + w]);
+        }
+        int union = countA + countB - common;
+        return union == 0 ? 1.0 : (double) common / union;
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * @return the number of bits set in a fingerprint
+     */
+    public static int cardinality(long[] fp, int offset, int words)
+    {
+        int count = 0;
+        for (int w=0; w<words; w++)
+        {
+            count += Long.bitCount(fp[offset + w]);
+        }
+        return count;
+    }
+
+//------------------------------------------------------------------------------
+
+}
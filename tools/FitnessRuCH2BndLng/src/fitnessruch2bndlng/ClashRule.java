@@ -0,0 +1,73 @@
+package fitnessruch2bndlng;
+
+/*
+ *   Copyright (C) 2016
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Affero General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Logger;
+
+/**
+ * Rule rejecting candidates where any two atoms that are neither 1-2 nor
+ * 1-3 are closer than a cutoff. Close pairs are found with a
+ * {@link NeighborGrid}.
+ */
+
+public class ClashRule extends ConstraintRule
+{
+    private static final Logger LOGGER = Logger.getLogger(
+            ClashRule.class.getName());
+
+    //Grid search costs more than a linear scan, but much less than a 
+    //search over all pairs
+    private static final int COST = 15;
+
+    private final double cutoff;
+
+//------------------------------------------------------------------------------
+
+    public ClashRule(double cutoff)
+    {
+        super("Steric clash", COST);
+        this.cutoff = cutoff;
+    }
+
+//------------------------------------------------------------------------------
+
+    @Override
+    public String check(RuleContext ctx)
+    {
+        NeighborGrid grid = new NeighborGrid(ctx.getCoordinates(), 0,
+                                             ctx.getAtomCount(), cutoff);
+        List<int[]> clashes = new ArrayList<int[]>();
+        double c = grid.findClosePairs(ctx.getBondedPairMask(), clashes);
+        if (c >= cutoff)
+        {
+            return null;
+        }
+        StringBuilder sb = new StringBuilder();
+        for (int[] pair : clashes)
+        {
+            sb.append(" ").append(pair[0]+1).append("-").append(pair[1]+1);
+        }
+        LOGGER.info(": Steric clash threshold violated. " 
+                    + String.format("%4f", c) + " Atom pairs:" + sb);
+        return getLabel() + " " + String.format("%2f", c);
+    }
+
+//------------------------------------------------------------------------------
+
+}
@@ -0,0 +1,663 @@
+package fitnessruch2bndlng;
+
+/*
+ *   Copyright (C) 2016
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Affero General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Columnar, append-only binary store of evaluated candidates. A store is a
+ * folder with one file per column, all little-endian, so that each column
+ * can be memory-mapped as a plain array (e.g., with
+ * <code>numpy.memmap</code>):
+ * <pre>
+ * meta         int version, int descriptors per row, long committed rows
+ * uid.off      long per row: end of the UID in uid.dat
+ * uid.dat      UTF-8 UIDs, concatenated
+ * fitness.f64  double per row (NaN if no fitness)
+ * desc.f64     {@value GeometryKernel#NUMDESCRIPTORS} doubles per row
+ *              (NaN if not calculated)
+ * status.u8    byte per row: 0 fitness, 1 constraint violated, 2 failure
+ * reason.u8    byte per row: ordinal of {@link FailureReason}
+ * natoms.i32   int per row: number of atoms
+ * coordoff.i64 long per row: index of the first atom in the atom columns
+ * elements.u8  byte per atom: atomic number
+ * coords.f64   three doubles per atom
+ * </pre>
+ * Rows are appended under a file lock and become visible to readers only
+ * when the number of committed rows in <code>meta</code> is updated, which
+ * is the last step of an append. Data left by an interrupted append is
+ * discarded by the next one.
+ */
+
+public class ColumnStore
+{
+    private static final Logger LOGGER = Logger.getLogger(
+            ColumnStore.class.getName());
+
+    public static final int VERSION = 1;
+
+    public static final byte STATUS_OK = 0;
+    public static final byte STATUS_VIOLATION = 1;
+    public static final byte STATUS_FAILURE = 2;
+
+    private static final String META = "meta";
+    private static final String UIDOFF = "uid.off";
+    private static final String UIDDAT = "uid.dat";
+    private static final String FITNESS = "fitness.f64";
+    private static final String DESC = "desc.f64";
+    private static final String STATUS = "status.u8";
+    private static final String REASON = "reason.u8";
+    private static final String NATOMS = "natoms.i32";
+    private static final String COORDOFF = "coordoff.i64";
+    private static final String ELEMENTS = "elements.u8";
+    private static final String COORDS = "coords.f64";
+
+    private static final int NDESC = GeometryKernel.NUMDESCRIPTORS;
+    private static final int METASIZE = 16;
+
+    //Largest portion of a file mapped in one buffer
+    private static final int SEGMENT = 1 << 30;
+
+//------------------------------------------------------------------------------
+
+    /**
+     * @param args the command line arguments
+     */
+    public static void main(String[] args)
+    {
+        if (args.length < 2 || !(args[0].equals("info")
+                                 || args[0].equals("export")
+                                 || args[0].equals("top")))
+        {
+            System.err.println("Usage: java -cp FitnessRuCH2BndLng.jar "
+                + "fitnessruch2bndlng.ColumnStore info storeFolder");
+            System.err.println("       java -cp FitnessRuCH2BndLng.jar "
+                + "fitnessruch2bndlng.ColumnStore export storeFolder "
+                + "outputFile");
+            System.err.println("       java -cp FitnessRuCH2BndLng.jar "
+                + "fitnessruch2bndlng.ColumnStore top storeFolder k");
+            System.exit(-1);
+        }
+
+        try
+        {
+            Reader reader = open(new File(args[1]));
+            if (args[0].equals("info"))
+            {
+                int[] counts = new int[3];
+                for (int row=0; row<reader.getRowCount(); row++)
+                {
+                    counts[reader.getStatus(row)]++;
+                }
+                System.out.println("Rows: " + reader.getRowCount()
+                                   + " (with fitness: " + counts[0]
+                                   + ", violating constraints: " + counts[1]
+                                   + ", failed: " + counts[2] + ")");
+                System.out.println("Atoms: " + reader.getTotalAtomCount());
+            }
+            else if (args[0].equals("export"))
+            {
+                if (args.length < 3)
+                {
+                    throw new Exception("Output file not given.");
+                }
+                BufferedWriter bw = new BufferedWriter(
+                                                    new FileWriter(args[2]));
+                try
+                {
+                    reader.export(bw);
+                }
+                finally
+                {
+                    bw.close();
+                }
+            }
+            else
+            {
+                int k = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+                for (int row : reader.getTopRows(k))
+                {
+                    System.out.println(String.format("%s\t%8.5f",
+                           reader.getUID(row), reader.getFitness(row)).trim());
+                }
+            }
+        }
+        catch (Exception e)
+        {
+            LOGGER.log(Level.SEVERE, null, e);
+            System.exit(-1);
+        }
+        System.exit(0);
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Appends one candidate to a store, which is created if it does not 
+     * exist.
+     * @param folder the store
+     * @param uid the unique identifier (can be null)
+     * @param fitness the fitness, or NaN
+     * @param descriptors the descriptors, or null if not calculated
+     * @param status one of the STATUS constants
+     * @param reason the reason for not having a fitness
+     * @param atomicNumbers atomic number of each atom
+     * @param coords flat array of coordinates
+     * @param offset index of the x coordinate of the first atom
+     */
+    public static synchronized void append(File folder, String uid, 
+                              double fitness, double[] descriptors, 
+                              byte status, FailureReason reason, 
+                              int[] atomicNumbers, double[] coords, 
+                              int offset) throws Exception
+    {
+        // File locks are held by the JVM, not by the thread: threads of 
+        // the same JVM are kept out of each other's way by synchronizing
+        if (!folder.exists() && !folder.mkdirs())
+        {
+            throw new Exception("Cannot create column store " + folder);
+        }
+        int natoms = atomicNumbers.length;
+        List<RandomAccessFile> files = new ArrayList<RandomAccessFile>();
+        try
+        {
+            RandomAccessFile meta = openFile(folder, META, files);
+            FileLock lock = meta.getChannel().lock();
+            try
+            {
+                long rows = 0;
+                if (meta.length() >= METASIZE)
+                {
+                    ByteBuffer bb = readBytes(meta, 0, METASIZE);
+                    if (bb.getInt(0) != VERSION || bb.getInt(4) != NDESC)
+                    {
+                        throw new Exception("Incompatible column store "
+                                            + folder);
+                    }
+                    rows = bb.getLong(8);
+                }
+
+                RandomAccessFile uidOff = openFile(folder, UIDOFF, files);
+                RandomAccessFile uidDat = openFile(folder, UIDDAT, files);
+                RandomAccessFile fit = openFile(folder, FITNESS, files);
+                RandomAccessFile desc = openFile(folder, DESC, files);
+                RandomAccessFile stat = openFile(folder, STATUS, files);
+                RandomAccessFile reas = openFile(folder, REASON, files);
+                RandomAccessFile nat = openFile(folder, NATOMS, files);
+                RandomAccessFile coff = openFile(folder, COORDOFF, files);
+                RandomAccessFile elem = openFile(folder, ELEMENTS, files);
+                RandomAccessFile xyz = openFile(folder, COORDS, files);
+
+                // Sizes of the committed data
+                long uidEnd = 0;
+                long atomEnd = 0;
+                if (rows > 0)
+                {
+                    uidEnd = readBytes(uidOff, (rows-1)*8, 8).getLong(0);
+                    atomEnd = readBytes(coff, (rows-1)*8, 8).getLong(0)
+                              + readBytes(nat, (rows-1)*4, 4).getInt(0);
+                }
+
+                byte[] uidBytes = (uid == null ? "" : uid).getBytes(
+                                                      StandardCharsets.UTF_8);
+                writeAt(uidDat, uidEnd, ByteBuffer.wrap(uidBytes));
+                writeAt(uidOff, rows*8, newBuffer(8).putLong(0,
+                                                    uidEnd + uidBytes.length));
+                writeAt(fit, rows*8, newBuffer(8).putDouble(0, fitness));
+                ByteBuffer db = newBuffer(8*NDESC);
+                for (int k=0; k<NDESC; k++)
+                {
+                    db.putDouble(8*k, descriptors == null ? Double.NaN
+                                                          : descriptors[k]);
+                }
+                writeAt(desc, rows*8*NDESC, db);
+                writeAt(stat, rows, newBuffer(1).put(0, status));
+                writeAt(reas, rows, newBuffer(1).put(0,
+                                               (byte) reason.ordinal()));
+                writeAt(nat, rows*4, newBuffer(4).putInt(0, natoms));
+                writeAt(coff, rows*8, newBuffer(8).putLong(0, atomEnd));
+                ByteBuffer eb = newBuffer(natoms);
+                ByteBuffer cb = newBuffer(24*natoms);
+                for (int i=0; i<natoms; i++)
+                {
+                    eb.put(i, (byte) atomicNumbers[i]);
+                    cb.putDouble(24*i, coords[offset + 3*i]);
+                    cb.putDouble(24*i + 8, coords[offset + 3*i + 1]);
+                    cb.putDouble(24*i + 16, coords[offset + 3*i + 2]);
+                }
+                writeAt(elem, atomEnd, eb);
+                writeAt(xyz, atomEnd*24, cb);
+
+                // Commit
+                ByteBuffer mb = newBuffer(METASIZE);
+                mb.putInt(0, VERSION);
+                mb.putInt(4, NDESC);
+                mb.putLong(8, rows + 1);
+                // meta has a fixed size and is overwritten in place: it is 
+                // never truncated, so that it always holds a row count
+                overwrite(meta, 0, mb);
+            }
+            finally
+            {
+                lock.release();
+            }
+        }
+        finally
+        {
+            for (RandomAccessFile raf : files)
+            {
+                raf.close();
+            }
+        }
+    }
+
+//------------------------------------------------------------------------------
+
+    private static RandomAccessFile openFile(File folder, String name,
+                             List<RandomAccessFile> files) throws Exception
+    {
+        RandomAccessFile raf = new RandomAccessFile(new File(folder, name),
+                                                    "rw");
+        files.add(raf);
+        return raf;
+    }
+
+    private static ByteBuffer newBuffer(int size)
+    {
+        return ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private static ByteBuffer readBytes(RandomAccessFile raf, long pos,
+                                        int size) throws Exception
+    {
+        ByteBuffer bb = newBuffer(size);
+        FileChannel ch = raf.getChannel();
+        while (bb.hasRemaining())
+        {
+            if (ch.read(bb, pos + bb.position()) < 0)
+            {
+                throw new Exception("Column store is truncated.");
+            }
+        }
+        return bb;
+    }
+
+    /**
+     * Writes the buffer at the given position and drops anything after it,
+     * i.e., data of interrupted appends.
+     */
+    private static void writeAt(RandomAccessFile raf, long pos, ByteBuffer bb)
+            throws Exception
+    {
+        FileChannel ch = raf.getChannel();
+        if (ch.size() > pos)
+        {
+            ch.truncate(pos);
+        }
+        overwrite(raf, pos, bb);
+    }
+
+    /**
+     * Writes the buffer at the given position leaving the rest of the file
+     * untouched.
+     */
+    private static void overwrite(RandomAccessFile raf, long pos, 
+                                  ByteBuffer bb) throws Exception
+    {
+        FileChannel ch = raf.getChannel();
+        bb.position(0);
+        while (bb.hasRemaining())
+        {
+            ch.write(bb, pos + bb.position());
+        }
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Opens a store for reading. Only the rows committed at the time of
+     * opening are visible.
+     */
+    public static Reader open(File folder) throws Exception
+    {
+        return new Reader(folder);
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Selects rows of a store.
+     */
+    public interface RowFilter
+    {
+        public boolean accept(Reader reader, int row);
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * A file mapped in memory, possibly in multiple segments.
+     */
+    private static class MappedColumn
+    {
+        private final MappedByteBuffer[] segments;
+
+        MappedColumn(File file, long size) throws Exception
+        {
+            int n = (int) ((size + SEGMENT - 1) / SEGMENT);
+            segments = new MappedByteBuffer[n];
+            if (n == 0)
+            {
+                return;
+            }
+            RandomAccessFile raf = new RandomAccessFile(file, "r");
+            try
+            {
+                FileChannel ch = raf.getChannel();
+                for (int s=0; s<n; s++)
+                {
+                    long start = (long) s * SEGMENT;
+                    segments[s] = ch.map(FileChannel.MapMode.READ_ONLY, start,
+                                         Math.min(SEGMENT, size - start));
+                    segments[s].order(ByteOrder.LITTLE_ENDIAN);
+                }
+            }
+            finally
+            {
+                raf.close();
+            }
+        }
+
+        // Values never straddle segments since SEGMENT is a multiple of 8
+        byte getByte(long pos)
+        {
+            return segments[(int) (pos / SEGMENT)].get((int) (pos % SEGMENT));
+        }
+
+        int getInt(long pos)
+        {
+            return segments[(int) (pos / SEGMENT)].getInt(
+                                                     (int) (pos % SEGMENT));
+        }
+
+        long getLong(long pos)
+        {
+            return segments[(int) (pos / SEGMENT)].getLong(
+                                                     (int) (pos % SEGMENT));
+        }
+
+        double getDouble(long pos)
+        {
+            return segments[(int) (pos / SEGMENT)].getDouble(
+                                                     (int) (pos % SEGMENT));
+        }
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Read-only view of the rows of a store. Columns are memory-mapped, so
+     * scans over millions of rows touch only the columns they use.
+     */
+    public static class Reader
+    {
+        private final int rows;
+        private final long atoms;
+        private final MappedColumn uidOff;
+        private final MappedColumn uidDat;
+        private final MappedColumn fitness;
+        private final MappedColumn desc;
+        private final MappedColumn status;
+        private final MappedColumn reason;
+        private final MappedColumn natoms;
+        private final MappedColumn coordOff;
+        private final MappedColumn elements;
+        private final MappedColumn coords;
+
+        private Reader(File folder) throws Exception
+        {
+            File metaFile = new File(folder, META);
+            if (!metaFile.exists())
+            {
+                throw new Exception("No column store in " + folder);
+            }
+            RandomAccessFile meta = new RandomAccessFile(metaFile, "r");
+            long n;
+            try
+            {
+                ByteBuffer bb = readBytes(meta, 0, METASIZE);
+                if (bb.getInt(0) != VERSION || bb.getInt(4) != NDESC)
+                {
+                    throw new Exception("Incompatible column store "
+                                        + folder);
+                }
+                n = bb.getLong(8);
+            }
+            finally
+            {
+                meta.close();
+            }
+            if (n > Integer.MAX_VALUE)
+            {
+                throw new Exception("Too many rows in " + folder);
+            }
+            rows = (int) n;
+
+            uidOff = new MappedColumn(new File(folder, UIDOFF), 8L*rows);
+            coordOff = new MappedColumn(new File(folder, COORDOFF), 8L*rows);
+            natoms = new MappedColumn(new File(folder, NATOMS), 4L*rows);
+            long uidSize = rows > 0 ? uidOff.getLong(8L*(rows-1)) : 0;
+            atoms = rows > 0 ? coordOff.getLong(8L*(rows-1))
+                               + natoms.getInt(4L*(rows-1)) : 0;
+            uidDat = new MappedColumn(new File(folder, UIDDAT), uidSize);
+            fitness = new MappedColumn(new File(folder, FITNESS), 8L*rows);
+            desc = new MappedColumn(new File(folder, DESC), 8L*NDESC*rows);
+            status = new MappedColumn(new File(folder, STATUS), rows);
+            reason = new MappedColumn(new File(folder, REASON), rows);
+            elements = new MappedColumn(new File(folder, ELEMENTS), atoms);
+            coords = new MappedColumn(new File(folder, COORDS), 24L*atoms);
+        }
+
+//------------------------------------------------------------------------------
+
+        public int getRowCount()
+        {
+            return rows;
+        }
+
+        public long getTotalAtomCount()
+        {
+            return atoms;
+        }
+
+        public String getUID(int row)
+        {
+            long start = row > 0 ? uidOff.getLong(8L*(row-1)) : 0;
+            int len = (int) (uidOff.getLong(8L*row) - start);
+            byte[] bytes = new byte[len];
+            for (int i=0; i<len; i++)
+            {
+                bytes[i] = uidDat.getByte(start + i);
+            }
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        public double getFitness(int row)
+        {
+            return fitness.getDouble(8L*row);
+        }
+
+        public double getDescriptor(int row, int k)
+        {
+            return desc.getDouble(8L*(NDESC*(long) row + k));
+        }
+
+        public byte getStatus(int row)
+        {
+            return status.getByte(row);
+        }
+
+        public FailureReason getReason(int row)
+        {
+            return FailureReason.values()[reason.getByte(row)];
+        }
+
+        public int getAtomCount(int row)
+        {
+            return natoms.getInt(4L*row);
+        }
+
+        public int getAtomicNumber(int row, int atom)
+        {
+            return elements.getByte(coordOff.getLong(8L*row) + atom);
+        }
+
+        /**
+         * Copies the coordinates of one row into an array.
+         * @param out array of at least 3 times the number of atoms
+         */
+        public void getCoordinates(int row, double[] out)
+        {
+            long first = coordOff.getLong(8L*row) * 24;
+            int n = 3 * getAtomCount(row);
+            for (int i=0; i<n; i++)
+            {
+                out[i] = coords.getDouble(first + 8L*i);
+            }
+        }
+
+//------------------------------------------------------------------------------
+
+        /**
+         * @return the rows accepted by the filter, in store order
+         */
+        public int[] filter(RowFilter f)
+        {
+            int[] selected = new int[16];
+            int n = 0;
+            for (int row=0; row<rows; row++)
+            {
+                if (f.accept(this, row))
+                {
+                    if (n == selected.length)
+                    {
+                        int[] tmp = new int[n * 2];
+                        System.arraycopy(selected, 0, tmp, 0, n);
+                        selected = tmp;
+                    }
+                    selected[n++] = row;
+                }
+            }
+            int[] result = new int[n];
+            System.arraycopy(selected, 0, result, 0, n);
+            return result;
+        }
+
+//------------------------------------------------------------------------------
+
+        /**
+         * @return the rows with the k highest fitness values, best first
+         */
+        public int[] getTopRows(int k)
+        {
+            // Min-heap on fitness of the best rows found so far
+            PriorityQueue<int[]> heap = new PriorityQueue<int[]>(
+                    Math.max(k, 1), new Comparator<int[]>() {
+                        @Override
+                        public int compare(int[] a, int[] b)
+                        {
+                            return Double.compare(getFitness(a[0]),
+                                                  getFitness(b[0]));
+                        }
+                    });
+            for (int row=0; row<rows && k>0; row++)
+            {
+                double f = getFitness(row);
+                if (Double.isNaN(f))
+                {
+                    continue;
+                }
+                if (heap.size() < k)
+                {
+                    heap.add(new int[] {row});
+                }
+                else if (f > getFitness(heap.peek()[0]))
+                {
+                    heap.poll();
+                    heap.add(new int[] {row});
+                }
+            }
+            int[] top = new int[heap.size()];
+            for (int i=top.length-1; i>=0; i--)
+            {
+                top[i] = heap.poll()[0];
+            }
+            return top;
+        }
+
+//------------------------------------------------------------------------------
+
+        /**
+         * Writes one tab-separated line per row with UID, status, reason,
+         * fitness, descriptors, and number of atoms.
+         */
+        public void export(BufferedWriter bw) throws Exception
+        {
+            bw.write("#UID\tstatus\treason\tfitness");
+            for (int k=0; k<NDESC; k++)
+            {
+                bw.write("\td" + k);
+            }
+            bw.write("\tnatoms");
+            bw.newLine();
+            StringBuilder sb = new StringBuilder();
+            for (int row=0; row<rows; row++)
+            {
+                sb.setLength(0);
+                sb.append(getUID(row)).append("\t").append(getStatus(row));
+                sb.append("\t").append(getReason(row).name());
+                sb.append("\t").append(getFitness(row));
+                for (int k=0; k<NDESC; k++)
+                {
+                    sb.append("\t").append(getDescriptor(row, k));
+                }
+                sb.append("\t").append(getAtomCount(row));
+                bw.write(sb.toString());
+                bw.newLine();
+            }
+        }
+    }
+
+//------------------------------------------------------------------------------
+
+}
@@ -0,0 +1,238 @@
+package fitnessruch2bndlng;
+
+/*
+ *   Copyright (C) 2016
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Affero General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+import org.openscience.cdk.interfaces.IAtomContainer;
+
+/**
+ * Comparison of the connectivity of a reference molecular graph with the
+ * bonds perceived from a geometry. Two atoms are considered bonded when
+ * their distance is shorter than the sum of their covalent radii plus a
+ * tolerance. As in OpenBabel, the longest contacts of atoms having more
+ * bonds than their maximum valence are then discarded, which removes, for 
+ * instance, agostic Ru-H contacts. Close pairs are found with a 
+ * {@link NeighborGrid}, so that perception scales linearly with the number 
+ * of atoms.
+ */
+
+public class ConnectivityChecker
+{
+    /**
+     * Default tolerance added to the sum of covalent radii.
+     */
+    public static final double DEFAULTTOLERANCE = 0.45;
+
+    //Shorter distances are not considered bonds
+    private static final double MINBONDLENGTH = 0.40;
+
+    //Number of inconsistencies listed in the report
+    private static final int MAXREPORTED = 5;
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Perceives bonds from the distances between atoms.
+     * @param xyz flat array of coordinates
+     * @param offset index of the x coordinate of the first atom
+     * @param atomicNumbers atomic number of each atom
+     * @param tolerance added to the sum of covalent radii
+     * @return the bonded pairs (1-2 only)
+     */
+    public static BondedPairMask perceiveBonds(double[] xyz, int offset,
+                                      int[] atomicNumbers, double tolerance)
+    {
+        int n = atomicNumbers.length;
+        double[] radii = new double[n];
+        double maxRadius = 0.0;
+        for (int i=0; i<n; i++)
+        {
+            radii[i] = PeriodicTable.getCovalentRadius(atomicNumbers[i]);
+            maxRadius = Math.max(maxRadius, radii[i]);
+        }
+
+        NeighborGrid grid = new NeighborGrid(xyz, offset, n,
+                                             2*maxRadius + tolerance);
+        List<int[]> pairs = new ArrayList<int[]>();
+        grid.findClosePairs(null, pairs);
+        final List<int[]> candidates = new ArrayList<int[]>();
+        final List<Double> lengths = new ArrayList<Double>();
+        int[] numBonds = new int[n];
+        for (int[] pair : pairs)
+        {
+            int i = pair[0];
+            int j = pair[1];
+            double d = GeometryKernel.distance(xyz, offset, i, j);
+            if (d > MINBONDLENGTH && d < radii[i] + radii[j] + tolerance)
+            {
+                candidates.add(pair);
+                lengths.add(d);
+                numBonds[i]++;
+                numBonds[j]++;
+            }
+        }
+
+        // Drop the longest bonds of over-coordinated atoms
+        Integer[] order = new Integer[candidates.size()];
+        for (int k=0; k<order.length; k++)
+        {
+            order[k] = k;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b)
+            {
+                return Double.compare(lengths.get(b), lengths.get(a));
+            }
+        });
+        BondedPairMask bonds = new BondedPairMask(n);
+        for (Integer k : order)
+        {
+            int i = candidates.get(k)[0];
+            int j = candidates.get(k)[1];
+            if (numBonds[i] > PeriodicTable.getMaxBonds(atomicNumbers[i])
+                || numBonds[j] > PeriodicTable.getMaxBonds(atomicNumbers[j]))
+            {
+                numBonds[i]--;
+                numBonds[j]--;
+                continue;
+            }
+            bonds.set(i, j);
+        }
+        return bonds;
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Compares the bonds of a reference graph with those perceived from the
+     * geometry of a molecule with the same atoms in the same order.
+     * @param reference the molecule defining the expected connectivity
+     * @param geometry the molecule providing the coordinates
+     * @param tolerance added to the sum of covalent radii
+     * @return null if the connectivity is consistent, or a description of 
+     * the inconsistencies
+     */
+    public static String compare(IAtomContainer reference,
+                           IAtomContainer geometry, double tolerance)
+            throws Exception
+    {
+        int n = reference.getAtomCount();
+        if (geometry.getAtomCount() != n)
+        {
+            return "Inconsistent adjacency: different number of atoms";
+        }
+        String[] symbols = new String[n];
+        int[] atomicNumbers = new int[n];
+        double[] xyz = new double[3*n];
+        for (int i=0; i<n; i++)
+        {
+            symbols[i] = reference.getAtom(i).getSymbol();
+            atomicNumbers[i] = PeriodicTable.getAtomicNumber(symbols[i]);
+            if (geometry.getAtom(i).getPoint3d() == null)
+            {
+                throw new Exception("Missing 3D coordinates for atom " 
+                                    + (i+1));
+            }
+            xyz[3*i] = geometry.getAtom(i).getPoint3d().x;
+            xyz[3*i+1] = geometry.getAtom(i).getPoint3d().y;
+            xyz[3*i+2] = geometry.getAtom(i).getPoint3d().z;
+        }
+        return compare(BondedPairMask.bondsOf(reference),
+                       perceiveBonds(xyz, 0, atomicNumbers, tolerance),
+                       symbols);
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Compares two sets of bonds.
+     * @param reference the expected bonds
+     * @param perceived the bonds found in a geometry
+     * @param symbols element symbols used in the report
+     * @return null if the two sets are the same, or a description of the
+     * differences
+     */
+    public static String compare(BondedPairMask reference,
+                           BondedPairMask perceived, String[] symbols)
+    {
+        if (reference.sameAs(perceived))
+        {
+            return null;
+        }
+        int n = reference.getAtomCount();
+        StringBuilder missing = new StringBuilder();
+        StringBuilder extra = new StringBuilder();
+        int numMissing = 0;
+        int numExtra = 0;
+        for (int i=0; i<n; i++)
+        {
+            for (int j=i+1; j<n; j++)
+            {
+                boolean inRef = reference.get(i, j);
+                if (inRef == perceived.get(i, j))
+                {
+                    continue;
+                }
+                String pair = symbols[i] + (i+1) + "-" + symbols[j] + (j+1);
+                if (inRef)
+                {
+                    if (numMissing++ < MAXREPORTED)
+                    {
+                        missing.append(" ").append(pair);
+                    }
+                }
+                else if (numExtra++ < MAXREPORTED)
+                {
+                    extra.append(" ").append(pair);
+                }
+            }
+        }
+        StringBuilder sb = new StringBuilder("Inconsistent adjacency:");
+        if (numMissing > 0)
+        {
+            sb.append(" ").append(numMissing).append(" bonds lost").append(
+                                                                    missing);
+            if (numMissing > MAXREPORTED)
+            {
+                sb.append(" ...");
+            }
+            if (numExtra > 0)
+            {
+                sb.append(";");
+            }
+        }
+        if (numExtra > 0)
+        {
+            sb.append(" ").append(numExtra).append(" bonds formed").append(
+                                                                      extra);
+            if (numExtra > MAXREPORTED)
+            {
+                sb.append(" ...");
+            }
+        }
+        return sb.toString();
+    }
+
+//------------------------------------------------------------------------------
+
+}
@@ -0,0 +1,74 @@
+package fitnessruch2bndlng;
+
+/*
+ *   Copyright (C) 2016
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Affero General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+/**
+ * A geometric constraint that a candidate must satisfy. Rules declare an
+ * estimated cost, so that cheap rules can be checked before expensive ones.
+ */
+
+public abstract class ConstraintRule
+{
+    /**
+     * Cost of rules that involve a fixed number of atoms.
+     */
+    public static final int COST_CONSTANT = 0;
+
+    /**
+     * Cost of rules that scan all atoms once.
+     */
+    public static final int COST_LINEAR = 10;
+
+    //Text starting the message reporting a violation
+    private final String label;
+
+    //Estimated cost of the check
+    private final int cost;
+
+//------------------------------------------------------------------------------
+
+    protected ConstraintRule(String label, int cost)
+    {
+        this.label = label;
+        this.cost = cost;
+    }
+
+//------------------------------------------------------------------------------
+
+    public String getLabel()
+    {
+        return label;
+    }
+
+    public int getCost()
+    {
+        return cost;
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Checks the rule.
+     * @param ctx the geometry and connectivity of the candidate
+     * @return null if the rule is satisfied, otherwise the message reporting
+     * the violation, which starts with the label of the rule
+     */
+    public abstract String check(RuleContext ctx);
+
+//------------------------------------------------------------------------------
+
+}
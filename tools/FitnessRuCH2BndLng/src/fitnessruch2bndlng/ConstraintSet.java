@@ -0,0 +1,149 @@
+package fitnessruch2bndlng;
+
+/*
+ *   Copyright (C) 2016
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Affero General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.logging.Logger;
+
+/**
+ * Ordered collection of compiled constraint rules. Rules are checked in
+ * order of increasing cost, and in order of definition when the cost is
+ * the same. In fast mode the check stops at the first violation, while in
+ * report mode all violated rules are reported.
+ */
+
+public class ConstraintSet
+{
+    private static final Logger LOGGER = Logger.getLogger(
+            ConstraintSet.class.getName());
+
+    private final List<ConstraintRule> rules;
+    private final boolean report;
+
+//------------------------------------------------------------------------------
+
+    /**
+     * @param rules the rules in order of definition
+     * @param report use <code>true</code> to collect all violations instead
+     * of stopping at the first one
+     */
+    public ConstraintSet(List<ConstraintRule> rules, boolean report)
+    {
+        this.rules = new ArrayList<ConstraintRule>(rules);
+        // Stable sort: same-cost rules keep their order
+        Collections.sort(this.rules, new Comparator<ConstraintRule>() {
+            @Override
+            public int compare(ConstraintRule a, ConstraintRule b)
+            {
+                return Integer.compare(a.getCost(), b.getCost());
+            }
+        });
+        this.report = report;
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Compiles the rules given for one of the keywords 
+     * <code>threshold_dist</code>, <code>threshold_angle</code>, or
+     * <code>threshold_dihedral</code>. Multiple rules are separated by ';'.
+     * @param keyword the keyword (case insensitive)
+     * @param definitions the rules
+     * @param rules the list where to add the compiled rules
+     */
+    public static void compile(String keyword, String definitions,
+                           List<ConstraintRule> rules) throws Exception
+    {
+        String key = keyword.trim().toLowerCase();
+        int kind;
+        if (key.equals("threshold_dist"))
+        {
+            kind = PatternRule.DISTANCE;
+        }
+        else if (key.equals("threshold_angle"))
+        {
+            kind = PatternRule.ANGLE;
+        }
+        else if (key.equals("threshold_dihedral"))
+        {
+            kind = PatternRule.DIHEDRAL;
+        }
+        else
+        {
+            throw new Exception("Unknown kind of rule '" + keyword + "'");
+        }
+        for (String def : definitions.split(";"))
+        {
+            if (def.trim().length() == 0)
+            {
+                continue;
+            }
+            rules.add(PatternRule.compile(kind, def, 
+                              FailureReason.RULE.getDescription() + " " 
+                              + key + " " + def.trim() + ":"));
+        }
+    }
+
+//------------------------------------------------------------------------------
+
+    public List<ConstraintRule> getRules()
+    {
+        return Collections.unmodifiableList(rules);
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Checks the rules on a candidate.
+     * @param ctx the geometry and connectivity of the candidate
+     * @return "OK" if all rules are satisfied, otherwise the message of the
+     * first violation found or, in report mode, the messages of all 
+     * violations separated by "; "
+     */
+    public String check(RuleContext ctx)
+    {
+        StringBuilder sb = null;
+        for (ConstraintRule rule : rules)
+        {
+            String msg = rule.check(ctx);
+            if (msg == null)
+            {
+                continue;
+            }
+            LOGGER.info(": Threshold violated. " + msg);
+            if (!report)
+            {
+                return msg;
+            }
+            if (sb == null)
+            {
+                sb = new StringBuilder(msg);
+            }
+            else
+            {
+                sb.append("; ").append(msg);
+            }
+        }
+        return sb == null ? "OK" : sb.toString();
+    }
+
+//------------------------------------------------------------------------------
+
+}
@@ -0,0 +1,558 @@
+package fitnessruch2bndlng;
+
+/*
+ *   Copyright (C) 2016
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Affero General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+/**
+ * Superposition of the Ru(Cl)(Cl)(L)=CH2 cores of two geometries. Each core
+ * is given as the coordinates of its {@value GeometryKernel#NUMROLES} atoms
+ * in the order of the roles of {@link GeometryKernel}, already centered on
+ * their mean (see {@link #center}). The two Cl atoms, as well as the two H
+ * atoms, cannot be told apart, so the RMSD is the smallest among the four
+ * ways of pairing them.
+ * <br><br>
+ * The optimal rotation is found with the quaternion characteristic
+ * polynomial method (Theobald, Acta Cryst. A61, 478, 2005; Liu et al.,
+ * J. Comput. Chem. 31, 1561, 2010), which gives the same result as the
+ * Kabsch algorithm without any decomposition of matrices. As for
+ * {@link GeometryKernel}, no object is created during the calculation of
+ * the RMSD.
+ */
+
+public class CoreSuperposition
+{
+    /**
+     * Number of values per core.
+     */
+    public static final int CORESIZE = 3 * GeometryKernel.NUMROLES;
+
+    private static final double EVALPREC = 1.0e-11;
+    private static final double EVECPREC = 1.0e-6;
+    private static final int MAXITERATIONS = 50;
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Copies the coordinates of the core atoms of one geometry.
+     * @param xyz flat array of coordinates of all atoms
+     * @param offset index of the x coordinate of the first atom
+     * @param roles indexes of the core atoms by role
+     * @param out array where to store the core
+     * @param outOffset index where to store the first value
+     */
+    public static void extractCore(double[] xyz, int offset, int[] roles,
+                                   double[] out, int outOffset)
+    {
+        for (int r=0; r<GeometryKernel.NUMROLES; r++)
+        {
+            int k = offset + 3*roles[r];
+            out[outOffset + 3*r] = xyz[k];
+            out[outOffset + 3*r + 1] = xyz[k+1];
+            out[outOffset + 3*r + 2] = xyz[k+2];
+        }
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Moves a core so that the mean of its atoms is at the origin.
+     * @param core flat array of cores
+     * @param offset index of the first value of the core
+     * @param mean array where to store the mean position that has been
+     * removed, or null
+     * @return the sum of the squared distances of the atoms from the origin
+     */
+    public static double center(double[] core, int offset, double[] mean)
+    {
+        int n = GeometryKernel.NUMROLES;
+        double mx = 0.0, my = 0.0, mz = 0.0;
+        for (int a=0; a<n; a++)
+        {
+            mx += core[offset + 3*a];
+            my += core[offset + 3*a + 1];
+            mz += core[offset + 3*a + 2];
+        }
+        mx = mx / n;
+        my = my / n;
+        mz = mz / n;
+        double g = 0.0;
+        for (int a=0; a<n; a++)
+        {
+            int k = offset + 3*a;
+            core[k] -= mx;
+            core[k+1] -= my;
+            core[k+2] -= mz;
+            g += core[k]*core[k] + core[k+1]*core[k+1] + core[k+2]*core[k+2];
+        }
+        if (mean != null)
+        {
+            mean[0] = mx;
+            mean[1] = my;
+            mean[2] = mz;
+        }
+        return g;
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Calculates the distance of each atom of a centered core from the
+     * origin. These distances do not change with rotations, and are used
+     * to bound the RMSD (see {@link #lowerBound}).
+     * @param core flat array of cores
+     * @param offset index of the first value of the core
+     * @param out array where to store the {@value GeometryKernel#NUMROLES}
+     * distances
+     * @param outOffset index where to store the first distance
+     */
+    public static void atomDistances(double[] core, int offset, double[] out,
+                                     int outOffset)
+    {
+        for (int a=0; a<GeometryKernel.NUMROLES; a++)
+        {
+            int k = offset + 3*a;
+            out[outOffset + a] = Math.sqrt(core[k]*core[k]
+                                   + core[k+1]*core[k+1] + core[k+2]*core[k+2]);
+        }
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Calculates a lower bound of the RMSD between two centered cores from
+     * the distances of their atoms from the origin: whatever the rotation,
+     * the distance between two paired atoms is not smaller than the
+     * difference of their distances from the origin.
+     * @param a flat array with the distances of the first core
+     * @param offA index of the first distance of the first core
+     * @param b flat array with the distances of the second core
+     * @param offB index of the first distance of the second core
+     * @return the lower bound of the RMSD
+     */
+    public static double lowerBound(double[] a, int offA, double[] b,
+                                    int offB)
+    {
+        double sum = 0.0;
+        double d = a[offA + GeometryKernel.RU] - b[offB + GeometryKernel.RU];
+        sum += d*d;
+        d = a[offA + GeometryKernel.C] - b[offB + GeometryKernel.C];
+        sum += d*d;
+        d = a[offA + GeometryKernel.L] - b[offB + GeometryKernel.L];
+        sum += d*d;
+        sum += pairBound(a[offA + GeometryKernel.CL1],
+                         a[offA + GeometryKernel.CL2],
+                         b[offB + GeometryKernel.CL1],
+                         b[offB + GeometryKernel.CL2]);
+        sum += pairBound(a[offA + GeometryKernel.H1],
+                         a[offA + GeometryKernel.H2],
+                         b[offB + GeometryKernel.H1],
+                         b[offB + GeometryKernel.H2]);
+        return Math.sqrt(sum / GeometryKernel.NUMROLES);
+    }
+
+    /**
+     * @return the smallest sum of squared differences between two pairs of
+     * atoms that can be swapped
+     */
+    private static double pairBound(double a1, double a2, double b1,
+                                    double b2)
+    {
+        double straight = (a1 - b1)*(a1 - b1) + (a2 - b2)*(a2 - b2);
+        double swapped = (a1 - b2)*(a1 - b2) + (a2 - b1)*(a2 - b1);
+        return Math.min(straight, swapped);
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Calculates the RMSD between two centered cores after optimal
+     * superposition, unless it is certainly larger than a given cutoff.
+     * The difference of the radii of gyration is a lower bound of the RMSD,
+     * and so is the value obtained at each step of the iterative search of
+     * the optimal rotation: the search stops as soon as the bound exceeds
+     * the cutoff.
+     * @param a flat array containing the first core
+     * @param offA index of the first value of the first core
+     * @param gA sum of squares of the first core (see {@link #center})
+     * @param b flat array containing the second core
+     * @param offB index of the first value of the second core
+     * @param gB sum of squares of the second core
+     * @param cutoff the RMSD beyond which the exact value is not needed
+     * @return the RMSD, or a value larger than the cutoff
+     */
+    public static double rmsd(double[] a, int offA, double gA,
+                              double[] b, int offB, double gB, double cutoff)
+    {
+        int n = GeometryKernel.NUMROLES;
+        double rgA = Math.sqrt(gA / n);
+        double rgB = Math.sqrt(gB / n);
+        if (Math.abs(rgA - rgB) > cutoff)
+        {
+            return Math.abs(rgA - rgB);
+        }
+        return superpose(a, offA, gA, b, offB, gB, cutoff, false, null);
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Checks whether the RMSD between two centered cores after optimal
+     * superposition is within a cutoff. This is faster than
+     * {@link #rmsd} since the pairings of the Cl and H atoms are not all
+     * tried when one of them is within the cutoff.
+     * @param a flat array containing the first core
+     * @param offA index of the first value of the first core
+     * @param gA sum of squares of the first core
+     * @param b flat array containing the second core
+     * @param offB index of the first value of the second core
+     * @param gB sum of squares of the second core
+     * @param cutoff the largest RMSD
+     * @return true if the RMSD is not larger than the cutoff
+     */
+    public static boolean isWithin(double[] a, int offA, double gA,
+                              double[] b, int offB, double gB, double cutoff)
+    {
+        int n = GeometryKernel.NUMROLES;
+        if (Math.abs(Math.sqrt(gA / n) - Math.sqrt(gB / n)) > cutoff)
+        {
+            return false;
+        }
+        return superpose(a, offA, gA, b, offB, gB, cutoff, true, null)
+               <= cutoff;
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Finds the rotation that best superposes the second core on the first.
+     * @param a flat array containing the first core
+     * @param offA index of the first value of the first core
+     * @param gA sum of squares of the first core
+     * @param b flat array containing the second core
+     * @param offB index of the first value of the second core
+     * @param gB sum of squares of the second core
+     * @param rot array of 9 values where to store the rotation matrix (by
+     * rows) to be applied to the centered second core
+     * @return the RMSD after superposition
+     */
+    public static double superpose(double[] a, int offA, double gA,
+                              double[] b, int offB, double gB, double[] rot)
+    {
+        return superpose(a, offA, gA, b, offB, gB, Double.POSITIVE_INFINITY,
+                         false, rot);
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Tries the four pairings of the Cl and H atoms.
+     * @param anyWithin stop at the first pairing within the cutoff
+     * @param rot where to store the rotation of the best pairing, or null
+     * if not needed
+     */
+    private static double superpose(double[] a, int offA, double gA,
+                                    double[] b, int offB, double gB,
+                                    double cutoff, boolean anyWithin,
+                                    double[] rot)
+    {
+        int n = GeometryKernel.NUMROLES;
+        double sxx = 0.0, sxy = 0.0, sxz = 0.0;
+        double syx = 0.0, syy = 0.0, syz = 0.0;
+        double szx = 0.0, szy = 0.0, szz = 0.0;
+        for (int i=0; i<n; i++)
+        {
+            int ka = offA + 3*i;
+            int kb = offB + 3*i;
+            double x1 = a[ka], y1 = a[ka+1], z1 = a[ka+2];
+            double x2 = b[kb], y2 = b[kb+1], z2 = b[kb+2];
+            sxx += x1*x2;
+            sxy += x1*y2;
+            sxz += x1*z2;
+            syx += y1*x2;
+            syy += y1*y2;
+            syz += y1*z2;
+            szx += z1*x2;
+            szy += z1*y2;
+            szz += z1*z2;
+        }
+
+        // Swapping two atoms of the second core adds the outer product of
+        // the differences between the two atoms in each core
+        int a1 = offA + 3*GeometryKernel.CL1;
+        int a2 = offA + 3*GeometryKernel.CL2;
+        int b1 = offB + 3*GeometryKernel.CL1;
+        int b2 = offB + 3*GeometryKernel.CL2;
+        double cax = a[a1] - a[a2], cay = a[a1+1] - a[a2+1];
+        double caz = a[a1+2] - a[a2+2];
+        double cbx = b[b2] - b[b1], cby = b[b2+1] - b[b1+1];
+        double cbz = b[b2+2] - b[b1+2];
+        a1 = offA + 3*GeometryKernel.H1;
+        a2 = offA + 3*GeometryKernel.H2;
+        b1 = offB + 3*GeometryKernel.H1;
+        b2 = offB + 3*GeometryKernel.H2;
+        double hax = a[a1] - a[a2], hay = a[a1+1] - a[a2+1];
+        double haz = a[a1+2] - a[a2+2];
+        double hbx = b[b2] - b[b1], hby = b[b2+1] - b[b1+1];
+        double hbz = b[b2+2] - b[b1+2];
+
+        double e0 = (gA + gB) / 2.0;
+        double best = Double.POSITIVE_INFINITY;
+        int bestPairing = 0;
+        double limit = cutoff;
+        for (int pairing=0; pairing<4; pairing++)
+        {
+            double c = (pairing & 1) != 0 ? 1.0 : 0.0;
+            double h = (pairing & 2) != 0 ? 1.0 : 0.0;
+            double r = qcp(sxx + c*cax*cbx + h*hax*hbx,
+                           sxy + c*cax*cby + h*hax*hby,
+                           sxz + c*cax*cbz + h*hax*hbz,
+                           syx + c*cay*cbx + h*hay*hbx,
+                           syy + c*cay*cby + h*hay*hby,
+                           syz + c*cay*cbz + h*hay*hbz,
+                           szx + c*caz*cbx + h*haz*hbx,
+                           szy + c*caz*cby + h*haz*hby,
+                           szz + c*caz*cbz + h*haz*hbz,
+                           e0, limit, null);
+            if (r < best)
+            {
+                best = r;
+                bestPairing = pairing;
+                if (anyWithin && r <= cutoff)
+                {
+                    return r;
+                }
+                // Other pairings matter only if they can do better
+                limit = Math.min(limit, r);
+            }
+        }
+        if (rot != null)
+        {
+            double c = (bestPairing & 1) != 0 ? 1.0 : 0.0;
+            double h = (bestPairing & 2) != 0 ? 1.0 : 0.0;
+            qcp(sxx + c*cax*cbx + h*hax*hbx, sxy + c*cax*cby + h*hax*hby,
+                sxz + c*cax*cbz + h*hax*hbz, syx + c*cay*cbx + h*hay*hbx,
+                syy + c*cay*cby + h*hay*hby, syz + c*cay*cbz + h*hay*hbz,
+                szx + c*caz*cbx + h*haz*hbx, szy + c*caz*cby + h*haz*hby,
+                szz + c*caz*cbz + h*haz*hbz, e0, Double.POSITIVE_INFINITY,
+                rot);
+        }
+        return best;
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Finds the largest eigenvalue of the key matrix built from the inner
+     * product of the two cores.
+     * @param e0 half of the sum of the sums of squares of the two cores
+     * @param cutoff the RMSD beyond which the exact value is not needed
+     * @param rot where to store the rotation, or null if not needed
+     * @return the RMSD, or a value larger than the cutoff
+     */
+    private static double qcp(double sxx, double sxy, double sxz,
+                              double syx, double syy, double syz,
+                              double szx, double szy, double szz,
+                              double e0, double cutoff, double[] rot)
+    {
+        int n = GeometryKernel.NUMROLES;
+        double sxx2 = sxx*sxx, syy2 = syy*syy, szz2 = szz*szz;
+        double sxy2 = sxy*sxy, syz2 = syz*syz, sxz2 = sxz*sxz;
+        double syx2 = syx*syx, szy2 = szy*szy, szx2 = szx*szx;
+
+        double syzSzymSyySzz2 = 2.0*(syz*szy - syy*szz);
+        double sxx2Syy2Szz2Syz2Szy2 = syy2 + szz2 - sxx2 + syz2 + szy2;
+
+        double c2 = -2.0 * (sxx2 + syy2 + szz2 + sxy2 + syx2 + sxz2 + szx2
+                            + syz2 + szy2);
+        double c1 = 8.0 * (sxx*syz*szy + syy*szx*sxz + szz*sxy*syx
+                           - sxx*syy*szz - syz*szx*sxy - szy*syx*sxz);
+
+        double sxzpSzx = sxz + szx;
+        double syzpSzy = syz + szy;
+        double sxypSyx = sxy + syx;
+        double syzmSzy = syz - szy;
+        double sxzmSzx = sxz - szx;
+        double sxymSyx = sxy - syx;
+        double sxxpSyy = sxx + syy;
+        double sxxmSyy = sxx - syy;
+        double sxy2Sxz2Syx2Szx2 = sxy2 + sxz2 - syx2 - szx2;
+
+        double c0 = sxy2Sxz2Syx2Szx2 * sxy2Sxz2Syx2Szx2
+            + (sxx2Syy2Szz2Syz2Szy2 + syzSzymSyySzz2)
+              * (sxx2Syy2Szz2Syz2Szy2 - syzSzymSyySzz2)
+            + (-sxzpSzx*syzmSzy + sxymSyx*(sxxmSyy - szz))
+              * (-sxzmSzx*syzpSzy + sxymSyx*(sxxmSyy + szz))
+            + (-sxzpSzx*syzpSzy - sxypSyx*(sxxpSyy - szz))
+              * (-sxzmSzx*syzmSzy - sxypSyx*(sxxpSyy + szz))
+            + (sxypSyx*syzpSzy + sxzpSzx*(sxxmSyy + szz))
+              * (-sxymSyx*syzmSzy + sxzpSzx*(sxxpSyy + szz))
+            + (sxypSyx*syzmSzy + sxzmSzx*(sxxmSyy - szz))
+              * (-sxymSyx*syzpSzy + sxzmSzx*(sxxpSyy - szz));
+
+        // Newton iterations towards the largest eigenvalue start from an
+        // upper bound and decrease monotonically, so each step gives a
+        // lower bound of the RMSD
+        double limit = cutoff * cutoff * n / 2.0;
+        double lambda = e0;
+        for (int i=0; i<MAXITERATIONS; i++)
+        {
+            double old = lambda;
+            double x2 = lambda*lambda;
+            double bb = (x2 + c2)*lambda;
+            double aa = bb + c1;
+            double delta = (aa*lambda + c0) / (2.0*x2*lambda + bb + aa);
+            lambda -= delta;
+            if (e0 - lambda > limit)
+            {
+                return Math.sqrt(Math.abs(2.0 * (e0 - lambda) / n));
+            }
+            if (Math.abs(lambda - old) < Math.abs(EVALPREC * lambda))
+            {
+                break;
+            }
+        }
+        double rmsd = Math.sqrt(Math.abs(2.0 * (e0 - lambda) / n));
+        if (rot != null)
+        {
+            rotation(sxx, sxy, sxz, syx, syy, syz, szx, szy, szz, lambda,
+                     rot);
+        }
+        return rmsd;
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Calculates the rotation matrix from the eigenvector of the largest
+     * eigenvalue of the key matrix.
+     */
+    private static void rotation(double sxx, double sxy, double sxz,
+                                 double syx, double syy, double syz,
+                                 double szx, double szy, double szz,
+                                 double lambda, double[] rot)
+    {
+        double sxzpSzx = sxz + szx;
+        double syzpSzy = syz + szy;
+        double sxypSyx = sxy + syx;
+        double syzmSzy = syz - szy;
+        double sxzmSzx = sxz - szx;
+        double sxymSyx = sxy - syx;
+        double sxxpSyy = sxx + syy;
+        double sxxmSyy = sxx - syy;
+
+        double a11 = sxxpSyy + szz - lambda;
+        double a12 = syzmSzy;
+        double a13 = -sxzmSzx;
+        double a14 = sxymSyx;
+        double a21 = syzmSzy;
+        double a22 = sxxmSyy - szz - lambda;
+        double a23 = sxypSyx;
+        double a24 = sxzpSzx;
+        double a31 = a13;
+        double a32 = a23;
+        double a33 = syy - sxx - szz - lambda;
+        double a34 = syzpSzy;
+        double a41 = a14;
+        double a42 = a24;
+        double a43 = a34;
+        double a44 = szz - sxxpSyy - lambda;
+
+        double a3344_4334 = a33*a44 - a43*a34;
+        double a3244_4234 = a32*a44 - a42*a34;
+        double a3243_4233 = a32*a43 - a42*a33;
+        double a3143_4133 = a31*a43 - a41*a33;
+        double a3144_4134 = a31*a44 - a41*a34;
+        double a3142_4132 = a31*a42 - a41*a32;
+
+        // Any column of the adjugate is the eigenvector: take the first
+        // that is not vanishing
+        double q1 = a22*a3344_4334 - a23*a3244_4234 + a24*a3243_4233;
+        double q2 = -a21*a3344_4334 + a23*a3144_4134 - a24*a3143_4133;
+        double q3 = a21*a3244_4234 - a22*a3144_4134 + a24*a3142_4132;
+        double q4 = -a21*a3243_4233 + a22*a3143_4133 - a23*a3142_4132;
+        double qsqr = q1*q1 + q2*q2 + q3*q3 + q4*q4;
+
+        if (qsqr < EVECPREC)
+        {
+            q1 = a12*a3344_4334 - a13*a3244_4234 + a14*a3243_4233;
+            q2 = -a11*a3344_4334 + a13*a3144_4134 - a14*a3143_4133;
+            q3 = a11*a3244_4234 - a12*a3144_4134 + a14*a3142_4132;
+            q4 = -a11*a3243_4233 + a12*a3143_4133 - a13*a3142_4132;
+            qsqr = q1*q1 + q2*q2 + q3*q3 + q4*q4;
+        }
+        if (qsqr < EVECPREC)
+        {
+            double a1324_1423 = a13*a24 - a14*a23;
+            double a1224_1422 = a12*a24 - a14*a22;
+            double a1223_1322 = a12*a23 - a13*a22;
+            double a1124_1421 = a11*a24 - a14*a21;
+            double a1123_1321 = a11*a23 - a13*a21;
+            double a1122_1221 = a11*a22 - a12*a21;
+
+            q1 = a42*a1324_1423 - a43*a1224_1422 + a44*a1223_1322;
+            q2 = -a41*a1324_1423 + a43*a1124_1421 - a44*a1123_1321;
+            q3 = a41*a1224_1422 - a42*a1124_1421 + a44*a1122_1221;
+            q4 = -a41*a1223_1322 + a42*a1123_1321 - a43*a1122_1221;
+            qsqr = q1*q1 + q2*q2 + q3*q3 + q4*q4;
+
+            if (qsqr < EVECPREC)
+            {
+                q1 = a32*a1324_1423 - a33*a1224_1422 + a34*a1223_1322;
+                q2 = -a31*a1324_1423 + a33*a1124_1421 - a34*a1123_1321;
+                q3 = a31*a1224_1422 - a32*a1124_1421 + a34*a1122_1221;
+                q4 = -a31*a1223_1322 + a32*a1123_1321 - a33*a1122_1221;
+                qsqr = q1*q1 + q2*q2 + q3*q3 + q4*q4;
+            }
+        }
+        if (qsqr < EVECPREC)
+        {
+            // The cores are already superposed
+            rot[0] = rot[4] = rot[8] = 1.0;
+            rot[1] = rot[2] = rot[3] = rot[5] = rot[6] = rot[7] = 0.0;
+            return;
+        }
+
+        double norm = Math.sqrt(qsqr);
+        q1 /= norm;
+        q2 /= norm;
+        q3 /= norm;
+        q4 /= norm;
+
+        double a2 = q1*q1;
+        double x2 = q2*q2;
+        double y2 = q3*q3;
+        double z2 = q4*q4;
+        double xy = q2*q3;
+        double az = q1*q4;
+        double zx = q4*q2;
+        double ay = q1*q3;
+        double yz = q3*q4;
+        double ax = q1*q2;
+
+        rot[0] = a2 + x2 - y2 - z2;
+        rot[1] = 2.0*(xy + az);
+        rot[2] = 2.0*(zx - ay);
+        rot[3] = 2.0*(xy - az);
+        rot[4] = a2 - x2 + y2 - z2;
+        rot[5] = 2.0*(yz + ax);
+        rot[6] = 2.0*(zx + ay);
+        rot[7] = 2.0*(yz - ax);
+        rot[8] = a2 - x2 - y2 + z2;
+    }
+
+//------------------------------------------------------------------------------
+
+}
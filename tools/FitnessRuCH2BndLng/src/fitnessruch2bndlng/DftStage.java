@@ -0,0 +1,453 @@
+package fitnessruch2bndlng;
+
+/*
+ *   Copyright (C) 2016
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Affero General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The DFT stage of the {@link CandidateOrchestrator}. No thread is held
+ * while a job is queued or running: jobs are submitted by the threads of
+ * the stage, and a single thread checks at regular intervals which of the
+ * in-flight jobs have completed. The number of jobs in flight is bounded,
+ * and further candidates wait in the queue of the stage until a job
+ * completes. Waiting candidates are submitted by decreasing priority (see
+ * {@link CandidateOrchestrator.Candidate#getPriority}), and in order of
+ * arrival for the same priority. A job no longer known to the queuing
+ * system is completed only if its output ends with
+ * {@value #NORMALMARKER}, or its log with {@value #ENDEDMARKER}: otherwise
+ * the candidate fails.
+ */
+
+class DftStage extends PipelineStage
+{
+    private static final Logger LOGGER = Logger.getLogger(
+            DftStage.class.getName());
+
+    /**
+     * Marker of a successful run in the output of Gaussian.
+     */
+    public static final String NORMALMARKER = "Normal termination";
+
+    /**
+     * Marker written to the log once the job script is done.
+     */
+    public static final String ENDEDMARKER = "GAUSSIAN JOB ENDED";
+
+    //Bytes read from the end of output and log files
+    private static final int TAILBYTES = 4096;
+
+    //Checks of the end markers before a job missing them is failed. Files 
+    //written on a shared filesystem may become visible after the job has
+    //left the queue.
+    private static final int MAXENDCHECKS = 3;
+
+    private final JobSubmitter submitter;
+    private final int maxInFlight;
+    private final long timeoutMillis;
+    private final ScheduledExecutorService poller;
+
+    //Candidates waiting for a free slot
+    private final Queue<Job> queue = new PriorityQueue<Job>(11,
+                                                       new Comparator<Job>() {
+        public int compare(Job a, Job b)
+        {
+            int c = Double.compare(b.candidate.getPriority(),
+                                   a.candidate.getPriority());
+            return c != 0 ? c : Long.compare(a.seq, b.seq);
+        }
+    });
+
+    //Order of arrival in the queue
+    private long numQueued = 0;
+
+    //Jobs submitted and not completed, by job identifier
+    private final Map<String,Job> inFlight = new LinkedHashMap<String,Job>();
+
+    //Slots taken by jobs being submitted
+    private int submitting = 0;
+
+    private final AtomicInteger done = new AtomicInteger();
+    private final AtomicInteger failed = new AtomicInteger();
+
+//------------------------------------------------------------------------------
+
+    private static class Job
+    {
+        final CandidateOrchestrator.Candidate candidate;
+        final long seq;
+        final CompletableFuture<CandidateOrchestrator.Candidate> future =
+                new CompletableFuture<CandidateOrchestrator.Candidate>();
+        long start;
+        int endChecks = 0;
+
+        Job(CandidateOrchestrator.Candidate candidate, long seq)
+        {
+            this.candidate = candidate;
+            this.seq = seq;
+        }
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * @param submitter the adapter to the system running the jobs
+     * @param maxSubmit the maximum number of submissions made at once
+     * @param maxInFlight the maximum number of jobs submitted and not
+     * completed
+     * @param pollSeconds the interval between checks for completed jobs
+     * @param timeoutSeconds the time after which a job is cancelled
+     * (0: never)
+     */
+    DftStage(JobSubmitter submitter, int maxSubmit, int maxInFlight,
+             long pollSeconds, long timeoutSeconds)
+    {
+        super("dft", maxSubmit);
+        this.submitter = submitter;
+        this.maxInFlight = maxInFlight;
+        this.timeoutMillis = timeoutSeconds * 1000L;
+        this.poller = Executors.newSingleThreadScheduledExecutor(
+                                                         new ThreadFactory() {
+            public Thread newThread(Runnable r)
+            {
+                Thread t = new Thread(r, "dft-poller");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        poller.scheduleWithFixedDelay(new Runnable() {
+            public void run()
+            {
+                // An exception would cancel any further check
+                try
+                {
+                    checkJobs();
+                }
+                catch (Throwable t)
+                {
+                    LOGGER.log(Level.SEVERE, "Could not check the jobs", t);
+                }
+            }
+        }, pollSeconds, pollSeconds, TimeUnit.SECONDS);
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Queues the DFT job of a candidate.
+     * @param candidate the candidate with its DFT input ready
+     * @return the candidate, once its job has completed
+     */
+    CompletableFuture<CandidateOrchestrator.Candidate> run(
+                                   CandidateOrchestrator.Candidate candidate)
+    {
+        Job job;
+        synchronized (this)
+        {
+            job = new Job(candidate, numQueued++);
+            queue.add(job);
+        }
+        dispatch();
+        return job.future;
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Submits queued jobs as long as there are free slots.
+     */
+    private void dispatch()
+    {
+        List<Job> toSubmit = new ArrayList<Job>();
+        synchronized (this)
+        {
+            while (!queue.isEmpty()
+                   && inFlight.size() + submitting < maxInFlight)
+            {
+                toSubmit.add(queue.poll());
+                submitting++;
+            }
+        }
+        for (final Job job : toSubmit)
+        {
+            submit(new Callable<String>() {
+                public String call() throws Exception
+                {
+                    return submitter.submit(job.candidate);
+                }
+            }).whenComplete(new BiConsumer<String,Throwable>() {
+                public void accept(String jobId, Throwable t)
+                {
+                    submitted(job, jobId, t);
+                }
+            });
+        }
+    }
+
+//------------------------------------------------------------------------------
+
+    private void submitted(Job job, String jobId, Throwable t)
+    {
+        synchronized (this)
+        {
+            submitting--;
+            if (t == null)
+            {
+                job.candidate.setJobId(jobId);
+                job.start = System.currentTimeMillis();
+                inFlight.put(jobId, job);
+            }
+        }
+        if (t != null)
+        {
+            failed.incrementAndGet();
+            job.future.completeExceptionally(t);
+            dispatch();
+        }
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Completes the candidates whose job is no longer known to the
+     * queuing system and has terminated normally, fails those whose job
+     * has not, and cancels those running for too long.
+     */
+    private void checkJobs()
+    {
+        Set<String> ids;
+        synchronized (this)
+        {
+            ids = new HashSet<String>(inFlight.keySet());
+        }
+        if (ids.isEmpty())
+        {
+            return;
+        }
+
+        Set<String> active;
+        try
+        {
+            active = submitter.getActiveJobs(ids);
+        }
+        catch (Throwable t)
+        {
+            // Try again at the next check
+            LOGGER.log(Level.WARNING, "Could not get the status of the jobs",
+                       t);
+            return;
+        }
+
+        long now = System.currentTimeMillis();
+        List<Job> ended = new ArrayList<Job>();
+        List<Job> expired = new ArrayList<Job>();
+        synchronized (this)
+        {
+            Iterator<Map.Entry<String,Job>> it =
+                                               inFlight.entrySet().iterator();
+            while (it.hasNext())
+            {
+                Map.Entry<String,Job> e = it.next();
+                if (!ids.contains(e.getKey()))
+                {
+                    continue;
+                }
+                Job job = e.getValue();
+                if (!active.contains(e.getKey()))
+                {
+                    // Left in flight until its files have been checked
+                    ended.add(job);
+                }
+                else if (timeoutMillis > 0 && now - job.start > timeoutMillis)
+                {
+                    expired.add(job);
+                    it.remove();
+                }
+            }
+        }
+
+        List<Job> completed = new ArrayList<Job>();
+        List<Job> crashed = new ArrayList<Job>();
+        for (Job job : ended)
+        {
+            if (hasEnded(job.candidate))
+            {
+                completed.add(job);
+            }
+            else if (++job.endChecks >= MAXENDCHECKS)
+            {
+                crashed.add(job);
+            }
+        }
+        synchronized (this)
+        {
+            for (Job job : completed)
+            {
+                inFlight.remove(job.candidate.getJobId());
+            }
+            for (Job job : crashed)
+            {
+                inFlight.remove(job.candidate.getJobId());
+            }
+        }
+
+        for (Job job : expired)
+        {
+            try
+            {
+                submitter.cancel(job.candidate.getJobId());
+            }
+            catch (Throwable t)
+            {
+                LOGGER.log(Level.WARNING, "Could not cancel job "
+                           + job.candidate.getJobId(), t);
+            }
+            failed.incrementAndGet();
+            job.future.completeExceptionally(new Exception(
+                     "#WaitingDFT: time limit reached (task abbandoned)"));
+        }
+        for (Job job : crashed)
+        {
+            failed.incrementAndGet();
+            job.future.completeExceptionally(new Exception("#WaitingDFT: "
+                     + "job " + job.candidate.getJobId() + " left the queue "
+                     + "without '" + NORMALMARKER + "' in "
+                     + job.candidate.getDFTOutput() + " nor '" + ENDEDMARKER
+                     + "' in " + job.candidate.getDFTLog()));
+        }
+        for (Job job : completed)
+        {
+            done.incrementAndGet();
+            job.future.complete(job.candidate);
+        }
+        if (!completed.isEmpty() || !expired.isEmpty() || !crashed.isEmpty())
+        {
+            dispatch();
+        }
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * @return true if the output of the DFT job of the candidate ends with
+     * {@value #NORMALMARKER} or its log with {@value #ENDEDMARKER}
+     */
+    static boolean hasEnded(CandidateOrchestrator.Candidate candidate)
+    {
+        return tailContains(candidate.getDFTOutput(), NORMALMARKER)
+               || tailContains(candidate.getDFTLog(), ENDEDMARKER);
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * @return true if the last {@value #TAILBYTES} bytes of the given file
+     * contain the marker, false if they do not or the file cannot be read
+     */
+    private static boolean tailContains(String filename, String marker)
+    {
+        File file = new File(filename);
+        if (!file.isFile())
+        {
+            return false;
+        }
+        RandomAccessFile raf = null;
+        try
+        {
+            raf = new RandomAccessFile(file, "r");
+            long size = raf.length();
+            int n = (int) Math.min(size, TAILBYTES);
+            byte[] buf = new byte[n];
+            raf.seek(size - n);
+            raf.readFully(buf);
+            return new String(buf, StandardCharsets.ISO_8859_1).contains(
+                                                                      marker);
+        }
+        catch (Exception e)
+        {
+            LOGGER.log(Level.WARNING, "Could not read " + filename, e);
+            return false;
+        }
+        finally
+        {
+            if (raf != null)
+            {
+                try
+                {
+                    raf.close();
+                }
+                catch (Exception e)
+                {
+                    // Nothing to do
+                }
+            }
+        }
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * @return the number of jobs waiting for a slot or being submitted,
+     * in flight, completed, and failed
+     */
+    @Override
+    int[] getCounts()
+    {
+        synchronized (this)
+        {
+            return new int[] {queue.size() + submitting, inFlight.size(),
+                              done.get(), failed.get()};
+        }
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Stops checking the jobs. Jobs still in flight are left to the
+     * queuing system.
+     */
+    @Override
+    void shutdown()
+    {
+        poller.shutdownNow();
+        super.shutdown();
+    }
+
+//------------------------------------------------------------------------------
+
+}
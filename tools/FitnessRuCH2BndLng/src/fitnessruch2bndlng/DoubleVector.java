@@ -0,0 +1,71 @@
+package fitnessruch2bndlng;
+
+/*
+ *   Copyright (C) 2016
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Affero General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+import java.util.Arrays;
+
+/**
+ * Fixed-length vector of doubles, e.g., the descriptors of a candidate.
+ */
+
+public class DoubleVector
+{
+    private final double[] values;
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Makes a vector of zeros.
+     * @param length the number of elements
+     */
+    public DoubleVector(int length)
+    {
+        this.values = new double[length];
+    }
+
+//------------------------------------------------------------------------------
+
+    public int length()
+    {
+        return values.length;
+    }
+
+//------------------------------------------------------------------------------
+
+    public double getValue(int i)
+    {
+        return values[i];
+    }
+
+//------------------------------------------------------------------------------
+
+    public void setValue(int i, double value)
+    {
+        values[i] = value;
+    }
+
+//------------------------------------------------------------------------------
+
+    @Override
+    public String toString()
+    {
+        return Arrays.toString(values);
+    }
+
+//------------------------------------------------------------------------------
+
+}
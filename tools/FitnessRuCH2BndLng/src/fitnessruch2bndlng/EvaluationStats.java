@@ -0,0 +1,249 @@
+package fitnessruch2bndlng;
+
+/*
+ *   Copyright (C) 2016
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Affero General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Time spent in each phase of the evaluation of one candidate, and the 
+ * reason why the candidate did not get a fitness, if any. Phases are timed
+ * with {@link System#nanoTime()}: starting a phase closes the previous one,
+ * so that the cost of the instrumentation is one call per phase.
+ * <br><br>
+ * The statistics can be appended to a log file as one JSON object per line.
+ */
+
+public class EvaluationStats
+{
+    /**
+     * Phases of the evaluation.
+     */
+    public enum Phase
+    {
+        READ_SDF("readSdf"),
+        READ_GEOMETRY("readGeometry"),
+        CONNECTIVITY("connectivity"),
+        CORE("core"),
+        DESCRIPTORS("descriptors"),
+        CONSTRAINTS("constraints"),
+        WRITE("write");
+
+        private final String label;
+
+        private Phase(String label)
+        {
+            this.label = label;
+        }
+
+        public String getLabel()
+        {
+            return label;
+        }
+    }
+
+    private final long[] nanos = new long[Phase.values().length];
+    private Phase current;
+    private long since;
+    private FailureReason reason = FailureReason.NONE;
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Starts timing a phase and stops timing the current one, if any.
+     */
+    public void begin(Phase phase)
+    {
+        long now = System.nanoTime();
+        if (current != null)
+        {
+            nanos[current.ordinal()] += now - since;
+        }
+        current = phase;
+        since = now;
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Stops timing the current phase.
+     * @return the phase that was being timed, or null
+     */
+    public Phase end()
+    {
+        Phase phase = current;
+        if (current != null)
+        {
+            nanos[current.ordinal()] += System.nanoTime() - since;
+            current = null;
+        }
+        return phase;
+    }
+
+//------------------------------------------------------------------------------
+
+    public long getNanos(Phase phase)
+    {
+        return nanos[phase.ordinal()];
+    }
+
+    public long getTotalNanos()
+    {
+        long sum = 0;
+        for (long n : nanos)
+        {
+            sum += n;
+        }
+        return sum;
+    }
+
+    public FailureReason getReason()
+    {
+        return reason;
+    }
+
+    public void setReason(FailureReason reason)
+    {
+        this.reason = reason;
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Formats the statistics of one candidate as a single-line JSON object.
+     */
+    public String toJSON(String file, Object uid, FitnessResult result)
+    {
+        StringBuilder sb = new StringBuilder();
+        sb.append("{\"file\":").append(quote(file));
+        sb.append(",\"uid\":").append(uid == null ? "null" 
+                                                  : quote(uid.toString()));
+        String status = "OK";
+        if (result.isFailure())
+        {
+            status = "FAILURE";
+        }
+        else if (!result.hasFitness())
+        {
+            status = "VIOLATION";
+        }
+        sb.append(",\"status\":\"").append(status).append("\"");
+        sb.append(",\"reason\":\"").append(reason.name()).append("\"");
+        sb.append(",\"fitness\":");
+        sb.append(result.hasFitness() ? String.valueOf(result.getFitness())
+                                      : "null");
+        sb.append(",\"molError\":");
+        sb.append(result.getMolError() == null ? "null"
+                                               : quote(result.getMolError()));
+        sb.append(",\"nanos\":{");
+        for (Phase p : Phase.values())
+        {
+            if (p.ordinal() > 0)
+            {
+                sb.append(",");
+            }
+            sb.append("\"").append(p.getLabel()).append("\":");
+            sb.append(nanos[p.ordinal()]);
+        }
+        sb.append("},\"totalNanos\":").append(getTotalNanos()).append("}");
+        return sb.toString();
+    }
+
+//------------------------------------------------------------------------------
+
+    private static String quote(String s)
+    {
+        StringBuilder sb = new StringBuilder(s.length() + 2);
+        sb.append('"');
+        for (int i=0; i<s.length(); i++)
+        {
+            char c = s.charAt(i);
+            switch (c)
+            {
+                case '"':
+                    sb.append("\\\"");
+                    break;
+                case '\\':
+                    sb.append("\\\\");
+                    break;
+                case '\n':
+                    sb.append("\\n");
+                    break;
+                case '\r':
+                    sb.append("\\r");
+                    break;
+                case '\t':
+                    sb.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20)
+                    {
+                        sb.append(String.format("\\u%04x", (int) c));
+                    }
+                    else
+                    {
+                        sb.append(c);
+                    }
+            }
+        }
+        return sb.append('"').toString();
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Appends a line to a log file. The file is locked while writing, so
+     * that concurrent evaluations can share the same log.
+     * Threads of the same JVM, which share the file lock, take turns on the
+     * class monitor.
+     */
+    public static synchronized void appendLine(File logFile, String line)
+            throws Exception
+    {
+        byte[] bytes = (line + "\n").getBytes(StandardCharsets.UTF_8);
+        FileOutputStream fos = null;
+        try
+        {
+            fos = new FileOutputStream(logFile, true);
+            FileChannel channel = fos.getChannel();
+            FileLock lock = channel.lock();
+            try
+            {
+                channel.write(ByteBuffer.wrap(bytes));
+            }
+            finally
+            {
+                lock.release();
+            }
+        }
+        finally
+        {
+            if (fos != null)
+            {
+                fos.close();
+            }
+        }
+    }
+
+//------------------------------------------------------------------------------
+
+}
@@ -0,0 +1,134 @@
+package fitnessruch2bndlng;
+
+/*
+ *   Copyright (C) 2016
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Affero General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * Aggregated statistics of many evaluations: number of candidates by
+ * {@link FailureReason}, and for each phase the total time and a histogram
+ * of the time spent per candidate, with bins that double in width
+ * (&lt;1 &micro;s, &lt;2 &micro;s, &lt;4 &micro;s, ...). Statistics can be
+ * added from multiple threads.
+ */
+
+public class EvaluationSummary
+{
+    private static final int NUMBINS = 32;
+
+    private final int numPhases = EvaluationStats.Phase.values().length;
+    private final int[] reasons = new int[FailureReason.values().length];
+    private final long[] totals = new long[numPhases];
+    private final int[][] histograms = new int[numPhases][NUMBINS];
+    private int count = 0;
+
+//------------------------------------------------------------------------------
+
+    public synchronized void add(EvaluationStats stats)
+    {
+        count++;
+        reasons[stats.getReason().ordinal()]++;
+        for (EvaluationStats.Phase p : EvaluationStats.Phase.values())
+        {
+            long n = stats.getNanos(p);
+            totals[p.ordinal()] += n;
+            histograms[p.ordinal()][getBin(n)]++;
+        }
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * @return the index of the bin collecting the given time: bin 0 is below
+     * 1 microsecond, and bin i (i&gt;0) is below 2^i microseconds
+     */
+    private static int getBin(long nanos)
+    {
+        long micros = nanos / 1000;
+        int bin = 64 - Long.numberOfLeadingZeros(micros);
+        return Math.min(bin, NUMBINS - 1);
+    }
+
+//------------------------------------------------------------------------------
+
+    private static String getBinLabel(int bin)
+    {
+        long upper = 1L << bin;
+        if (upper < 1000)
+        {
+            return "<" + upper + "us";
+        }
+        if (upper < 1000000)
+        {
+            return "<" + (upper / 1000) + "ms";
+        }
+        return "<" + (upper / 1000000) + "s";
+    }
+
+//------------------------------------------------------------------------------
+
+    public synchronized int getCount()
+    {
+        return count;
+    }
+
+    public synchronized int getCount(FailureReason reason)
+    {
+        return reasons[reason.ordinal()];
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * @return a multi-line report with counts by reason and timings by phase
+     */
+    @Override
+    public synchronized String toString()
+    {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("Outcome of %d evaluations:%n", count));
+        for (FailureReason r : FailureReason.values())
+        {
+            if (reasons[r.ordinal()] > 0)
+            {
+                sb.append(String.format("  %-28s %d%n", r.getDescription(),
+                                        reasons[r.ordinal()]));
+            }
+        }
+        sb.append(String.format("Time per phase (total, mean, "
+                                + "candidates by time):%n"));
+        for (EvaluationStats.Phase p : EvaluationStats.Phase.values())
+        {
+            int i = p.ordinal();
+            sb.append(String.format("  %-13s %10.3f s %9.3f ms ", p.getLabel(),
+                                    totals[i] / 1.0e9,
+                                    totals[i] / 1.0e6 / Math.max(count, 1)));
+            for (int b=0; b<NUMBINS; b++)
+            {
+                if (histograms[i][b] > 0)
+                {
+                    sb.append(" ").append(getBinLabel(b)).append(":")
+                      .append(histograms[i][b]);
+                }
+            }
+            sb.append(String.format("%n"));
+        }
+        return sb.toString().trim();
+    }
+
+//------------------------------------------------------------------------------
+
+}
@@ -0,0 +1,78 @@
+package fitnessruch2bndlng;
+
+/*
+ *   Copyright (C) 2016
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Affero General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * Reasons why a candidate does not get a fitness value. The reason of a
+ * constraint violation is recognized from the MOL_ERROR message produced
+ * by {@link FitnessRuCH2BndLng}.
+ */
+
+public enum FailureReason
+{
+    NONE("None"),
+    MAX_BONDED_DISTANCE("Maximum bonded distance"),
+    MIN_ANGLE("Minimum angle"),
+    TORSION("Torsion angle"),
+    NON_BONDED_DISTANCE("Minimum non-bonded distance"),
+    STERIC_CLASH("Steric clash"),
+    CORE_IDENTIFICATION("Core identification"),
+    INPUT("Unusable input"),
+    OTHER("Other"),
+    //New reasons go at the end: ordinals are stored in the column store
+    CONNECTIVITY("#Connectivity Check"),
+    RULE("Rule");
+
+    private final String description;
+
+//------------------------------------------------------------------------------
+
+    private FailureReason(String description)
+    {
+        this.description = description;
+    }
+
+//------------------------------------------------------------------------------
+
+    public String getDescription()
+    {
+        return description;
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * @param molError the message reporting a violated constraint
+     * @return the constraint that is violated, or {@link #OTHER} if the
+     * message is not recognized
+     */
+    public static FailureReason fromViolation(String molError)
+    {
+        for (FailureReason r : values())
+        {
+            if (r != NONE && molError.startsWith(r.description))
+            {
+                return r;
+            }
+        }
+        return OTHER;
+    }
+
+//------------------------------------------------------------------------------
+
+}
@@ -0,0 +1,385 @@
+package fitnessruch2bndlng;
+
+/*
+ *   Copyright (C) 2016
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Affero General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.openscience.cdk.interfaces.IAtomContainer;
+
+/**
+ * Calculates the circular fingerprints (see {@link CircularFingerprint}) of
+ * all the candidates found under one or more folders (e.g.,
+ * <code>results/run_*</code>) and their Tanimoto similarities. Each
+ * <code>*_FIT.sdf</code> file is one candidate, and candidates found more
+ * than once (same UID) are used only once.
+ * <br><br>
+ * The output is made of:
+ * <ul>
+ * <li><code>prefix.fp</code>: the fingerprints and the top-k nearest
+ * neighbours of each candidate (see {@link FingerprintStore}),</li>
+ * <li><code>prefix.txt</code>: the candidates, in the order used in the
+ * other files,</li>
+ * <li><code>prefix.sim</code>: only with option <code>-matrix</code>, the
+ * full n by n matrix of similarities as big-endian floats, row by row.</li>
+ * </ul>
+ * Rows of the matrix are calculated in parallel, and all files are written
+ * through memory-mapping.
+ */
+
+public class FingerprintSimilarity
+{
+    private static final Logger LOGGER = Logger.getLogger(
+            FingerprintSimilarity.class.getName());
+
+
+    //Largest part of the matrix mapped at once
+    private static final long MAXMAPPED = 1L << 30;
+
+    private final int radius;
+    private final int numBits;
+    private final int words;
+    private final int numThreads;
+
+    //Candidates found in the folders, by UID
+    private final Map<String,Candidate> found =
+                                  new ConcurrentHashMap<String,Candidate>();
+    private final AtomicInteger numSkipped = new AtomicInteger();
+
+    //Candidates and their fingerprints, one after the other
+    private Candidate[] candidates;
+    private long[] fps;
+    private int[] counts;
+
+//------------------------------------------------------------------------------
+
+    private static class Candidate
+    {
+        final String path;
+        final String uid;
+        final String fitness;
+        final long[] fp;
+
+        Candidate(String path, String uid, String fitness, long[] fp)
+        {
+            this.path = path;
+            this.uid = uid;
+            this.fitness = fitness;
+            this.fp = fp;
+        }
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * @param args the command line arguments
+     */
+    public static void main(String[] args)
+    {
+        int first = args.length > 0 && args[0].equals("-matrix") ? 1 : 0;
+        if (args.length < first + 3)
+        {
+            System.err.println("Usage: java -cp FitnessRuCH2BndLng.jar "
+                    + "fitnessruch2bndlng.FingerprintSimilarity [-matrix] "
+                    + "topK outputPrefix rootFolder [rootFolder ...]");
+            System.exit(-1);
+        }
+
+        try
+        {
+            int topK = Integer.parseInt(args[first]);
+            String prefix = args[first + 1];
+            List<File> roots = new ArrayList<File>();
+            for (int i=first+2; i<args.length; i++)
+            {
+                roots.add(new File(args[i]));
+            }
+            FingerprintSimilarity fs = new FingerprintSimilarity(
+                      CircularFingerprint.DEFAULTRADIUS,
+                      CircularFingerprint.DEFAULTBITS,
+                      Runtime.getRuntime().availableProcessors());
+            fs.collect(roots);
+            fs.writeList(new File(prefix + ".txt"));
+            fs.compare(topK, new File(prefix + ".fp"),
+                       first == 1 ? new File(prefix + ".sim") : null);
+        }
+        catch (Exception e)
+        {
+            LOGGER.log(Level.SEVERE, null, e);
+            System.exit(-1);
+        }
+        System.exit(0);
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * @param radius the radius of the circular environments
+     * @param numBits the length of the fingerprints
+     * @param numThreads the number of threads calculating similarities
+     */
+    public FingerprintSimilarity(int radius, int numBits, int numThreads)
+    {
+        this.radius = radius;
+        this.numBits = numBits;
+        this.words = CircularFingerprint.getWordCount(numBits);
+        this.numThreads = numThreads;
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Calculates the fingerprints of all the candidates under the given
+     * folders.
+     */
+    public void collect(List<File> roots)
+    {
+        long start = System.nanoTime();
+        new ResultFolderWalker(new ResultFolderWalker.Visitor() {
+            public void visit(File fitSdf, String base)
+            {
+                readCandidate(fitSdf);
+            }
+        }).walk(roots);
+
+        List<Candidate> list = new ArrayList<Candidate>(found.values());
+        Collections.sort(list, new Comparator<Candidate>() {
+            public int compare(Candidate a, Candidate b)
+            {
+                return a.path.compareTo(b.path);
+            }
+        });
+        candidates = list.toArray(new Candidate[list.size()]);
+        int n = candidates.length;
+        fps = new long[n * words];
+        counts = new int[n];
+        for (int i=0; i<n; i++)
+        {
+            System.arraycopy(candidates[i].fp, 0, fps, i * words, words);
+            counts[i] = CircularFingerprint.cardinality(fps, i * words,
+                                                        words);
+        }
+        System.out.println(String.format("Calculated %d fingerprints in "
+                + "%.2f s (%d skipped).", n,
+                (System.nanoTime() - start) / 1.0e9, numSkipped.get()));
+    }
+
+//------------------------------------------------------------------------------
+
+    private void readCandidate(File fitSdf)
+    {
+        String path = fitSdf.getPath();
+        try
+        {
+            IAtomContainer mol = SdfIO.readSingleSDFFile(path);
+            Object uid = mol.getProperty("UID");
+            Object fitness = mol.getProperty("FITNESS");
+            Candidate c = new Candidate(path,
+                    uid == null ? path : uid.toString().trim(),
+                    fitness == null ? "" : fitness.toString().trim(),
+                    CircularFingerprint.compute(mol, radius, numBits));
+
+            // Keep the first path in alphabetical order among duplicates
+            Candidate old = found.putIfAbsent(c.uid, c);
+            while (old != null && path.compareTo(old.path) < 0)
+            {
+                if (found.replace(c.uid, old, c))
+                {
+                    break;
+                }
+                old = found.get(c.uid);
+            }
+        }
+        catch (Exception e)
+        {
+            LOGGER.log(Level.WARNING, "Skipping " + fitSdf, e);
+            numSkipped.incrementAndGet();
+        }
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Writes the list of candidates in the order of the fingerprints.
+     */
+    public void writeList(File file) throws Exception
+    {
+        BufferedWriter bw = new BufferedWriter(new FileWriter(file));
+        try
+        {
+            bw.write("#index\tfile\tUID\tFITNESS\tbits");
+            bw.newLine();
+            for (int i=0; i<candidates.length; i++)
+            {
+                Candidate c = candidates[i];
+                bw.write(i + "\t" + c.path + "\t" + c.uid + "\t" + c.fitness
+                         + "\t" + counts[i]);
+                bw.newLine();
+            }
+        }
+        finally
+        {
+            bw.close();
+        }
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Compares all fingerprints with each other.
+     * @param topK the number of nearest neighbours to keep for each
+     * fingerprint
+     * @param fpFile the file where to write fingerprints and neighbours
+     * @param matrixFile the file where to write the matrix of similarities,
+     * or null
+     */
+    public void compare(final int topK, File fpFile, File matrixFile)
+            throws Exception
+    {
+        final int n = candidates.length;
+        final int[] neighbours = new int[n * topK];
+        final float[] similarities = new float[n * topK];
+        Arrays.fill(neighbours, -1);
+
+        RandomAccessFile raf = null;
+        final List<MappedByteBuffer> blocks = new ArrayList<MappedByteBuffer>();
+        final int rowsPerBlock = (int) Math.max(1,
+                                       MAXMAPPED / (4L * Math.max(n, 1)));
+        if (matrixFile != null)
+        {
+            matrixFile.delete();
+            raf = new RandomAccessFile(matrixFile, "rw");
+            FileChannel channel = raf.getChannel();
+            for (long row=0; row<n; row+=rowsPerBlock)
+            {
+                long rows = Math.min(rowsPerBlock, n - row);
+                blocks.add(channel.map(FileChannel.MapMode.READ_WRITE,
+                                       row * n * 4L, rows * n * 4L));
+            }
+        }
+
+        long start = System.nanoTime();
+        final AtomicInteger nextRow = new AtomicInteger();
+        ExecutorService pool = Executors.newFixedThreadPool(numThreads);
+        List<Future<?>> futures = new ArrayList<Future<?>>();
+        try
+        {
+            for (int t=0; t<numThreads; t++)
+            {
+                futures.add(pool.submit(new Runnable() {
+                    public void run()
+                    {
+                        float[] row = new float[n];
+                        int i;
+                        while ((i = nextRow.getAndIncrement()) < n)
+                        {
+                            compareRow(i, row, topK, neighbours,
+                                       similarities);
+                            if (!blocks.isEmpty())
+                            {
+                                MappedByteBuffer block =
+                                            blocks.get(i / rowsPerBlock);
+                                int pos = (i % rowsPerBlock) * n * 4;
+                                for (int j=0; j<n; j++)
+                                {
+                                    block.putFloat(pos + j * 4, row[j]);
+                                }
+                            }
+                        }
+                    }
+                }));
+            }
+            for (Future<?> f : futures)
+            {
+                f.get();
+            }
+            for (MappedByteBuffer block : blocks)
+            {
+                block.force();
+            }
+        }
+        finally
+        {
+            pool.shutdown();
+            if (raf != null)
+            {
+                raf.close();
+            }
+        }
+        System.out.println(String.format("Compared %d fingerprints in "
+                + "%.2f s using %d threads.", n,
+                (System.nanoTime() - start) / 1.0e9, numThreads));
+
+        FingerprintStore.write(fpFile, fps, n, numBits, neighbours,
+                               similarities, topK);
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Calculates one row of the matrix of similarities and keeps the most
+     * similar fingerprints, the first one found among equally similar ones.
+     */
+    private void compareRow(int i, float[] row, int topK, int[] neighbours,
+                            float[] similarities)
+    {
+        int n = candidates.length;
+        int offset = i * topK;
+        int kept = 0;
+        for (int j=0; j<n; j++)
+        {
+            float s = (float) CircularFingerprint.tanimoto(fps, i * words,
+                                  counts[i], fps, j * words, counts[j], words);
+            row[j] = s;
+            if (j == i || topK == 0
+                || (kept == topK && s <= similarities[offset + topK - 1]))
+            {
+                continue;
+            }
+            // Insertion into the sorted list of neighbours
+            int pos = kept < topK ? kept++ : topK - 1;
+            while (pos > 0 && similarities[offset + pos - 1] < s)
+            {
+                similarities[offset + pos] = similarities[offset + pos - 1];
+                neighbours[offset + pos] = neighbours[offset + pos - 1];
+                pos--;
+            }
+            similarities[offset + pos] = s;
+            neighbours[offset + pos] = j;
+        }
+    }
+
+//------------------------------------------------------------------------------
+
+}
@@ -0,0 +1,246 @@
+package fitnessruch2bndlng;
+
+/*
+ *   Copyright (C) 2016
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Affero General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * File of fingerprints and of the nearest neighbours of each fingerprint,
+ * read by memory-mapping so that analyses and selections can use them
+ * without recalculating anything. All values are big-endian:
+ * <pre>
+ * int    magic ({@value #MAGIC}), version, count n, bits, k
+ * long   n fingerprints of ceil(bits/64) words each
+ * int    n*k indexes of the neighbours, by decreasing similarity (-1: none)
+ * float  n*k Tanimoto similarities of the neighbours
+ * </pre>
+ * The layout can be read directly by other tools, e.g., with
+ * <code>numpy.memmap</code>.
+ */
+
+public class FingerprintStore
+{
+    /**
+     * First four bytes of the file ("RUFP").
+     */
+    public static final int MAGIC = 0x52554650;
+
+    public static final int VERSION = 1;
+
+    private static final int HEADERSIZE = 5 * 4;
+
+    private final MappedByteBuffer buf;
+    private final int count;
+    private final int numBits;
+    private final int words;
+    private final int topK;
+    private final int neighboursStart;
+    private final int similaritiesStart;
+
+//------------------------------------------------------------------------------
+
+    private FingerprintStore(MappedByteBuffer buf, int count, int numBits,
+                             int topK)
+    {
+        this.buf = buf;
+        this.count = count;
+        this.numBits = numBits;
+        this.words = CircularFingerprint.getWordCount(numBits);
+        this.topK = topK;
+        this.neighboursStart = HEADERSIZE + count * words * 8;
+        this.similaritiesStart = neighboursStart + count * topK * 4;
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Writes a file of fingerprints.
+     * @param file the file to write
+     * @param fps the fingerprints, one after the other
+     * @param count the number of fingerprints
+     * @param numBits the length of the fingerprints
+     * @param neighbours the indexes of the k nearest neighbours of each
+     * fingerprint
+     * @param similarities the similarities of the neighbours
+     * @param topK the number of neighbours per fingerprint
+     */
+    public static void write(File file, long[] fps, int count, int numBits,
+                             int[] neighbours, float[] similarities,
+                             int topK) throws Exception
+    {
+        int words = CircularFingerprint.getWordCount(numBits);
+        long size = HEADERSIZE + (long) count * words * 8
+                    + (long) count * topK * 8;
+        if (size > Integer.MAX_VALUE)
+        {
+            throw new Exception("Too many fingerprints (" + count + ").");
+        }
+        file.delete();
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try
+        {
+            MappedByteBuffer out = raf.getChannel().map(
+                                   FileChannel.MapMode.READ_WRITE, 0, size);
+            out.putInt(MAGIC);
+            out.putInt(VERSION);
+            out.putInt(count);
+            out.putInt(numBits);
+            out.putInt(topK);
+            for (int i=0; i<count*words; i++)
+            {
+                out.putLong(fps[i]);
+            }
+            for (int i=0; i<count*topK; i++)
+            {
+                out.putInt(neighbours[i]);
+            }
+            for (int i=0; i<count*topK; i++)
+            {
+                out.putFloat(similarities[i]);
+            }
+            out.force();
+        }
+        finally
+        {
+            raf.close();
+        }
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Opens a file of fingerprints.
+     * @param file the file written by {@link #write}
+     * @return the content of the file, mapped in memory
+     */
+    public static FingerprintStore open(File file) throws Exception
+    {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try
+        {
+            FileChannel channel = raf.getChannel();
+            if (channel.size() < HEADERSIZE
+                || channel.size() > Integer.MAX_VALUE)
+            {
+                throw new Exception("Not a fingerprint file: " + file);
+            }
+            MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY,
+                                               0, channel.size());
+            if (buf.getInt(0) != MAGIC || buf.getInt(4) != VERSION)
+            {
+                throw new Exception("Not a fingerprint file: " + file);
+            }
+            FingerprintStore store = new FingerprintStore(buf, buf.getInt(8),
+                                              buf.getInt(12), buf.getInt(16));
+            if (store.similaritiesStart + (long) store.count * store.topK * 4
+                != channel.size())
+            {
+                throw new Exception("Truncated fingerprint file: " + file);
+            }
+            return store;
+        }
+        finally
+        {
+            // The mapping stays valid after closing the file
+            raf.close();
+        }
+    }
+
+//------------------------------------------------------------------------------
+
+    public int getCount()
+    {
+        return count;
+    }
+
+    public int getNumBits()
+    {
+        return numBits;
+    }
+
+    public int getTopK()
+    {
+        return topK;
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Copies a fingerprint.
+     * @param i the index of the fingerprint
+     * @param out array where to store the words of the fingerprint
+     * @param offset index where to store the first word
+     */
+    public void getFingerprint(int i, long[] out, int offset)
+    {
+        int pos = HEADERSIZE + i * words * 8;
+        for (int w=0; w<words; w++)
+        {
+            out[offset + w] = buf.getLong(pos + w * 8);
+        }
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * @param i the index of a fingerprint
+     * @param rank the rank of the neighbour (0: most similar)
+     * @return the index of the neighbour, or -1 if there are less than
+     * <code>rank+1</code> neighbours
+     */
+    public int getNeighbour(int i, int rank)
+    {
+        return buf.getInt(neighboursStart + (i * topK + rank) * 4);
+    }
+
+    /**
+     * @param i the index of a fingerprint
+     * @param rank the rank of the neighbour (0: most similar)
+     * @return the Tanimoto similarity of the neighbour
+     */
+    public float getSimilarity(int i, int rank)
+    {
+        return buf.getFloat(similaritiesStart + (i * topK + rank) * 4);
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Calculates the Tanimoto similarity of two fingerprints.
+     */
+    public double tanimoto(int i, int j)
+    {
+        int pi = HEADERSIZE + i * words * 8;
+        int pj = HEADERSIZE + j * words * 8;
+        int common = 0;
+        int union = 0;
+        for (int w=0; w<words; w++)
+        {
+            long a = buf.getLong(pi + w * 8);
+            long b = buf.getLong(pj + w * 8);
+            common += Long.bitCount(a & b);
+            union += Long.bitCount(a | b);
+        }
+        return union == 0 ? 1.0 : (double) common / union;
+    }
+
+//------------------------------------------------------------------------------
+
+}
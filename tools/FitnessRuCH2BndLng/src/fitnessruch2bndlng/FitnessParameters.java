@@ -0,0 +1,953 @@
+package fitnessruch2bndlng;
+
+/*
+ *   Copyright (C) 2016
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Affero General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Settings for the evaluation of one candidate. The same keys are used in the
+ * parameter file of a single evaluation and as defaults for the candidates
+ * listed in a batch manifest.
+ * <br><br>
+ * A manifest is a text file with one candidate per line and four
+ * whitespace-separated columns: INPSDF, OPTSDF, HPXYZ, and OUTSDF.
+ * Lines starting with '#' are ignored.
+ */
+
+public class FitnessParameters
+{
+    //SDF pre-geometry optimization with MOPAC
+    private String inpSdfFile;
+
+    //SDF optimized geometry
+    private String optSdfFile;
+
+    //XYZ file (coordinates with higher precision than SDF)
+    private String hpXYZ;
+
+    //Gaussian output to read the optimized geometry from (replaces OPTSDF
+    //and HPXYZ)
+    private String dftOutFile;
+
+    //XYZ file where to write the geometry read from the Gaussian output
+    private String outXYZFile;
+
+    //SDF output file to be produced
+    private String outsdfFile;
+
+    //List of candidates to evaluate in batch mode
+    private String manifestFile;
+
+    //Index of UIDs to be updated with the results
+    private String uidIndexFile;
+
+    //Log of timings and outcome (one JSON line per candidate)
+    private String statsLogFile;
+
+    //Folder of the columnar store of results
+    private String columnStore;
+
+    //Multi-record SDF collecting the results of a batch, its summary, and
+    //the number of candidates listed in the summary
+    private String generationSdf;
+    private String generationSummary;
+    private int generationTopK = GenerationSdfWriter.DEFAULTTOPK;
+
+    //Folder of the per-generation SDF files written when rescoring
+    private String generationSdfDir;
+
+    private double MinNonBondedDistance = Double.MAX_VALUE;
+    private double MaxBondedDistance = Double.MIN_VALUE;
+    private double MaxTorsion = Double.MIN_VALUE;
+    private double MinAngle = Double.MAX_VALUE;
+    //Minimum distance between atoms that are not 1-2 or 1-3 (0 = no check)
+    private double MinClashDistance = 0.0;
+    private String wrkDir;
+
+    //Rules given as threshold_dist, threshold_angle, or threshold_dihedral
+    private List<String[]> ruleDefinitions = new ArrayList<String[]>();
+
+    //Report all violated constraints instead of the first one
+    private boolean reportViolations = false;
+
+    //Compiled constraints (built when first needed)
+    private ConstraintSet constraints;
+
+    //Compiled constraints of the screening (built when first needed)
+    private ConstraintSet screeningConstraints;
+
+    //Compare the input connectivity with the bonds of the optimized geometry
+    private boolean checkConnectivity = false;
+    private boolean checkConnectivityGiven = false;
+    private double connTolerance = ConnectivityChecker.DEFAULTTOLERANCE;
+
+    //Screening of the pre-DFT geometry (looser thresholds, none by default)
+    private boolean screening = false;
+    private double screenMinNonBondedDistance = 0.0;
+    private double screenMaxBondedDistance = Double.MAX_VALUE;
+    private double screenMaxTorsion = Double.MAX_VALUE;
+    private double screenMinAngle = -Double.MAX_VALUE;
+    private double screenMinClashDistance = 0.0;
+
+    //Surrogate model predicting the fitness at screening time, the
+    //threshold on the optimistic prediction, and the number of standard
+    //deviations making the prediction optimistic
+    private String surrogateModelFile;
+    private SurrogateModel surrogateModel;
+    private double surrogateMinFitness = -Double.MAX_VALUE;
+    private double surrogateKappa = 2.0;
+
+    //Reject candidates on the prediction of the surrogate (otherwise the
+    //prediction is only recorded and used to rank the candidates)
+    private boolean surrogateReject = false;
+
+    //Settings of the watcher of running DFT jobs
+    private String watchDoneFile;
+    private String watchDoneMarker = "Normal termination";
+    private int watchAbortSteps = 0;
+    private double watchFitness = Double.NaN;
+    private double watchRuCMargin = 0.05;
+    private long watchTimeout = 0;
+    private long watchPoll = 60;
+
+//------------------------------------------------------------------------------
+
+    public String getInpSdfFile()
+    {
+        return inpSdfFile;
+    }
+
+    public String getOptSdfFile()
+    {
+        return optSdfFile;
+    }
+
+    public String getHpXYZ()
+    {
+        return hpXYZ;
+    }
+
+    public String getDFTOutFile()
+    {
+        return dftOutFile;
+    }
+
+    public String getOutXYZFile()
+    {
+        return outXYZFile;
+    }
+
+    public String getOutsdfFile()
+    {
+        return outsdfFile;
+    }
+
+    public String getManifestFile()
+    {
+        return manifestFile;
+    }
+
+    public String getUIDIndexFile()
+    {
+        return uidIndexFile;
+    }
+
+    public String getStatsLogFile()
+    {
+        return statsLogFile;
+    }
+
+    public String getColumnStore()
+    {
+        return columnStore;
+    }
+
+    public String getGenerationSdf()
+    {
+        return generationSdf;
+    }
+
+    /**
+     * @return the summary of the generation SDF (default: the name of the
+     * generation SDF with extension .txt)
+     */
+    public String getGenerationSummary()
+    {
+        if (generationSummary == null && generationSdf != null)
+        {
+            return generationSdf.replaceAll("\\.sdf$", "") + ".txt";
+        }
+        return generationSummary;
+    }
+
+    public int getGenerationTopK()
+    {
+        return generationTopK;
+    }
+
+    public String getGenerationSdfDir()
+    {
+        return generationSdfDir;
+    }
+
+    public String getWorkDir()
+    {
+        return wrkDir;
+    }
+
+    public double getMinNonBondedDistance()
+    {
+        return MinNonBondedDistance;
+    }
+
+    public double getMaxBondedDistance()
+    {
+        return MaxBondedDistance;
+    }
+
+    public double getMaxTorsion()
+    {
+        return MaxTorsion;
+    }
+
+    public double getMinAngle()
+    {
+        return MinAngle;
+    }
+
+    public double getMinClashDistance()
+    {
+        return MinClashDistance;
+    }
+
+    /**
+     * Gets the constraints to be satisfied by the candidates. The thresholds
+     * given with the keywords MAXBNDDIST, MINANGLE, MAXTORSION, MINNBDIST,
+     * and MINCLASHDIST are translated into rules that reproduce the original
+     * checks, and are followed by the rules given explicitly.
+     * @return the compiled constraints
+     * @throws Exception if any rule cannot be understood
+     */
+    public synchronized ConstraintSet getConstraints() throws Exception
+    {
+        if (constraints != null)
+        {
+            return constraints;
+        }
+        List<ConstraintRule> rules = new ArrayList<ConstraintRule>();
+        rules.add(PatternRule.compile(PatternRule.DISTANCE, 
+                "avg(Ru-Cl)|(," + MaxBondedDistance + "]", 
+                FailureReason.MAX_BONDED_DISTANCE.getDescription()));
+        rules.add(PatternRule.compile(PatternRule.ANGLE, 
+                "avg(Cl-Ru-C)|[" + MinAngle + ",)", 
+                FailureReason.MIN_ANGLE.getDescription()));
+        rules.add(PatternRule.compile(PatternRule.DIHEDRAL, 
+                "min(H-C-Ru-L)|(," + MaxTorsion + "]", 
+                FailureReason.TORSION.getDescription()));
+        rules.add(PatternRule.compile(PatternRule.DISTANCE, 
+                "min(Ru~X@n)|[" + MinNonBondedDistance + ",)", 
+                FailureReason.NON_BONDED_DISTANCE.getDescription()));
+        if (MinClashDistance > 0.0)
+        {
+            rules.add(new ClashRule(MinClashDistance));
+        }
+        for (String[] def : ruleDefinitions)
+        {
+            ConstraintSet.compile(def[0], def[1], rules);
+        }
+        constraints = new ConstraintSet(rules, reportViolations);
+        return constraints;
+    }
+
+    /**
+     * Gets the constraints applied by the screening of the geometry before
+     * DFT (see {@link #forScreening()}). Once compiled, they are shared 
+     * with the copies made for the candidates.
+     * @return the compiled constraints
+     * @throws Exception if any rule cannot be understood
+     */
+    public synchronized ConstraintSet getScreeningConstraints() 
+            throws Exception
+    {
+        if (screeningConstraints == null)
+        {
+            screeningConstraints = forScreening().getConstraints();
+        }
+        return screeningConstraints;
+    }
+
+    /**
+     * Takes the constraints, and those of the screening, from a cache
+     * shared by settings that are read separately but often define the
+     * same constraints (e.g., the requests to {@link FitnessServer}). 
+     * Constraints not found in the cache are compiled and added to it.
+     * @param cache compiled constraints by their definition
+     * @throws Exception if any rule cannot be understood
+     */
+    public void useConstraintCache(Map<String,ConstraintSet> cache) 
+            throws Exception
+    {
+        synchronized (cache)
+        {
+            String key = getConstraintDefinition();
+            ConstraintSet cs = cache.get(key);
+            if (cs == null)
+            {
+                cs = getConstraints();
+                cache.put(key, cs);
+            }
+            FitnessParameters screenParams = forScreening();
+            String screenKey = screenParams.getConstraintDefinition();
+            ConstraintSet screenCs = cache.get(screenKey);
+            if (screenCs == null)
+            {
+                screenCs = screenParams.getConstraints();
+                cache.put(screenKey, screenCs);
+            }
+            synchronized (this)
+            {
+                constraints = cs;
+                screeningConstraints = screenCs;
+            }
+        }
+    }
+
+    /**
+     * @return a text that is the same for settings that compile to the 
+     * same constraints
+     */
+    private String getConstraintDefinition()
+    {
+        StringBuilder sb = new StringBuilder();
+        sb.append(MaxBondedDistance).append(' ').append(MinAngle).append(' ');
+        sb.append(MaxTorsion).append(' ').append(MinNonBondedDistance);
+        sb.append(' ').append(MinClashDistance).append(' ');
+        sb.append(reportViolations);
+        for (String[] def : ruleDefinitions)
+        {
+            sb.append('\n').append(def[0]).append('=').append(def[1]);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Gets the surrogate model given with the keyword SURROGATEMODEL. The
+     * model is loaded when first needed and then shared with the copies
+     * of these settings made afterwards.
+     * @return the model, or null if no model is given
+     * @throws Exception if the model cannot be read
+     */
+    public synchronized SurrogateModel getSurrogateModel() throws Exception
+    {
+        if (surrogateModel == null && surrogateModelFile != null)
+        {
+            surrogateModel = SurrogateModel.load(new File(surrogateModelFile));
+        }
+        return surrogateModel;
+    }
+
+    /**
+     * @return the fitness below which candidates are flagged at screening
+     * time (and rejected if {@link #getSurrogateReject()}) if their 
+     * optimistic predicted fitness is lower
+     */
+    public double getSurrogateMinFitness()
+    {
+        return surrogateMinFitness;
+    }
+
+    /**
+     * @return the number of standard deviations added to the predicted
+     * fitness before comparing it with the threshold
+     */
+    public double getSurrogateKappa()
+    {
+        return surrogateKappa;
+    }
+
+    /**
+     * @return true if SURROGATEREJECT is enabled. The surrogate is trained
+     * on DFT-optimized geometries but applied to pre-DFT ones, and its 
+     * sigma is a lower bound of the error, so rejecting on its prediction
+     * can discard good candidates.
+     */
+    public boolean getSurrogateReject()
+    {
+        return surrogateReject;
+    }
+
+    public boolean isScreening()
+    {
+        return screening;
+    }
+
+    public boolean getCheckConnectivity()
+    {
+        return checkConnectivity;
+    }
+
+    /**
+     * @return true if CHECKCONNECTIVITY is given in the parameter file, 
+     * either to enable or to disable the check
+     */
+    public boolean isCheckConnectivityGiven()
+    {
+        return checkConnectivityGiven;
+    }
+
+    public double getConnectivityTolerance()
+    {
+        return connTolerance;
+    }
+
+    /**
+     * @return the file where the completion of the DFT job is reported. By
+     * default, the Gaussian output itself.
+     */
+    public String getWatchDoneFile()
+    {
+        return watchDoneFile != null ? watchDoneFile : dftOutFile;
+    }
+
+    public String getWatchDoneMarker()
+    {
+        return watchDoneMarker;
+    }
+
+    /**
+     * @return the number of consecutive hopeless optimization steps after
+     * which the job should be cancelled (0 = never)
+     */
+    public int getWatchAbortSteps()
+    {
+        return watchAbortSteps;
+    }
+
+    /**
+     * @return the fitness that a candidate has to beat to enter the 
+     * population, or NaN if unknown
+     */
+    public double getWatchFitness()
+    {
+        return watchFitness;
+    }
+
+    /**
+     * @return how much the Ru=C distance can still shrink before the end of
+     * the optimization
+     */
+    public double getWatchRuCMargin()
+    {
+        return watchRuCMargin;
+    }
+
+    /**
+     * @return the time limit in seconds (0 = none)
+     */
+    public long getWatchTimeout()
+    {
+        return watchTimeout;
+    }
+
+    /**
+     * @return the interval in seconds between checks that are not triggered
+     * by file system events
+     */
+    public long getWatchPoll()
+    {
+        return watchPoll;
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Makes a copy of these settings that refers to a different candidate.
+     * Thresholds and working directory are inherited. The constraints are
+     * shared only if already compiled, so callers creating many candidates
+     * should first call {@link #getConstraints()} (and 
+     * {@link #getScreeningConstraints()} if the candidates are screened).
+     */
+    public FitnessParameters forCandidate(String inpSdf, String optSdf,
+                                          String xyz, String outSdf)
+    {
+        FitnessParameters p = new FitnessParameters();
+        p.inpSdfFile = inpSdf;
+        p.optSdfFile = optSdf;
+        p.hpXYZ = xyz;
+        p.outsdfFile = outSdf;
+        p.MinNonBondedDistance = MinNonBondedDistance;
+        p.MaxBondedDistance = MaxBondedDistance;
+        p.MaxTorsion = MaxTorsion;
+        p.MinAngle = MinAngle;
+        p.MinClashDistance = MinClashDistance;
+        p.wrkDir = wrkDir;
+        p.ruleDefinitions = ruleDefinitions;
+        p.reportViolations = reportViolations;
+        p.constraints = constraints;
+        p.screeningConstraints = screeningConstraints;
+        p.checkConnectivity = checkConnectivity;
+        p.connTolerance = connTolerance;
+        p.uidIndexFile = uidIndexFile;
+        p.statsLogFile = statsLogFile;
+        p.columnStore = columnStore;
+        p.surrogateModelFile = surrogateModelFile;
+        p.surrogateModel = surrogateModel;
+        p.surrogateMinFitness = surrogateMinFitness;
+        p.surrogateKappa = surrogateKappa;
+        p.surrogateReject = surrogateReject;
+        return p;
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Makes a copy of these settings where the thresholds are replaced by
+     * those meant for the screening of the geometry before DFT.
+     */
+    public FitnessParameters forScreening()
+    {
+        FitnessParameters p = forCandidate(inpSdfFile, optSdfFile, hpXYZ,
+                                           outsdfFile);
+        p.screening = true;
+        p.MinNonBondedDistance = screenMinNonBondedDistance;
+        p.MaxBondedDistance = screenMaxBondedDistance;
+        p.MaxTorsion = screenMaxTorsion;
+        p.MinAngle = screenMinAngle;
+        p.MinClashDistance = screenMinClashDistance;
+        p.ruleDefinitions = new ArrayList<String[]>();
+        p.constraints = screeningConstraints;
+        p.checkConnectivity = false;
+        return p;
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Makes a copy of these settings for a candidate whose optimized
+     * geometry is read from the output of Gaussian.
+     */
+    public FitnessParameters forDFTOutput(String inpSdf, String dftOut,
+                                 String outXyz, String outSdf, String dir)
+    {
+        FitnessParameters p = forCandidate(inpSdf, null, null, outSdf);
+        p.dftOutFile = dftOut;
+        p.outXYZFile = outXyz;
+        p.wrkDir = dir;
+        return p;
+    }
+
+//------------------------------------------------------------------------------
+
+    public void checkParameters() throws Exception
+    {
+        if (inpSdfFile == null || inpSdfFile.length() == 0)
+        {
+            throw new Exception("Input SDF file not supplied. Check parameter file.");
+        }
+        if (screening)
+        {
+            // Only the pre-DFT geometry is needed
+            return;
+        }
+        boolean fromDFTOut = dftOutFile != null && dftOutFile.length() > 0;
+        if (!fromDFTOut && (hpXYZ == null || hpXYZ.length() == 0))
+        {
+            throw new Exception("Input XYZ  file not supplied. Check parameter file.");
+        }
+        if (wrkDir == null || wrkDir.length() == 0)
+        {
+            throw new Exception("Working directory not supplied. Check parameter file.");
+        }
+        if (outsdfFile == null || outsdfFile.length() == 0)
+        {
+            throw new Exception("Output SDF file not supplied. Check parameter file.");
+        }
+        if (!fromDFTOut && (optSdfFile == null || optSdfFile.length() == 0))
+        {
+            throw new Exception("Optimized geometry file not supplied. Check parameter file.");
+        }
+    }
+
+//------------------------------------------------------------------------------
+
+    public static FitnessParameters readParameters(String filename)
+            throws Exception
+    {
+        FitnessParameters params = new FitnessParameters();
+        BufferedReader br = null;
+        String line;
+
+        try
+        {
+            br = new BufferedReader(new FileReader(filename));
+            while ((line = br.readLine()) != null)
+            {
+                params.parseLine(line);
+            }
+        }
+        finally
+        {
+            if (br != null)
+            {
+                br.close();
+            }
+        }
+        return params;
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Interprets one line of a parameter file. Empty lines, comments, and
+     * unknown keys are ignored.
+     */
+    public void parseLine(String line)
+    {
+        String option;
+        line = line.trim();
+        if (line.length() == 0)
+        {
+            return;
+        }
+
+        if (line.startsWith("#"))
+        {
+            return;
+        }
+
+        option = line.substring(line.indexOf("=") + 1).trim();
+        if (option.length() == 0)
+        {
+            return;
+        }
+
+        String key = line.toUpperCase();
+
+        if (key.startsWith("INPSDF"))
+        {
+            inpSdfFile = option;
+            return;
+        }
+
+        if (key.startsWith("OPTSDF"))
+        {
+            optSdfFile = option;
+            return;
+        }
+
+        if (key.startsWith("OUTSDF"))
+        {
+            outsdfFile = option;
+            return;
+        }
+
+        if (key.startsWith("MAXBNDDIST"))
+        {
+            MaxBondedDistance = Double.parseDouble(option);
+            return;
+        }
+
+        if (key.startsWith("MINANGLE"))
+        {
+            MinAngle = Double.parseDouble(option);
+            return;
+        }
+
+        if (key.startsWith("MAXTORSION"))
+        {
+            MaxTorsion = Double.parseDouble(option);
+            return;
+        }
+
+        if (key.startsWith("MINNBDIST"))
+        {
+            MinNonBondedDistance = Double.parseDouble(option);
+            return;
+        }
+
+        if (key.startsWith("MINCLASHDIST"))
+        {
+            MinClashDistance = Double.parseDouble(option);
+            return;
+        }
+
+        if (key.startsWith("THRESHOLD_DIST") 
+            || key.startsWith("THRESHOLD_ANGLE")
+            || key.startsWith("THRESHOLD_DIHEDRAL"))
+        {
+            // Rules are compiled, and syntax errors reported, at the first
+            // evaluation
+            String keyword = line.substring(0, line.indexOf("=")).trim();
+            ruleDefinitions.add(new String[] {keyword, option});
+            return;
+        }
+
+        if (key.startsWith("CONSTRAINTMODE"))
+        {
+            reportViolations = option.equalsIgnoreCase("report");
+            return;
+        }
+
+        if (key.startsWith("SCREENING"))
+        {
+            screening = option.equalsIgnoreCase("yes")
+                        || option.equalsIgnoreCase("true");
+            return;
+        }
+
+        if (key.startsWith("SCREENMAXBNDDIST"))
+        {
+            screenMaxBondedDistance = Double.parseDouble(option);
+            return;
+        }
+
+        if (key.startsWith("SCREENMINANGLE"))
+        {
+            screenMinAngle = Double.parseDouble(option);
+            return;
+        }
+
+        if (key.startsWith("SCREENMAXTORSION"))
+        {
+            screenMaxTorsion = Double.parseDouble(option);
+            return;
+        }
+
+        if (key.startsWith("SCREENMINNBDIST"))
+        {
+            screenMinNonBondedDistance = Double.parseDouble(option);
+            return;
+        }
+
+        if (key.startsWith("SCREENMINCLASHDIST"))
+        {
+            screenMinClashDistance = Double.parseDouble(option);
+            return;
+        }
+
+        if (key.startsWith("SURROGATEMODEL"))
+        {
+            surrogateModelFile = option;
+            return;
+        }
+
+        if (key.startsWith("SURROGATEMINFITNESS"))
+        {
+            surrogateMinFitness = Double.parseDouble(option);
+            return;
+        }
+
+        if (key.startsWith("SURROGATEKAPPA"))
+        {
+            surrogateKappa = Double.parseDouble(option);
+            return;
+        }
+
+        if (key.startsWith("SURROGATEREJECT"))
+        {
+            surrogateReject = option.equalsIgnoreCase("yes")
+                              || option.equalsIgnoreCase("true");
+            return;
+        }
+
+        if (key.startsWith("CHECKCONNECTIVITY"))
+        {
+            checkConnectivity = option.equalsIgnoreCase("yes")
+                                || option.equalsIgnoreCase("true");
+            checkConnectivityGiven = true;
+            return;
+        }
+
+        if (key.startsWith("CONNTOLERANCE"))
+        {
+            connTolerance = Double.parseDouble(option);
+            return;
+        }
+
+        if (key.startsWith("WORKDIR"))
+        {
+            wrkDir = option;
+            return;
+        }
+
+        if (key.startsWith("HPXYZ"))
+        {
+            hpXYZ = option;
+            return;
+        }
+
+        if (key.startsWith("DFTOUT"))
+        {
+            dftOutFile = option;
+            return;
+        }
+
+        if (key.startsWith("OUTXYZ"))
+        {
+            outXYZFile = option;
+            return;
+        }
+
+        if (key.startsWith("WATCHDONEFILE"))
+        {
+            watchDoneFile = option;
+            return;
+        }
+
+        if (key.startsWith("WATCHDONEMARKER"))
+        {
+            watchDoneMarker = option;
+            return;
+        }
+
+        if (key.startsWith("WATCHABORTSTEPS"))
+        {
+            watchAbortSteps = Integer.parseInt(option);
+            return;
+        }
+
+        if (key.startsWith("WATCHFITNESS"))
+        {
+            watchFitness = Double.parseDouble(option);
+            return;
+        }
+
+        if (key.startsWith("WATCHRUCMARGIN"))
+        {
+            watchRuCMargin = Double.parseDouble(option);
+            return;
+        }
+
+        if (key.startsWith("WATCHTIMEOUT"))
+        {
+            watchTimeout = Long.parseLong(option);
+            return;
+        }
+
+        if (key.startsWith("WATCHPOLL"))
+        {
+            watchPoll = Long.parseLong(option);
+            return;
+        }
+
+        if (key.startsWith("STATSLOG"))
+        {
+            statsLogFile = option;
+            return;
+        }
+
+        if (key.startsWith("COLSTORE"))
+        {
+            columnStore = option;
+            return;
+        }
+
+        if (key.startsWith("UIDINDEX"))
+        {
+            uidIndexFile = option;
+            return;
+        }
+
+        if (key.startsWith("MANIFEST"))
+        {
+            manifestFile = option;
+            return;
+        }
+
+        if (key.startsWith("GENSDFDIR"))
+        {
+            generationSdfDir = option;
+            return;
+        }
+
+        if (key.startsWith("GENSDF"))
+        {
+            generationSdf = option;
+            return;
+        }
+
+        if (key.startsWith("GENSUMMARY"))
+        {
+            generationSummary = option;
+            return;
+        }
+
+        if (key.startsWith("GENTOPK"))
+        {
+            generationTopK = Integer.parseInt(option);
+            return;
+        }
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Reads the manifest file and creates the settings for each of the
+     * candidates listed there.
+     * @return the list of candidates in the order given by the manifest
+     */
+    public List<FitnessParameters> readManifest() throws Exception
+    {
+        // Compiled once and shared by all the candidates
+        getConstraints();
+
+        List<FitnessParameters> candidates = new ArrayList<FitnessParameters>();
+        BufferedReader br = null;
+        String line;
+        int lineNum = 0;
+
+        try
+        {
+            br = new BufferedReader(new FileReader(manifestFile));
+            while ((line = br.readLine()) != null)
+            {
+                lineNum++;
+                line = line.trim();
+                if (line.length() == 0 || line.startsWith("#"))
+                {
+                    continue;
+                }
+
+                String[] parts = line.split("\\s+");
+                if (parts.length != 4)
+                {
+                    throw new Exception("Expecting INPSDF OPTSDF HPXYZ OUTSDF "
+                                + "on line " + lineNum + " of " + manifestFile);
+                }
+                candidates.add(forCandidate(parts[0], parts[1], parts[2],
+                                                                    parts[3]));
+            }
+        }
+        finally
+        {
+            if (br != null)
+            {
+                br.close();
+            }
+        }
+        return candidates;
+    }
+
+//------------------------------------------------------------------------------
+
+}
@@ -0,0 +1,127 @@
+package fitnessruch2bndlng;
+
+/*
+ *   Copyright (C) 2016
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Affero General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import org.openscience.cdk.interfaces.IAtomContainer;
+
+/**
+ * Outcome of the evaluation of one candidate. A candidate can either
+ * be given a fitness, violate a geometric constraint, or fail the evaluation
+ * due to unusable input. The last two cases carry a MOL_ERROR message.
+ */
+
+public class FitnessResult
+{
+    //Molecular representation to be written to the output (can be null)
+    private final IAtomContainer mol;
+
+    //Descriptors (null if not calculated)
+    private final DoubleVector descriptors;
+
+    //Fitness value (NaN unless evaluation was successful)
+    private final double fitness;
+
+    //Content of the MOL_ERROR field (null if evaluation was successful)
+    private final String molError;
+
+    //Flag signaling that evaluation could not be completed
+    private final boolean failed;
+
+    //Timings and failure reason (null if not collected)
+    private EvaluationStats stats;
+
+//------------------------------------------------------------------------------
+
+    private FitnessResult(IAtomContainer mol, DoubleVector descriptors,
+                          double fitness, String molError, boolean failed)
+    {
+        this.mol = mol;
+        this.descriptors = descriptors;
+        this.fitness = fitness;
+        this.molError = molError;
+        this.failed = failed;
+    }
+
+//------------------------------------------------------------------------------
+
+    public static FitnessResult success(IAtomContainer mol,
+                                    DoubleVector descriptors, double fitness)
+    {
+        return new FitnessResult(mol, descriptors, fitness, null, false);
+    }
+
+//------------------------------------------------------------------------------
+
+    public static FitnessResult violation(IAtomContainer mol,
+                                    DoubleVector descriptors, String molError)
+    {
+        return new FitnessResult(mol, descriptors, Double.NaN, molError, false);
+    }
+
+//------------------------------------------------------------------------------
+
+    public static FitnessResult failure(IAtomContainer mol, String molError)
+    {
+        return new FitnessResult(mol, null, Double.NaN, molError, true);
+    }
+
+//------------------------------------------------------------------------------
+
+    public IAtomContainer getMolecule()
+    {
+        return mol;
+    }
+
+    public DoubleVector getDescriptors()
+    {
+        return descriptors;
+    }
+
+    public double getFitness()
+    {
+        return fitness;
+    }
+
+    public String getMolError()
+    {
+        return molError;
+    }
+
+    public boolean hasFitness()
+    {
+        return molError == null;
+    }
+
+    public boolean isFailure()
+    {
+        return failed;
+    }
+
+    public EvaluationStats getStats()
+    {
+        return stats;
+    }
+
+    void setStats(EvaluationStats stats)
+    {
+        this.stats = stats;
+    }
+
+//------------------------------------------------------------------------------
+
+}
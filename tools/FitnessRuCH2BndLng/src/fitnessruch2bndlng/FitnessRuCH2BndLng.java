@@ -17,11 +17,11 @@ package fitnessruch2bndlng;
  *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
  */
 
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileReader;
+import java.io.FileWriter;
 import java.io.IOException;
-import java.util.ArrayList;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
 import java.util.List;
 import java.util.Map;
 import java.util.HashMap;
@@ -29,19 +29,10 @@ import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.vecmath.Point3d;
 
-import org.openscience.cdk.ChemFile;
-import org.openscience.cdk.ChemObject;
 import org.openscience.cdk.interfaces.IAtom;
 import org.openscience.cdk.interfaces.IAtomContainer;
-import org.openscience.cdk.io.MDLV2000Reader;
 import org.openscience.cdk.smsd.Isomorphism;
 import org.openscience.cdk.smsd.interfaces.Algorithm;
-import org.openscience.cdk.tools.manipulator.ChemFileManipulator;
-
-import denoptim.io.DenoptimIO;
-import denoptim.utils.DENOPTIMMathUtils;
-import denoptim.utils.DoubleVector;
-import denoptim.utils.GenUtils;
 
 /**
  * Tool for the analysis of Ru 14-electrons compounds as catalysts for 
@@ -67,23 +58,29 @@ public class FitnessRuCH2BndLng
     private static final Logger LOGGER = Logger.getLogger(
             FitnessRuCH2BndLng.class.getName());
 
-    //SDF pre-geometry optimization with MOPAC
-    private static String inpSdfFile;
-
-    //SDF optimized geometry
-    private static String optSdfFile;
-
-    //XYZ file (coordinates with higher precision than SDF)
-    private static String hpXYZ;
-
-    //SDF output file to be produced
-    private static String outsdfFile;
+    /**
+     * Exit status used when the pre-DFT geometry is rejected by the 
+     * screening.
+     */
+    public static final int SCREEN_REJECTED = 2;
 
-    private static double MinNonBondedDistance = Double.MAX_VALUE;
-    private static double MaxBondedDistance = Double.MIN_VALUE;
-    private static double MaxTorsion = Double.MIN_VALUE;
-    private static double MinAngle = Double.MAX_VALUE;
-    private static String wrkDir;
+    //Per-thread reader and buffer for XYZ files
+    private static final ThreadLocal<XYZReader> XYZREADER = 
+            new ThreadLocal<XYZReader>() {
+                @Override
+                protected XYZReader initialValue()
+                {
+                    return new XYZReader();
+                }
+            };
+    private static final ThreadLocal<XYZCoordinates> XYZBUFFER = 
+            new ThreadLocal<XYZCoordinates>() {
+                @Override
+                protected XYZCoordinates initialValue()
+                {
+                    return new XYZCoordinates();
+                }
+            };
 
 //------------------------------------------------------------------------------    
 
@@ -102,98 +99,708 @@ public class FitnessRuCH2BndLng
 
         try
         {
-            readParameters(paramFile);
-            checkParameters();
+            FitnessParameters params = FitnessParameters.readParameters(
+                                                                    paramFile);
+            if (params.getManifestFile() != null)
+            {
+                runBatch(params);
+                System.exit(0);
+            }
+
+            params.checkParameters();
+            if (params.isScreening())
+            {
+                FitnessResult result = screen(params);
+                if (result.isFailure())
+                {
+                    System.exit(-1);
+                }
+                if (!result.hasFitness())
+                {
+                    System.out.println("REJECTED " + result.getMolError());
+                    if (params.getOutsdfFile() != null)
+                    {
+                        SdfIO.writeMolecule(params.getOutsdfFile(),
+                                                 result.getMolecule(), false);
+                    }
+                    System.exit(SCREEN_REJECTED);
+                }
+                System.out.println("PASSED");
+                System.exit(0);
+            }
+            FitnessResult result = evaluate(params);
+            writeResult(params, result);
+            if (result.isFailure())
+            {
+                System.exit(-1);
+            }
+        }
+        catch (Exception de)
+        {
+            LOGGER.log(Level.SEVERE, null, de);
+            System.exit(-1);
+        }
 
-            // Read graph representation (so-called 2D)            
-            IAtomContainer mol = DenoptimIO.readSingleSDFFile(inpSdfFile);
+        System.exit(0);
+    }
 
-            // Read Gaussian optimized geometry
-            IAtomContainer optMol = DenoptimIO.readSingleSDFFile(optSdfFile);
+//------------------------------------------------------------------------------
 
-            // Read higher precision XYZ coordinates
-            ArrayList<String> xyzTxt = DenoptimIO.readList(hpXYZ);
-            if (xyzTxt.size() != (optMol.getAtomCount() + 2))
+    /**
+     * Evaluates all the candidates listed in the manifest file. Candidates 
+     * that cannot be evaluated are reported with a MOL_ERROR field in their
+     * output and do not stop the evaluation of the remaining ones.
+     * If GENSDF is given, the outputs are appended to that single file (see
+     * {@link GenerationSdfWriter}) instead of being written to OUTSDF.
+     * @param params the settings including thresholds and the manifest file
+     */
+    private static void runBatch(FitnessParameters params) throws Exception
+    {
+        List<FitnessParameters> candidates = params.readManifest();
+        GenerationSdfWriter genWriter = null;
+        if (params.getGenerationSdf() != null)
+        {
+            genWriter = new GenerationSdfWriter(
+                               new File(params.getGenerationSdf()),
+                               new File(params.getGenerationSummary()),
+                               params.getGenerationTopK());
+        }
+        int numOK = 0;
+        int numViolations = 0;
+        int numFailures = 0;
+        EvaluationSummary summary = new EvaluationSummary();
+        for (FitnessParameters candidate : candidates)
+        {
+            FitnessResult result;
+            try
             {
-                    LOGGER.log(Level.SEVERE, "Inconsistency between SDF and XYZ: check output from DFT");
-                    System.exit(-1);
+                candidate.checkParameters();
+                result = evaluate(candidate);
             }
-            for (int il=2; il<xyzTxt.size(); il++)
+            catch (Exception e)
             {
-            String line = xyzTxt.get(il);
-            line = line.trim();
-            String[] parts = line.split("\\s+");
-    
-            String sym = parts[0];
-            double hpx = Double.parseDouble(parts[1]); 
-                    double hpy = Double.parseDouble(parts[2]);
-                    double hpz = Double.parseDouble(parts[3]);
-            Point3d hp3d = new Point3d(hpx,hpy,hpz);
-    
-            IAtom a = optMol.getAtom(il-2);
-    
-            //Check that the atom is the same
-            boolean isok = true;
-            if (!a.getSymbol().equals(sym))
+                result = FitnessResult.failure(null, "#Fitness Evaluation: " 
+                                                            + e.getMessage());
+                EvaluationStats stats = new EvaluationStats();
+                stats.setReason(FailureReason.INPUT);
+                result.setStats(stats);
+            }
+            writeResult(candidate, result, genWriter);
+            summary.add(result.getStats());
+
+            if (result.isFailure())
             {
-                LOGGER.log(Level.SEVERE, "Inconsistency between SDF and XYZ: check atom " + a);
-                        System.exit(-1); 
+                numFailures++;
             }
-                    if (hp3d.distance(a.getPoint3d()) > 0.0003)
+            else if (result.hasFitness())
             {
-                        LOGGER.log(Level.SEVERE, "Inconsistency between SDF and XYZ: check position of atom " + a);
-                        System.exit(-1);           
+                numOK++;
             }
-    
-            //read in higher precision coordinates
-            a.setPoint3d(hp3d);
+            else
+            {
+                numViolations++;
+            }
+        }
+        if (genWriter != null)
+        {
+            genWriter.close();
+        }
+        LOGGER.info("Batch completed: " + candidates.size() + " candidates, "
+                    + numOK + " with fitness, " + numViolations 
+                    + " violating constraints, " + numFailures + " failed.");
+        LOGGER.info(summary.toString());
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Calculates descriptors and fitness of one candidate. This method does
+     * not write any file and does not terminate the JVM: any problem is
+     * reported in the returned result.
+     * @param params the settings for this candidate
+     * @return the outcome of the evaluation
+     */
+    public static FitnessResult evaluate(FitnessParameters params)
+    {
+        EvaluationStats stats = new EvaluationStats();
+        FitnessResult result;
+        IAtomContainer optMol = null;
+        try
+        {
+            // Read graph representation (so-called 2D). Only its properties
+            // are needed unless its graph is used below
+            stats.begin(EvaluationStats.Phase.READ_SDF);
+            LazySdfMolecule inp = LazySdfMolecule.read(
+                                                    params.getInpSdfFile());
+
+            if (params.getDFTOutFile() != null)
+            {
+                // Take the optimized geometry straight from the Gaussian 
+                // output and keep the connectivity of the input graph
+                IAtomContainer mol = inp.getMolecule();
+                stats.begin(EvaluationStats.Phase.READ_GEOMETRY);
+                optMol = mol;
+                readDFTGeometry(optMol, params.getDFTOutFile(), 
+                                                    params.getOutXYZFile());
+            }
+            else
+            {
+                // Read Gaussian optimized geometry
+                optMol = SdfIO.readSingleSDFFile(params.getOptSdfFile());
+
+                // Copy SDF properties to optMol
+                Map<Object,Object> molProps = inp.getProperties();
+                for (Object key : molProps.keySet())
+                {
+                    optMol.setProperty(key,molProps.get(key));
+                }
+
+                // Read higher precision XYZ coordinates
+                stats.begin(EvaluationStats.Phase.READ_GEOMETRY);
+                mergeHighPrecisionCoordinates(optMol, params.getHpXYZ());
             }
 
-            // Copy SDF properties to optMol
-            Map<Object,Object> molProps = mol.getProperties();
-            for (Object key : molProps.keySet())
+            // The input may be the outcome of a previous evaluation (e.g.,
+            // when rescoring): its results must not survive this one
+            removeResultProperties(optMol);
+
+            // Compare the bonds of the input graph with those perceived 
+            // from the optimized geometry
+            if (params.getCheckConnectivity())
             {
-                optMol.setProperty(key,molProps.get(key));
+                stats.begin(EvaluationStats.Phase.CONNECTIVITY);
+                String diff = ConnectivityChecker.compare(
+                                            inp.getMolecule(), optMol,
+                                            params.getConnectivityTolerance());
+                if (diff != null)
+                {
+                    String msg = "#Connectivity Check: " + diff;
+                    optMol.setProperty("MOL_ERROR", msg);
+                    stats.setReason(FailureReason.CONNECTIVITY);
+                    stats.end();
+                    result = FitnessResult.violation(optMol, null, msg);
+                    result.setStats(stats);
+                    return result;
+                }
             }
 
-            // Define indexes of atoms in Ru(L)(Cl)(Cl)=CH2
-            Map<String,Integer> atomIndeces = defineAtomIndexes(optMol);
+            result = evaluateGeometry(optMol, params, stats);
+            stats.end();
+        }
+        catch (Exception e)
+        {
+            EvaluationStats.Phase phase = stats.end();
+            if (phase == EvaluationStats.Phase.CORE)
+            {
+                stats.setReason(FailureReason.CORE_IDENTIFICATION);
+            }
+            else if (phase == EvaluationStats.Phase.READ_SDF
+                     || phase == EvaluationStats.Phase.READ_GEOMETRY
+                     || phase == EvaluationStats.Phase.CONNECTIVITY)
+            {
+                stats.setReason(FailureReason.INPUT);
+            }
+            else
+            {
+                stats.setReason(FailureReason.OTHER);
+            }
+            LOGGER.log(Level.SEVERE, "Evaluation failed. Check file " 
+                                           + params.getOutsdfFile(), e);
+            String msg = "#Fitness Evaluation: " + e.getMessage();
+            if (optMol != null)
+            {
+                optMol.setProperty("MOL_ERROR", msg);
+            }
+            result = FitnessResult.failure(optMol, msg);
+        }
+        result.setStats(stats);
+        return result;
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Removes from a molecule the properties set by a fitness evaluation.
+     * @param mol the molecule to clean up.
+     */
+    static void removeResultProperties(IAtomContainer mol)
+    {
+        mol.removeProperty("FITNESS");
+        mol.removeProperty("MOL_ERROR");
+        mol.removeProperty("Descriptors");
+        mol.removeProperty("calculated_ATOM_INDECES");
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Calculates descriptors and fitness of a molecule whose geometry is
+     * already the one to evaluate. Phases are recorded in the given
+     * statistics, which are left open.
+     * @param optMol the molecule, where FITNESS or MOL_ERROR, and the
+     * descriptors are set
+     * @param params the thresholds
+     * @param stats the statistics of the evaluation
+     * @return the outcome of the evaluation (without statistics)
+     * @throws Exception if the core cannot be identified or the constraints
+     * cannot be checked
+     */
+    static FitnessResult evaluateGeometry(IAtomContainer optMol,
+            FitnessParameters params, EvaluationStats stats) throws Exception
+    {
+        // Define indexes of atoms in Ru(L)(Cl)(Cl)=CH2
+        stats.begin(EvaluationStats.Phase.CORE);
+        Map<String,Integer> atomIndeces = defineAtomIndexes(optMol);
         
-            //Calculate descriptors
+        //Calculate descriptors
+        stats.begin(EvaluationStats.Phase.DESCRIPTORS);
+        DoubleVector descriptors = new DoubleVector(7);
+        calculateDescriptors(optMol, atomIndeces, descriptors);
+        StringBuilder sb = new StringBuilder();
+        for (int j=0; j<descriptors.length(); j++)
+        {
+            sb.append(String.format("%6.5f", 
+                                     descriptors.getValue(j))).append(" ");
+        }
+        optMol.setProperty("Descriptors", sb.toString().trim());
+
+        // Check constraints
+        stats.begin(EvaluationStats.Phase.CONSTRAINTS);
+        String status = checkMolecule(atomIndeces, optMol, params);
+        if (!status.equalsIgnoreCase("OK"))
+        {
+            // write MOL_ERROR tag
+            optMol.setProperty("MOL_ERROR", status);
+            stats.setReason(FailureReason.fromViolation(status));
+            return FitnessResult.violation(optMol, descriptors, status);
+        }
+        double fitness = roundValue(-1.0 * descriptors.getValue(4), 5);
+        optMol.setProperty("FITNESS",String.format("%8.5f", fitness));
+        optMol.setProperty("calculated_ATOM_INDECES",atomIndeces);
+        return FitnessResult.success(optMol, descriptors, fitness);
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Applies the geometric constraints to the 3D model given as input SDF,
+     * i.e., before the DFT optimization, using the screening thresholds. 
+     * The aim is to avoid spending DFT time on candidates that cannot
+     * satisfy the constraints anyway. If a surrogate model is given, the
+     * predicted fitness and its uncertainty are stored in the
+     * SURROGATE_FITNESS and SURROGATE_SIGMA properties, and candidates whose
+     * fitness is unlikely to reach SURROGATEMINFITNESS are flagged with the
+     * SURROGATE_PROVISIONAL property. Since the model is trained on 
+     * DFT-optimized geometries, such candidates are rejected only if 
+     * SURROGATEREJECT is enabled.
+     * @param params the settings including the screening thresholds
+     * @return a result without fitness value if the candidate passes the
+     * screening, or a violation carrying the MOL_ERROR message
+     */
+    public static FitnessResult screen(FitnessParameters params)
+    {
+        FitnessParameters screenParams = params.forScreening();
+        IAtomContainer mol = null;
+        try
+        {
+            mol = SdfIO.readSingleSDFFile(params.getInpSdfFile());
+            Map<String,Integer> atomIndeces = defineAtomIndexes(mol);
             DoubleVector descriptors = new DoubleVector(7);
-            calculateDescriptors(optMol, atomIndeces, descriptors);
-            StringBuilder sb = new StringBuilder();
-            for (int j=0; j<descriptors.length(); j++)
+            calculateDescriptors(mol, atomIndeces, descriptors);
+            String status = checkMolecule(atomIndeces, mol, screenParams);
+            if (!status.equalsIgnoreCase("OK"))
             {
-                sb.append(String.format("%6.5f", 
-                                         descriptors.getValue(j))).append(" ");
+                String msg = "#Pre-DFT Screening: " + status;
+                mol.setProperty("MOL_ERROR", msg);
+                return FitnessResult.violation(mol, descriptors, msg);
             }
-            optMol.setProperty("Descriptors", sb.toString().trim());
 
-            // Check constraints
-             String status = checkMolecule(descriptors, atomIndeces, optMol);
-            if (!status.equalsIgnoreCase("OK"))
+            // Predict the fitness and flag the candidates that are unlikely
+            // to be competitive
+            SurrogateModel model = screenParams.getSurrogateModel();
+            if (model != null)
+            {
+                SurrogateModel.Prediction p = model.predict(
+                        SurrogateFeatures.compute(mol, atomIndeces, 
+                                                  descriptors));
+                mol.setProperty("SURROGATE_FITNESS", 
+                                String.format("%8.5f", p.getMean()));
+                mol.setProperty("SURROGATE_SIGMA", 
+                                String.format("%8.5f", p.getSigma()));
+                double bound = p.getUpperBound(
+                                            screenParams.getSurrogateKappa());
+                if (bound < screenParams.getSurrogateMinFitness())
+                {
+                    String msg = String.format("#Surrogate: predicted "
+                            + "fitness %.5f (sigma %.5f) below %.5f",
+                            p.getMean(), p.getSigma(),
+                            screenParams.getSurrogateMinFitness());
+                    if (screenParams.getSurrogateReject())
+                    {
+                        mol.setProperty("MOL_ERROR", msg);
+                        return FitnessResult.violation(mol, descriptors, 
+                                                       msg);
+                    }
+                    mol.setProperty("SURROGATE_PROVISIONAL", msg);
+                    LOGGER.info("Provisional rejection not applied to " 
+                                + params.getInpSdfFile() + ": " + msg);
+                }
+            }
+            return FitnessResult.success(mol, descriptors, Double.NaN);
+        }
+        catch (Exception e)
+        {
+            LOGGER.log(Level.SEVERE, "Screening failed for " 
+                                           + params.getInpSdfFile(), e);
+            return FitnessResult.failure(mol, "#Pre-DFT Screening: " 
+                                                        + e.getMessage());
+        }
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Replaces the coordinates of a molecule with those, typically more 
+     * precise, found in the last frame of an XYZ file. Atoms must be listed 
+     * in the same order and at nearly the same position in both.
+     * @param mol the molecule to modify
+     * @param xyzFile the XYZ file
+     * @throws Exception if atoms in the XYZ file are not consistent with 
+     * those in the molecule
+     */
+    static void mergeHighPrecisionCoordinates(IAtomContainer mol,
+                                           String xyzFile) throws Exception
+    {
+        XYZCoordinates xyz = XYZBUFFER.get();
+        XYZREADER.get().read(xyzFile, xyz);
+        mergeHighPrecisionCoordinates(mol, xyz);
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Replaces the coordinates of a molecule with those of the last frame
+     * of the given coordinates.
+     * @param mol the molecule to modify
+     * @param xyz the coordinates, with atoms in the same order and at nearly
+     * the same position
+     * @throws Exception if atoms are not consistent with those in the
+     * molecule
+     */
+    static void mergeHighPrecisionCoordinates(IAtomContainer mol,
+                                     XYZCoordinates xyz) throws Exception
+    {
+        if (xyz.getAtomCount() != mol.getAtomCount())
+        {
+            throw new Exception("Inconsistency between SDF and XYZ: "
+                                + "check output from DFT");
+        }
+
+        double[] coords = xyz.getCoordinates();
+        int offset = xyz.getLastFrameOffset();
+        for (int i=0; i<xyz.getAtomCount(); i++)
+        {
+            IAtom a = mol.getAtom(i);
+
+            //Check that the atom is the same
+            if (!a.getSymbol().equals(xyz.getSymbol(i)))
+            {
+                throw new Exception("Inconsistency between SDF and XYZ: "
+                                    + "check atom " + a);
+            }
+            Point3d p = a.getPoint3d();
+            double hpx = coords[offset + 3*i];
+            double hpy = coords[offset + 3*i + 1];
+            double hpz = coords[offset + 3*i + 2];
+            double dx = hpx - p.x;
+            double dy = hpy - p.y;
+            double dz = hpz - p.z;
+            if (Math.sqrt(dx*dx + dy*dy + dz*dz) > 0.0003)
+            {
+                throw new Exception("Inconsistency between SDF and XYZ: "
+                                    + "check position of atom " + a);
+            }
+
+            //read in higher precision coordinates
+            p.set(hpx, hpy, hpz);
+        }
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Replaces the coordinates of a molecule with the last geometry found in
+     * the output of Gaussian. Atoms must be listed in the same order in both.
+     * @param mol the molecule to modify
+     * @param dftOutFile the Gaussian output file
+     * @param outXYZFile if not null, the geometry is also written to this 
+     * XYZ file
+     * @throws Exception if atoms in the Gaussian output are not consistent
+     * with those in the molecule
+     */
+    private static void readDFTGeometry(IAtomContainer mol, String dftOutFile,
+                                        String outXYZFile) throws Exception
+    {
+        XYZCoordinates xyz = XYZBUFFER.get();
+        GaussianOutputReader.readLastGeometry(dftOutFile, xyz);
+        if (xyz.getAtomCount() != mol.getAtomCount())
+        {
+            throw new Exception("Inconsistency between SDF and DFT output: "
+                                + "check output from DFT");
+        }
+
+        double[] coords = xyz.getCoordinates();
+        int offset = xyz.getLastFrameOffset();
+        StringBuilder sb = new StringBuilder();
+        sb.append(xyz.getAtomCount()).append("\n");
+        sb.append(new File(dftOutFile).getName());
+        sb.append(" last geometry from Gaussian output").append("\n");
+        for (int i=0; i<xyz.getAtomCount(); i++)
+        {
+            IAtom a = mol.getAtom(i);
+            if (!a.getSymbol().equals(xyz.getSymbol(i)))
+            {
+                throw new Exception("Inconsistency between SDF and DFT "
+                                    + "output: check atom " + a);
+            }
+            double x = coords[offset + 3*i];
+            double y = coords[offset + 3*i + 1];
+            double z = coords[offset + 3*i + 2];
+            a.setPoint3d(new Point3d(x, y, z));
+            sb.append(String.format(" %s%17.7f%17.7f%17.7f", a.getSymbol(),
+                                    x, y, z)).append("\n");
+        }
+
+        if (outXYZFile != null)
+        {
+            FileWriter fw = null;
+            try
             {
-                // write MOL_ERROR tag
-                String msg = "#threshold violated: " + status;
-                optMol.setProperty("MOL_ERROR", status);
-                DenoptimIO.writeMolecule(outsdfFile, optMol, false);
+                fw = new FileWriter(outXYZFile);
+                fw.write(sb.toString());
+            }
+            finally
+            {
+                if (fw != null)
+                {
+                    fw.close();
+                }
+            }
+        }
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Writes the outcome of an evaluation to the output SDF file. If the 
+     * evaluation failed before any molecule could be read, the input SDF is
+     * used to carry the MOL_ERROR field. Candidates with a fitness are also
+     * recorded in the UID index, if one is given.
+     * @param params the settings for this candidate
+     * @param result the outcome of the evaluation
+     */
+    public static void writeResult(FitnessParameters params, 
+                                   FitnessResult result)
+    {
+        writeResult(params, result, null);
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Writes the outcome of an evaluation either to the output SDF file or,
+     * if a writer is given, as a record of the generation SDF file. In the
+     * latter case, the UID index is not updated because it can only refer
+     * to single-molecule files.
+     * @param params the settings for this candidate
+     * @param result the outcome of the evaluation
+     * @param genWriter the writer of the generation SDF file, or null
+     */
+    static void writeResult(FitnessParameters params, FitnessResult result,
+                            GenerationSdfWriter genWriter)
+    {
+        EvaluationStats stats = result.getStats();
+        if (stats != null)
+        {
+            stats.begin(EvaluationStats.Phase.WRITE);
+        }
+        IAtomContainer mol = result.getMolecule();
+        try
+        {
+            if (mol == null)
+            {
+                mol = SdfIO.readSingleSDFFile(params.getInpSdfFile());
+                mol.setProperty("MOL_ERROR", result.getMolError());
+            }
+            if (genWriter != null)
+            {
+                genWriter.write(getRecordName(params), mol, result);
             }
             else
             {
-                optMol.setProperty("FITNESS",String.format("%8.5f", 
-                              GenUtils.roundValue(-1.0 * descriptors.getValue(4), 5)));
-                optMol.setProperty("calculated_ATOM_INDECES",atomIndeces);
-                DenoptimIO.writeMolecule(outsdfFile, optMol, false);
+                SdfIO.writeMolecule(params.getOutsdfFile(), mol, false);
             }
         }
-        catch (Exception de)
+        catch (Exception e)
         {
-            LOGGER.log(Level.SEVERE, null, de);
-            System.exit(-1);
+            LOGGER.log(Level.SEVERE, "Could not write " 
+                                           + getRecordName(params), e);
+            return;
         }
+        finally
+        {
+            if (stats != null)
+            {
+                stats.end();
+            }
+        }
+        logStats(params, params.getOutsdfFile(), mol, result);
+        storeResult(params, mol, result);
 
-        System.exit(0);
+        if (genWriter == null
+            && params.getUIDIndexFile() != null && result.hasFitness()
+            && mol.getProperty("UID") != null)
+        {
+            File outSdf = new File(params.getOutsdfFile());
+            String xyz = params.getHpXYZ() != null ? params.getHpXYZ()
+                                                   : params.getOutXYZFile();
+            UIDFitnessIndex.Entry entry = new UIDFitnessIndex.Entry(
+                    mol.getProperty("UID").toString().trim(),
+                    mol.getProperty("FITNESS").toString(),
+                    outSdf.getAbsolutePath(),
+                    xyz == null ? "" : new File(xyz).getAbsolutePath(),
+                    outSdf.lastModified());
+            try
+            {
+                UIDFitnessIndex.append(new File(params.getUIDIndexFile()), 
+                                                                       entry);
+            }
+            catch (Exception e)
+            {
+                LOGGER.log(Level.WARNING, "Could not update UID index " 
+                                          + params.getUIDIndexFile(), e);
+            }
+        }
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * @return the name of the output of a candidate in a generation SDF
+     * file, i.e., the name of its output SDF file or, if there is none, of
+     * its input SDF file
+     */
+    static String getRecordName(FitnessParameters params)
+    {
+        String file = params.getOutsdfFile() != null ? params.getOutsdfFile()
+                                                     : params.getInpSdfFile();
+        return new File(file).getName();
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Appends the timings and outcome of an evaluation to the statistics log,
+     * if one is given, as a single JSON line.
+     * @param params the settings for this candidate
+     * @param file the name used to identify the candidate
+     * @param mol the molecule carrying the UID (can be null)
+     * @param result the outcome of the evaluation
+     */
+    static void logStats(FitnessParameters params, String file, 
+                         IAtomContainer mol, FitnessResult result)
+    {
+        if (params.getStatsLogFile() == null || result.getStats() == null)
+        {
+            return;
+        }
+        Object uid = mol == null ? null : mol.getProperty("UID");
+        String line = result.getStats().toJSON(file, 
+                                  uid == null ? null : uid.toString().trim(),
+                                  result);
+        try
+        {
+            EvaluationStats.appendLine(new File(params.getStatsLogFile()), 
+                                                                       line);
+        }
+        catch (Exception e)
+        {
+            LOGGER.log(Level.WARNING, "Could not update statistics log " 
+                                      + params.getStatsLogFile(), e);
+        }
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Appends the outcome of an evaluation to the columnar store, if one is
+     * given.
+     * @param params the settings for this candidate
+     * @param mol the molecule carrying UID and coordinates (can be null)
+     * @param result the outcome of the evaluation
+     */
+    static void storeResult(FitnessParameters params, IAtomContainer mol,
+                            FitnessResult result)
+    {
+        if (params.getColumnStore() == null)
+        {
+            return;
+        }
+        byte status = ColumnStore.STATUS_OK;
+        if (result.isFailure())
+        {
+            status = ColumnStore.STATUS_FAILURE;
+        }
+        else if (!result.hasFitness())
+        {
+            status = ColumnStore.STATUS_VIOLATION;
+        }
+        double[] descriptors = null;
+        if (result.getDescriptors() != null)
+        {
+            descriptors = new double[GeometryKernel.NUMDESCRIPTORS];
+            for (int k=0; k<descriptors.length; k++)
+            {
+                descriptors[k] = result.getDescriptors().getValue(k);
+            }
+        }
+        FailureReason reason = result.getStats() != null ? 
+                         result.getStats().getReason() : FailureReason.NONE;
+
+        Object uid = null;
+        int[] atomicNumbers = new int[0];
+        double[] coords = new double[0];
+        if (mol != null)
+        {
+            uid = mol.getProperty("UID");
+            atomicNumbers = new int[mol.getAtomCount()];
+            coords = new double[3 * mol.getAtomCount()];
+            for (int i=0; i<mol.getAtomCount(); i++)
+            {
+                IAtom a = mol.getAtom(i);
+                atomicNumbers[i] = Math.max(0, 
+                             PeriodicTable.getAtomicNumber(a.getSymbol()));
+                Point3d p = a.getPoint3d();
+                if (p != null)
+                {
+                    coords[3*i] = p.x;
+                    coords[3*i+1] = p.y;
+                    coords[3*i+2] = p.z;
+                }
+            }
+        }
+        try
+        {
+            ColumnStore.append(new File(params.getColumnStore()),
+                               uid == null ? null : uid.toString().trim(),
+                               result.getFitness(), descriptors, status,
+                               reason, atomicNumbers, coords, 0);
+        }
+        catch (Exception e)
+        {
+            LOGGER.log(Level.WARNING, "Could not update column store " 
+                                      + params.getColumnStore(), e);
+        }
     }
 
 //------------------------------------------------------------------------------
@@ -203,7 +810,7 @@ public class FitnessRuCH2BndLng
      *
      * WARNING! This assumes Ru compounds with Ru(Cl)(Cl)(L)=CH2 core
      */
-    private static Map<String,Integer> defineAtomIndexes(IAtomContainer mol)
+    static Map<String,Integer> defineAtomIndexes(IAtomContainer mol)
                 throws Exception
     {
         Map<String,Integer> atmIndeces = new HashMap<String,Integer>();
@@ -219,10 +826,7 @@ public class FitnessRuCH2BndLng
         }
         if (iRu < 0)
         {
-            LOGGER.log(Level.SEVERE, "Failed to identify Ru atom. Check file " + 
-                                                                         outsdfFile);
-            DenoptimIO.writeMolecule(outsdfFile, mol, false);
-            System.exit(-1);
+            throw new Exception("Failed to identify Ru atom.");
         }
 
         atmIndeces.put("iRu",iRu);
@@ -295,10 +899,8 @@ public class FitnessRuCH2BndLng
             //Check assigniation
             if (atmIndeces.get(label) < 0)
             {
-                LOGGER.log(Level.SEVERE, "Failed to identify '" + label
-                                + "' atom. Check file " + outsdfFile);
-                DenoptimIO.writeMolecule(outsdfFile, mol, false);
-                System.exit(-1);                
+                throw new Exception("Failed to identify '" + label 
+                                                                + "' atom.");
             }
         
             //Check unicity
@@ -309,10 +911,8 @@ public class FitnessRuCH2BndLng
 
                 if (atmIndeces.get(label).equals(atmIndeces.get(label2)))
                 {
-                    LOGGER.log(Level.SEVERE, "Ambiguity in identifying '" + label
-                                + "' and '" + label2 + "'. Check file " + outsdfFile);
-                    DenoptimIO.writeMolecule(outsdfFile, mol, false);
-                    System.exit(-1);
+                    throw new Exception("Ambiguity in identifying '" + label
+                                                + "' and '" + label2 + "'.");
                 }
             }
         }
@@ -320,95 +920,62 @@ public class FitnessRuCH2BndLng
         return atmIndeces;
     }
     
-//------------------------------------------------------------------------------
-    
-    private static void checkParameters() throws Exception
-    {
-        if (inpSdfFile == null || inpSdfFile.length() == 0)
-        {
-            throw new Exception("Input SDF file not supplied. Check parameter file.");
-        }
-        if (hpXYZ == null || hpXYZ.length() == 0)
-        {
-            throw new Exception("Input XYZ  file not supplied. Check parameter file.");
-        }
-        if (wrkDir == null || wrkDir.length() == 0)
-        {
-            throw new Exception("Working directory not supplied. Check parameter file.");
-        }
-        if (outsdfFile == null || outsdfFile.length() == 0)
-        {
-            throw new Exception("Output SDF file not supplied. Check parameter file.");
-        }
-        if (optSdfFile == null || optSdfFile.length() == 0)
-        {
-            throw new Exception("Optimized geometry file not supplied. Check parameter file.");
-        }
-    }
-
 //------------------------------------------------------------------------------
 
     /**
-     * Calculate descriptors for the molecule
+     * Calculate descriptors for the molecule. See {@link GeometryKernel}
+     * for the definition of the descriptors.
      *
      * @param mol
      * @param atomIndeces map with the indeces of the atoms to be used
      * @param descriptors
-     * @param atom_charges
      * @throws Exception
      */
-    private static void calculateDescriptors(IAtomContainer mol, 
+    static void calculateDescriptors(IAtomContainer mol, 
             Map<String,Integer> atomIndeces,
             DoubleVector descriptors)
             throws Exception
     {
-        int h1 = atomIndeces.get("iH1");
-        int h2 = atomIndeces.get("iH2");
-        int Cl1 = atomIndeces.get("iCl1");
-        int Cl2 = atomIndeces.get("iCl2");
-        int Ru = atomIndeces.get("iRu");
-        int C = atomIndeces.get("iC");
-        int X = atomIndeces.get("iL");
-
-        double distRuCl = getDistance(mol, Ru, Cl1);
-        distRuCl += getDistance(mol, Ru, Cl2);
-        distRuCl /= 2;
-        descriptors.setValue(0, distRuCl);
-
-        double angleClRuCl = getAngle(mol, Cl1, Ru, Cl2);
-        descriptors.setValue(1, angleClRuCl);
-
-        double angleClRuC = getAngle(mol, Cl1, Ru, C);
-        angleClRuC += getAngle(mol, Cl2, Ru, C);
-        angleClRuC /= 2;
-        descriptors.setValue(2, angleClRuC);
-
-        double d1 = Math.abs(getTorsion(mol, h1, C, Ru, X));
-        double d2 = Math.abs(getTorsion(mol, h2, C, Ru, X));
-        double torsionXRuCH = Math.min(Math.abs(d1), Math.abs(d2));
-        descriptors.setValue(3, torsionXRuCH);
-
-        double distRuC = getDistance(mol, Ru, C);
-        descriptors.setValue(4, distRuC);
-
-        double distRuL = getDistance(mol, Ru, X);
-        descriptors.setValue(5, distRuL);
+        double[] values = new double[GeometryKernel.NUMDESCRIPTORS];
+        GeometryKernel.computeDescriptors(getCoordinates(mol), 0, 
+                GeometryKernel.toRoles(atomIndeces), values, 0);
+        for (int j=0; j<values.length; j++)
+        {
+            descriptors.setValue(j, values[j]);
+        }
+    }
 
-        double angleCRuL = getAngle(mol, C, Ru, X);
-        descriptors.setValue(6, angleCRuL);
+//------------------------------------------------------------------------------
 
+    /**
+     * @return the coordinates of all atoms as a flat array (x,y,z for each 
+     * atom)
+     */
+    private static double[] getCoordinates(IAtomContainer mol)
+    {
+        int n = mol.getAtomCount();
+        double[] coords = new double[3*n];
+        for (int i=0; i<n; i++)
+        {
+            Point3d p = mol.getAtom(i).getPoint3d();
+            coords[3*i] = p.x;
+            coords[3*i+1] = p.y;
+            coords[3*i+2] = p.z;
+        }
+        return coords;
     }
 
 //------------------------------------------------------------------------------
 
     /**
-     * Calculate the minimum non-bonded Distance
+     * Calculate the minimum distance between Ru and any atom that is neither
+     * bound to Ru nor involved in the calculation of descriptors.
      *
-     * @param scaffold
+     * @param atomIndeces map with the indeces of the atoms to be used
      * @param mol
      * @return the distance
      */
-    private static double getMinimumNonBondedAtomDistance(
+    static double getMinimumNonBondedAtomDistance(
                         Map<String,Integer> atomIndeces,
                             IAtomContainer mol)
     {
@@ -416,28 +983,24 @@ public class FitnessRuCH2BndLng
 
         IAtom atmRu = mol.getAtom(Ru);
 
-        //List of atoms directly connected to Ru 
-        ArrayList<IAtom> lst = new ArrayList<>();
-        List<IAtom> nbrsRu = mol.getConnectedAtomsList(atmRu);
-        lst.addAll(nbrsRu);
+        //Atoms directly connected to Ru 
+        boolean[] excluded = new boolean[mol.getAtomCount()];
+        for (IAtom nbr : mol.getConnectedAtomsList(atmRu))
+        {
+            excluded[mol.getAtomNumber(nbr)] = true;
+        }
 
         //Add also all the atoms involved in calculation of descriptors
-        for (String label : atomIndeces.keySet())
+        for (Integer idx : atomIndeces.values())
         {
-            IAtom atm = mol.getAtom(atomIndeces.get(label));
-            if (!lst.contains(atm))
-            {
-                lst.add(atm);
-            }
+            excluded[idx] = true;
         }
 
         // measure distances for all non-bonded atoms
         double d = Double.MAX_VALUE;
-
-        int k = 0;
-        for (IAtom atom : mol.atoms())
+        for (int k=0; k<excluded.length; k++)
         {
-            if (!lst.contains(atom))
+            if (!excluded[k])
             {
                 double f = getDistance(mol, Ru, k);
                 if (f < d)
@@ -445,7 +1008,6 @@ public class FitnessRuCH2BndLng
                     d = f;
                 }
             }
-            k++;
         }
         return d;
     }
@@ -456,244 +1018,43 @@ public class FitnessRuCH2BndLng
     {
         Point3d p1 = mol.getAtom(i).getPoint3d();
         Point3d p2 = mol.getAtom(j).getPoint3d();
-        return DENOPTIMMathUtils.distance(p1, p2);
-    }
-
-//------------------------------------------------------------------------------
-
-    private static double getAngle(IAtomContainer mol, int i, int j, int k)
-    {
-        Point3d p1 = mol.getAtom(i).getPoint3d();
-        Point3d p2 = mol.getAtom(j).getPoint3d();
-        Point3d p3 = mol.getAtom(k).getPoint3d();
-        return DENOPTIMMathUtils.angle(p1, p2, p3);
+        return p1.distance(p2);
     }
 
 //------------------------------------------------------------------------------
 
-    private static double getTorsion(IAtomContainer mol, int i, int j, int k, int l)
+    /**
+     * Rounds the decimal representation of a value to the given number of
+     * decimal places, with halves rounded away from zero, as DENOPTIM did.
+     */
+    static double roundValue(double value, int decimals)
     {
-        Point3d p1 = mol.getAtom(i).getPoint3d();
-        Point3d p2 = mol.getAtom(j).getPoint3d();
-        Point3d p3 = mol.getAtom(k).getPoint3d();
-        Point3d p4 = mol.getAtom(l).getPoint3d();
-        return DENOPTIMMathUtils.torsion(p1, p2, p3, p4);
+        return new BigDecimal(Double.toString(value)).setScale(decimals,
+                                         RoundingMode.HALF_UP).doubleValue();
     }
 
 //------------------------------------------------------------------------------
 
     /**
+     * Checks the geometric constraints. See 
+     * {@link FitnessParameters#getConstraints()} and {@link PatternRule} for
+     * the definition of the constraints.
      *
-     * @param descriptors
-     * @param scaffold
+     * @param atomIndeces map with the indeces of the core atoms
      * @param mol
+     * @param params the settings defining the thresholds
      * @return the error message due to constraint violation or "OK" if the
      * constraints are satisfied
      */
-    private static String checkMolecule(DoubleVector descriptors,
-                               Map<String,Integer> atomIndeces,
-                               IAtomContainer mol) throws Exception
-    {
-        //threshold_dist=Ru-X|(0,2.5); X-X|(0,2.5); Ru~X@n|(2.9,)
-        //threshold_angle=Cl-Ru-C|(90,)
-        //threshold_dihedral=H-C-Ru-X@n|(,10)
-        String msg = null;
-        if (descriptors.getValue(0) > MaxBondedDistance)
-        {
-            msg = ": Maximum bonded distance threshold violated. "
-                    + String.format("%4f", descriptors.getValue(0));
-            LOGGER.info(msg);
-            return "Maximum bonded distance " + 
-                    String.format("%2f", descriptors.getValue(0));
-        }
-
-        if (descriptors.getValue(2) < MinAngle)
-        {
-            msg = ": Minimum angle threshold violated. "
-                    + String.format("%4f", descriptors.getValue(2));
-            LOGGER.info(msg);
-            return "Minimum angle " + 
-                    String.format("%2f", descriptors.getValue(2));
-        }
-
-        if (descriptors.getValue(3) > MaxTorsion)
-        {
-            msg = ": Torsion angle threshold violated. "
-                    + String.format("%4f", descriptors.getValue(3));
-            LOGGER.info(msg);
-            return "Torsion angle " + 
-                    String.format("%2f", descriptors.getValue(3));
-        }
-
-        double f = getMinimumNonBondedAtomDistance(atomIndeces,mol);
-        if (f < MinNonBondedDistance)
-        {
-            msg = ": Minimum non-bonded distance threshold violated. "
-                    + String.format("%4f", f);
-            LOGGER.info(msg);
-            return "Minimum non-bonded distance " + 
-                    String.format("%2f", f);
-        }
-
-        return "OK";
-    }
-
-//------------------------------------------------------------------------------
-
-    private static void readParameters(String filename) throws Exception
+    static String checkMolecule(Map<String,Integer> atomIndeces,
+                               IAtomContainer mol,
+                               FitnessParameters params) throws Exception
     {
-        BufferedReader br = null;
-        String option, line;
-
-        try
-        {
-            br = new BufferedReader(new FileReader(filename));
-            while ((line = br.readLine()) != null)
-            {
-                line = line.trim();
-                if (line.length() == 0)
-                {
-                    continue;
-                }
-
-                if (line.startsWith("#"))
-                {
-                    continue;
-                }
-
-                if (line.toUpperCase().startsWith("INPSDF"))
-                {
-                    option = line.substring(line.indexOf("=") + 1).trim();
-                    if (option.length() > 0)
-                    {
-                        inpSdfFile = option;
-                    }
-                    continue;
-                }
-
-                if (line.toUpperCase().startsWith("OPTSDF"))
-                {
-                    option = line.substring(line.indexOf("=") + 1).trim();
-                    if (option.length() > 0)
-                    {
-                        optSdfFile = option;
-                    }
-                    continue;
-                }
-                
-                if (line.toUpperCase().startsWith("OUTSDF"))
-                {
-                    option = line.substring(line.indexOf("=") + 1).trim();
-                    if (option.length() > 0)
-                    {
-                        outsdfFile = option;
-                    }
-                    continue;
-                }
-
-                if (line.toUpperCase().startsWith("MAXBNDDIST"))
-                {
-                    option = line.substring(line.indexOf("=") + 1).trim();
-                    if (option.length() > 0)
-                    {
-                        MaxBondedDistance = Double.parseDouble(option);
-                    }
-                    continue;
-                }
-
-                if (line.toUpperCase().startsWith("MINANGLE"))
-                {
-                    option = line.substring(line.indexOf("=") + 1).trim();
-                    if (option.length() > 0)
-                    {
-                        MinAngle = Double.parseDouble(option);
-                    }
-                    continue;
-                }
-
-                if (line.toUpperCase().startsWith("MAXTORSION"))
-                {
-                    option = line.substring(line.indexOf("=") + 1).trim();
-                    if (option.length() > 0)
-                    {
-                        MaxTorsion = Double.parseDouble(option);
-                    }
-                    continue;
-                }
-
-                if (line.toUpperCase().startsWith("MINNBDIST"))
-                {
-                    option = line.substring(line.indexOf("=") + 1).trim();
-                    if (option.length() > 0)
-                    {
-                        MinNonBondedDistance = Double.parseDouble(option);
-                    }
-                    continue;
-                }
-
-                if (line.toUpperCase().startsWith("WORKDIR"))
-                {
-                    option = line.substring(line.indexOf("=") + 1).trim();
-                    if (option.length() > 0)
-                    {
-                        wrkDir = option;
-                    }
-                    continue;
-                }
-
-                if (line.toUpperCase().startsWith("HPXYZ"))
-                {
-                    option = line.substring(line.indexOf("=") + 1).trim();
-                    if (option.length() > 0)
-                    {
-                        hpXYZ = option;
-                    }
-                    continue;
-                }
-            }
-        }
-        finally
-        {
-            if (br != null)
-            {
-                br.close();
-            }
-        }
+        RuleContext ctx = RuleContext.fromMolecule(mol, 
+                                       GeometryKernel.toRoles(atomIndeces));
+        return params.getConstraints().check(ctx);
     }
 
-//------------------------------------------------------------------------------
-
-    private static IAtomContainer readSDF(String filename)
-            throws Exception
-    {
-        MDLV2000Reader mdlreader = null;
-        ArrayList<IAtomContainer> lstContainers = new ArrayList<>();
-
-        try
-        {
-            mdlreader = new MDLV2000Reader(new FileReader(new File(filename)));
-            ChemFile chemFile = (ChemFile) mdlreader.read((ChemObject) new ChemFile());
-            lstContainers.addAll(
-                    ChemFileManipulator.getAllAtomContainers(chemFile));
-        }
-        finally
-        {
-            if (mdlreader != null)
-            {
-                mdlreader.close();
-            }
-        }
-
-        if (lstContainers.isEmpty())
-        {
-            throw new Exception("No data found in " + filename);
-        }
-
-        return lstContainers.get(0);
-        //return lstContainers.toArray(new IAtomContainer[lstContainers.size()]);
-    }
-    
-    
 //------------------------------------------------------------------------------    
    
 }
@@ -0,0 +1,412 @@
+package fitnessruch2bndlng;
+
+/*
+ *   Copyright (C) 2016
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Affero General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.math.BigInteger;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Long-running fitness service listening on a localhost port. It keeps
+ * CDK classes loaded so that each evaluation does not pay for the start-up
+ * of a new JVM.
+ * <br><br>
+ * A request is the content of a parameter file (same keys as for
+ * {@link FitnessRuCH2BndLng}) preceded by a <code>TOKEN=</code> line and
+ * terminated by a line containing only <code>END</code>. The token is
+ * generated by the server and stored in a file readable only by the owner,
+ * so that other users of the same machine cannot submit requests.
+ * The reply is made of <code>KEY=value</code> lines:
+ * <ul>
+ * <li><code>FITNESS=</code> or <code>MOL_ERROR=</code> with the outcome,
+ * or, for screening requests (<code>SCREENING=yes</code>),
+ * <code>SCREENING=PASSED</code> or <code>SCREENING=REJECTED</code> followed
+ * by the reason,</li>
+ * <li><code>EXIT=</code> with the exit status that
+ * <code>java -jar FitnessRuCH2BndLng.jar</code> would have returned.</li>
+ * </ul>
+ * A request containing a <code>LOOKUP=</code><i>UID</i> line, together
+ * with <code>UIDINDEX=</code>, looks the UID up in the {@link UIDFitnessIndex}
+ * kept in memory by the server, which only reads the lines appended to the
+ * index since the previous lookup. The reply is <code>ENTRY=</code> followed
+ * by the FIT.sdf file, the fitness, and the XYZ file (tab-separated), and
+ * <code>EXIT=0</code>, or just <code>EXIT=1</code> if the UID is not found.
+ * <br>
+ * A request made of the line <code>SHUTDOWN</code> stops the server.
+ * Connections that do not send any line for {@value #READTIMEOUT} ms are
+ * closed without reply, so that idle clients cannot hold the workers.
+ * Paths in the requests should be absolute, as they are interpreted from the
+ * server's working directory.
+ */
+
+public class FitnessServer
+{
+    private static final Logger LOGGER = Logger.getLogger(
+            FitnessServer.class.getName());
+
+    private static final String END = "END";
+    private static final String SHUTDOWN = "SHUTDOWN";
+    private static final String TOKEN = "TOKEN=";
+    private static final String LOOKUP = "LOOKUP=";
+
+    /**
+     * Milliseconds to wait for each line of a request.
+     */
+    public static final int READTIMEOUT = 60000;
+
+    /**
+     * Seconds given to the running evaluations to complete on shutdown.
+     */
+    public static final long SHUTDOWNTIMEOUT = 600;
+
+    private final ServerSocket serverSocket;
+    private final ExecutorService workers;
+    private final String token;
+    private final Map<String,UIDFitnessIndex> uidIndexes = 
+                                      new HashMap<String,UIDFitnessIndex>();
+
+    //Constraints compiled for previous requests, by their definition
+    private final Map<String,ConstraintSet> constraints = 
+                                        new HashMap<String,ConstraintSet>();
+    private volatile boolean running = true;
+
+//------------------------------------------------------------------------------
+
+    /**
+     * @param args the command line arguments
+     */
+    public static void main(String[] args)
+    {
+        if (args.length < 2)
+        {
+            System.err.println("Usage: java -cp FitnessRuCH2BndLng.jar "
+                    + "fitnessruch2bndlng.FitnessServer port tokenFile "
+                    + "[numThreads]");
+            System.exit(-1);
+        }
+
+        try
+        {
+            int port = Integer.parseInt(args[0]);
+            int numThreads = Runtime.getRuntime().availableProcessors();
+            if (args.length > 2)
+            {
+                numThreads = Integer.parseInt(args[2]);
+            }
+            FitnessServer server = new FitnessServer(port, numThreads,
+                                                              new File(args[1]));
+            server.serve();
+        }
+        catch (Exception e)
+        {
+            LOGGER.log(Level.SEVERE, null, e);
+            System.exit(-1);
+        }
+        System.exit(0);
+    }
+
+//------------------------------------------------------------------------------
+
+    public FitnessServer(int port, int numThreads, File tokenFile)
+            throws Exception
+    {
+        this.token = new BigInteger(130, new SecureRandom()).toString(32);
+        writeToken(tokenFile, token);
+        this.serverSocket = new ServerSocket(port, 50,
+                                              InetAddress.getLoopbackAddress());
+        this.workers = Executors.newFixedThreadPool(numThreads);
+        LOGGER.info("FitnessServer listening on "
+                    + serverSocket.getLocalSocketAddress() + " with "
+                    + numThreads + " threads.");
+    }
+
+//------------------------------------------------------------------------------
+
+    private static void writeToken(File tokenFile, String token)
+            throws Exception
+    {
+        tokenFile.delete();
+        tokenFile.createNewFile();
+        tokenFile.setReadable(false, false);
+        tokenFile.setWritable(false, false);
+        tokenFile.setReadable(true, true);
+        tokenFile.setWritable(true, true);
+        FileWriter fw = null;
+        try
+        {
+            fw = new FileWriter(tokenFile);
+            fw.write(token + System.getProperty("line.separator"));
+        }
+        finally
+        {
+            if (fw != null)
+            {
+                fw.close();
+            }
+        }
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Accepts connections until a shutdown request is received.
+     */
+    public void serve() throws Exception
+    {
+        try
+        {
+            while (running)
+            {
+                final Socket socket;
+                try
+                {
+                    socket = serverSocket.accept();
+                }
+                catch (Exception e)
+                {
+                    if (!running)
+                    {
+                        break;
+                    }
+                    throw e;
+                }
+                workers.submit(new Runnable() {
+                    public void run()
+                    {
+                        handle(socket);
+                    }
+                });
+            }
+        }
+        finally
+        {
+            // Let running evaluations complete their outputs
+            workers.shutdown();
+            serverSocket.close();
+            if (!workers.awaitTermination(SHUTDOWNTIMEOUT, TimeUnit.SECONDS))
+            {
+                LOGGER.warning("Evaluations still running after "
+                               + SHUTDOWNTIMEOUT + " s: stopping anyway.");
+            }
+        }
+    }
+
+//------------------------------------------------------------------------------
+
+    private void handle(Socket socket)
+    {
+        try
+        {
+            socket.setSoTimeout(READTIMEOUT);
+            BufferedReader in = new BufferedReader(new InputStreamReader(
+                            socket.getInputStream(), StandardCharsets.UTF_8));
+            PrintWriter out = new PrintWriter(new OutputStreamWriter(
+                            socket.getOutputStream(), StandardCharsets.UTF_8));
+
+            String line = in.readLine();
+            if (line == null || !line.trim().equals(TOKEN + token))
+            {
+                LOGGER.warning("Rejected request without valid token.");
+                out.println("EXIT=-1");
+                out.flush();
+                return;
+            }
+
+            FitnessParameters params = new FitnessParameters();
+            String uid = null;
+            while ((line = in.readLine()) != null)
+            {
+                if (line.trim().startsWith(LOOKUP))
+                {
+                    uid = line.trim().substring(LOOKUP.length()).trim();
+                    continue;
+                }
+                if (line.trim().equals(END))
+                {
+                    break;
+                }
+                if (line.trim().equals(SHUTDOWN))
+                {
+                    out.println("EXIT=0");
+                    out.flush();
+                    shutdown();
+                    return;
+                }
+                params.parseLine(line);
+            }
+
+            int exitStatus = 0;
+            try
+            {
+                if (uid != null)
+                {
+                    exitStatus = lookup(params.getUIDIndexFile(), uid, out);
+                    out.println("EXIT=" + exitStatus);
+                    out.flush();
+                    return;
+                }
+                params.checkParameters();
+                params.useConstraintCache(constraints);
+                if (params.isScreening())
+                {
+                    exitStatus = screen(params, out);
+                    out.println("EXIT=" + exitStatus);
+                    out.flush();
+                    return;
+                }
+                FitnessResult result = FitnessRuCH2BndLng.evaluate(params);
+                FitnessRuCH2BndLng.writeResult(params, result);
+                if (result.hasFitness())
+                {
+                    out.println("FITNESS=" + String.format("%8.5f",
+                                                   result.getFitness()).trim());
+                }
+                else
+                {
+                    out.println("MOL_ERROR=" + result.getMolError());
+                }
+                if (result.isFailure())
+                {
+                    exitStatus = -1;
+                }
+            }
+            catch (Exception e)
+            {
+                LOGGER.log(Level.SEVERE, null, e);
+                out.println("MOL_ERROR=#Fitness Evaluation: " + e.getMessage());
+                exitStatus = -1;
+            }
+            out.println("EXIT=" + exitStatus);
+            out.flush();
+        }
+        catch (SocketTimeoutException e)
+        {
+            LOGGER.warning("Closed connection idle for more than " 
+                           + READTIMEOUT + " ms.");
+        }
+        catch (Exception e)
+        {
+            LOGGER.log(Level.SEVERE, "Failed to handle request.", e);
+        }
+        finally
+        {
+            try
+            {
+                socket.close();
+            }
+            catch (Exception e)
+            {
+                LOGGER.log(Level.WARNING, null, e);
+            }
+        }
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Screens the geometry of a candidate as 
+     * <code>java -jar FitnessRuCH2BndLng.jar</code> does with 
+     * <code>SCREENING=yes</code>.
+     * @return the exit status
+     */
+    private static int screen(FitnessParameters params, PrintWriter out)
+            throws Exception
+    {
+        FitnessResult result = FitnessRuCH2BndLng.screen(params);
+        if (result.isFailure())
+        {
+            out.println("MOL_ERROR=" + result.getMolError());
+            return -1;
+        }
+        if (!result.hasFitness())
+        {
+            out.println("SCREENING=REJECTED " + result.getMolError());
+            if (params.getOutsdfFile() != null)
+            {
+                SdfIO.writeMolecule(params.getOutsdfFile(),
+                                    result.getMolecule(), false);
+            }
+            return FitnessRuCH2BndLng.SCREEN_REJECTED;
+        }
+        out.println("SCREENING=PASSED");
+        return 0;
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Looks a UID up in an index, which is loaded at the first lookup and
+     * then refreshed with the lines appended since.
+     * @return the exit status: 0 if found, 1 if not found
+     */
+    private int lookup(String indexFile, String uid, PrintWriter out)
+            throws Exception
+    {
+        if (indexFile == null)
+        {
+            throw new Exception("Index of UIDs (UIDINDEX) not supplied.");
+        }
+        UIDFitnessIndex index;
+        synchronized (uidIndexes)
+        {
+            index = uidIndexes.get(indexFile);
+            if (index == null)
+            {
+                index = new UIDFitnessIndex(new File(indexFile));
+                uidIndexes.put(indexFile, index);
+            }
+        }
+        index.refresh();
+        UIDFitnessIndex.Entry e = index.lookup(uid);
+        if (e == null)
+        {
+            return 1;
+        }
+        out.println("ENTRY=" + e.getFitSdf() + "\t" + e.getFitness() + "\t"
+                    + e.getXYZ());
+        return 0;
+    }
+
+//------------------------------------------------------------------------------
+
+    private void shutdown() throws Exception
+    {
+        running = false;
+        serverSocket.close();
+    }
+
+//------------------------------------------------------------------------------
+
+}
@@ -0,0 +1,459 @@
+package fitnessruch2bndlng;
+
+/*
+ *   Copyright (C) 2016
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Affero General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.vecmath.Point3d;
+
+import org.openscience.cdk.interfaces.IAtomContainer;
+
+/**
+ * Follows a running Gaussian geometry optimization. Each geometry is
+ * evaluated as soon as it is written to the output file: the Ru=C distance
+ * and the constraints of {@link FitnessRuCH2BndLng} are reported for every
+ * step. The watcher returns when the job is complete, when the time limit
+ * is reached, or when the candidate looks hopeless, that is when for a
+ * given number of consecutive steps either the constraints are violated or
+ * the Ru=C distance, even allowing for some further shrinking, is too long
+ * to beat the fitness of the current population.
+ * <br><br>
+ * Files are read incrementally: only the bytes appended since the previous
+ * check are read. Checks are triggered by file system events and, since
+ * these may not be delivered on network file systems, at regular intervals.
+ * <br><br>
+ * Parameters (besides INPSDF, DFTOUT, and the thresholds):
+ * <ul>
+ * <li>WATCHDONEFILE: file reporting completion (default: DFTOUT)</li>
+ * <li>WATCHDONEMARKER: text marking completion (default: "Normal
+ * termination")</li>
+ * <li>WATCHABORTSTEPS: number of consecutive hopeless steps before
+ * recommending to abort (default: 0, never)</li>
+ * <li>WATCHFITNESS: fitness to beat (default: none)</li>
+ * <li>WATCHRUCMARGIN: expected further shrinking of the Ru=C distance
+ * (default: 0.05)</li>
+ * <li>WATCHTIMEOUT: time limit in seconds (default: 0, none)</li>
+ * <li>WATCHPOLL: seconds between checks (default: 60)</li>
+ * </ul>
+ * Exit status: {@value #DONE} job complete, {@value #ABORT} abort
+ * recommended, {@value #TIMEOUT} time limit reached, -1 error.
+ */
+
+public class GaussianLogWatcher
+{
+    private static final Logger LOGGER = Logger.getLogger(
+            GaussianLogWatcher.class.getName());
+
+    public static final int DONE = 0;
+    public static final int ABORT = 2;
+    public static final int TIMEOUT = 3;
+
+    private final FitnessParameters params;
+    private final IAtomContainer mol;
+    private final Map<String,Integer> atomIndeces;
+    private final byte[] doneMarker;
+
+    private final Tail dftOut;
+    private final Tail doneFile;
+    private final XYZCoordinates xyz = new XYZCoordinates();
+    private final DoubleVector descriptors = new DoubleVector(
+                                             GeometryKernel.NUMDESCRIPTORS);
+
+    private int steps = 0;
+    private int orientation = 0; // 1: standard orientation, 2: input
+    private int violatedSteps = 0;
+    private int hopelessSteps = 0;
+    private String abortReason = null;
+
+//------------------------------------------------------------------------------
+
+    /**
+     * The bytes of a growing file that have not been consumed yet.
+     */
+    private static class Tail
+    {
+        private final File file;
+        private long position = 0;
+        private byte[] buf = new byte[1 << 16];
+        private int len = 0;
+
+        Tail(String filename)
+        {
+            this.file = new File(filename);
+        }
+
+        /**
+         * Appends to the buffer what has been written to the file since the
+         * previous call.
+         * @return true if new bytes have been read
+         */
+        boolean read() throws Exception
+        {
+            if (!file.exists())
+            {
+                return false;
+            }
+            RandomAccessFile raf = null;
+            try
+            {
+                raf = new RandomAccessFile(file, "r");
+                long size = raf.length();
+                if (size < position)
+                {
+                    // File has been overwritten: start again
+                    position = 0;
+                    len = 0;
+                }
+                if (size == position)
+                {
+                    return false;
+                }
+                int n = (int) (size - position);
+                if (len + n > buf.length)
+                {
+                    byte[] tmp = new byte[Math.max(len + n, buf.length * 2)];
+                    System.arraycopy(buf, 0, tmp, 0, len);
+                    buf = tmp;
+                }
+                raf.seek(position);
+                raf.readFully(buf, len, n);
+                len += n;
+                position = size;
+                return true;
+            }
+            finally
+            {
+                if (raf != null)
+                {
+                    raf.close();
+                }
+            }
+        }
+
+        ByteBuffer getBuffer()
+        {
+            return ByteBuffer.wrap(buf, 0, len);
+        }
+
+        /**
+         * Drops the first bytes of the buffer.
+         */
+        void discard(int n)
+        {
+            System.arraycopy(buf, n, buf, 0, len - n);
+            len -= n;
+        }
+
+        int length()
+        {
+            return len;
+        }
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * @param args the command line arguments
+     */
+    public static void main(String[] args)
+    {
+        if (args.length < 1)
+        {
+            System.err.println("Usage: java -cp FitnessRuCH2BndLng.jar "
+                + "fitnessruch2bndlng.GaussianLogWatcher parameterFile");
+            System.exit(-1);
+        }
+
+        int status = -1;
+        try
+        {
+            FitnessParameters params = FitnessParameters.readParameters(
+                                                                    args[0]);
+            status = new GaussianLogWatcher(params).watch();
+        }
+        catch (Exception e)
+        {
+            LOGGER.log(Level.SEVERE, null, e);
+            System.exit(-1);
+        }
+        System.exit(status);
+    }
+
+//------------------------------------------------------------------------------
+
+    public GaussianLogWatcher(FitnessParameters params) throws Exception
+    {
+        if (params.getInpSdfFile() == null || params.getDFTOutFile() == null)
+        {
+            throw new Exception("INPSDF and DFTOUT must be given to watch a "
+                                + "DFT job. Check parameter file.");
+        }
+        this.params = params;
+        this.mol = SdfIO.readSingleSDFFile(params.getInpSdfFile());
+        this.atomIndeces = FitnessRuCH2BndLng.defineAtomIndexes(mol);
+        this.doneMarker = params.getWatchDoneMarker().getBytes(
+                                                   StandardCharsets.US_ASCII);
+        this.dftOut = new Tail(params.getDFTOutFile());
+        this.doneFile = new Tail(params.getWatchDoneFile());
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Follows the job until it completes, it is found hopeless, or the time
+     * limit is reached.
+     * @return one of {@link #DONE}, {@link #ABORT}, or {@link #TIMEOUT}
+     */
+    public int watch() throws Exception
+    {
+        long deadline = Long.MAX_VALUE;
+        if (params.getWatchTimeout() > 0)
+        {
+            deadline = System.currentTimeMillis()
+                       + params.getWatchTimeout() * 1000L;
+        }
+        long poll = Math.max(1, params.getWatchPoll()) * 1000L;
+
+        WatchService ws = FileSystems.getDefault().newWatchService();
+        try
+        {
+            Set<Path> dirs = new HashSet<Path>();
+            dirs.add(getFolder(params.getDFTOutFile()));
+            dirs.add(getFolder(params.getWatchDoneFile()));
+            for (Path dir : dirs)
+            {
+                dir.register(ws, StandardWatchEventKinds.ENTRY_CREATE,
+                             StandardWatchEventKinds.ENTRY_MODIFY);
+            }
+
+            while (true)
+            {
+                readNewSteps();
+                if (isDone())
+                {
+                    System.out.println("DONE after " + steps + " steps");
+                    return DONE;
+                }
+                if (abortReason != null)
+                {
+                    System.out.println("ABORT after " + steps + " steps: "
+                                       + abortReason);
+                    return ABORT;
+                }
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0)
+                {
+                    System.out.println("TIMEOUT after " + steps + " steps");
+                    return TIMEOUT;
+                }
+                WatchKey key = ws.poll(Math.min(remaining, poll),
+                                       TimeUnit.MILLISECONDS);
+                if (key != null)
+                {
+                    key.pollEvents();
+                    key.reset();
+                }
+            }
+        }
+        finally
+        {
+            ws.close();
+        }
+    }
+
+//------------------------------------------------------------------------------
+
+    private static Path getFolder(String filename)
+    {
+        return new File(filename).getAbsoluteFile().getParentFile().toPath();
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Evaluates all the geometries that have been completely written since
+     * the previous call.
+     */
+    private void readNewSteps() throws Exception
+    {
+        if (!dftOut.read())
+        {
+            return;
+        }
+        ByteBuffer buf = dftOut.getBuffer();
+        int consumed = 0;
+        while (true)
+        {
+            int title = GaussianOutputReader.findNextOrientation(buf,
+                                                                 consumed);
+            if (title < 0)
+            {
+                // Keep the last, possibly incomplete, line
+                int keep = buf.limit();
+                while (keep > consumed && buf.get(keep - 1) != '\n')
+                {
+                    keep--;
+                }
+                consumed = keep;
+                break;
+            }
+            int end = GaussianOutputReader.findBlockEnd(buf, title);
+            if (end < 0)
+            {
+                consumed = title;
+                break;
+            }
+            // Jobs using symmetry print both orientations at each step:
+            // only those of the kind found first are steps
+            int kind = GaussianOutputReader.isStandardOrientation(buf, title)
+                       ? 1 : 2;
+            if (orientation == 0)
+            {
+                orientation = kind;
+            }
+            if (kind == orientation)
+            {
+                xyz.reset(0);
+                GaussianOutputReader.parseOrientationBlock(buf, title, xyz,
+                                                   params.getDFTOutFile());
+                evaluateStep();
+            }
+            consumed = end;
+        }
+        dftOut.discard(consumed);
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Calculates descriptors and constraints for the geometry in the
+     * coordinates buffer and updates the counters of hopeless steps.
+     */
+    private void evaluateStep() throws Exception
+    {
+        if (xyz.getAtomCount() != mol.getAtomCount())
+        {
+            throw new Exception("Inconsistency between SDF and DFT output: "
+                                + "check output from DFT");
+        }
+        double[] coords = xyz.getCoordinates();
+        for (int i=0; i<xyz.getAtomCount(); i++)
+        {
+            if (!mol.getAtom(i).getSymbol().equals(xyz.getSymbol(i)))
+            {
+                throw new Exception("Inconsistency between SDF and DFT "
+                                    + "output: check atom " + mol.getAtom(i));
+            }
+            mol.getAtom(i).setPoint3d(new Point3d(coords[3*i],
+                                           coords[3*i+1], coords[3*i+2]));
+        }
+        steps++;
+
+        FitnessRuCH2BndLng.calculateDescriptors(mol, atomIndeces,
+                                                descriptors);
+        String status = FitnessRuCH2BndLng.checkMolecule(atomIndeces, mol,
+                                                         params);
+        double ruc = descriptors.getValue(4);
+        System.out.println(String.format("Step %d: Ru=C %8.5f %s", steps,
+                                         ruc, status));
+
+        if (status.equalsIgnoreCase("OK"))
+        {
+            violatedSteps = 0;
+        }
+        else
+        {
+            violatedSteps++;
+        }
+        double target = params.getWatchFitness();
+        if (!Double.isNaN(target)
+            && -(ruc - params.getWatchRuCMargin()) < target)
+        {
+            hopelessSteps++;
+        }
+        else
+        {
+            hopelessSteps = 0;
+        }
+
+        int maxSteps = params.getWatchAbortSteps();
+        if (maxSteps <= 0 || abortReason != null)
+        {
+            return;
+        }
+        if (violatedSteps >= maxSteps)
+        {
+            abortReason = status + " for " + violatedSteps + " steps";
+        }
+        else if (hopelessSteps >= maxSteps)
+        {
+            abortReason = String.format("Ru=C %8.5f cannot beat fitness "
+                   + "%8.5f (%d steps)", ruc, target, hopelessSteps).trim();
+        }
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Looks for the completion marker in the bytes appended to the file
+     * reporting completion.
+     */
+    private boolean isDone() throws Exception
+    {
+        doneFile.read();
+        ByteBuffer buf = doneFile.getBuffer();
+        int last = buf.limit() - doneMarker.length;
+        for (int i=0; i<=last; i++)
+        {
+            boolean found = true;
+            for (int k=0; k<doneMarker.length; k++)
+            {
+                if (buf.get(i + k) != doneMarker[k])
+                {
+                    found = false;
+                    break;
+                }
+            }
+            if (found)
+            {
+                return true;
+            }
+        }
+
+        // Keep only what could be the beginning of a marker
+        int keep = Math.min(doneFile.length(), doneMarker.length - 1);
+        doneFile.discard(doneFile.length() - keep);
+        return false;
+    }
+
+//------------------------------------------------------------------------------
+
+}
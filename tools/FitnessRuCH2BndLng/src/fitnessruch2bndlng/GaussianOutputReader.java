@@ -0,0 +1,473 @@
+package fitnessruch2bndlng;
+
+/*
+ *   Copyright (C) 2016
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Affero General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Reader of Cartesian coordinates from the output (.out or .log) of
+ * Gaussian. Geometries are printed by Gaussian in blocks like
+ * <pre>
+ *                          Standard orientation:
+ * ---------------------------------------------------------------------
+ * Center     Atomic      Atomic             Coordinates (Angstroms)
+ * Number     Number       Type             X           Y           Z
+ * ---------------------------------------------------------------------
+ *      1         44           0        0.203617   -0.289773   -0.947226
+ * ...
+ * ---------------------------------------------------------------------
+ * </pre>
+ * where the title is "Input orientation:" when symmetry is not used. The
+ * last geometry is found by memory-mapping the file and scanning it
+ * backwards, so that only the tail of a long log is actually read from disk.
+ */
+
+public class GaussianOutputReader
+{
+    private static final byte[] ORIENTATION =
+                      "orientation:".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] STANDARD =
+                      "Standard".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] INPUT =
+                      "Input".getBytes(StandardCharsets.US_ASCII);
+
+    private static final double[] POW10 = new double[] {
+        1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+        1e12, 1e13, 1e14, 1e15};
+
+    //Lines between the title of the block and the first atom
+    private static final int HEADERLINES = 4;
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Reads the last geometry (standard or input orientation, whichever
+     * comes last) of a Gaussian output file into a container, which is reset
+     * before reading.
+     * @param filename the Gaussian output file
+     * @param xyz the container to fill with a single frame
+     * @throws Exception if no geometry is found or the block is malformed
+     */
+    public static void readLastGeometry(String filename, XYZCoordinates xyz)
+            throws Exception
+    {
+        RandomAccessFile raf = null;
+        try
+        {
+            raf = new RandomAccessFile(filename, "r");
+            FileChannel channel = raf.getChannel();
+            long size = channel.size();
+
+            // The last geometry is near the end: very large logs are only
+            // mapped in their final part
+            long start = Math.max(0, size - Integer.MAX_VALUE);
+            MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY,
+                                               start, size - start);
+            int title = findLastOrientation(buf, buf.limit());
+            if (title < 0)
+            {
+                throw new Exception("No orientation block found in "
+                                    + filename);
+            }
+            xyz.reset(0);
+            parseOrientationBlock(buf, title, xyz, filename);
+        }
+        finally
+        {
+            if (raf != null)
+            {
+                raf.close();
+            }
+        }
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Scans backwards for the title line of an orientation block.
+     * @param buf the content of the file
+     * @param end the position where to start scanning backwards
+     * @return the position of the beginning of the title line, or -1 if no
+     * block title is found before <code>end</code>
+     */
+    static int findLastOrientation(ByteBuffer buf, int end)
+    {
+        for (int i=end-ORIENTATION.length; i>=0; i--)
+        {
+            int title = getTitleLine(buf, i);
+            if (title >= 0)
+            {
+                return title;
+            }
+        }
+        return -1;
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Scans forward for the title line of an orientation block.
+     * @param buf the content of the file
+     * @param from the position where to start scanning
+     * @return the position of the beginning of the title line, or -1 if no
+     * block title is found after <code>from</code>
+     */
+    static int findNextOrientation(ByteBuffer buf, int from)
+    {
+        for (int i=from; i<=buf.limit()-ORIENTATION.length; i++)
+        {
+            int title = getTitleLine(buf, i);
+            if (title >= 0)
+            {
+                return title;
+            }
+        }
+        return -1;
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * @return the position of the beginning of the line if the given
+     * position holds the "orientation:" of a block title, or -1
+     */
+    private static int getTitleLine(ByteBuffer buf, int pos)
+    {
+        if (!matches(buf, pos, ORIENTATION))
+        {
+            return -1;
+        }
+        int j = pos - 1;
+        while (j >= 0 && buf.get(j) == ' ')
+        {
+            j--;
+        }
+        if (!endsWith(buf, j, STANDARD) && !endsWith(buf, j, INPUT))
+        {
+            return -1;
+        }
+        int lineStart = j;
+        while (lineStart > 0 && buf.get(lineStart - 1) != '\n')
+        {
+            lineStart--;
+        }
+        return lineStart;
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Checks whether a block has been written completely, which is the case
+     * when the line closing the block is present.
+     * @param buf the content of the file
+     * @param title the position of the title line of the block
+     * @return the position right after the block, or -1 if the block is not
+     * complete
+     */
+    static int findBlockEnd(ByteBuffer buf, int title)
+    {
+        int limit = buf.limit();
+        int pos = title;
+        for (int k=0; k<=HEADERLINES; k++)
+        {
+            pos = nextLine(buf, pos);
+        }
+        while (pos < limit && !isSeparator(buf, pos))
+        {
+            pos = nextLine(buf, pos);
+        }
+        if (pos >= limit)
+        {
+            return -1;
+        }
+        int end = nextLine(buf, pos);
+        if (buf.get(end - 1) != '\n')
+        {
+            return -1;
+        }
+        return end;
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * @param buf the content of the file
+     * @param title the position of the title line of an orientation block
+     * @return true if the block is a standard orientation, false if it is 
+     * an input orientation
+     */
+    static boolean isStandardOrientation(ByteBuffer buf, int title)
+    {
+        int pos = title;
+        while (pos < buf.limit() && buf.get(pos) == ' ')
+        {
+            pos++;
+        }
+        return matchesAt(buf, pos, STANDARD);
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * @return true if the given bytes are found at the given position
+     */
+    static boolean matchesAt(ByteBuffer buf, int pos, byte[] word)
+    {
+        return pos >= 0 && pos + word.length <= buf.limit()
+               && matches(buf, pos, word);
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Parses the first number found at or after the given position on the
+     * same line.
+     * @param buf the content of the file
+     * @param pos the position where to start
+     * @param source a name used to identify the source in error messages
+     * @return the number
+     */
+    static double parseNumber(ByteBuffer buf, int pos, String source)
+            throws Exception
+    {
+        return parseToken(buf, new int[] {pos}, buf.limit(), source);
+    }
+
+//------------------------------------------------------------------------------
+
+    private static boolean matches(ByteBuffer buf, int pos, byte[] word)
+    {
+        for (int k=0; k<word.length; k++)
+        {
+            if (buf.get(pos + k) != word[k])
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean endsWith(ByteBuffer buf, int last, byte[] word)
+    {
+        int pos = last - word.length + 1;
+        return pos >= 0 && matches(buf, pos, word);
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Parses one orientation block and appends it as a new frame to the
+     * container. If the container has no frames, it is sized on the block
+     * and the element symbols are taken from the atomic numbers. Otherwise,
+     * the block must contain the same atoms.
+     * @param buf the content of the file
+     * @param title the position of the title line of the block
+     * @param xyz the container where to add the frame
+     * @param source a name used to identify the source in error messages
+     * @return the position right after the block
+     */
+    static int parseOrientationBlock(ByteBuffer buf, int title,
+                       XYZCoordinates xyz, String source) throws Exception
+    {
+        int limit = buf.limit();
+        int pos = title;
+        for (int k=0; k<=HEADERLINES; k++)
+        {
+            pos = nextLine(buf, pos);
+        }
+
+        // Count the atoms to size the container on the first block
+        int numAtoms = 0;
+        int p = pos;
+        while (p < limit && !isSeparator(buf, p))
+        {
+            numAtoms++;
+            p = nextLine(buf, p);
+        }
+        if (p >= limit)
+        {
+            throw new Exception("Truncated orientation block in " + source);
+        }
+        boolean first = xyz.getFrameCount() == 0;
+        if (first)
+        {
+            xyz.reset(numAtoms);
+        }
+        else if (numAtoms != xyz.getAtomCount())
+        {
+            throw new Exception("Orientation blocks with different number "
+                                + "of atoms in " + source);
+        }
+
+        int frame = xyz.getFrameCount();
+        int offset = xyz.addFrame();
+        double[] coords = xyz.getCoordinates();
+        int[] cursor = new int[] {pos};
+        for (int i=0; i<numAtoms; i++)
+        {
+            parseToken(buf, cursor, limit, source); // center number
+            int z = (int) parseToken(buf, cursor, limit, source);
+            parseToken(buf, cursor, limit, source); // atomic type
+            String sym = PeriodicTable.getSymbol(z);
+            if (sym == null)
+            {
+                throw new Exception("Unknown atomic number " + z + " for atom "
+                                    + (i+1) + " in " + source);
+            }
+            if (first)
+            {
+                xyz.setSymbol(i, sym);
+            }
+            else if (!sym.equals(xyz.getSymbol(i)))
+            {
+                throw new Exception("Inconsistent element of atom " + (i+1)
+                                    + " in frame " + (frame+1) + " of "
+                                    + source);
+            }
+            coords[offset + 3*i] = parseToken(buf, cursor, limit, source);
+            coords[offset + 3*i + 1] = parseToken(buf, cursor, limit, source);
+            coords[offset + 3*i + 2] = parseToken(buf, cursor, limit, source);
+            cursor[0] = nextLine(buf, cursor[0]);
+        }
+        return nextLine(buf, cursor[0]);
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Parses the next number on the current line. Gaussian writes
+     * coordinates in fixed-point format, which is converted exactly without
+     * creating strings. Anything else is given to
+     * {@link Double#parseDouble}.
+     * @param cursor one-element array with the current position, which is
+     * moved after the number
+     */
+    private static double parseToken(ByteBuffer buf, int[] cursor, int limit,
+                                     String source) throws Exception
+    {
+        int pos = cursor[0];
+        while (pos < limit && buf.get(pos) == ' ')
+        {
+            pos++;
+        }
+        int start = pos;
+        while (pos < limit && !isDelimiter(buf.get(pos)))
+        {
+            pos++;
+        }
+        cursor[0] = pos;
+        if (pos == start)
+        {
+            throw new Exception("Expecting a number at byte " + start
+                                + " of " + source);
+        }
+
+        int i = start;
+        boolean negative = buf.get(i) == '-';
+        if (negative || buf.get(i) == '+')
+        {
+            i++;
+        }
+        long mantissa = 0;
+        int digits = 0;
+        int decimals = 0;
+        boolean dot = false;
+        for (; i<pos; i++)
+        {
+            byte b = buf.get(i);
+            if (b >= '0' && b <= '9')
+            {
+                mantissa = mantissa * 10 + (b - '0');
+                digits++;
+                if (dot)
+                {
+                    decimals++;
+                }
+            }
+            else if (b == '.' && !dot)
+            {
+                dot = true;
+            }
+            else
+            {
+                break;
+            }
+        }
+        if (i < pos || digits == 0 || digits >= POW10.length)
+        {
+            byte[] bytes = new byte[pos - start];
+            for (int k=0; k<bytes.length; k++)
+            {
+                bytes[k] = buf.get(start + k);
+            }
+            String s = new String(bytes, StandardCharsets.US_ASCII);
+            try
+            {
+                return Double.parseDouble(s.replace('D', 'E'));
+            }
+            catch (NumberFormatException e)
+            {
+                throw new Exception("Unexpected number '" + s + "' at byte "
+                                    + start + " of " + source);
+            }
+        }
+        double value = mantissa / POW10[decimals];
+        return negative ? -value : value;
+    }
+
+//------------------------------------------------------------------------------
+
+    private static boolean isDelimiter(byte b)
+    {
+        return b == ' ' || b == '\t' || b == '\n' || b == '\r';
+    }
+
+    /**
+     * @return true if the line starting at the given position is made of
+     * dashes
+     */
+    private static boolean isSeparator(ByteBuffer buf, int pos)
+    {
+        while (pos < buf.limit() && buf.get(pos) == ' ')
+        {
+            pos++;
+        }
+        return pos + 1 < buf.limit() && buf.get(pos) == '-'
+               && buf.get(pos + 1) == '-';
+    }
+
+    /**
+     * @return the position of the beginning of the next line
+     */
+    static int nextLine(ByteBuffer buf, int pos)
+    {
+        int limit = buf.limit();
+        while (pos < limit && buf.get(pos) != '\n')
+        {
+            pos++;
+        }
+        return pos < limit ? pos + 1 : limit;
+    }
+
+//------------------------------------------------------------------------------
+
+}
@@ -0,0 +1,452 @@
+package fitnessruch2bndlng;
+
+/*
+ *   Copyright (C) 2016
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Affero General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.openscience.cdk.interfaces.IAtomContainer;
+import org.openscience.cdk.io.SDFWriter;
+
+/**
+ * Writes the evaluated candidates of a generation to a single multi-record
+ * SDF file, instead of one <code>*_FIT.sdf</code> file per candidate.
+ * Records are appended through a buffer, and for each record a line is
+ * appended to a sidecar index (the SDF file name with
+ * {@value #INDEXSUFFIX} appended):
+ * <pre>
+ * name  GraphId  UID  FITNESS  offset  length
+ * </pre>
+ * where offset and length are in bytes, so that a record can be read back
+ * with a single seek (see {@link #read}). FITNESS is empty for candidates
+ * without fitness.
+ * <br><br>
+ * The best candidates are kept while records are written, and the
+ * generation summary, which has the same layout as the
+ * <code>GenXXX.txt</code> files written by DENOPTIM, is rewritten from them
+ * on {@link #flush} and {@link #close}. When writing to an existing file,
+ * the best candidates are recovered from the index.
+ */
+
+public class GenerationSdfWriter
+{
+    public static final String INDEXSUFFIX = ".idx";
+
+    //Number of candidates in the summary (the population size of the runs)
+    public static final int DEFAULTTOPK = 25;
+
+    private static final String SEP = "\t";
+
+    //Size of the index lines kept before the records are flushed
+    private static final int MAXPENDINGINDEX = 1 << 16;
+
+    private static final String NL = System.getProperty("line.separator");
+
+    private final File sdfFile;
+    private final File summaryFile;
+    private final int topK;
+    private final BufferedOutputStream data;
+    private final Writer index;
+
+    //Index lines of the records not yet known to be in the SDF file
+    private final StringBuilder pendingIndex = new StringBuilder();
+    private long offset;
+    private int numRecords = 0;
+
+    //Best candidates, best first
+    private final List<Member> best = new ArrayList<Member>();
+
+//------------------------------------------------------------------------------
+
+    /**
+     * A candidate in the generation summary.
+     */
+    private static class Member
+    {
+        final String name;
+        final String graphId;
+        final String uid;
+        final double fitness;
+
+        Member(String name, String graphId, String uid, double fitness)
+        {
+            this.name = name;
+            this.graphId = graphId;
+            this.uid = uid;
+            this.fitness = fitness;
+        }
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Opens a generation SDF file for appending.
+     * @param sdfFile the multi-record SDF file
+     * @param summaryFile the generation summary to maintain
+     * @param topK the number of candidates listed in the summary
+     */
+    public GenerationSdfWriter(File sdfFile, File summaryFile, int topK)
+            throws Exception
+    {
+        this.sdfFile = sdfFile;
+        this.summaryFile = summaryFile;
+        this.topK = topK;
+
+        File indexFile = new File(sdfFile.getPath() + INDEXSUFFIX);
+        if (sdfFile.exists() && indexFile.exists())
+        {
+            recover(indexFile);
+        }
+        else if (sdfFile.exists() && sdfFile.length() > 0)
+        {
+            throw new Exception("Cannot append to " + sdfFile
+                                + " without its index " + indexFile);
+        }
+        this.offset = sdfFile.length();
+        this.data = new BufferedOutputStream(
+                              new FileOutputStream(sdfFile, true), 1 << 16);
+        this.index = new OutputStreamWriter(
+                             new FileOutputStream(indexFile, true),
+                             StandardCharsets.UTF_8);
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Reloads the best candidates from the index of an existing file.
+     */
+    private void recover(File indexFile) throws Exception
+    {
+        BufferedReader br = null;
+        String line;
+        try
+        {
+            br = new BufferedReader(new InputStreamReader(
+                     new FileInputStream(indexFile), StandardCharsets.UTF_8));
+            while ((line = br.readLine()) != null)
+            {
+                String[] parts = line.split(SEP, -1);
+                if (parts.length != 6)
+                {
+                    continue;
+                }
+                numRecords++;
+                if (parts[3].length() > 0)
+                {
+                    addMember(new Member(parts[0], parts[1], parts[2],
+                                         Double.parseDouble(parts[3])));
+                }
+            }
+        }
+        finally
+        {
+            if (br != null)
+            {
+                br.close();
+            }
+        }
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Appends a molecule to the generation SDF file.
+     * @param name the name of the record in the index (e.g., the name that
+     * the <code>*_FIT.sdf</code> file would have)
+     * @param mol the molecule with its FITNESS or MOL_ERROR property
+     * @param result the outcome of the evaluation of the molecule
+     */
+    public synchronized void write(String name, IAtomContainer mol,
+                                   FitnessResult result) throws Exception
+    {
+        StringWriter sw = new StringWriter();
+        SDFWriter sdfWriter = new SDFWriter(sw);
+        try
+        {
+            sdfWriter.write(mol);
+        }
+        finally
+        {
+            sdfWriter.close();
+        }
+        byte[] bytes = sw.toString().getBytes(StandardCharsets.UTF_8);
+        data.write(bytes);
+
+        String graphId = getProperty(mol, "GCODE");
+        String uid = getProperty(mol, "UID");
+        String fitness = "";
+        if (result.hasFitness())
+        {
+            fitness = String.format("%8.5f", result.getFitness()).trim();
+            addMember(new Member(name, graphId, uid, result.getFitness()));
+        }
+        pendingIndex.append(name).append(SEP).append(graphId).append(SEP)
+                    .append(uid).append(SEP).append(fitness).append(SEP)
+                    .append(offset).append(SEP).append(bytes.length)
+                    .append(NL);
+        offset += bytes.length;
+        numRecords++;
+        if (pendingIndex.length() > MAXPENDINGINDEX)
+        {
+            writeIndex();
+        }
+    }
+
+//------------------------------------------------------------------------------
+
+    private static String getProperty(IAtomContainer mol, String key)
+    {
+        Object value = mol.getProperty(key);
+        return value == null ? "" : value.toString().trim();
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Inserts a candidate among the best ones, if it belongs there.
+     */
+    private void addMember(Member m)
+    {
+        int pos = best.size();
+        while (pos > 0 && best.get(pos - 1).fitness < m.fitness)
+        {
+            pos--;
+        }
+        if (pos < topK)
+        {
+            best.add(pos, m);
+            if (best.size() > topK)
+            {
+                best.remove(best.size() - 1);
+            }
+        }
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * @return the number of records in the file
+     */
+    public synchronized int getRecordCount()
+    {
+        return numRecords;
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Writes the buffered records, then their index, and rewrites the
+     * generation summary.
+     */
+    public synchronized void flush() throws Exception
+    {
+        writeIndex();
+        writeSummary();
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Writes the buffered records, then their index lines. The index lines
+     * are kept in memory until then, so that the index never points beyond
+     * the end of the SDF file.
+     */
+    private void writeIndex() throws Exception
+    {
+        data.flush();
+        index.write(pendingIndex.toString());
+        index.flush();
+        pendingIndex.setLength(0);
+    }
+
+//------------------------------------------------------------------------------
+
+    public synchronized void close() throws Exception
+    {
+        try
+        {
+            flush();
+        }
+        finally
+        {
+            data.close();
+            index.close();
+        }
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Writes the best candidates and their statistics in the layout of the
+     * <code>GenXXX.txt</code> files.
+     */
+    private void writeSummary() throws Exception
+    {
+        StringBuilder sb = new StringBuilder();
+        sb.append("#Name               GraphId             UID          "
+                  + "                 Fitness        Source ").append(NL);
+        String source = sdfFile.getAbsolutePath();
+        for (Member m : best)
+        {
+            sb.append(String.format("%-20s%-20s%-30s%-12s%s", m.name,
+                                    m.graphId, m.uid,
+                                    String.format("%8.5f", m.fitness).trim(),
+                                    source)).append(NL);
+        }
+        sb.append(NL).append(NL);
+
+        int n = best.size();
+        sb.append("#####POPULATION SUMMARY#####").append(NL);
+        sb.append(String.format("%-40s%d", "SIZE:", n)).append(NL);
+        if (n > 0)
+        {
+            double mean = 0.0;
+            for (Member m : best)
+            {
+                mean += m.fitness;
+            }
+            mean /= n;
+            double m2 = 0.0;
+            double m3 = 0.0;
+            for (Member m : best)
+            {
+                double d = m.fitness - mean;
+                m2 += d * d;
+                m3 += d * d * d;
+            }
+            double stddev = Math.sqrt(m2 / n);
+            double skew = stddev > 0.0 ? (m3 / n) / (stddev*stddev*stddev)
+                                       : 0.0;
+            double median = n % 2 == 1 ? best.get(n/2).fitness
+                      : (best.get(n/2 - 1).fitness + best.get(n/2).fitness) / 2;
+            appendStat(sb, "MAX:", best.get(0).fitness, NL);
+            appendStat(sb, "MIN:", best.get(n - 1).fitness, NL);
+            appendStat(sb, "MEAN:", mean, NL);
+            appendStat(sb, "MEDIAN:", median, NL);
+            appendStat(sb, "STDDEV:", stddev, NL);
+            appendStat(sb, "SKEW:", skew, NL);
+        }
+
+        // Written aside and renamed, so that readers never see half a file
+        File tmp = new File(summaryFile.getPath() + ".tmp");
+        FileWriter fw = new FileWriter(tmp);
+        try
+        {
+            fw.write(sb.toString());
+        }
+        finally
+        {
+            fw.close();
+        }
+        if (!tmp.renameTo(summaryFile))
+        {
+            summaryFile.delete();
+            if (!tmp.renameTo(summaryFile))
+            {
+                throw new Exception("Could not write " + summaryFile);
+            }
+        }
+    }
+
+    private static void appendStat(StringBuilder sb, String label,
+                                   double value, String nl)
+    {
+        sb.append(String.format("%-30s%.5f", label, value)).append(nl);
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Reads the index of a generation SDF file.
+     * @param sdfFile the multi-record SDF file
+     * @return offset and length of each record, by name, in file order
+     */
+    public static Map<String,long[]> readIndex(File sdfFile) throws Exception
+    {
+        Map<String,long[]> records = new LinkedHashMap<String,long[]>();
+        BufferedReader br = null;
+        String line;
+        try
+        {
+            br = new BufferedReader(new InputStreamReader(new FileInputStream(
+                                      sdfFile.getPath() + INDEXSUFFIX),
+                                      StandardCharsets.UTF_8));
+            while ((line = br.readLine()) != null)
+            {
+                String[] parts = line.split(SEP, -1);
+                if (parts.length != 6)
+                {
+                    continue;
+                }
+                records.put(parts[0], new long[] {Long.parseLong(parts[4]),
+                                                  Long.parseLong(parts[5])});
+            }
+        }
+        finally
+        {
+            if (br != null)
+            {
+                br.close();
+            }
+        }
+        return records;
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Reads a single record of a generation SDF file.
+     * @param sdfFile the multi-record SDF file
+     * @param offset the position of the record, as given by the index
+     * @param length the size of the record, as given by the index
+     * @return the molecule
+     */
+    public static IAtomContainer read(File sdfFile, long offset, long length)
+            throws Exception
+    {
+        byte[] bytes = new byte[(int) length];
+        RandomAccessFile raf = new RandomAccessFile(sdfFile, "r");
+        try
+        {
+            raf.seek(offset);
+            raf.readFully(bytes);
+        }
+        finally
+        {
+            raf.close();
+        }
+
+        return SdfIO.parseSDF(bytes, sdfFile + " at byte " + offset);
+    }
+
+//------------------------------------------------------------------------------
+
+}
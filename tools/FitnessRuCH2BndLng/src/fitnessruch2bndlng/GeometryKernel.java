@@ -0,0 +1,239 @@
+package fitnessruch2bndlng;
+
+/*
+ *   Copyright (C) 2016
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Affero General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.util.Map;
+
+/**
+ * Calculation of the descriptors of Ru(Cl)(Cl)(L)=CH2 complexes from flat
+ * arrays of coordinates (x,y,z for each atom). The atoms of the core are
+ * identified by an array of indexes where each position (role) corresponds
+ * to one of the constants defined here. No object is created during the
+ * calculation, so the methods can be called on large numbers of geometries
+ * without producing garbage.
+ * <br><br>
+ * The descriptors are, in this order:
+ * <ol start="0">
+ * <li>average Ru-Cl distance,</li>
+ * <li>Cl-Ru-Cl angle,</li>
+ * <li>average Cl-Ru-C angle,</li>
+ * <li>smallest absolute H-C-Ru-L torsion,</li>
+ * <li>Ru=C distance,</li>
+ * <li>Ru-L distance,</li>
+ * <li>C-Ru-L angle.</li>
+ * </ol>
+ * Distances are in the units of the coordinates, angles in degrees.
+ */
+
+public class GeometryKernel
+{
+    public static final int RU = 0;
+    public static final int CL1 = 1;
+    public static final int CL2 = 2;
+    public static final int C = 3;
+    public static final int L = 4;
+    public static final int H1 = 5;
+    public static final int H2 = 6;
+
+    /**
+     * Number of atom roles.
+     */
+    public static final int NUMROLES = 7;
+
+    /**
+     * Labels used for the atom roles in the map of atom indexes.
+     */
+    public static final String[] ROLELABELS = new String[] {
+        "iRu", "iCl1", "iCl2", "iC", "iL", "iH1", "iH2"};
+
+    /**
+     * Number of descriptors.
+     */
+    public static final int NUMDESCRIPTORS = 7;
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Converts the map of atom indexes into an array of indexes by role.
+     */
+    public static int[] toRoles(Map<String,Integer> atomIndeces)
+    {
+        int[] roles = new int[NUMROLES];
+        for (int r=0; r<NUMROLES; r++)
+        {
+            roles[r] = atomIndeces.get(ROLELABELS[r]);
+        }
+        return roles;
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Calculates all the descriptors of one geometry.
+     * @param xyz flat array of coordinates
+     * @param offset index of the x coordinate of the first atom
+     * @param roles indexes of the core atoms by role
+     * @param out array where to store the descriptors
+     * @param outOffset index of the first descriptor in the output array
+     */
+    public static void computeDescriptors(double[] xyz, int offset,
+                                  int[] roles, double[] out, int outOffset)
+    {
+        int ru = offset + 3*roles[RU];
+        double rx = xyz[ru];
+        double ry = xyz[ru+1];
+        double rz = xyz[ru+2];
+
+        // Bond vectors from Ru
+        int k = offset + 3*roles[CL1];
+        double ax = xyz[k] - rx, ay = xyz[k+1] - ry, az = xyz[k+2] - rz;
+        k = offset + 3*roles[CL2];
+        double bx = xyz[k] - rx, by = xyz[k+1] - ry, bz = xyz[k+2] - rz;
+        k = offset + 3*roles[C];
+        double cx = xyz[k] - rx, cy = xyz[k+1] - ry, cz = xyz[k+2] - rz;
+        k = offset + 3*roles[L];
+        double lx = xyz[k] - rx, ly = xyz[k+1] - ry, lz = xyz[k+2] - rz;
+
+        double dCl1 = Math.sqrt(ax*ax + ay*ay + az*az);
+        double dCl2 = Math.sqrt(bx*bx + by*by + bz*bz);
+        double dC = Math.sqrt(cx*cx + cy*cy + cz*cz);
+        double dL = Math.sqrt(lx*lx + ly*ly + lz*lz);
+
+        out[outOffset] = (dCl1 + dCl2) / 2;
+        out[outOffset+1] = angle(ax*bx + ay*by + az*bz, dCl1 * dCl2);
+        out[outOffset+2] = (angle(ax*cx + ay*cy + az*cz, dCl1 * dC)
+                            + angle(bx*cx + by*cy + bz*cz, dCl2 * dC)) / 2;
+        double t1 = Math.abs(torsion(xyz, offset, roles[H1], roles[C],
+                                     roles[RU], roles[L]));
+        double t2 = Math.abs(torsion(xyz, offset, roles[H2], roles[C],
+                                     roles[RU], roles[L]));
+        out[outOffset+3] = Math.min(t1, t2);
+        out[outOffset+4] = dC;
+        out[outOffset+5] = dL;
+        out[outOffset+6] = angle(cx*lx + cy*ly + cz*lz, dC * dL);
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Calculates the descriptors for many frames of the same molecule.
+     * @param xyz flat array of coordinates with frames one after the other
+     * @param offset index of the x coordinate of the first atom of the
+     * first frame
+     * @param numAtoms number of atoms per frame
+     * @param numFrames number of frames
+     * @param roles indexes of the core atoms by role
+     * @param out array where to store the descriptors:
+     * {@value #NUMDESCRIPTORS} values per frame
+     */
+    public static void computeDescriptors(double[] xyz, int offset,
+               int numAtoms, int numFrames, int[] roles, double[] out)
+    {
+        for (int f=0; f<numFrames; f++)
+        {
+            computeDescriptors(xyz, offset + f*3*numAtoms, roles, out,
+                               f*NUMDESCRIPTORS);
+        }
+    }
+
+//------------------------------------------------------------------------------
+
+    private static double angle(double dot, double norms)
+    {
+        double cos = dot / norms;
+        if (cos < -1.0)
+        {
+            cos = -1.0;
+        }
+        if (cos > 1.0)
+        {
+            cos = 1.0;
+        }
+        return Math.toDegrees(Math.acos(cos));
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * @return the distance between atoms i and j
+     */
+    public static double distance(double[] xyz, int offset, int i, int j)
+    {
+        int a = offset + 3*i;
+        int b = offset + 3*j;
+        double dx = xyz[a] - xyz[b];
+        double dy = xyz[a+1] - xyz[b+1];
+        double dz = xyz[a+2] - xyz[b+2];
+        return Math.sqrt(dx*dx + dy*dy + dz*dz);
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * @return the angle i-j-k in degrees
+     */
+    public static double angle(double[] xyz, int offset, int i, int j, int k)
+    {
+        int a = offset + 3*i;
+        int b = offset + 3*j;
+        int c = offset + 3*k;
+        double ux = xyz[a] - xyz[b], uy = xyz[a+1] - xyz[b+1];
+        double uz = xyz[a+2] - xyz[b+2];
+        double vx = xyz[c] - xyz[b], vy = xyz[c+1] - xyz[b+1];
+        double vz = xyz[c+2] - xyz[b+2];
+        return angle(ux*vx + uy*vy + uz*vz,
+                     Math.sqrt(ux*ux + uy*uy + uz*uz)
+                     * Math.sqrt(vx*vx + vy*vy + vz*vz));
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * @return the dihedral angle i-j-k-l in degrees, in the range [-180,180]
+     */
+    public static double torsion(double[] xyz, int offset, int i, int j,
+                                 int k, int l)
+    {
+        int a = offset + 3*i;
+        int b = offset + 3*j;
+        int c = offset + 3*k;
+        int d = offset + 3*l;
+        double b1x = xyz[b] - xyz[a], b1y = xyz[b+1] - xyz[a+1];
+        double b1z = xyz[b+2] - xyz[a+2];
+        double b2x = xyz[c] - xyz[b], b2y = xyz[c+1] - xyz[b+1];
+        double b2z = xyz[c+2] - xyz[b+2];
+        double b3x = xyz[d] - xyz[c], b3y = xyz[d+1] - xyz[c+1];
+        double b3z = xyz[d+2] - xyz[c+2];
+
+        // Normals to the planes (1,2,3) and (2,3,4)
+        double n1x = b1y*b2z - b1z*b2y;
+        double n1y = b1z*b2x - b1x*b2z;
+        double n1z = b1x*b2y - b1y*b2x;
+        double n2x = b2y*b3z - b2z*b3y;
+        double n2y = b2z*b3x - b2x*b3z;
+        double n2z = b2x*b3y - b2y*b3x;
+
+        double b2 = Math.sqrt(b2x*b2x + b2y*b2y + b2z*b2z);
+        double x = n1x*n2x + n1y*n2y + n1z*n2z;
+        double y = b2 * (b1x*n2x + b1y*n2y + b1z*n2z);
+        return Math.toDegrees(Math.atan2(y, x));
+    }
+
+//------------------------------------------------------------------------------
+
+}
@@ -0,0 +1,57 @@
+package fitnessruch2bndlng;
+
+/*
+ *   Copyright (C) 2016
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Affero General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+import java.util.Collection;
+import java.util.Set;
+
+/**
+ * Adapter to the system running the DFT jobs. Implementations must be
+ * thread-safe: jobs are submitted from several threads while another one
+ * checks which jobs are still running.
+ */
+
+public interface JobSubmitter
+{
+    /**
+     * Submits a DFT job.
+     * @param candidate the files of the candidate, including the DFT input
+     * and the output expected from the job
+     * @return the identifier of the job
+     * @throws Exception if the job could not be submitted
+     */
+    public String submit(CandidateOrchestrator.Candidate candidate)
+            throws Exception;
+
+    /**
+     * Finds which of the given jobs are still queued or running. This is
+     * called for all in-flight jobs at once, so that a single query to the
+     * queuing system serves hundreds of candidates.
+     * @param jobIds the identifiers of the jobs to check
+     * @return the identifiers of the jobs that have not completed yet
+     * @throws Exception if the status of the jobs is unknown
+     */
+    public Set<String> getActiveJobs(Collection<String> jobIds)
+            throws Exception;
+
+    /**
+     * Stops a job that is queued or running.
+     * @param jobId the identifier of the job
+     */
+    public void cancel(String jobId) throws Exception;
+
+}
@@ -0,0 +1,218 @@
+package fitnessruch2bndlng;
+
+/*
+ *   Copyright (C) 2016
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Affero General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.openscience.cdk.interfaces.IAtomContainer;
+
+/**
+ * The first molecule of an SDF file, of which only the header and the
+ * <code>&gt; &lt;TAG&gt;</code> data items are read up front. The atom and
+ * bond blocks are skipped line by line without being parsed, and the full
+ * molecular graph is built only when {@link #getMolecule()} is called for
+ * the first time.
+ * <br><br>
+ * The properties are named as the MDL reader of CDK names them: the title
+ * line is <code>cdk:Title</code>, the comment line is
+ * <code>cdk:Remark</code>, and data items spanning several lines are joined
+ * with newlines.
+ */
+
+public class LazySdfMolecule
+{
+    private static final String TITLE = "cdk:Title";
+    private static final String REMARK = "cdk:Remark";
+
+    private final String filename;
+    private final Map<Object,Object> properties;
+    private IAtomContainer mol;
+
+//------------------------------------------------------------------------------
+
+    private LazySdfMolecule(String filename, Map<Object,Object> properties)
+    {
+        this.filename = filename;
+        this.properties = properties;
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Reads the properties of the first molecule in an SDF file.
+     * @param filename the SDF file
+     * @return the molecule, whose graph has not been read yet
+     * @throws Exception if the file cannot be read or has no molecule
+     */
+    public static LazySdfMolecule read(String filename) throws Exception
+    {
+        BufferedReader br = null;
+        try
+        {
+            br = new BufferedReader(new FileReader(filename));
+            return new LazySdfMolecule(filename, 
+                                       readProperties(br, filename));
+        }
+        finally
+        {
+            if (br != null)
+            {
+                br.close();
+            }
+        }
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Reads header and data items of one SDF record, stopping after the
+     * record separator (or at the end of the stream).
+     * @param br the reader positioned at the beginning of a record
+     * @param source a name used to identify the source in error messages
+     * @return the properties of the record
+     */
+    static Map<Object,Object> readProperties(BufferedReader br, String source)
+            throws Exception
+    {
+        Map<Object,Object> props = new LinkedHashMap<Object,Object>();
+        String title = br.readLine();
+        String program = br.readLine();
+        String remark = br.readLine();
+        if (title == null || program == null || remark == null)
+        {
+            throw new Exception("No data found in " + source);
+        }
+        if (title.length() > 0)
+        {
+            props.put(TITLE, title);
+        }
+        if (remark.length() > 0)
+        {
+            props.put(REMARK, remark);
+        }
+
+        // Skip counts, atoms, bonds and the other connection table lines
+        String line;
+        while ((line = br.readLine()) != null && !line.startsWith("M  END"))
+        {
+            if (line.startsWith("$$$$"))
+            {
+                throw new Exception("Missing 'M  END' in " + source);
+            }
+        }
+        if (line == null)
+        {
+            throw new Exception("Missing 'M  END' in " + source);
+        }
+
+        while ((line = br.readLine()) != null && !line.startsWith("$$$$"))
+        {
+            if (!line.startsWith(">"))
+            {
+                continue;
+            }
+            int open = line.indexOf('<');
+            int close = line.indexOf('>', open + 1);
+            if (open < 0 || close < 0)
+            {
+                continue;
+            }
+            String key = line.substring(open + 1, close);
+            StringBuilder sb = new StringBuilder();
+            while ((line = br.readLine()) != null 
+                   && line.trim().length() > 0)
+            {
+                if (sb.length() > 0)
+                {
+                    sb.append("\n");
+                }
+                sb.append(line);
+            }
+            props.put(key, sb.toString());
+            if (line == null)
+            {
+                break;
+            }
+        }
+        return props;
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * @return the properties of the molecule. The map is the one held by
+     * this object: changes are visible to later calls, but not to the
+     * container returned by {@link #getMolecule()}.
+     */
+    public Map<Object,Object> getProperties()
+    {
+        return properties;
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * @param key the name of the property
+     * @return the value of the property, or null
+     */
+    public Object getProperty(Object key)
+    {
+        return properties.get(key);
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Returns the complete molecule, which is read from the file on the
+     * first call and then kept.
+     * @return the molecular graph with coordinates and properties
+     */
+    public synchronized IAtomContainer getMolecule() throws Exception
+    {
+        if (mol == null)
+        {
+            mol = SdfIO.readSingleSDFFile(filename);
+        }
+        return mol;
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * @return true if the molecular graph has already been read
+     */
+    public synchronized boolean isMoleculeLoaded()
+    {
+        return mol != null;
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * @return the file the molecule is read from
+     */
+    public String getFilename()
+    {
+        return filename;
+    }
+
+//------------------------------------------------------------------------------
+
+}
@@ -0,0 +1,119 @@
+package fitnessruch2bndlng;
+
+/*
+ *   Copyright (C) 2016
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Affero General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+import java.io.File;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs the DFT jobs as local processes. Meant for testing the
+ * {@link CandidateOrchestrator} with a command that stands in for the DFT
+ * software, such as <code>fake-dft.sh</code>, which writes a
+ * Gaussian-like output with the geometry of the 3D model.
+ * <br><br>
+ * The command is a template where <code>{placeholders}</code> are replaced
+ * as explained in {@link CandidateOrchestrator}. It is run from the working
+ * directory of the candidate, with standard output and error sent to the
+ * log of the DFT job.
+ */
+
+public class LocalJobSubmitter implements JobSubmitter
+{
+    private final String command;
+    private final AtomicLong count = new AtomicLong();
+    private final Map<String,Process> processes =
+                                     new ConcurrentHashMap<String,Process>();
+
+//------------------------------------------------------------------------------
+
+    /**
+     * @param command the command running the job of a candidate
+     */
+    public LocalJobSubmitter(String command)
+    {
+        this.command = command;
+    }
+
+//------------------------------------------------------------------------------
+
+    @Override
+    public String submit(CandidateOrchestrator.Candidate candidate)
+            throws Exception
+    {
+        List<String> cmd = CandidateOrchestrator.expand(command,
+                                                 candidate.getPlaceholders());
+        ProcessBuilder pb = new ProcessBuilder(cmd);
+        pb.directory(candidate.getWorkDir());
+        pb.redirectErrorStream(true);
+        pb.redirectOutput(new File(candidate.getDFTLog()));
+        Process p;
+        try
+        {
+            p = pb.start();
+        }
+        catch (Exception e)
+        {
+            throw new Exception("#SubmitDFT: cannot run " + cmd.get(0)
+                                + ": " + e.getMessage());
+        }
+        String jobId = "local-" + count.incrementAndGet();
+        processes.put(jobId, p);
+        return jobId;
+    }
+
+//------------------------------------------------------------------------------
+
+    @Override
+    public Set<String> getActiveJobs(Collection<String> jobIds)
+    {
+        Set<String> active = new HashSet<String>();
+        for (String jobId : jobIds)
+        {
+            Process p = processes.get(jobId);
+            if (p != null && p.isAlive())
+            {
+                active.add(jobId);
+            }
+            else
+            {
+                processes.remove(jobId);
+            }
+        }
+        return active;
+    }
+
+//------------------------------------------------------------------------------
+
+    @Override
+    public void cancel(String jobId)
+    {
+        Process p = processes.remove(jobId);
+        if (p != null)
+        {
+            p.destroy();
+        }
+    }
+
+//------------------------------------------------------------------------------
+
+}
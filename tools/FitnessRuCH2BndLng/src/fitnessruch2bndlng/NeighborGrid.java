@@ -0,0 +1,195 @@
+package fitnessruch2bndlng;
+
+/*
+ *   Copyright (C) 2016
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Affero General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.util.List;
+
+/**
+ * Uniform grid (cell list) over a set of atom positions. Atoms are sorted
+ * into cubic cells with edge equal to the search radius, so that all pairs
+ * closer than that radius are found by visiting only the 27 cells around
+ * each atom. For molecular systems this makes the search of close contacts
+ * scale linearly with the number of atoms.
+ */
+
+public class NeighborGrid
+{
+    private final double[] coords;
+    private final int offset;
+    private final int numAtoms;
+    private final double cellSize;
+    private final double minX, minY, minZ;
+    private final int nx, ny, nz;
+
+    //Atoms sorted by cell, and index of the first atom of each cell
+    private final int[] cellStart;
+    private final int[] cellAtoms;
+    private final int[] atomCell;
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Builds the grid.
+     * @param coords flat array of coordinates (x,y,z for each atom)
+     * @param offset index of the x coordinate of the first atom
+     * @param numAtoms number of atoms
+     * @param cellSize edge of the cells, i.e., the largest distance that
+     * can be searched
+     */
+    public NeighborGrid(double[] coords, int offset, int numAtoms,
+                        double cellSize)
+    {
+        this.coords = coords;
+        this.offset = offset;
+        this.numAtoms = numAtoms;
+        this.cellSize = cellSize;
+
+        double x0 = Double.MAX_VALUE, y0 = Double.MAX_VALUE;
+        double z0 = Double.MAX_VALUE;
+        double x1 = -Double.MAX_VALUE, y1 = -Double.MAX_VALUE;
+        double z1 = -Double.MAX_VALUE;
+        for (int i=0; i<numAtoms; i++)
+        {
+            int k = offset + 3*i;
+            x0 = Math.min(x0, coords[k]);
+            y0 = Math.min(y0, coords[k+1]);
+            z0 = Math.min(z0, coords[k+2]);
+            x1 = Math.max(x1, coords[k]);
+            y1 = Math.max(y1, coords[k+1]);
+            z1 = Math.max(z1, coords[k+2]);
+        }
+        if (numAtoms == 0)
+        {
+            x0 = y0 = z0 = x1 = y1 = z1 = 0.0;
+        }
+        minX = x0;
+        minY = y0;
+        minZ = z0;
+        nx = (int) ((x1 - x0) / cellSize) + 1;
+        ny = (int) ((y1 - y0) / cellSize) + 1;
+        nz = (int) ((z1 - z0) / cellSize) + 1;
+
+        // Counting sort of atoms by cell
+        cellStart = new int[nx * ny * nz + 1];
+        cellAtoms = new int[numAtoms];
+        atomCell = new int[numAtoms];
+        for (int i=0; i<numAtoms; i++)
+        {
+            int k = offset + 3*i;
+            int c = cellIndex(cellCoord(coords[k], minX, nx),
+                              cellCoord(coords[k+1], minY, ny),
+                              cellCoord(coords[k+2], minZ, nz));
+            atomCell[i] = c;
+            cellStart[c + 1]++;
+        }
+        for (int c=0; c<nx*ny*nz; c++)
+        {
+            cellStart[c + 1] += cellStart[c];
+        }
+        int[] fill = new int[nx * ny * nz];
+        for (int i=0; i<numAtoms; i++)
+        {
+            int c = atomCell[i];
+            cellAtoms[cellStart[c] + fill[c]++] = i;
+        }
+    }
+
+//------------------------------------------------------------------------------
+
+    private int cellCoord(double v, double min, int n)
+    {
+        int c = (int) ((v - min) / cellSize);
+        return Math.min(Math.max(c, 0), n - 1);
+    }
+
+    private int cellIndex(int ix, int iy, int iz)
+    {
+        return (ix * ny + iy) * nz + iz;
+    }
+
+//------------------------------------------------------------------------------
+
+    private double distance(int i, int j)
+    {
+        int a = offset + 3*i;
+        int b = offset + 3*j;
+        double dx = coords[a] - coords[b];
+        double dy = coords[a+1] - coords[b+1];
+        double dz = coords[a+2] - coords[b+2];
+        return Math.sqrt(dx*dx + dy*dy + dz*dz);
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Finds all pairs of atoms that are closer than the cell size and are
+     * not excluded by the mask.
+     * @param mask the pairs to ignore (can be null)
+     * @param clashes if not null, each pair found is added as
+     * <code>{i, j}</code> with i &lt; j
+     * @return the shortest distance among the pairs found, or
+     * {@link Double#MAX_VALUE} if no pair is closer than the cell size
+     */
+    public double findClosePairs(BondedPairMask mask, List<int[]> clashes)
+    {
+        double minDist = Double.MAX_VALUE;
+        for (int i=0; i<numAtoms; i++)
+        {
+            int c = atomCell[i];
+            int iz = c % nz;
+            int iy = (c / nz) % ny;
+            int ix = c / (nz * ny);
+            for (int ax=Math.max(ix-1,0); ax<=Math.min(ix+1,nx-1); ax++)
+            {
+                for (int ay=Math.max(iy-1,0); ay<=Math.min(iy+1,ny-1); ay++)
+                {
+                    for (int az=Math.max(iz-1,0); az<=Math.min(iz+1,nz-1);
+                                                                        az++)
+                    {
+                        int cc = cellIndex(ax, ay, az);
+                        for (int p=cellStart[cc]; p<cellStart[cc+1]; p++)
+                        {
+                            int j = cellAtoms[p];
+                            if (j <= i || (mask != null && mask.get(i, j)))
+                            {
+                                continue;
+                            }
+                            double d = distance(i, j);
+                            if (d >= cellSize)
+                            {
+                                continue;
+                            }
+                            if (d < minDist)
+                            {
+                                minDist = d;
+                            }
+                            if (clashes != null)
+                            {
+                                clashes.add(new int[] {i, j});
+                            }
+                        }
+                    }
+                }
+            }
+        }
+        return minDist;
+    }
+
+//------------------------------------------------------------------------------
+
+}
@@ -0,0 +1,445 @@
+package fitnessruch2bndlng;
+
+/*
+ *   Copyright (C) 2016
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Affero General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Rule constraining distances, angles, or dihedral angles between atoms
+ * selected by a pattern. The syntax is
+ * <pre>
+ * [min|max|avg(]pattern[)]|interval
+ * </pre>
+ * where the pattern is a sequence of two (distance), three (angle), or four
+ * (dihedral) atoms separated by '-' (bonded) or '~' (not bonded). Atoms are
+ * named after the core roles: Ru, Cl (either Cl1 or Cl2), C, L, H (either
+ * H1 or H2), or X (any core atom). Atoms outside the core are selected with
+ * the suffix '@n', as in 'X@n' (any non-core atom) or 'N@n' (any non-core
+ * nitrogen). The interval is written as '(0,2.5)', '[90,)', or '(,10]',
+ * where parentheses exclude the bound, brackets include it, and a missing
+ * bound means no limit. Dihedral angles are taken in absolute value.
+ * <br>
+ * Without aggregation, every set of atoms matching the pattern must have a
+ * value in the interval. With 'min', 'max', or 'avg' the interval applies
+ * to the minimum, maximum, or average over all matches. Examples:
+ * <pre>
+ * threshold_dist=Ru-X|(0,2.5); Ru~X@n|(2.9,)
+ * threshold_angle=avg(Cl-Ru-C)|[90,)
+ * threshold_dihedral=min(H-C-Ru-L)|(,20]
+ * </pre>
+ */
+
+public class PatternRule extends ConstraintRule
+{
+    /**
+     * Kinds of measured quantity, which are also the number of atoms in the
+     * pattern.
+     */
+    public static final int DISTANCE = 2;
+    public static final int ANGLE = 3;
+    public static final int DIHEDRAL = 4;
+
+    private static final int NONE = 0;
+    private static final int MIN = 1;
+    private static final int MAX = 2;
+    private static final int AVG = 3;
+
+    private static final String[] ROLENAMES = new String[] {
+        "Ru", "Cl", "Cl1", "Cl2", "C", "L", "H", "H1", "H2", "X"};
+    private static final int[][] ROLESETS = new int[][] {
+        {GeometryKernel.RU},
+        {GeometryKernel.CL1, GeometryKernel.CL2},
+        {GeometryKernel.CL1},
+        {GeometryKernel.CL2},
+        {GeometryKernel.C},
+        {GeometryKernel.L},
+        {GeometryKernel.H1, GeometryKernel.H2},
+        {GeometryKernel.H1},
+        {GeometryKernel.H2},
+        {GeometryKernel.RU, GeometryKernel.CL1, GeometryKernel.CL2,
+         GeometryKernel.C, GeometryKernel.L, GeometryKernel.H1,
+         GeometryKernel.H2}};
+
+    //Core roles of each atom in the pattern, or null for non-core atoms
+    private final int[][] roles;
+
+    //Atomic number of non-core atoms (0 for any element)
+    private final int[] elements;
+
+    //Whether atom i and i+1 must be bonded (otherwise not bonded)
+    private final boolean[] bonded;
+
+    private final int aggregate;
+    private final double lower;
+    private final boolean lowerIncluded;
+    private final double upper;
+    private final boolean upperIncluded;
+
+//------------------------------------------------------------------------------
+
+    private PatternRule(String label, int cost, int[][] roles, int[] elements,
+                        boolean[] bonded, int aggregate, double lower,
+                        boolean lowerIncluded, double upper,
+                        boolean upperIncluded)
+    {
+        super(label, cost);
+        this.roles = roles;
+        this.elements = elements;
+        this.bonded = bonded;
+        this.aggregate = aggregate;
+        this.lower = lower;
+        this.lowerIncluded = lowerIncluded;
+        this.upper = upper;
+        this.upperIncluded = upperIncluded;
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Compiles a rule.
+     * @param kind one of {@link #DISTANCE}, {@link #ANGLE}, {@link #DIHEDRAL}
+     * @param definition the rule in the syntax described above
+     * @param label the text starting the violation messages
+     * @return the compiled rule
+     * @throws Exception if the definition cannot be understood
+     */
+    public static PatternRule compile(int kind, String definition,
+                                      String label) throws Exception
+    {
+        String def = definition.trim();
+        int bar = def.lastIndexOf('|');
+        if (bar < 0)
+        {
+            throw new Exception("Missing interval in rule '" + definition 
+                                + "'");
+        }
+        String pattern = def.substring(0, bar).trim();
+        String interval = def.substring(bar + 1).trim();
+
+        int aggregate = NONE;
+        String lc = pattern.toLowerCase();
+        if (lc.endsWith(")"))
+        {
+            if (lc.startsWith("min("))
+            {
+                aggregate = MIN;
+            }
+            else if (lc.startsWith("max("))
+            {
+                aggregate = MAX;
+            }
+            else if (lc.startsWith("avg("))
+            {
+                aggregate = AVG;
+            }
+            else
+            {
+                throw new Exception("Unknown aggregation in rule '" 
+                                    + definition + "'");
+            }
+            pattern = pattern.substring(4, pattern.length() - 1).trim();
+        }
+
+        // Atoms and connections
+        List<String> names = new ArrayList<String>();
+        List<Boolean> links = new ArrayList<Boolean>();
+        int start = 0;
+        for (int i=0; i<=pattern.length(); i++)
+        {
+            char c = i < pattern.length() ? pattern.charAt(i) : '-';
+            if (c == '-' || c == '~')
+            {
+                names.add(pattern.substring(start, i).trim());
+                links.add(c == '-');
+                start = i + 1;
+            }
+        }
+        if (names.size() != kind)
+        {
+            throw new Exception("Expecting " + kind + " atoms in rule '" 
+                                + definition + "'");
+        }
+        int[][] roles = new int[kind][];
+        int[] elements = new int[kind];
+        boolean[] bonded = new boolean[kind - 1];
+        int numScans = 0;
+        for (int i=0; i<kind; i++)
+        {
+            String name = names.get(i);
+            if (name.endsWith("@n"))
+            {
+                String sym = name.substring(0, name.length() - 2);
+                if (!sym.equals("X"))
+                {
+                    elements[i] = PeriodicTable.getAtomicNumber(sym);
+                    if (elements[i] < 1)
+                    {
+                        throw new Exception("Unknown element '" + sym 
+                                      + "' in rule '" + definition + "'");
+                    }
+                }
+                // Bonded neighbours are found without scanning all atoms
+                if (i == 0 || !links.get(i - 1))
+                {
+                    numScans++;
+                }
+            }
+            else
+            {
+                for (int k=0; k<ROLENAMES.length; k++)
+                {
+                    if (ROLENAMES[k].equals(name))
+                    {
+                        roles[i] = ROLESETS[k];
+                    }
+                }
+                if (roles[i] == null)
+                {
+                    throw new Exception("Unknown atom '" + name 
+                                        + "' in rule '" + definition + "'");
+                }
+            }
+            if (i < kind - 1)
+            {
+                bonded[i] = links.get(i);
+            }
+        }
+
+        // Interval
+        if (interval.length() < 3 || interval.indexOf(',') < 0)
+        {
+            throw new Exception("Unexpected interval in rule '" + definition 
+                                + "'");
+        }
+        char open = interval.charAt(0);
+        char close = interval.charAt(interval.length() - 1);
+        if ((open != '(' && open != '[') || (close != ')' && close != ']'))
+        {
+            throw new Exception("Unexpected interval in rule '" + definition 
+                                + "'");
+        }
+        String[] bounds = interval.substring(1, interval.length() - 1)
+                                                               .split(",", -1);
+        if (bounds.length != 2)
+        {
+            throw new Exception("Unexpected interval in rule '" + definition 
+                                + "'");
+        }
+        double lower = bounds[0].trim().length() == 0 ? 
+                  Double.NEGATIVE_INFINITY : Double.parseDouble(bounds[0]);
+        double upper = bounds[1].trim().length() == 0 ? 
+                  Double.POSITIVE_INFINITY : Double.parseDouble(bounds[1]);
+
+        return new PatternRule(label, numScans * COST_LINEAR, roles, 
+                               elements, bonded, aggregate, lower,
+                               open == '[', upper, close == ']');
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * State of the scan over the matches of the pattern.
+     */
+    private static class Scan
+    {
+        int count = 0;
+        double sum = 0.0;
+        double min = Double.POSITIVE_INFINITY;
+        double max = Double.NEGATIVE_INFINITY;
+        int[] violating;
+        double violatingValue;
+    }
+
+//------------------------------------------------------------------------------
+
+    @Override
+    public String check(RuleContext ctx)
+    {
+        Scan scan = new Scan();
+        scan(ctx, 0, new int[roles.length], scan);
+
+        if (aggregate == NONE)
+        {
+            if (scan.violating == null)
+            {
+                return null;
+            }
+            StringBuilder sb = new StringBuilder(getLabel()).append(" ");
+            for (int i=0; i<scan.violating.length; i++)
+            {
+                if (i > 0)
+                {
+                    sb.append(bonded[i-1] ? "-" : "~");
+                }
+                sb.append(ctx.getAtomLabel(scan.violating[i]));
+            }
+            sb.append(" ").append(String.format("%2f", scan.violatingValue));
+            return sb.toString();
+        }
+
+        if (scan.count == 0)
+        {
+            return null;
+        }
+        double value;
+        switch (aggregate)
+        {
+            case MIN:
+                value = scan.min;
+                break;
+            case MAX:
+                value = scan.max;
+                break;
+            default:
+                value = scan.sum / scan.count;
+        }
+        if (isInside(value))
+        {
+            return null;
+        }
+        return getLabel() + " " + String.format("%2f", value);
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Enumerates the sets of atoms matching the pattern from the given 
+     * position onwards.
+     */
+    private void scan(RuleContext ctx, int pos, int[] atoms, Scan scan)
+    {
+        if (scan.violating != null)
+        {
+            return;
+        }
+        if (pos == atoms.length)
+        {
+            double v = measure(ctx, atoms);
+            if (aggregate == NONE)
+            {
+                if (!isInside(v))
+                {
+                    scan.violating = atoms.clone();
+                    scan.violatingValue = v;
+                }
+                return;
+            }
+            scan.count++;
+            scan.sum += v;
+            scan.min = Math.min(scan.min, v);
+            scan.max = Math.max(scan.max, v);
+            return;
+        }
+
+        if (roles[pos] != null)
+        {
+            for (int r : roles[pos])
+            {
+                int a = ctx.getAtomWithRole(r);
+                if (accepts(ctx, pos, atoms, a))
+                {
+                    atoms[pos] = a;
+                    scan(ctx, pos + 1, atoms, scan);
+                }
+            }
+        }
+        else if (pos > 0 && bonded[pos-1])
+        {
+            for (int a : ctx.getNeighbours(atoms[pos-1]))
+            {
+                if (accepts(ctx, pos, atoms, a))
+                {
+                    atoms[pos] = a;
+                    scan(ctx, pos + 1, atoms, scan);
+                }
+            }
+        }
+        else
+        {
+            for (int a=0; a<ctx.getAtomCount(); a++)
+            {
+                if (accepts(ctx, pos, atoms, a))
+                {
+                    atoms[pos] = a;
+                    scan(ctx, pos + 1, atoms, scan);
+                }
+            }
+        }
+    }
+
+//------------------------------------------------------------------------------
+
+    private boolean accepts(RuleContext ctx, int pos, int[] atoms, int a)
+    {
+        if (roles[pos] == null)
+        {
+            if (ctx.isCore(a))
+            {
+                return false;
+            }
+            if (elements[pos] > 0 && ctx.getAtomicNumber(a) != elements[pos])
+            {
+                return false;
+            }
+        }
+        for (int i=0; i<pos; i++)
+        {
+            if (atoms[i] == a)
+            {
+                return false;
+            }
+        }
+        if (pos > 0)
+        {
+            return ctx.isBonded(atoms[pos-1], a) == bonded[pos-1];
+        }
+        return true;
+    }
+
+//------------------------------------------------------------------------------
+
+    private double measure(RuleContext ctx, int[] atoms)
+    {
+        double[] xyz = ctx.getCoordinates();
+        switch (atoms.length)
+        {
+            case DISTANCE:
+                return GeometryKernel.distance(xyz, 0, atoms[0], atoms[1]);
+            case ANGLE:
+                return GeometryKernel.angle(xyz, 0, atoms[0], atoms[1], 
+                                            atoms[2]);
+            default:
+                return Math.abs(GeometryKernel.torsion(xyz, 0, atoms[0], 
+                                            atoms[1], atoms[2], atoms[3]));
+        }
+    }
+
+//------------------------------------------------------------------------------
+
+    private boolean isInside(double v)
+    {
+        if (lowerIncluded ? v < lower : v <= lower)
+        {
+            return false;
+        }
+        return upperIncluded ? v <= upper : v < upper;
+    }
+
+//------------------------------------------------------------------------------
+
+}
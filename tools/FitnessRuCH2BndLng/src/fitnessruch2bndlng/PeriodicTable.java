@@ -0,0 +1,167 @@
+package fitnessruch2bndlng;
+
+/*
+ *   Copyright (C) 2016
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Affero General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * Element symbols, covalent radii, and valences indexed by atomic number. Lookups from
+ * raw bytes return the shared symbol strings, so that parsers do not need
+ * to allocate a new string for each atom.
+ */
+
+public class PeriodicTable
+{
+    private static final String[] SYMBOLS = new String[] {
+        "Du",
+        "H", "He", "Li", "Be", "B", "C", "N", "O", "F", "Ne",
+        "Na", "Mg", "Al", "Si", "P", "S", "Cl", "Ar", "K", "Ca",
+        "Sc", "Ti", "V", "Cr", "Mn", "Fe", "Co", "Ni", "Cu", "Zn",
+        "Ga", "Ge", "As", "Se", "Br", "Kr", "Rb", "Sr", "Y", "Zr",
+        "Nb", "Mo", "Tc", "Ru", "Rh", "Pd", "Ag", "Cd", "In", "Sn",
+        "Sb", "Te", "I", "Xe", "Cs", "Ba", "La", "Ce", "Pr", "Nd",
+        "Pm", "Sm", "Eu", "Gd", "Tb", "Dy", "Ho", "Er", "Tm", "Yb",
+        "Lu", "Hf", "Ta", "W", "Re", "Os", "Ir", "Pt", "Au", "Hg",
+        "Tl", "Pb", "Bi", "Po", "At", "Rn", "Fr", "Ra", "Ac", "Th",
+        "Pa", "U", "Np", "Pu", "Am", "Cm", "Bk", "Cf", "Es", "Fm",
+        "Md", "No", "Lr", "Rf", "Db", "Sg", "Bh", "Hs", "Mt", "Ds",
+        "Rg", "Cn", "Nh", "Fl", "Mc", "Lv", "Ts", "Og"};
+
+    /**
+     * Covalent radii (Angstrom) from B. Cordero et al., Dalton Trans. 
+     * (2008) 2832, up to Rn. Low-spin values are used for Mn, Fe, and Co, 
+     * and the sp3 value for C.
+     */
+    private static final double[] COVALENTRADII = new double[] {
+        0.00,
+        0.31, 0.28, 1.28, 0.96, 0.84, 0.76, 0.71, 0.66, 0.57, 0.58,
+        1.66, 1.41, 1.21, 1.11, 1.07, 1.05, 1.02, 1.06, 2.03, 1.76,
+        1.70, 1.60, 1.53, 1.39, 1.39, 1.32, 1.26, 1.24, 1.32, 1.22,
+        1.22, 1.20, 1.19, 1.20, 1.20, 1.16, 2.20, 1.95, 1.90, 1.75,
+        1.64, 1.54, 1.47, 1.46, 1.42, 1.39, 1.45, 1.44, 1.42, 1.39,
+        1.39, 1.38, 1.39, 1.40, 2.44, 2.15, 2.07, 2.04, 2.03, 2.01,
+        1.99, 1.98, 1.98, 1.96, 1.94, 1.92, 1.92, 1.89, 1.90, 1.87,
+        1.87, 1.75, 1.70, 1.62, 1.51, 1.44, 1.41, 1.36, 1.36, 1.32,
+        1.45, 1.46, 1.48, 1.40, 1.50, 1.50};
+
+    //Radius used for elements without tabulated value
+    private static final double DEFAULTRADIUS = 1.50;
+
+//------------------------------------------------------------------------------
+
+    /**
+     * @param atomicNumber the atomic number
+     * @return the element symbol, or null if the number is out of range
+     */
+    public static String getSymbol(int atomicNumber)
+    {
+        if (atomicNumber < 1 || atomicNumber >= SYMBOLS.length)
+        {
+            return null;
+        }
+        return SYMBOLS[atomicNumber];
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * @param symbol the element symbol (case sensitive)
+     * @return the atomic number, or -1 if the symbol is not an element
+     */
+    public static int getAtomicNumber(String symbol)
+    {
+        for (int z=1; z<SYMBOLS.length; z++)
+        {
+            if (SYMBOLS[z].equals(symbol))
+            {
+                return z;
+            }
+        }
+        return -1;
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * @param atomicNumber the atomic number
+     * @return the covalent radius in Angstrom
+     */
+    public static double getCovalentRadius(int atomicNumber)
+    {
+        if (atomicNumber < 1 || atomicNumber >= COVALENTRADII.length)
+        {
+            return DEFAULTRADIUS;
+        }
+        return COVALENTRADII[atomicNumber];
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * @param atomicNumber the atomic number
+     * @return the maximum number of bonds the element is expected to form,
+     * which is used to discard long contacts when perceiving bonds
+     */
+    public static int getMaxBonds(int atomicNumber)
+    {
+        switch (atomicNumber)
+        {
+            case 1: case 3: case 9: case 11: case 17: case 19: case 35:
+            case 37: case 53: case 55:
+                return 1;
+            case 4: case 8: case 12: case 20:
+                return 2;
+            case 5: case 6: case 7:
+                return 4;
+            default:
+                return 6;
+        }
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Finds the symbol spelled by a sequence of bytes.
+     * @param buf the bytes
+     * @param off index of the first character
+     * @param len number of characters
+     * @return the shared symbol string, or null if the bytes do not
+     * spell any element symbol (case sensitive)
+     */
+    public static String lookup(byte[] buf, int off, int len)
+    {
+        if (len < 1 || len > 2)
+        {
+            return null;
+        }
+        for (int z=1; z<SYMBOLS.length; z++)
+        {
+            String s = SYMBOLS[z];
+            if (s.length() != len || s.charAt(0) != buf[off])
+            {
+                continue;
+            }
+            if (len == 1 || s.charAt(1) == buf[off+1])
+            {
+                return s;
+            }
+        }
+        return null;
+    }
+
+//------------------------------------------------------------------------------
+
+}
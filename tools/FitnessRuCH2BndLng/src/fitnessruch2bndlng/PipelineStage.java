@@ -0,0 +1,127 @@
+package fitnessruch2bndlng;
+
+/*
+ *   Copyright (C) 2016
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Affero General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * One stage of the {@link CandidateOrchestrator}: a fixed number of threads
+ * that run the tasks of this stage for any candidate. Tasks exceeding the
+ * concurrency of the stage wait in the queue of the stage, and are counted
+ * as such in the status of the stage.
+ */
+
+class PipelineStage
+{
+    private final String name;
+    private final ExecutorService executor;
+
+    private final AtomicInteger waiting = new AtomicInteger();
+    private final AtomicInteger running = new AtomicInteger();
+    private final AtomicInteger done = new AtomicInteger();
+    private final AtomicInteger failed = new AtomicInteger();
+
+//------------------------------------------------------------------------------
+
+    /**
+     * @param name the name of the stage (also used for its threads)
+     * @param maxConcurrency the maximum number of tasks run at once
+     */
+    PipelineStage(final String name, int maxConcurrency)
+    {
+        this.name = name;
+        this.executor = Executors.newFixedThreadPool(maxConcurrency,
+                                                         new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            public Thread newThread(Runnable r)
+            {
+                Thread t = new Thread(r, name + "-" + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Queues a task in this stage.
+     * @param task the task
+     * @return the future result of the task, completed exceptionally if the
+     * task throws
+     */
+    <T> CompletableFuture<T> submit(final Callable<T> task)
+    {
+        final CompletableFuture<T> future = new CompletableFuture<T>();
+        waiting.incrementAndGet();
+        executor.execute(new Runnable() {
+            public void run()
+            {
+                waiting.decrementAndGet();
+                running.incrementAndGet();
+                T value;
+                try
+                {
+                    value = task.call();
+                }
+                catch (Throwable t)
+                {
+                    running.decrementAndGet();
+                    failed.incrementAndGet();
+                    future.completeExceptionally(t);
+                    return;
+                }
+                running.decrementAndGet();
+                done.incrementAndGet();
+                future.complete(value);
+            }
+        });
+        return future;
+    }
+
+//------------------------------------------------------------------------------
+
+    String getName()
+    {
+        return name;
+    }
+
+    /**
+     * @return the number of tasks waiting, running, done, and failed
+     */
+    int[] getCounts()
+    {
+        return new int[] {waiting.get(), running.get(), done.get(),
+                          failed.get()};
+    }
+
+//------------------------------------------------------------------------------
+
+    void shutdown()
+    {
+        executor.shutdown();
+    }
+
+//------------------------------------------------------------------------------
+
+}
@@ -0,0 +1,338 @@
+package fitnessruch2bndlng;
+
+/*
+ *   Copyright (C) 2016
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Affero General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Re-evaluates descriptors and fitness for all the candidates found under
+ * one or more folders (e.g., <code>results/run_*</code>). Each
+ * <code>*_FIT.sdf</code> file with a matching <code>*_DFT.xyz</code> file is
+ * evaluated with the thresholds given in the parameter file. Folders are
+ * visited recursively and in parallel using a work-stealing pool, and one
+ * tab-separated line per candidate is appended to a single output file.
+ * If GENSDFDIR is given in the parameter file, the rescored molecules of
+ * each folder are also written to a multi-record SDF file in the GENSDFDIR
+ * folder (see {@link GenerationSdfWriter}), named after the folder and its
+ * parent (e.g., <code>run_1.0_Gen000.sdf</code>) and replacing any previous
+ * file with the same name. Otherwise, no SDF file is written.
+ */
+
+public class RescoreResults
+{
+    private static final Logger LOGGER = Logger.getLogger(
+            RescoreResults.class.getName());
+
+    private final FitnessParameters params;
+    private final BufferedWriter writer;
+    private final AtomicInteger numCandidates = new AtomicInteger();
+    private final AtomicInteger numOK = new AtomicInteger();
+    private final Map<String,AtomicInteger> failures =
+                                  new ConcurrentHashMap<String,AtomicInteger>();
+    private final EvaluationSummary summary = new EvaluationSummary();
+    private final Map<File,GenerationSdfWriter> genWriters =
+                              new ConcurrentHashMap<File,GenerationSdfWriter>();
+
+//------------------------------------------------------------------------------
+
+    /**
+     * @param args the command line arguments
+     */
+    public static void main(String[] args)
+    {
+        if (args.length < 3)
+        {
+            System.err.println("Usage: java -cp FitnessRuCH2BndLng.jar "
+                    + "fitnessruch2bndlng.RescoreResults parameterFile "
+                    + "outputFile rootFolder [rootFolder ...]");
+            System.exit(-1);
+        }
+
+        BufferedWriter writer = null;
+        try
+        {
+            FitnessParameters params = FitnessParameters.readParameters(
+                                                                      args[0]);
+            writer = new BufferedWriter(new FileWriter(args[1]));
+            List<File> roots = new ArrayList<File>();
+            for (int i=2; i<args.length; i++)
+            {
+                roots.add(new File(args[i]));
+            }
+            RescoreResults rescorer = new RescoreResults(params, writer);
+            rescorer.run(roots);
+        }
+        catch (Exception e)
+        {
+            LOGGER.log(Level.SEVERE, null, e);
+            System.exit(-1);
+        }
+        finally
+        {
+            if (writer != null)
+            {
+                try
+                {
+                    writer.close();
+                }
+                catch (IOException e)
+                {
+                    LOGGER.log(Level.SEVERE, null, e);
+                }
+            }
+        }
+        System.exit(0);
+    }
+
+//------------------------------------------------------------------------------
+
+    public RescoreResults(FitnessParameters params, BufferedWriter writer)
+    {
+        this.params = params;
+        this.writer = writer;
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Evaluates all candidates under the given folders and prints a summary.
+     */
+    public void run(List<File> roots) throws Exception
+    {
+        // Compiled once and shared by all the candidates
+        params.getConstraints();
+
+        writer.write("#file\tUID\tstatus\tfitness\tdescriptors\tMOL_ERROR");
+        writer.newLine();
+
+        long start = System.nanoTime();
+        ResultFolderWalker walker = new ResultFolderWalker(
+                                          new ResultFolderWalker.Visitor() {
+            public void visit(File fitSdf, String base)
+            {
+                evaluateCandidate(fitSdf);
+            }
+        });
+        walker.walk(roots);
+        for (GenerationSdfWriter genWriter : genWriters.values())
+        {
+            try
+            {
+                genWriter.close();
+            }
+            catch (Exception e)
+            {
+                LOGGER.log(Level.SEVERE, "Could not complete generation SDF",
+                           e);
+            }
+        }
+        double seconds = (System.nanoTime() - start) / 1.0e9;
+
+        System.out.println(getSummary(seconds, walker.getParallelism()));
+        System.out.println(summary);
+    }
+
+//------------------------------------------------------------------------------
+
+    private String getSummary(double seconds, int numThreads)
+    {
+        int n = numCandidates.get();
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("Rescored %d candidates in %.2f s "
+                + "(%.1f candidates/s) using %d threads.%n", n, seconds,
+                n / Math.max(seconds, 1.0e-9), numThreads));
+        sb.append(String.format("  with fitness: %d%n", numOK.get()));
+        Map<String,AtomicInteger> sorted =
+                                   new TreeMap<String,AtomicInteger>(failures);
+        for (Map.Entry<String,AtomicInteger> e : sorted.entrySet())
+        {
+            sb.append(String.format("  %s: %d%n", e.getKey(),
+                                                        e.getValue().get()));
+        }
+        return sb.toString().trim();
+    }
+
+//------------------------------------------------------------------------------
+
+    private void evaluateCandidate(File fitSdf)
+    {
+        String path = fitSdf.getPath();
+        File xyz = ResultFolderWalker.getXYZFile(fitSdf);
+
+        numCandidates.incrementAndGet();
+        StringBuilder line = new StringBuilder();
+        line.append(path).append("\t");
+
+        if (!xyz.exists())
+        {
+            countFailure("missing DFT geometry");
+            line.append("\tSKIPPED\t\t\tmissing " + xyz.getName());
+            appendLine(line.toString());
+            return;
+        }
+
+        // The FIT.sdf file is not rewritten: as output file it only 
+        // identifies the candidate in logs and messages
+        FitnessParameters candidate = params.forCandidate(path, path,
+                                                         xyz.getPath(), path);
+        FitnessResult result = FitnessRuCH2BndLng.evaluate(candidate);
+        summary.add(result.getStats());
+        FitnessRuCH2BndLng.logStats(candidate, path, result.getMolecule(), 
+                                                                     result);
+        FitnessRuCH2BndLng.storeResult(candidate, result.getMolecule(), 
+                                                                     result);
+        if (params.getGenerationSdfDir() != null
+            && result.getMolecule() != null)
+        {
+            try
+            {
+                getGenerationWriter(fitSdf.getAbsoluteFile().getParentFile())
+                        .write(fitSdf.getName(), result.getMolecule(), result);
+            }
+            catch (Exception e)
+            {
+                LOGGER.log(Level.SEVERE, "Could not write " + path
+                           + " to generation SDF", e);
+            }
+        }
+
+        Object uid = null;
+        Object descriptors = null;
+        if (result.getMolecule() != null)
+        {
+            uid = result.getMolecule().getProperty("UID");
+            descriptors = result.getMolecule().getProperty("Descriptors");
+        }
+        line.append(uid == null ? "" : uid).append("\t");
+        if (result.hasFitness())
+        {
+            numOK.incrementAndGet();
+            line.append("OK\t");
+            line.append(String.format("%8.5f", result.getFitness()).trim());
+            line.append("\t").append(descriptors).append("\t");
+        }
+        else
+        {
+            countFailure(getReason(result));
+            line.append(result.isFailure() ? "FAILED\t\t" : "MOL_ERROR\t\t");
+            line.append(descriptors == null ? "" : descriptors).append("\t");
+            line.append(result.getMolError());
+        }
+        appendLine(line.toString());
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * @return the writer of the generation SDF file of a folder, created
+     * when first needed
+     */
+    private GenerationSdfWriter getGenerationWriter(File folder)
+            throws Exception
+    {
+        GenerationSdfWriter genWriter = genWriters.get(folder);
+        if (genWriter != null)
+        {
+            return genWriter;
+        }
+        synchronized (genWriters)
+        {
+            genWriter = genWriters.get(folder);
+            if (genWriter == null)
+            {
+                String name = folder.getName();
+                if (folder.getParentFile() != null)
+                {
+                    name = folder.getParentFile().getName() + "_" + name;
+                }
+                File dir = new File(params.getGenerationSdfDir());
+                File sdf = new File(dir, name + ".sdf");
+                sdf.delete();
+                new File(sdf.getPath() + GenerationSdfWriter.INDEXSUFFIX)
+                                                                    .delete();
+                genWriter = new GenerationSdfWriter(sdf,
+                                  new File(dir, name + ".txt"),
+                                  params.getGenerationTopK());
+                genWriters.put(folder, genWriter);
+            }
+            return genWriter;
+        }
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Removes the values from the MOL_ERROR message to collect candidates
+     * failing for the same reason.
+     */
+    private static String getReason(FitnessResult result)
+    {
+        String msg = result.getMolError();
+        if (result.isFailure())
+        {
+            int i = msg.indexOf(":", msg.indexOf(":") + 1);
+            return i < 0 ? msg : msg.substring(0, i);
+        }
+        return msg.replaceAll("\\s*-?[0-9.]+$", "");
+    }
+
+//------------------------------------------------------------------------------
+
+    private void countFailure(String reason)
+    {
+        AtomicInteger counter = failures.get(reason);
+        if (counter == null)
+        {
+            failures.putIfAbsent(reason, new AtomicInteger());
+            counter = failures.get(reason);
+        }
+        counter.incrementAndGet();
+    }
+
+//------------------------------------------------------------------------------
+
+    private void appendLine(String line)
+    {
+        synchronized (writer)
+        {
+            try
+            {
+                writer.write(line);
+                writer.newLine();
+            }
+            catch (IOException e)
+            {
+                LOGGER.log(Level.SEVERE, "Could not write results.", e);
+            }
+        }
+    }
+
+//------------------------------------------------------------------------------
+
+}
@@ -0,0 +1,213 @@
+package fitnessruch2bndlng;
+
+/*
+ *   Copyright (C) 2016
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Affero General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.logging.Logger;
+
+/**
+ * Parallel walk over results trees (e.g., <code>results/run_*</code>).
+ * Folders are visited recursively using a work-stealing pool: each file
+ * whose name ends with one of the given suffixes (by default
+ * <code>*_FIT.sdf</code>) is passed to the {@link Visitor} in a task of its
+ * own, while subfolders are forked to be picked up by idle workers.
+ * The visitor is therefore called concurrently and must be thread-safe.
+ */
+
+public class ResultFolderWalker
+{
+    private static final Logger LOGGER = Logger.getLogger(
+            ResultFolderWalker.class.getName());
+
+    /**
+     * Suffix of the files holding the outcome of an evaluation.
+     */
+    public static final String FITSUFFIX = "_FIT.sdf";
+
+    /**
+     * Suffix of the files holding the geometry optimized by DFT.
+     */
+    public static final String XYZSUFFIX = "_DFT.xyz";
+
+    private final Visitor visitor;
+    private final String[] suffixes;
+    private int parallelism = 0;
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Callback receiving the files found by the walk.
+     */
+    public interface Visitor
+    {
+        /**
+         * @param file the file found
+         * @param base the name of the file without the matching suffix
+         */
+        void visit(File file, String base);
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Creates a walker visiting the <code>*_FIT.sdf</code> files.
+     */
+    public ResultFolderWalker(Visitor visitor)
+    {
+        this(visitor, FITSUFFIX);
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * @param fitSdf a <code>*_FIT.sdf</code> file
+     * @return the <code>*_DFT.xyz</code> file next to it, which may not
+     * exist
+     */
+    public static File getXYZFile(File fitSdf)
+    {
+        String path = fitSdf.getPath();
+        return new File(path.substring(0, path.length() - FITSUFFIX.length())
+                        + XYZSUFFIX);
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Creates a walker visiting the files whose name ends with any of the
+     * given suffixes.
+     */
+    public ResultFolderWalker(Visitor visitor, String... suffixes)
+    {
+        this.visitor = visitor;
+        this.suffixes = suffixes;
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Visits all the matching files under the given folders and returns
+     * when all of them have been visited.
+     */
+    public void walk(List<File> roots)
+    {
+        ForkJoinPool pool = new ForkJoinPool();
+        parallelism = pool.getParallelism();
+        List<FolderTask> tasks = new ArrayList<FolderTask>();
+        for (File root : roots)
+        {
+            tasks.add(new FolderTask(root));
+        }
+        for (FolderTask task : tasks)
+        {
+            pool.execute(task);
+        }
+        for (FolderTask task : tasks)
+        {
+            task.join();
+        }
+        pool.shutdown();
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * @return the number of threads used by the last walk
+     */
+    public int getParallelism()
+    {
+        return parallelism;
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Visits one folder, forking one task per subfolder and per file.
+     */
+    private class FolderTask extends RecursiveAction
+    {
+        private static final long serialVersionUID = 1L;
+
+        private final File folder;
+
+        FolderTask(File folder)
+        {
+            this.folder = folder;
+        }
+
+        @Override
+        protected void compute()
+        {
+            File[] files = folder.listFiles();
+            if (files == null)
+            {
+                LOGGER.warning("Cannot list content of " + folder);
+                return;
+            }
+
+            List<RecursiveAction> subtasks = new ArrayList<RecursiveAction>();
+            for (File f : files)
+            {
+                if (f.isDirectory())
+                {
+                    subtasks.add(new FolderTask(f));
+                    continue;
+                }
+                String name = f.getName();
+                for (String suffix : suffixes)
+                {
+                    if (name.endsWith(suffix))
+                    {
+                        subtasks.add(new FileTask(f, name.substring(0,
+                                           name.length() - suffix.length())));
+                    }
+                }
+            }
+            invokeAll(subtasks);
+        }
+    }
+
+//------------------------------------------------------------------------------
+
+    private class FileTask extends RecursiveAction
+    {
+        private static final long serialVersionUID = 1L;
+
+        private final File file;
+        private final String base;
+
+        FileTask(File file, String base)
+        {
+            this.file = file;
+            this.base = base;
+        }
+
+        @Override
+        protected void compute()
+        {
+            visitor.visit(file, base);
+        }
+    }
+
+//------------------------------------------------------------------------------
+
+}
@@ -0,0 +1,595 @@
+package fitnessruch2bndlng;
+
+/*
+ *   Copyright (C) 2016
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Affero General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.vecmath.Point3d;
+
+import org.openscience.cdk.interfaces.IAtom;
+import org.openscience.cdk.interfaces.IAtomContainer;
+import org.openscience.cdk.io.SDFWriter;
+
+/**
+ * Clusters the DFT geometries of the candidates found under one or more
+ * folders (e.g., <code>results/run_*&#47;Final*</code>) according to the
+ * RMSD of their Ru(Cl)(Cl)(L)=CH2 cores after superposition (see
+ * {@link CoreSuperposition}). Each <code>*_FIT.sdf</code> file with a
+ * FITNESS and a matching <code>*_DFT.xyz</code> file is one structure, and
+ * candidates found more than once (same UID) are used only once.
+ * <br><br>
+ * All pairs are compared in parallel, and only whether a pair is within
+ * the cutoff is kept: one bit per pair in a triangular matrix. This keeps
+ * the memory to about n<sup>2</sup>/16 bytes, and lets most comparisons
+ * stop as soon as they are known to exceed the cutoff: first by a bound
+ * that ignores the rotation (see {@link CoreSuperposition#lowerBound}),
+ * then during the search of the optimal rotation. Structures are
+ * sorted by the radius of gyration of their core, which is a lower bound
+ * of the RMSD, so that each structure is compared only with the range of
+ * structures whose radius differs by less than the cutoff. Clusters are then
+ * defined with the algorithm of Butina (J. Chem. Inf. Comput. Sci. 39, 747,
+ * 1999): the structure with most neighbours becomes the centroid of a
+ * cluster including all its neighbours not yet assigned, and so on.
+ * <br><br>
+ * The output folder gets <code>clusters.txt</code>, listing all structures
+ * by cluster, and one <code>cluster_N.sdf</code> file for each cluster
+ * with at least {@value #MINSDFSIZE} members, numbered by decreasing size.
+ * In the SDF files, the members are superposed to the centroid of the
+ * cluster, which comes first, and have the CLUSTER and RMSD_TO_CENTROID
+ * properties.
+ */
+
+public class RmsdClustering
+{
+    private static final Logger LOGGER = Logger.getLogger(
+            RmsdClustering.class.getName());
+
+    /**
+     * Smallest cluster written to an SDF file.
+     */
+    public static final int MINSDFSIZE = 2;
+
+    private final double cutoff;
+    private final int numThreads;
+
+    //Structures found in the folders, by UID
+    private final Map<String,Structure> found =
+                                  new ConcurrentHashMap<String,Structure>();
+    private final AtomicInteger numSkipped = new AtomicInteger();
+
+    //Structures to cluster, and their centered cores
+    private Structure[] structures;
+    private double[] cores;
+    private double[] sumSquares;
+    private double[] radii;
+    private double[] distances;
+
+    //Triangular matrix of neighbours: bit j of row i (j < i) is set if the
+    //RMSD between i and j is within the cutoff. Rows start on a new word,
+    //so that they can be filled concurrently.
+    private long[] neighbours;
+    private int[] rowStart;
+
+//------------------------------------------------------------------------------
+
+    private static class Structure
+    {
+        final File fitSdf;
+        final File xyz;
+        final String uid;
+        final String fitness;
+        final double[] core = new double[CoreSuperposition.CORESIZE];
+        final double[] mean = new double[3];
+        double radius;
+
+        Structure(File fitSdf, File xyz, String uid, String fitness)
+        {
+            this.fitSdf = fitSdf;
+            this.xyz = xyz;
+            this.uid = uid;
+            this.fitness = fitness;
+        }
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * @param args the command line arguments
+     */
+    public static void main(String[] args)
+    {
+        if (args.length < 3)
+        {
+            System.err.println("Usage: java -cp FitnessRuCH2BndLng.jar "
+                    + "fitnessruch2bndlng.RmsdClustering cutoff "
+                    + "outputFolder rootFolder [rootFolder ...]");
+            System.exit(-1);
+        }
+
+        try
+        {
+            double cutoff = Double.parseDouble(args[0]);
+            File outDir = new File(args[1]);
+            List<File> roots = new ArrayList<File>();
+            for (int i=2; i<args.length; i++)
+            {
+                roots.add(new File(args[i]));
+            }
+            RmsdClustering clustering = new RmsdClustering(cutoff,
+                                 Runtime.getRuntime().availableProcessors());
+            clustering.collect(roots);
+            List<int[]> clusters = clustering.cluster();
+            clustering.write(clusters, outDir);
+        }
+        catch (Exception e)
+        {
+            LOGGER.log(Level.SEVERE, null, e);
+            System.exit(-1);
+        }
+        System.exit(0);
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * @param cutoff the largest RMSD between the centroid and the members
+     * of a cluster
+     * @param numThreads the number of threads comparing structures
+     */
+    public RmsdClustering(double cutoff, int numThreads)
+    {
+        this.cutoff = cutoff;
+        this.numThreads = numThreads;
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Reads the cores of all the structures under the given folders.
+     */
+    public void collect(List<File> roots)
+    {
+        long start = System.nanoTime();
+        new ResultFolderWalker(new ResultFolderWalker.Visitor() {
+            public void visit(File fitSdf, String base)
+            {
+                readStructure(fitSdf);
+            }
+        }).walk(roots);
+
+        // Sorting by radius of gyration bounds the range of comparisons, and
+        // the paths make the clustering reproducible
+        List<Structure> list = new ArrayList<Structure>(found.values());
+        Collections.sort(list, new Comparator<Structure>() {
+            public int compare(Structure a, Structure b)
+            {
+                int c = Double.compare(a.radius, b.radius);
+                return c != 0 ? c : a.fitSdf.getPath().compareTo(
+                                                        b.fitSdf.getPath());
+            }
+        });
+        structures = list.toArray(new Structure[list.size()]);
+        int n = structures.length;
+        cores = new double[n * CoreSuperposition.CORESIZE];
+        sumSquares = new double[n];
+        radii = new double[n];
+        distances = new double[n * GeometryKernel.NUMROLES];
+        for (int i=0; i<n; i++)
+        {
+            int offset = i * CoreSuperposition.CORESIZE;
+            System.arraycopy(structures[i].core, 0, cores, offset,
+                             CoreSuperposition.CORESIZE);
+            sumSquares[i] = CoreSuperposition.center(cores, offset, null);
+            radii[i] = structures[i].radius;
+            CoreSuperposition.atomDistances(cores, offset, distances,
+                                            i * GeometryKernel.NUMROLES);
+        }
+        System.out.println(String.format("Read %d structures in %.2f s "
+                + "(%d skipped).", n, (System.nanoTime() - start) / 1.0e9,
+                numSkipped.get()));
+    }
+
+//------------------------------------------------------------------------------
+
+    private void readStructure(File fitSdf)
+    {
+        String path = fitSdf.getPath();
+        File xyz = ResultFolderWalker.getXYZFile(fitSdf);
+        if (!xyz.exists())
+        {
+            numSkipped.incrementAndGet();
+            return;
+        }
+        try
+        {
+            IAtomContainer mol = SdfIO.readSingleSDFFile(path);
+            Object fitness = mol.getProperty("FITNESS");
+            if (fitness == null)
+            {
+                numSkipped.incrementAndGet();
+                return;
+            }
+            Object uid = mol.getProperty("UID");
+            FitnessRuCH2BndLng.mergeHighPrecisionCoordinates(mol,
+                                                             xyz.getPath());
+            int[] roles = GeometryKernel.toRoles(
+                               FitnessRuCH2BndLng.defineAtomIndexes(mol));
+            Structure s = new Structure(fitSdf, xyz,
+                               uid == null ? path : uid.toString().trim(),
+                               fitness.toString().trim());
+            for (int r=0; r<GeometryKernel.NUMROLES; r++)
+            {
+                Point3d p = mol.getAtom(roles[r]).getPoint3d();
+                s.core[3*r] = p.x;
+                s.core[3*r + 1] = p.y;
+                s.core[3*r + 2] = p.z;
+            }
+            s.radius = Math.sqrt(CoreSuperposition.center(s.core, 0, s.mean)
+                                 / GeometryKernel.NUMROLES);
+
+            // Keep the first path in alphabetical order among duplicates
+            Structure old = found.putIfAbsent(s.uid, s);
+            while (old != null && path.compareTo(old.fitSdf.getPath()) < 0)
+            {
+                if (found.replace(s.uid, old, s))
+                {
+                    break;
+                }
+                old = found.get(s.uid);
+            }
+        }
+        catch (Exception e)
+        {
+            LOGGER.log(Level.WARNING, "Skipping " + fitSdf, e);
+            numSkipped.incrementAndGet();
+        }
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Compares all pairs of structures and defines the clusters.
+     * @return the clusters by decreasing size, each as the indexes of its
+     * members with the centroid first
+     */
+    public List<int[]> cluster() throws Exception
+    {
+        final int n = structures.length;
+        rowStart = new int[n + 1];
+        long words = 0;
+        for (int i=0; i<n; i++)
+        {
+            rowStart[i] = (int) words;
+            words += (i + 63) / 64;
+        }
+        if (words > Integer.MAX_VALUE)
+        {
+            throw new Exception("Too many structures (" + n + ").");
+        }
+        rowStart[n] = (int) words;
+        neighbours = new long[(int) words];
+
+        // Longest rows first, one row at a time, to balance the threads
+        long start = System.nanoTime();
+        final AtomicInteger nextRow = new AtomicInteger(n - 1);
+        final AtomicLong numPairs = new AtomicLong();
+        ExecutorService pool = Executors.newFixedThreadPool(numThreads);
+        List<Future<?>> futures = new ArrayList<Future<?>>();
+        for (int t=0; t<numThreads; t++)
+        {
+            futures.add(pool.submit(new Runnable() {
+                public void run()
+                {
+                    long count = 0;
+                    int i;
+                    while ((i = nextRow.getAndDecrement()) > 0)
+                    {
+                        count += fillRow(i);
+                    }
+                    numPairs.addAndGet(count);
+                }
+            }));
+        }
+        for (Future<?> f : futures)
+        {
+            f.get();
+        }
+        pool.shutdown();
+        System.out.println(String.format("Compared %d pairs in %.2f s "
+                + "using %d threads: %d within %.3f.",
+                (long) n * (n - 1) / 2, (System.nanoTime() - start) / 1.0e9,
+                numThreads, numPairs.get(), cutoff));
+
+        // Butina clustering
+        final int[] counts = new int[n];
+        for (int i=0; i<n; i++)
+        {
+            for (int w=rowStart[i]; w<rowStart[i+1]; w++)
+            {
+                long bits = neighbours[w];
+                counts[i] += Long.bitCount(bits);
+                while (bits != 0)
+                {
+                    int j = (w - rowStart[i]) * 64
+                            + Long.numberOfTrailingZeros(bits);
+                    counts[j]++;
+                    bits &= bits - 1;
+                }
+            }
+        }
+        Integer[] order = new Integer[n];
+        for (int i=0; i<n; i++)
+        {
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            public int compare(Integer a, Integer b)
+            {
+                int c = Integer.compare(counts[b], counts[a]);
+                return c != 0 ? c : Integer.compare(a, b);
+            }
+        });
+        boolean[] assigned = new boolean[n];
+        List<int[]> clusters = new ArrayList<int[]>();
+        int[] members = new int[n];
+        for (Integer centroid : order)
+        {
+            int c = centroid;
+            if (assigned[c])
+            {
+                continue;
+            }
+            int size = 0;
+            members[size++] = c;
+            assigned[c] = true;
+            for (int j=0; j<n; j++)
+            {
+                if (!assigned[j] && j != c && isNeighbour(c, j))
+                {
+                    members[size++] = j;
+                    assigned[j] = true;
+                }
+            }
+            clusters.add(Arrays.copyOf(members, size));
+        }
+        // Stable: ties keep the order of the centroids
+        Collections.sort(clusters, new Comparator<int[]>() {
+            public int compare(int[] a, int[] b)
+            {
+                return Integer.compare(b.length, a.length);
+            }
+        });
+        return clusters;
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Compares one structure with those preceding it and having a radius of
+     * gyration within the cutoff.
+     * @return the number of neighbours found
+     */
+    private int fillRow(int i)
+    {
+        int size = CoreSuperposition.CORESIZE;
+        int roles = GeometryKernel.NUMROLES;
+        int offI = i * size;
+        double gI = sumSquares[i];
+        int count = 0;
+        int first = Arrays.binarySearch(radii, 0, i, radii[i] - cutoff);
+        if (first < 0)
+        {
+            first = -first - 1;
+        }
+        // Equal radii may precede the position found
+        while (first > 0 && radii[first - 1] >= radii[i] - cutoff)
+        {
+            first--;
+        }
+        for (int j=first; j<i; j++)
+        {
+            if (CoreSuperposition.lowerBound(distances, i * roles, distances,
+                                             j * roles) > cutoff)
+            {
+                continue;
+            }
+            if (CoreSuperposition.isWithin(cores, offI, gI, cores, j * size,
+                                           sumSquares[j], cutoff))
+            {
+                neighbours[rowStart[i] + (j >>> 6)] |= 1L << (j & 63);
+                count++;
+            }
+        }
+        return count;
+    }
+
+//------------------------------------------------------------------------------
+
+    private boolean isNeighbour(int i, int j)
+    {
+        if (j > i)
+        {
+            int t = i;
+            i = j;
+            j = t;
+        }
+        return (neighbours[rowStart[i] + (j >>> 6)] & (1L << (j & 63))) != 0;
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Writes the list of clusters and the SDF files of the clusters.
+     */
+    public void write(List<int[]> clusters, final File outDir)
+            throws Exception
+    {
+        if (!outDir.isDirectory() && !outDir.mkdirs())
+        {
+            throw new Exception("Cannot create folder " + outDir);
+        }
+        int numSingletons = 0;
+        BufferedWriter bw = new BufferedWriter(new FileWriter(
+                                          new File(outDir, "clusters.txt")));
+        try
+        {
+            bw.write("#cluster\tsize\tcentroid\tmember\tUID\tFITNESS\tRMSD");
+            bw.newLine();
+            double[] rot = new double[9];
+            for (int k=0; k<clusters.size(); k++)
+            {
+                int[] cluster = clusters.get(k);
+                if (cluster.length == 1)
+                {
+                    numSingletons++;
+                }
+                Structure centroid = structures[cluster[0]];
+                for (int m : cluster)
+                {
+                    Structure s = structures[m];
+                    double r = superpose(cluster[0], m, rot);
+                    bw.write(k + "\t" + cluster.length + "\t"
+                             + centroid.fitSdf.getPath() + "\t"
+                             + s.fitSdf.getPath() + "\t" + s.uid + "\t"
+                             + s.fitness + "\t" + String.format("%.5f", r));
+                    bw.newLine();
+                }
+            }
+        }
+        finally
+        {
+            bw.close();
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(numThreads);
+        List<Future<?>> futures = new ArrayList<Future<?>>();
+        for (int k=0; k<clusters.size(); k++)
+        {
+            final int index = k;
+            final int[] cluster = clusters.get(k);
+            if (cluster.length < MINSDFSIZE)
+            {
+                break;
+            }
+            futures.add(pool.submit(new Runnable() {
+                public void run()
+                {
+                    File sdf = new File(outDir, "cluster_" + index + ".sdf");
+                    try
+                    {
+                        writeCluster(index, cluster, sdf);
+                    }
+                    catch (Exception e)
+                    {
+                        LOGGER.log(Level.SEVERE, "Could not write " + sdf, e);
+                    }
+                }
+            }));
+        }
+        for (Future<?> f : futures)
+        {
+            f.get();
+        }
+        pool.shutdown();
+        System.out.println(String.format("Found %d clusters (%d "
+                + "singletons), %d written to %s.", clusters.size(),
+                numSingletons, futures.size(), outDir));
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * @return the number of structures collected
+     */
+    int getStructureCount()
+    {
+        return structures.length;
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * @return the RMSD between two structures, and the rotation superposing
+     * the second to the first
+     */
+    double superpose(int i, int j, double[] rot)
+    {
+        int size = CoreSuperposition.CORESIZE;
+        return CoreSuperposition.superpose(cores, i * size, sumSquares[i],
+                                           cores, j * size, sumSquares[j],
+                                           rot);
+    }
+
+//------------------------------------------------------------------------------
+
+    private void writeCluster(int index, int[] cluster, File sdf)
+            throws Exception
+    {
+        Structure centroid = structures[cluster[0]];
+        double[] rot = new double[9];
+        SDFWriter sdfWriter = new SDFWriter(new FileWriter(sdf));
+        try
+        {
+            for (int m : cluster)
+            {
+                Structure s = structures[m];
+                double r = superpose(cluster[0], m, rot);
+                IAtomContainer mol = SdfIO.readSingleSDFFile(
+                                                       s.fitSdf.getPath());
+                FitnessRuCH2BndLng.mergeHighPrecisionCoordinates(mol,
+                                                           s.xyz.getPath());
+
+                // Move to the frame of the centroid
+                for (IAtom atom : mol.atoms())
+                {
+                    Point3d p = atom.getPoint3d();
+                    double x = p.x - s.mean[0];
+                    double y = p.y - s.mean[1];
+                    double z = p.z - s.mean[2];
+                    p.set(rot[0]*x + rot[1]*y + rot[2]*z + centroid.mean[0],
+                          rot[3]*x + rot[4]*y + rot[5]*z + centroid.mean[1],
+                          rot[6]*x + rot[7]*y + rot[8]*z + centroid.mean[2]);
+                }
+                mol.setProperty("CLUSTER", String.valueOf(index));
+                mol.setProperty("RMSD_TO_CENTROID", String.format("%.5f", r));
+                sdfWriter.write(mol);
+            }
+        }
+        finally
+        {
+            sdfWriter.close();
+        }
+    }
+
+//------------------------------------------------------------------------------
+
+}
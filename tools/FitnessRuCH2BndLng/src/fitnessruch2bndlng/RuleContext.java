@@ -0,0 +1,159 @@
+package fitnessruch2bndlng;
+
+/*
+ *   Copyright (C) 2016
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Affero General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+import javax.vecmath.Point3d;
+
+import org.openscience.cdk.interfaces.IAtomContainer;
+
+/**
+ * The data constraint rules are evaluated on: coordinates as a flat array,
+ * atomic numbers, lists of bonded neighbours, and the indexes of the core
+ * atoms by role (see {@link GeometryKernel}). The mask of 1-2 and 1-3 pairs
+ * is built only if a rule needs it.
+ */
+
+public class RuleContext
+{
+    private final double[] xyz;
+    private final int[] atomicNumbers;
+    private final int[][] nbrs;
+    private final int[] roles;
+    private final boolean[] core;
+    private BondedPairMask mask;
+
+//------------------------------------------------------------------------------
+
+    /**
+     * @param xyz coordinates (x,y,z for each atom)
+     * @param atomicNumbers atomic number of each atom
+     * @param nbrs indexes of the atoms bonded to each atom
+     * @param roles indexes of the core atoms by role
+     */
+    public RuleContext(double[] xyz, int[] atomicNumbers, int[][] nbrs,
+                       int[] roles)
+    {
+        this.xyz = xyz;
+        this.atomicNumbers = atomicNumbers;
+        this.nbrs = nbrs;
+        this.roles = roles;
+        this.core = new boolean[atomicNumbers.length];
+        for (int r : roles)
+        {
+            core[r] = true;
+        }
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Collects the data of a molecule with 3D coordinates.
+     * @param mol the molecule
+     * @param roles indexes of the core atoms by role
+     */
+    public static RuleContext fromMolecule(IAtomContainer mol, int[] roles)
+    {
+        int n = mol.getAtomCount();
+        double[] xyz = new double[3*n];
+        int[] atomicNumbers = new int[n];
+        for (int i=0; i<n; i++)
+        {
+            Point3d p = mol.getAtom(i).getPoint3d();
+            xyz[3*i] = p.x;
+            xyz[3*i+1] = p.y;
+            xyz[3*i+2] = p.z;
+            atomicNumbers[i] = PeriodicTable.getAtomicNumber(
+                                               mol.getAtom(i).getSymbol());
+        }
+        return new RuleContext(xyz, atomicNumbers, 
+                               BondedPairMask.getNeighbours(mol), roles);
+    }
+
+//------------------------------------------------------------------------------
+
+    public double[] getCoordinates()
+    {
+        return xyz;
+    }
+
+    public int getAtomCount()
+    {
+        return atomicNumbers.length;
+    }
+
+    public int getAtomicNumber(int i)
+    {
+        return atomicNumbers[i];
+    }
+
+    public int[] getNeighbours(int i)
+    {
+        return nbrs[i];
+    }
+
+    public int getAtomWithRole(int role)
+    {
+        return roles[role];
+    }
+
+    public boolean isCore(int i)
+    {
+        return core[i];
+    }
+
+//------------------------------------------------------------------------------
+
+    public boolean isBonded(int i, int j)
+    {
+        for (int k : nbrs[i])
+        {
+            if (k == j)
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * @return the mask of 1-2 and 1-3 pairs
+     */
+    public BondedPairMask getBondedPairMask()
+    {
+        if (mask == null)
+        {
+            mask = BondedPairMask.fromNeighbours(nbrs);
+        }
+        return mask;
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * @return a label like "Ru1" for atom i
+     */
+    public String getAtomLabel(int i)
+    {
+        String sym = PeriodicTable.getSymbol(atomicNumbers[i]);
+        return (sym == null ? "?" : sym) + (i+1);
+    }
+
+//------------------------------------------------------------------------------
+
+}
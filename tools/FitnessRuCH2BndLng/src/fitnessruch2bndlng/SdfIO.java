@@ -0,0 +1,150 @@
+package fitnessruch2bndlng;
+
+/*
+ *   Copyright (C) 2016
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Affero General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+import java.io.ByteArrayInputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import org.openscience.cdk.ChemFile;
+import org.openscience.cdk.ChemObject;
+import org.openscience.cdk.interfaces.IAtomContainer;
+import org.openscience.cdk.io.MDLV2000Reader;
+import org.openscience.cdk.io.SDFWriter;
+import org.openscience.cdk.tools.manipulator.ChemFileManipulator;
+
+/**
+ * Reading and writing of SDF files with the MDL reader and writer of CDK.
+ * These are the only operations this tool needs from DENOPTIM's IO, which
+ * is therefore not required at runtime.
+ */
+
+public class SdfIO
+{
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Reads the first molecule of an SDF file.
+     * @param filename the SDF file
+     * @return the molecule
+     * @throws Exception if the file cannot be read or contains no molecule
+     */
+    public static IAtomContainer readSingleSDFFile(String filename)
+            throws Exception
+    {
+        MDLV2000Reader mdlreader = null;
+        List<IAtomContainer> lstContainers;
+        try
+        {
+            mdlreader = new MDLV2000Reader(new FileReader(filename));
+            ChemFile chemFile = (ChemFile) mdlreader.read(
+                                                 (ChemObject) new ChemFile());
+            lstContainers = ChemFileManipulator.getAllAtomContainers(
+                                                                  chemFile);
+        }
+        catch (Exception e)
+        {
+            throw new Exception("Cannot read " + filename + ": " 
+                                + e.getMessage(), e);
+        }
+        finally
+        {
+            if (mdlreader != null)
+            {
+                mdlreader.close();
+            }
+        }
+
+        if (lstContainers.isEmpty())
+        {
+            throw new Exception("No data found in " + filename);
+        }
+        return lstContainers.get(0);
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Reads the first molecule of SDF data held in memory, e.g., an entry
+     * of an archive or a record of a generation SDF file.
+     * @param sdf the SDF data, UTF-8 encoded
+     * @param name the origin of the data, used in error messages
+     * @return the molecule
+     * @throws Exception if the data cannot be parsed or contains no molecule
+     */
+    public static IAtomContainer parseSDF(byte[] sdf, String name)
+            throws Exception
+    {
+        MDLV2000Reader reader = new MDLV2000Reader(new InputStreamReader(
+                     new ByteArrayInputStream(sdf), StandardCharsets.UTF_8));
+        ChemFile chemFile;
+        try
+        {
+            chemFile = (ChemFile) reader.read((ChemObject) new ChemFile());
+        }
+        finally
+        {
+            reader.close();
+        }
+        List<IAtomContainer> mols =
+                            ChemFileManipulator.getAllAtomContainers(chemFile);
+        if (mols.isEmpty())
+        {
+            throw new Exception("No data found in " + name);
+        }
+        return mols.get(0);
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Writes a molecule to an SDF file.
+     * @param filename the SDF file
+     * @param mol the molecule to write
+     * @param append if true, the molecule is added at the end of the file
+     * instead of replacing its content
+     */
+    public static void writeMolecule(String filename, IAtomContainer mol,
+                                     boolean append) throws Exception
+    {
+        SDFWriter sdfWriter = null;
+        try
+        {
+            sdfWriter = new SDFWriter(new FileWriter(filename, append));
+            sdfWriter.write(mol);
+        }
+        catch (Exception e)
+        {
+            throw new Exception("Cannot write " + filename + ": " 
+                                + e.getMessage(), e);
+        }
+        finally
+        {
+            if (sdfWriter != null)
+            {
+                sdfWriter.close();
+            }
+        }
+    }
+
+//------------------------------------------------------------------------------
+
+}
@@ -0,0 +1,126 @@
+package fitnessruch2bndlng;
+
+/*
+ *   Copyright (C) 2016
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Affero General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Submits DFT jobs to SLURM by means of the submission script used by
+ * <code>Ru_14-el_fitness_BndLng.sh</code>. The status of all the jobs is
+ * obtained with a single call to <code>squeue</code>.
+ * <br><br>
+ * Commands are templates where <code>{placeholders}</code> are replaced
+ * as explained in {@link CandidateOrchestrator}. Besides those of the
+ * candidate, <code>{user}</code> is the name of the user and
+ * <code>{id}</code> the identifier of the job.
+ */
+
+public class SlurmJobSubmitter implements JobSubmitter
+{
+    public static final String DEFAULTQUEUECOMMAND =
+                                               "squeue -h -o %i -u {user}";
+    public static final String DEFAULTCANCELCOMMAND = "scancel {id}";
+
+    private static final String FAILED = "Batch job submission failed";
+    private static final String SUBMITTED = "Submitted ";
+
+    private final String submitCommand;
+    private final String queueCommand;
+    private final String cancelCommand;
+
+//------------------------------------------------------------------------------
+
+    /**
+     * @param submitCommand the command submitting the job of a candidate,
+     * run from the working directory of the candidate
+     * @param queueCommand the command listing the identifiers of the jobs
+     * in the queue, one per line
+     * @param cancelCommand the command cancelling a job
+     */
+    public SlurmJobSubmitter(String submitCommand, String queueCommand,
+                             String cancelCommand)
+    {
+        this.submitCommand = submitCommand;
+        this.queueCommand = queueCommand;
+        this.cancelCommand = cancelCommand;
+    }
+
+//------------------------------------------------------------------------------
+
+    @Override
+    public String submit(CandidateOrchestrator.Candidate candidate)
+            throws Exception
+    {
+        String reply = CandidateOrchestrator.runForOutput(
+                CandidateOrchestrator.expand(submitCommand,
+                                             candidate.getPlaceholders()),
+                candidate.getWorkDir());
+        //NB: this only works for SLURM. PBS may return a different message
+        if (reply.contains(FAILED))
+        {
+            throw new Exception("#SubmitDFT: " + FAILED);
+        }
+        for (String line : reply.split("\n"))
+        {
+            if (line.contains(SUBMITTED))
+            {
+                String[] words = line.trim().split("\\s+");
+                return words[words.length - 1];
+            }
+        }
+        throw new Exception("#SubmitDFT: unexpected reply from submission "
+                            + "script: " + reply.trim());
+    }
+
+//------------------------------------------------------------------------------
+
+    @Override
+    public Set<String> getActiveJobs(Collection<String> jobIds)
+            throws Exception
+    {
+        Map<String,String> values = new HashMap<String,String>();
+        values.put("user", System.getProperty("user.name"));
+        String reply = CandidateOrchestrator.runForOutput(
+                    CandidateOrchestrator.expand(queueCommand, values), null);
+        Set<String> queued = new HashSet<String>();
+        for (String line : reply.split("\n"))
+        {
+            queued.add(line.trim());
+        }
+        Set<String> active = new HashSet<String>(jobIds);
+        active.retainAll(queued);
+        return active;
+    }
+
+//------------------------------------------------------------------------------
+
+    @Override
+    public void cancel(String jobId) throws Exception
+    {
+        Map<String,String> values = new HashMap<String,String>();
+        values.put("id", jobId);
+        CandidateOrchestrator.runForOutput(
+                   CandidateOrchestrator.expand(cancelCommand, values), null);
+    }
+
+//------------------------------------------------------------------------------
+
+}
@@ -0,0 +1,241 @@
+package fitnessruch2bndlng;
+
+/*
+ *   Copyright (C) 2016
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Affero General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+import java.util.Arrays;
+import java.util.Map;
+
+import org.openscience.cdk.interfaces.IAtomContainer;
+import org.openscience.cdk.interfaces.IBond;
+
+/**
+ * Features used by the {@link SurrogateModel} to predict the fitness of a
+ * candidate before its DFT optimization. They combine the geometric
+ * descriptors of {@link GeometryKernel}, except the Ru=C distance that
+ * defines the fitness, with counts taken from the molecular graph and from
+ * the surroundings of the L atom.
+ * <br><br>
+ * The features are calculated from flat arrays, so that historical results
+ * and new candidates go through the very same code.
+ */
+
+public class SurrogateFeatures
+{
+    /**
+     * Descriptors of {@link GeometryKernel} used as features.
+     */
+    private static final int[] DESCRIPTORS = new int[] {0, 1, 2, 3, 5, 6};
+
+    /**
+     * Names of the features, in the order they are calculated.
+     */
+    public static final String[] NAMES = new String[] {
+        "RuCl", "ClRuCl", "ClRuC", "MinTorsion", "RuL", "CRuL",
+        "nHeavy", "nH", "nC", "nN", "nO", "nS", "nHalogen",
+        "nRings", "nDouble", "nTriple",
+        "L_C", "L_N", "L_other", "L_degree", "L_shell1", "L_shell2"};
+
+    public static final int NUMFEATURES = NAMES.length;
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Calculates the features of a molecule.
+     * @param mol the molecule
+     * @param atomIndeces the atoms of the core, as from
+     * {@link FitnessRuCH2BndLng#defineAtomIndexes}
+     * @param descriptors the descriptors of the geometry
+     * @return the features
+     */
+    public static double[] compute(IAtomContainer mol,
+                  Map<String,Integer> atomIndeces, DoubleVector descriptors)
+    {
+        double[] values = new double[descriptors.length()];
+        for (int j=0; j<values.length; j++)
+        {
+            values[j] = descriptors.getValue(j);
+        }
+        int[] atomicNumbers = new int[mol.getAtomCount()];
+        for (int i=0; i<atomicNumbers.length; i++)
+        {
+            atomicNumbers[i] = PeriodicTable.getAtomicNumber(
+                                                mol.getAtom(i).getSymbol());
+        }
+        int numBonds = mol.getBondCount();
+        int[] begin = new int[numBonds];
+        int[] end = new int[numBonds];
+        int[] order = new int[numBonds];
+        for (int b=0; b<numBonds; b++)
+        {
+            IBond bond = mol.getBond(b);
+            begin[b] = mol.getAtomNumber(bond.getAtom(0));
+            end[b] = mol.getAtomNumber(bond.getAtom(1));
+            order[b] = bond.getOrder() == null ? 1
+                                               : bond.getOrder().ordinal() + 1;
+        }
+        double[] features = new double[NUMFEATURES];
+        compute(atomicNumbers, begin, end, order,
+                GeometryKernel.toRoles(atomIndeces), values, features);
+        return features;
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Calculates the features from the graph given as flat arrays.
+     * @param atomicNumbers the atomic number of each atom
+     * @param begin the first atom of each bond
+     * @param end the second atom of each bond
+     * @param order the order of each bond (1, 2, 3...)
+     * @param roles indexes of the core atoms by role, see
+     * {@link GeometryKernel}
+     * @param descriptors the descriptors of the geometry
+     * @param out array where to store the features
+     */
+    static void compute(int[] atomicNumbers, int[] begin, int[] end,
+                        int[] order, int[] roles, double[] descriptors,
+                        double[] out)
+    {
+        int k = 0;
+        for (int d : DESCRIPTORS)
+        {
+            out[k++] = descriptors[d];
+        }
+
+        int numAtoms = atomicNumbers.length;
+        int heavy = 0, nH = 0, nC = 0, nN = 0, nO = 0, nS = 0, nHal = 0;
+        for (int z : atomicNumbers)
+        {
+            switch (z)
+            {
+                case 1:
+                    nH++;
+                    break;
+                case 6:
+                    nC++;
+                    break;
+                case 7:
+                    nN++;
+                    break;
+                case 8:
+                    nO++;
+                    break;
+                case 16:
+                    nS++;
+                    break;
+                case 9:
+                case 17:
+                case 35:
+                case 53:
+                    nHal++;
+                    break;
+                default:
+                    break;
+            }
+            if (z != 1)
+            {
+                heavy++;
+            }
+        }
+        out[k++] = heavy;
+        out[k++] = nH;
+        out[k++] = nC;
+        out[k++] = nN;
+        out[k++] = nO;
+        out[k++] = nS;
+        // The two Cl atoms of the core are the same for all candidates
+        out[k++] = nHal - 2;
+
+        int nDouble = 0, nTriple = 0;
+        for (int o : order)
+        {
+            if (o == 2)
+            {
+                nDouble++;
+            }
+            else if (o >= 3)
+            {
+                nTriple++;
+            }
+        }
+        // Cycle rank of a connected graph
+        out[k++] = begin.length - numAtoms + 1;
+        out[k++] = nDouble;
+        out[k++] = nTriple;
+
+        // Element and surroundings of the atom bound to Ru
+        int iL = roles[GeometryKernel.L];
+        int iRu = roles[GeometryKernel.RU];
+        int zL = atomicNumbers[iL];
+        out[k++] = zL == 6 ? 1.0 : 0.0;
+        out[k++] = zL == 7 ? 1.0 : 0.0;
+        out[k++] = (zL != 6 && zL != 7) ? 1.0 : 0.0;
+
+        // Breadth-first shells of heavy atoms around L, Ru excluded
+        int[] depth = new int[numAtoms];
+        Arrays.fill(depth, -1);
+        depth[iL] = 0;
+        depth[iRu] = 0;
+        int degree = 0, shell1 = 0, shell2 = 0;
+        for (int level=0; level<2; level++)
+        {
+            for (int b=0; b<begin.length; b++)
+            {
+                int i = begin[b];
+                int j = end[b];
+                int from = -1, to = -1;
+                if (depth[i] == level && depth[j] < 0 && i != iRu)
+                {
+                    from = i;
+                    to = j;
+                }
+                else if (depth[j] == level && depth[i] < 0 && j != iRu)
+                {
+                    from = j;
+                    to = i;
+                }
+                if (from < 0 || (level == 0 && from != iL))
+                {
+                    continue;
+                }
+                if (level == 0)
+                {
+                    degree++;
+                }
+                if (atomicNumbers[to] == 1)
+                {
+                    continue;
+                }
+                depth[to] = level + 1;
+                if (level == 0)
+                {
+                    shell1++;
+                }
+                else
+                {
+                    shell2++;
+                }
+            }
+        }
+        out[k++] = degree;
+        out[k++] = shell1;
+        out[k++] = shell2;
+    }
+
+//------------------------------------------------------------------------------
+
+}
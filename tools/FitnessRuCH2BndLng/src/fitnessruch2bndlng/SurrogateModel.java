@@ -0,0 +1,475 @@
+package fitnessruch2bndlng;
+
+/*
+ *   Copyright (C) 2016
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Affero General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Fast estimate of the fitness of a candidate from features available
+ * before the DFT optimization (see {@link SurrogateFeatures}). The model is
+ * an ensemble of ridge regressions, each fitted on a bootstrap sample of
+ * the training set. The prediction is the mean over the ensemble, and its
+ * uncertainty combines the spread of the ensemble with the out-of-bag error
+ * of the ensemble on the training set.
+ * <br><br>
+ * Models are saved as text files with one <code>key value...</code> line
+ * per item.
+ */
+
+public class SurrogateModel
+{
+    private final String[] featureNames;
+    private final double[] means;
+    private final double[] scales;
+
+    //Intercept followed by the weights of the standardized features, for
+    //each member of the ensemble
+    private final double[][] weights;
+
+    //Out-of-bag root mean square error
+    private final double residual;
+
+//------------------------------------------------------------------------------
+
+    /**
+     * A predicted fitness and its uncertainty.
+     */
+    public static class Prediction
+    {
+        private final double mean;
+        private final double sigma;
+
+        Prediction(double mean, double sigma)
+        {
+            this.mean = mean;
+            this.sigma = sigma;
+        }
+
+        public double getMean()
+        {
+            return mean;
+        }
+
+        /**
+         * @return the standard deviation of the prediction
+         */
+        public double getSigma()
+        {
+            return sigma;
+        }
+
+        /**
+         * @param kappa the number of standard deviations
+         * @return the optimistic estimate <code>mean + kappa*sigma</code>
+         */
+        public double getUpperBound(double kappa)
+        {
+            return mean + kappa * sigma;
+        }
+    }
+
+//------------------------------------------------------------------------------
+
+    private SurrogateModel(String[] featureNames, double[] means,
+                           double[] scales, double[][] weights,
+                           double residual)
+    {
+        this.featureNames = featureNames;
+        this.means = means;
+        this.scales = scales;
+        this.weights = weights;
+        this.residual = residual;
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Fits the model.
+     * @param featureNames the names of the features
+     * @param x the features of each training candidate
+     * @param y the fitness of each training candidate
+     * @param numModels the size of the ensemble
+     * @param lambda the ridge penalty, relative to the number of samples
+     * @param seed the seed for the bootstrap samples
+     * @return the fitted model
+     */
+    public static SurrogateModel train(String[] featureNames, double[][] x,
+                  double[] y, int numModels, double lambda, long seed)
+            throws Exception
+    {
+        int n = y.length;
+        int nf = featureNames.length;
+        if (n < 2)
+        {
+            throw new Exception("Not enough data to train the surrogate "
+                                + "model (" + n + " candidates).");
+        }
+
+        // Standardize once on the whole set
+        double[] means = new double[nf];
+        double[] scales = new double[nf];
+        for (int j=0; j<nf; j++)
+        {
+            double sum = 0.0;
+            for (int i=0; i<n; i++)
+            {
+                sum += x[i][j];
+            }
+            means[j] = sum / n;
+            double ss = 0.0;
+            for (int i=0; i<n; i++)
+            {
+                double d = x[i][j] - means[j];
+                ss += d * d;
+            }
+            double sd = Math.sqrt(ss / n);
+            // Constant features get zero weight
+            scales[j] = sd > 1.0e-12 ? sd : Double.POSITIVE_INFINITY;
+        }
+        double[][] z = new double[n][nf];
+        for (int i=0; i<n; i++)
+        {
+            for (int j=0; j<nf; j++)
+            {
+                z[i][j] = (x[i][j] - means[j]) / scales[j];
+            }
+        }
+
+        Random rng = new Random(seed);
+        double[][] weights = new double[numModels][];
+        double[] oobSum = new double[n];
+        int[] oobCount = new int[n];
+        int[] sample = new int[n];
+        boolean[] inBag = new boolean[n];
+        for (int m=0; m<numModels; m++)
+        {
+            Arrays.fill(inBag, false);
+            for (int i=0; i<n; i++)
+            {
+                sample[i] = rng.nextInt(n);
+                inBag[sample[i]] = true;
+            }
+            weights[m] = fitRidge(z, y, sample, lambda * n);
+            for (int i=0; i<n; i++)
+            {
+                if (!inBag[i])
+                {
+                    oobSum[i] += dot(weights[m], z[i]);
+                    oobCount[i]++;
+                }
+            }
+        }
+
+        double sse = 0.0;
+        int numOob = 0;
+        for (int i=0; i<n; i++)
+        {
+            if (oobCount[i] > 0)
+            {
+                double d = oobSum[i] / oobCount[i] - y[i];
+                sse += d * d;
+                numOob++;
+            }
+        }
+        double residual = numOob > 0 ? Math.sqrt(sse / numOob) : 0.0;
+        return new SurrogateModel(featureNames.clone(), means, scales,
+                                  weights, residual);
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Solves the ridge regression on a sample of the standardized data.
+     * The intercept is not penalized.
+     * @return the intercept followed by the weights
+     */
+    private static double[] fitRidge(double[][] z, double[] y, int[] sample,
+                                     double penalty)
+    {
+        int nf = z[0].length;
+        int dim = nf + 1;
+        double[][] a = new double[dim][dim];
+        double[] b = new double[dim];
+        double[] row = new double[dim];
+        row[0] = 1.0;
+        for (int s : sample)
+        {
+            System.arraycopy(z[s], 0, row, 1, nf);
+            for (int p=0; p<dim; p++)
+            {
+                b[p] += row[p] * y[s];
+                for (int q=0; q<=p; q++)
+                {
+                    a[p][q] += row[p] * row[q];
+                }
+            }
+        }
+        for (int p=1; p<dim; p++)
+        {
+            a[p][p] += penalty;
+        }
+        // Tiny ridge on the intercept keeps the system positive definite
+        a[0][0] += 1.0e-9;
+        return solveCholesky(a, b);
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Solves a symmetric positive definite system given by its lower
+     * triangle.
+     */
+    private static double[] solveCholesky(double[][] a, double[] b)
+    {
+        int n = b.length;
+        double[][] l = new double[n][n];
+        for (int i=0; i<n; i++)
+        {
+            for (int j=0; j<=i; j++)
+            {
+                double sum = a[i][j];
+                for (int k=0; k<j; k++)
+                {
+                    sum -= l[i][k] * l[j][k];
+                }
+                if (i == j)
+                {
+                    l[i][i] = Math.sqrt(Math.max(sum, 1.0e-12));
+                }
+                else
+                {
+                    l[i][j] = sum / l[j][j];
+                }
+            }
+        }
+        double[] v = new double[n];
+        for (int i=0; i<n; i++)
+        {
+            double sum = b[i];
+            for (int k=0; k<i; k++)
+            {
+                sum -= l[i][k] * v[k];
+            }
+            v[i] = sum / l[i][i];
+        }
+        double[] w = new double[n];
+        for (int i=n-1; i>=0; i--)
+        {
+            double sum = v[i];
+            for (int k=i+1; k<n; k++)
+            {
+                sum -= l[k][i] * w[k];
+            }
+            w[i] = sum / l[i][i];
+        }
+        return w;
+    }
+
+//------------------------------------------------------------------------------
+
+    private static double dot(double[] w, double[] z)
+    {
+        double sum = w[0];
+        for (int j=0; j<z.length; j++)
+        {
+            sum += w[j + 1] * z[j];
+        }
+        return sum;
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Predicts the fitness of a candidate. No object is created besides the
+     * returned one.
+     * @param x the features, in the order of {@link #getFeatureNames}
+     * @return the predicted fitness and its uncertainty
+     */
+    public Prediction predict(double[] x)
+    {
+        int nf = means.length;
+        double sum = 0.0;
+        double sumSq = 0.0;
+        for (double[] w : weights)
+        {
+            double p = w[0];
+            for (int j=0; j<nf; j++)
+            {
+                p += w[j + 1] * (x[j] - means[j]) / scales[j];
+            }
+            sum += p;
+            sumSq += p * p;
+        }
+        int m = weights.length;
+        double mean = sum / m;
+        double spread = Math.max(0.0, sumSq / m - mean * mean);
+        return new Prediction(mean, Math.sqrt(spread + residual * residual));
+    }
+
+//------------------------------------------------------------------------------
+
+    public String[] getFeatureNames()
+    {
+        return featureNames.clone();
+    }
+
+    /**
+     * @return the out-of-bag root mean square error of the training
+     */
+    public double getResidual()
+    {
+        return residual;
+    }
+
+//------------------------------------------------------------------------------
+
+    public void save(File file) throws Exception
+    {
+        PrintWriter pw = new PrintWriter(new FileWriter(file));
+        try
+        {
+            pw.println("# Surrogate fitness model (bagged ridge regression)");
+            pw.println("features " + join(featureNames));
+            pw.println("means " + join(means));
+            pw.println("scales " + join(scales));
+            pw.println("residual " + residual);
+            for (double[] w : weights)
+            {
+                pw.println("weights " + join(w));
+            }
+        }
+        finally
+        {
+            pw.close();
+        }
+    }
+
+//------------------------------------------------------------------------------
+
+    public static SurrogateModel load(File file) throws Exception
+    {
+        String[] names = null;
+        double[] means = null;
+        double[] scales = null;
+        double residual = 0.0;
+        List<double[]> weights = new ArrayList<double[]>();
+        BufferedReader br = null;
+        String line;
+        try
+        {
+            br = new BufferedReader(new FileReader(file));
+            while ((line = br.readLine()) != null)
+            {
+                line = line.trim();
+                if (line.length() == 0 || line.startsWith("#"))
+                {
+                    continue;
+                }
+                String[] parts = line.split("\\s+");
+                String key = parts[0];
+                if (key.equals("features"))
+                {
+                    names = new String[parts.length - 1];
+                    System.arraycopy(parts, 1, names, 0, names.length);
+                }
+                else if (key.equals("means"))
+                {
+                    means = parseValues(parts);
+                }
+                else if (key.equals("scales"))
+                {
+                    scales = parseValues(parts);
+                }
+                else if (key.equals("residual"))
+                {
+                    residual = Double.parseDouble(parts[1]);
+                }
+                else if (key.equals("weights"))
+                {
+                    weights.add(parseValues(parts));
+                }
+            }
+        }
+        finally
+        {
+            if (br != null)
+            {
+                br.close();
+            }
+        }
+
+        if (names == null || means == null || scales == null
+            || weights.isEmpty() || means.length != names.length
+            || scales.length != names.length)
+        {
+            throw new Exception("Malformed surrogate model " + file);
+        }
+        for (double[] w : weights)
+        {
+            if (w.length != names.length + 1)
+            {
+                throw new Exception("Malformed surrogate model " + file);
+            }
+        }
+        return new SurrogateModel(names, means, scales,
+                       weights.toArray(new double[weights.size()][]),
+                       residual);
+    }
+
+//------------------------------------------------------------------------------
+
+    private static double[] parseValues(String[] parts)
+    {
+        double[] values = new double[parts.length - 1];
+        for (int i=0; i<values.length; i++)
+        {
+            values[i] = Double.parseDouble(parts[i + 1]);
+        }
+        return values;
+    }
+
+    private static String join(String[] values)
+    {
+        StringBuilder sb = new StringBuilder();
+        for (String v : values)
+        {
+            sb.append(sb.length() > 0 ? " " : "").append(v);
+        }
+        return sb.toString();
+    }
+
+    private static String join(double[] values)
+    {
+        StringBuilder sb = new StringBuilder();
+        for (double v : values)
+        {
+            sb.append(sb.length() > 0 ? " " : "").append(v);
+        }
+        return sb.toString();
+    }
+
+//------------------------------------------------------------------------------
+
+}
@@ -0,0 +1,205 @@
+package fitnessruch2bndlng;
+
+/*
+ *   Copyright (C) 2016
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Affero General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.openscience.cdk.interfaces.IAtomContainer;
+
+/**
+ * Trains a {@link SurrogateModel} on the candidates found under one or more
+ * results folders (e.g., <code>results/run_*</code>). Every
+ * <code>*_FIT.sdf</code> file with a FITNESS property contributes one
+ * example, and candidates found more than once (same UID) are used only
+ * once. The geometry in the FIT.sdf file is the DFT-optimized one, so the
+ * features of the training set are those of the optimized geometries
+ * while the model is then applied to pre-DFT geometries: the out-of-bag
+ * error printed at the end is thus a lower bound of the actual error.
+ */
+
+public class SurrogateTrainer
+{
+    private static final Logger LOGGER = Logger.getLogger(
+            SurrogateTrainer.class.getName());
+
+
+    /**
+     * Number of members of the ensemble.
+     */
+    public static final int DEFAULTMODELS = 32;
+
+    /**
+     * Ridge penalty, relative to the number of examples.
+     */
+    public static final double DEFAULTRIDGE = 1.0e-3;
+
+    private static final long SEED = 1234567L;
+
+    //Features and fitness by UID
+    private final Map<String,double[]> examples =
+                                     new ConcurrentHashMap<String,double[]>();
+    private final AtomicInteger numFiles = new AtomicInteger();
+    private final AtomicInteger numSkipped = new AtomicInteger();
+
+//------------------------------------------------------------------------------
+
+    /**
+     * @param args the command line arguments
+     */
+    public static void main(String[] args)
+    {
+        if (args.length < 2)
+        {
+            System.err.println("Usage: java -cp FitnessRuCH2BndLng.jar "
+                    + "fitnessruch2bndlng.SurrogateTrainer modelFile "
+                    + "rootFolder [rootFolder ...]");
+            System.exit(-1);
+        }
+
+        try
+        {
+            List<File> roots = new ArrayList<File>();
+            for (int i=1; i<args.length; i++)
+            {
+                roots.add(new File(args[i]));
+            }
+            SurrogateTrainer trainer = new SurrogateTrainer();
+            trainer.collect(roots);
+            SurrogateModel model = trainer.train();
+            model.save(new File(args[0]));
+        }
+        catch (Exception e)
+        {
+            LOGGER.log(Level.SEVERE, null, e);
+            System.exit(-1);
+        }
+        System.exit(0);
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Reads the examples from all the FIT.sdf files under the given folders.
+     */
+    public void collect(List<File> roots)
+    {
+        new ResultFolderWalker(new ResultFolderWalker.Visitor() {
+            public void visit(File fitSdf, String base)
+            {
+                readCandidate(fitSdf);
+            }
+        }).walk(roots);
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Fits the model on the collected examples and prints its accuracy.
+     */
+    public SurrogateModel train() throws Exception
+    {
+        // Sorting makes the training reproducible
+        Map<String,double[]> sorted = new TreeMap<String,double[]>(examples);
+        int n = sorted.size();
+        double[][] x = new double[n][];
+        double[] y = new double[n];
+        int i = 0;
+        for (double[] example : sorted.values())
+        {
+            x[i] = new double[SurrogateFeatures.NUMFEATURES];
+            System.arraycopy(example, 0, x[i], 0, x[i].length);
+            y[i] = example[x[i].length];
+            i++;
+        }
+
+        long start = System.nanoTime();
+        SurrogateModel model = SurrogateModel.train(SurrogateFeatures.NAMES,
+                                         x, y, DEFAULTMODELS, DEFAULTRIDGE,
+                                         SEED);
+        double seconds = (System.nanoTime() - start) / 1.0e9;
+
+        double mean = 0.0;
+        for (double v : y)
+        {
+            mean += v;
+        }
+        mean = mean / n;
+        double var = 0.0;
+        for (double v : y)
+        {
+            var += (v - mean) * (v - mean);
+        }
+        var = var / n;
+        double rmse = model.getResidual();
+        System.out.println(String.format("Read %d files: %d unique "
+                + "candidates, %d skipped.", numFiles.get(), n,
+                numSkipped.get()));
+        System.out.println(String.format("Trained %d models in %.2f s. "
+                + "Out-of-bag RMSE: %.5f (R2: %.3f, fitness SD: %.5f).",
+                DEFAULTMODELS, seconds, rmse,
+                var > 0.0 ? 1.0 - rmse * rmse / var : 0.0, Math.sqrt(var)));
+        return model;
+    }
+
+//------------------------------------------------------------------------------
+
+    private void readCandidate(File fitSdf)
+    {
+        numFiles.incrementAndGet();
+        try
+        {
+            IAtomContainer mol = SdfIO.readSingleSDFFile(
+                                                             fitSdf.getPath());
+            Object fitness = mol.getProperty("FITNESS");
+            Object uid = mol.getProperty("UID");
+            if (fitness == null || uid == null)
+            {
+                numSkipped.incrementAndGet();
+                return;
+            }
+            Map<String,Integer> atomIndeces =
+                                FitnessRuCH2BndLng.defineAtomIndexes(mol);
+            DoubleVector descriptors = new DoubleVector(
+                                          GeometryKernel.NUMDESCRIPTORS);
+            FitnessRuCH2BndLng.calculateDescriptors(mol, atomIndeces,
+                                                    descriptors);
+            double[] features = SurrogateFeatures.compute(mol, atomIndeces,
+                                                          descriptors);
+            double[] example = new double[features.length + 1];
+            System.arraycopy(features, 0, example, 0, features.length);
+            example[features.length] = Double.parseDouble(
+                                                   fitness.toString().trim());
+            examples.putIfAbsent(uid.toString().trim(), example);
+        }
+        catch (Exception e)
+        {
+            LOGGER.log(Level.WARNING, "Skipping " + fitSdf, e);
+            numSkipped.incrementAndGet();
+        }
+    }
+
+//------------------------------------------------------------------------------
+
+}
@@ -0,0 +1,258 @@
+package fitnessruch2bndlng;
+
+/*
+ *   Copyright (C) 2016
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Affero General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Minimal sequential reader of tar archives (ustar and GNU formats), meant
+ * to be stacked on a decompressing stream so that entries are read in
+ * memory without extracting the archive. Only the name, type, and size of
+ * the entries are interpreted. Long names given as GNU 'L' records or as
+ * 'path' in pax headers are supported.
+ */
+
+class TarStreamReader
+{
+    private static final int BLOCK = 512;
+
+    private final DataInputStream in;
+    private final byte[] header = new byte[BLOCK];
+
+    private String name;
+    private char type;
+    private long size;
+
+    //Bytes of the current entry not consumed yet (including padding)
+    private long remaining = 0;
+
+//------------------------------------------------------------------------------
+
+    /**
+     * @param in the uncompressed content of the archive
+     */
+    TarStreamReader(InputStream in)
+    {
+        this.in = new DataInputStream(in);
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Moves to the next file or folder of the archive, skipping what is left
+     * of the current one.
+     * @return true if there is an entry, false at the end of the archive
+     */
+    boolean next() throws Exception
+    {
+        skip(remaining);
+        remaining = 0;
+        String longName = null;
+        while (true)
+        {
+            try
+            {
+                in.readFully(header);
+            }
+            catch (EOFException e)
+            {
+                return false;
+            }
+            if (isZero(header))
+            {
+                return false;
+            }
+            type = (char) header[156];
+            size = parseOctal(header, 124, 12);
+            long padded = (size + BLOCK - 1) / BLOCK * BLOCK;
+            if (type == 'L' || type == 'x')
+            {
+                byte[] data = new byte[(int) size];
+                in.readFully(data);
+                skip(padded - size);
+                String value = type == 'L' ? getString(data, 0, data.length)
+                                           : getPaxPath(data);
+                if (value != null)
+                {
+                    longName = value;
+                }
+                continue;
+            }
+            if (type == 'g')
+            {
+                skip(padded);
+                continue;
+            }
+
+            name = getString(header, 0, 100);
+            String prefix = getString(header, 345, 155);
+            if (prefix.length() > 0 && header[257] == 'u')
+            {
+                name = prefix + "/" + name;
+            }
+            if (longName != null)
+            {
+                name = longName;
+            }
+            remaining = padded;
+            return true;
+        }
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * @return the path of the current entry
+     */
+    String getName()
+    {
+        return name;
+    }
+
+    /**
+     * @return true if the current entry is a regular file
+     */
+    boolean isFile()
+    {
+        return type == '0' || type == 0 || type == '7';
+    }
+
+    /**
+     * @return the size in bytes of the current entry
+     */
+    long getSize()
+    {
+        return size;
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Reads the content of the current entry.
+     * @return the bytes of the current entry
+     */
+    byte[] readContent() throws Exception
+    {
+        if (size > Integer.MAX_VALUE)
+        {
+            throw new Exception("Entry " + name + " is too large");
+        }
+        byte[] data = new byte[(int) size];
+        in.readFully(data);
+        remaining -= size;
+        skip(remaining);
+        remaining = 0;
+        return data;
+    }
+
+//------------------------------------------------------------------------------
+
+    private void skip(long n) throws Exception
+    {
+        while (n > 0)
+        {
+            int skipped = in.skipBytes((int) Math.min(n, Integer.MAX_VALUE));
+            if (skipped <= 0)
+            {
+                throw new EOFException("Truncated tar archive");
+            }
+            n -= skipped;
+        }
+    }
+
+//------------------------------------------------------------------------------
+
+    private static boolean isZero(byte[] block)
+    {
+        for (byte b : block)
+        {
+            if (b != 0)
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static String getString(byte[] buf, int from, int length)
+    {
+        int end = from;
+        while (end < from + length && buf[end] != 0)
+        {
+            end++;
+        }
+        return new String(buf, from, end - from, StandardCharsets.UTF_8);
+    }
+
+    private static long parseOctal(byte[] buf, int from, int length)
+            throws Exception
+    {
+        if ((buf[from] & 0x80) != 0)
+        {
+            // GNU base-256 encoding of large sizes
+            long value = buf[from] & 0x7f;
+            for (int i=from+1; i<from+length; i++)
+            {
+                value = (value << 8) | (buf[i] & 0xff);
+            }
+            return value;
+        }
+        long value = 0;
+        for (int i=from; i<from+length; i++)
+        {
+            byte b = buf[i];
+            if (b == 0 || b == ' ')
+            {
+                if (value > 0)
+                {
+                    break;
+                }
+                continue;
+            }
+            if (b < '0' || b > '7')
+            {
+                throw new Exception("Malformed tar header");
+            }
+            value = value * 8 + (b - '0');
+        }
+        return value;
+    }
+
+    /**
+     * @return the value of the 'path' record of a pax header, or null
+     */
+    private static String getPaxPath(byte[] data)
+    {
+        // Records are "length key=value\n"
+        String text = new String(data, StandardCharsets.UTF_8);
+        for (String record : text.split("\n"))
+        {
+            int space = record.indexOf(' ');
+            if (space > 0 && record.startsWith("path=", space + 1))
+            {
+                return record.substring(space + 6);
+            }
+        }
+        return null;
+    }
+
+//------------------------------------------------------------------------------
+
+}
@@ -0,0 +1,744 @@
+package fitnessruch2bndlng;
+
+/*
+ *   Copyright (C) 2016
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Affero General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.openscience.cdk.interfaces.IAtomContainer;
+
+/**
+ * What-if analysis of the geometric thresholds over the candidates already
+ * evaluated. The quantities constrained by MAXBNDDIST, MINANGLE, MAXTORSION,
+ * and MINNBDIST, and the Ru=C distance, are calculated once for all the
+ * candidates found under the given folders (i.e., <code>*_FIT.sdf</code>
+ * files with a matching <code>*_DFT.xyz</code>). Each value of each 
+ * threshold is then turned into a bitset of the candidates satisfying it, 
+ * so that the candidates passing a combination of thresholds are found with 
+ * a few bitwise operations. Combinations are evaluated in parallel.
+ * <br><br>
+ * The grid file lists the values to try for each threshold, either as 
+ * comma-separated values or as <code>start:end:step</code>, for instance
+ * <pre>
+ * MAXBNDDIST=2.40:2.70:0.05
+ * MINANGLE=80,85,90
+ * MAXTORSION=10:40:5
+ * MINNBDIST=2.5:3.0:0.1
+ * TOPK=20
+ * MAXFLIPS=100
+ * </pre>
+ * Thresholds not given in the grid keep the value found in the parameter 
+ * file, which also defines the reference combination. For each combination,
+ * the output reports the number of candidates passing, the candidates 
+ * gaining or losing the fitness with respect to the reference, and how many 
+ * of the best TOPK candidates (by Ru=C distance) are the same as in the 
+ * reference. The candidates changing status are listed in a second file
+ * named after the output with extension <code>.flips</code>, but only for 
+ * combinations changing the status of at most MAXFLIPS candidates.
+ */
+
+public class ThresholdSweep
+{
+    private static final Logger LOGGER = Logger.getLogger(
+            ThresholdSweep.class.getName());
+
+    /**
+     * Keywords of the thresholds, which are also the indexes of the 
+     * quantities.
+     */
+    public static final String[] KEYS = new String[] {
+        "MAXBNDDIST", "MINANGLE", "MAXTORSION", "MINNBDIST"};
+
+    //Whether each threshold is an upper bound (otherwise a lower bound)
+    private static final boolean[] UPPER = new boolean[] {
+        true, false, true, false};
+
+    //Failure reasons that depend only on the swept thresholds
+    private static final FailureReason[] SWEPT = new FailureReason[] {
+        FailureReason.MAX_BONDED_DISTANCE, FailureReason.MIN_ANGLE,
+        FailureReason.TORSION, FailureReason.NON_BONDED_DISTANCE};
+
+    //Combinations handled by one task
+    private static final int CHUNK = 64;
+
+    private static final int DEFAULTTOPK = 10;
+    private static final int DEFAULTMAXFLIPS = 100;
+
+    //Names of the candidates
+    private final String[] names;
+
+    //Constrained quantities: one array per threshold
+    private final double[][] quantities;
+
+    //Ru=C distance of each candidate
+    private final double[] ruC;
+
+    //Candidates sorted by increasing Ru=C distance (i.e., decreasing fitness)
+    private final int[] ranking;
+
+    //Number of long words in a bitset of candidates
+    private final int numWords;
+
+//------------------------------------------------------------------------------
+
+    /**
+     * @param args the command line arguments
+     */
+    public static void main(String[] args)
+    {
+        if (args.length < 4)
+        {
+            System.err.println("Usage: java -cp FitnessRuCH2BndLng.jar "
+                    + "fitnessruch2bndlng.ThresholdSweep parameterFile "
+                    + "gridFile outputFile rootFolder [rootFolder ...]");
+            System.exit(-1);
+        }
+
+        try
+        {
+            FitnessParameters params = FitnessParameters.readParameters(
+                                                                      args[0]);
+            double[] reference = new double[] {
+                params.getMaxBondedDistance(), params.getMinAngle(),
+                params.getMaxTorsion(), params.getMinNonBondedDistance()};
+            Grid grid = Grid.read(args[1], reference);
+
+            List<File> roots = new ArrayList<File>();
+            for (int i=3; i<args.length; i++)
+            {
+                roots.add(new File(args[i]));
+            }
+            long start = System.nanoTime();
+            ThresholdSweep sweep = load(roots);
+            double loadTime = (System.nanoTime() - start) / 1.0e9;
+            System.out.println(String.format("Loaded %d candidates in %.2f s.",
+                                       sweep.getCandidateCount(), loadTime));
+
+            start = System.nanoTime();
+            Outcome[] outcomes = sweep.run(grid, reference);
+            double sweepTime = (System.nanoTime() - start) / 1.0e9;
+            System.out.println(String.format("Evaluated %d combinations of "
+                    + "thresholds in %.3f s.", outcomes.length, sweepTime));
+
+            sweep.write(outcomes, grid.topK, new File(args[2]), 
+                                          new File(args[2] + ".flips"));
+        }
+        catch (Exception e)
+        {
+            LOGGER.log(Level.SEVERE, null, e);
+            System.exit(-1);
+        }
+        System.exit(0);
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Creates the sweep over the given candidates.
+     * @param names the names of the candidates
+     * @param quantities for each threshold in {@link #KEYS}, the values of 
+     * the constrained quantity for all candidates
+     * @param ruC the Ru=C distances
+     */
+    public ThresholdSweep(String[] names, double[][] quantities, double[] ruC)
+    {
+        this.names = names;
+        this.quantities = quantities;
+        this.ruC = ruC;
+        this.numWords = (names.length + 63) >>> 6;
+
+        Integer[] order = new Integer[names.length];
+        for (int i=0; i<order.length; i++)
+        {
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b)
+            {
+                return Double.compare(ThresholdSweep.this.ruC[a], 
+                                      ThresholdSweep.this.ruC[b]);
+            }
+        });
+        ranking = new int[order.length];
+        for (int i=0; i<order.length; i++)
+        {
+            ranking[i] = order[i];
+        }
+    }
+
+//------------------------------------------------------------------------------
+
+    public int getCandidateCount()
+    {
+        return names.length;
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Values of the thresholds to combine and settings of the comparison.
+     */
+    public static class Grid
+    {
+        final double[][] values = new double[KEYS.length][];
+        int topK = DEFAULTTOPK;
+        int maxFlips = DEFAULTMAXFLIPS;
+
+        /**
+         * Reads the grid of thresholds.
+         * @param filename the grid file
+         * @param reference the thresholds used for those missing in the grid
+         */
+        public static Grid read(String filename, double[] reference)
+                throws Exception
+        {
+            Grid grid = new Grid();
+            BufferedReader br = null;
+            try
+            {
+                br = new BufferedReader(new FileReader(filename));
+                String line;
+                while ((line = br.readLine()) != null)
+                {
+                    line = line.trim();
+                    if (line.length() == 0 || line.startsWith("#") 
+                        || line.indexOf("=") < 0)
+                    {
+                        continue;
+                    }
+                    String key = line.substring(0, line.indexOf("=")).trim()
+                                                               .toUpperCase();
+                    String value = line.substring(line.indexOf("=") + 1)
+                                                                      .trim();
+                    if (key.equals("TOPK"))
+                    {
+                        grid.topK = Integer.parseInt(value);
+                        continue;
+                    }
+                    if (key.equals("MAXFLIPS"))
+                    {
+                        grid.maxFlips = Integer.parseInt(value);
+                        continue;
+                    }
+                    int k = Arrays.asList(KEYS).indexOf(key);
+                    if (k < 0)
+                    {
+                        throw new Exception("Unknown threshold '" + key 
+                                            + "' in " + filename);
+                    }
+                    grid.values[k] = parseValues(value);
+                }
+            }
+            finally
+            {
+                if (br != null)
+                {
+                    br.close();
+                }
+            }
+            for (int k=0; k<KEYS.length; k++)
+            {
+                if (grid.values[k] == null)
+                {
+                    grid.values[k] = new double[] {reference[k]};
+                }
+            }
+            return grid;
+        }
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Parses either a comma-separated list or a range 
+     * <code>start:end:step</code> (end included).
+     */
+    private static double[] parseValues(String value) throws Exception
+    {
+        if (value.indexOf(':') < 0)
+        {
+            String[] parts = value.split(",");
+            double[] values = new double[parts.length];
+            for (int i=0; i<parts.length; i++)
+            {
+                values[i] = Double.parseDouble(parts[i].trim());
+            }
+            return values;
+        }
+        String[] parts = value.split(":");
+        if (parts.length != 3)
+        {
+            throw new Exception("Expecting start:end:step in '" + value + "'");
+        }
+        double first = Double.parseDouble(parts[0].trim());
+        double last = Double.parseDouble(parts[1].trim());
+        double step = Double.parseDouble(parts[2].trim());
+        if (step <= 0.0 || last < first)
+        {
+            throw new Exception("Empty range '" + value + "'");
+        }
+        // Tolerance avoids losing the last value to rounding
+        int n = (int) Math.floor((last - first) / step + 1.0e-9) + 1;
+        double[] values = new double[n];
+        for (int i=0; i<n; i++)
+        {
+            values[i] = first + i * step;
+        }
+        return values;
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Collects the constrained quantities of all the candidates found under
+     * the given folders. Candidates that were rejected for reasons that do
+     * not depend on the swept thresholds (e.g., inconsistent connectivity)
+     * are ignored.
+     */
+    public static ThresholdSweep load(List<File> roots)
+    {
+        final ConcurrentLinkedQueue<Object[]> loaded = 
+                                        new ConcurrentLinkedQueue<Object[]>();
+        final AtomicInteger numIgnored = new AtomicInteger();
+        new ResultFolderWalker(new ResultFolderWalker.Visitor() {
+            public void visit(File fitSdf, String base)
+            {
+                double[] values = loadCandidate(fitSdf);
+                if (values == null)
+                {
+                    numIgnored.incrementAndGet();
+                }
+                else
+                {
+                    loaded.add(new Object[] {fitSdf.getPath(), values});
+                }
+            }
+        }).walk(roots);
+        if (numIgnored.get() > 0)
+        {
+            LOGGER.info("Ignored " + numIgnored.get() + " candidates.");
+        }
+
+        // Sort by name for reproducible output
+        List<Object[]> sorted = new ArrayList<Object[]>(loaded);
+        Collections.sort(sorted, new Comparator<Object[]>() {
+            @Override
+            public int compare(Object[] a, Object[] b)
+            {
+                return ((String) a[0]).compareTo((String) b[0]);
+            }
+        });
+        int n = sorted.size();
+        String[] names = new String[n];
+        double[][] quantities = new double[KEYS.length][n];
+        double[] ruC = new double[n];
+        for (int i=0; i<n; i++)
+        {
+            names[i] = (String) sorted.get(i)[0];
+            double[] values = (double[]) sorted.get(i)[1];
+            for (int k=0; k<KEYS.length; k++)
+            {
+                quantities[k][i] = values[k];
+            }
+            ruC[i] = values[KEYS.length];
+        }
+        return new ThresholdSweep(names, quantities, ruC);
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Calculates the constrained quantities of one candidate.
+     * @return the quantities in the order of {@link #KEYS} followed by the
+     * Ru=C distance, or null if the candidate cannot be used
+     */
+    private static double[] loadCandidate(File fitSdf)
+    {
+        String path = fitSdf.getPath();
+        File xyz = ResultFolderWalker.getXYZFile(fitSdf);
+        if (!xyz.exists())
+        {
+            return null;
+        }
+        try
+        {
+            IAtomContainer mol = SdfIO.readSingleSDFFile(path);
+            Object molError = mol.getProperty("MOL_ERROR");
+            if (molError != null && !isSwept(molError.toString()))
+            {
+                return null;
+            }
+            FitnessRuCH2BndLng.mergeHighPrecisionCoordinates(mol, 
+                                                              xyz.getPath());
+            Map<String,Integer> atomIndeces = 
+                                   FitnessRuCH2BndLng.defineAtomIndexes(mol);
+            DoubleVector descriptors = 
+                               new DoubleVector(GeometryKernel.NUMDESCRIPTORS);
+            FitnessRuCH2BndLng.calculateDescriptors(mol, atomIndeces, 
+                                                                 descriptors);
+            return new double[] {
+                descriptors.getValue(0),
+                descriptors.getValue(2),
+                descriptors.getValue(3),
+                FitnessRuCH2BndLng.getMinimumNonBondedAtomDistance(
+                                                         atomIndeces, mol),
+                descriptors.getValue(4)};
+        }
+        catch (Exception e)
+        {
+            LOGGER.log(Level.WARNING, "Cannot use " + path, e);
+            return null;
+        }
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * @return true if the MOL_ERROR reports the violation of one of the 
+     * swept thresholds
+     */
+    private static boolean isSwept(String molError)
+    {
+        // Older results prefix the violation with '#Threshold violated: '
+        String msg = molError.substring(molError.indexOf(':') + 1).trim();
+        for (FailureReason r : SWEPT)
+        {
+            if (molError.startsWith(r.getDescription())
+                || msg.startsWith(r.getDescription()))
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Outcome of one combination of thresholds.
+     */
+    public static class Outcome
+    {
+        final double[] thresholds;
+        int numPassing;
+        int numGained;
+        int numLost;
+        //Candidates changing status (null if more than the maximum)
+        int[] gained;
+        int[] lost;
+        int numTopKKept;
+        int best = -1;
+
+        Outcome(double[] thresholds)
+        {
+            this.thresholds = thresholds;
+        }
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Evaluates all combinations of threshold values.
+     * @param grid the values of each threshold
+     * @param reference the thresholds of the reference combination
+     * @return the outcome of each combination, with the first threshold
+     * changing slowest
+     */
+    public Outcome[] run(final Grid grid, double[] reference)
+    {
+        // One bitset per value of each threshold
+        final long[][][] masks = new long[KEYS.length][][];
+        for (int k=0; k<KEYS.length; k++)
+        {
+            masks[k] = new long[grid.values[k].length][];
+            for (int v=0; v<grid.values[k].length; v++)
+            {
+                masks[k][v] = getPassing(k, grid.values[k][v]);
+            }
+        }
+        final long[] refPassing = getPassing(0, reference[0]);
+        for (int k=1; k<KEYS.length; k++)
+        {
+            and(refPassing, getPassing(k, reference[k]));
+        }
+        final boolean[] refTopK = new boolean[names.length];
+        for (int i : getTopK(refPassing, grid.topK))
+        {
+            refTopK[i] = true;
+        }
+
+        int numCombinations = 1;
+        for (int k=0; k<KEYS.length; k++)
+        {
+            numCombinations *= grid.values[k].length;
+        }
+        final Outcome[] outcomes = new Outcome[numCombinations];
+        ForkJoinPool pool = new ForkJoinPool();
+        pool.invoke(new RecursiveAction() {
+            @Override
+            protected void compute()
+            {
+                List<RecursiveAction> chunks = new ArrayList<RecursiveAction>();
+                for (int from=0; from<outcomes.length; from+=CHUNK)
+                {
+                    final int first = from;
+                    final int last = Math.min(from + CHUNK, outcomes.length);
+                    chunks.add(new RecursiveAction() {
+                        @Override
+                        protected void compute()
+                        {
+                            long[] passing = new long[numWords];
+                            for (int c=first; c<last; c++)
+                            {
+                                outcomes[c] = evaluate(c, grid, masks, 
+                                             refPassing, refTopK, passing);
+                            }
+                        }
+                    });
+                }
+                invokeAll(chunks);
+            }
+        });
+        pool.shutdown();
+        return outcomes;
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Evaluates one combination of thresholds.
+     * @param passing work array for the candidates passing
+     */
+    private Outcome evaluate(int combination, Grid grid, long[][][] masks,
+                             long[] refPassing, boolean[] refTopK, 
+                             long[] passing)
+    {
+        // Mixed-radix decomposition with the last threshold changing fastest
+        int[] index = new int[KEYS.length];
+        int rest = combination;
+        for (int k=KEYS.length-1; k>=0; k--)
+        {
+            index[k] = rest % grid.values[k].length;
+            rest /= grid.values[k].length;
+        }
+        double[] thresholds = new double[KEYS.length];
+        System.arraycopy(masks[0][index[0]], 0, passing, 0, numWords);
+        thresholds[0] = grid.values[0][index[0]];
+        for (int k=1; k<KEYS.length; k++)
+        {
+            and(passing, masks[k][index[k]]);
+            thresholds[k] = grid.values[k][index[k]];
+        }
+
+        Outcome outcome = new Outcome(thresholds);
+        for (int w=0; w<numWords; w++)
+        {
+            outcome.numPassing += Long.bitCount(passing[w]);
+            outcome.numGained += Long.bitCount(passing[w] & ~refPassing[w]);
+            outcome.numLost += Long.bitCount(refPassing[w] & ~passing[w]);
+        }
+        if (outcome.numGained + outcome.numLost <= grid.maxFlips)
+        {
+            outcome.gained = new int[outcome.numGained];
+            outcome.lost = new int[outcome.numLost];
+            int numGained = 0;
+            int numLost = 0;
+            for (int w=0; w<numWords; w++)
+            {
+                long diff = passing[w] ^ refPassing[w];
+                while (diff != 0)
+                {
+                    int bit = Long.numberOfTrailingZeros(diff);
+                    diff &= diff - 1;
+                    int i = (w << 6) + bit;
+                    if ((passing[w] & (1L << bit)) != 0)
+                    {
+                        outcome.gained[numGained++] = i;
+                    }
+                    else
+                    {
+                        outcome.lost[numLost++] = i;
+                    }
+                }
+            }
+        }
+
+        int[] best = getTopK(passing, grid.topK);
+        for (int i : best)
+        {
+            if (refTopK[i])
+            {
+                outcome.numTopKKept++;
+            }
+        }
+        if (best.length > 0)
+        {
+            outcome.best = best[0];
+        }
+        return outcome;
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * @return the bitset of the candidates satisfying one threshold
+     */
+    private long[] getPassing(int k, double threshold)
+    {
+        long[] bits = new long[numWords];
+        double[] values = quantities[k];
+        for (int i=0; i<values.length; i++)
+        {
+            boolean ok = UPPER[k] ? values[i] <= threshold 
+                                  : values[i] >= threshold;
+            if (ok)
+            {
+                bits[i >>> 6] |= 1L << i;
+            }
+        }
+        return bits;
+    }
+
+//------------------------------------------------------------------------------
+
+    private static void and(long[] target, long[] other)
+    {
+        for (int w=0; w<target.length; w++)
+        {
+            target[w] &= other[w];
+        }
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * @return the best candidates (shortest Ru=C) among those passing
+     */
+    private int[] getTopK(long[] passing, int topK)
+    {
+        int[] best = new int[topK];
+        int n = 0;
+        for (int r=0; r<ranking.length && n<topK; r++)
+        {
+            int i = ranking[r];
+            if ((passing[i >>> 6] & (1L << i)) != 0)
+            {
+                best[n++] = i;
+            }
+        }
+        return Arrays.copyOf(best, n);
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Writes the outcomes as tab-separated tables.
+     */
+    public void write(Outcome[] outcomes, int topK, File table, File flips)
+            throws IOException
+    {
+        BufferedWriter tw = null;
+        BufferedWriter fw = null;
+        try
+        {
+            tw = new BufferedWriter(new FileWriter(table));
+            fw = new BufferedWriter(new FileWriter(flips));
+            StringBuilder sb = new StringBuilder("#combination");
+            for (String key : KEYS)
+            {
+                sb.append("\t").append(key);
+            }
+            sb.append("\tpassing\tgained\tlost\ttop").append(topK)
+              .append("kept\tbestRuC\tbest");
+            tw.write(sb.toString());
+            tw.newLine();
+            fw.write("#combination\tchange\tcandidate");
+            fw.newLine();
+            for (int c=0; c<outcomes.length; c++)
+            {
+                Outcome o = outcomes[c];
+                sb = new StringBuilder();
+                sb.append(c);
+                for (double t : o.thresholds)
+                {
+                    sb.append("\t").append(String.format("%.4f", t));
+                }
+                sb.append("\t").append(o.numPassing);
+                sb.append("\t").append(o.numGained);
+                sb.append("\t").append(o.numLost);
+                sb.append("\t").append(o.numTopKKept);
+                if (o.best >= 0)
+                {
+                    sb.append("\t").append(String.format("%.5f", 
+                                                           ruC[o.best]));
+                    sb.append("\t").append(names[o.best]);
+                }
+                else
+                {
+                    sb.append("\t\t");
+                }
+                tw.write(sb.toString());
+                tw.newLine();
+                if (o.gained == null)
+                {
+                    continue;
+                }
+                for (int i : o.gained)
+                {
+                    fw.write(c + "\t+\t" + names[i]);
+                    fw.newLine();
+                }
+                for (int i : o.lost)
+                {
+                    fw.write(c + "\t-\t" + names[i]);
+                    fw.newLine();
+                }
+            }
+        }
+        finally
+        {
+            if (tw != null)
+            {
+                tw.close();
+            }
+            if (fw != null)
+            {
+                fw.close();
+            }
+        }
+    }
+
+//------------------------------------------------------------------------------
+
+}
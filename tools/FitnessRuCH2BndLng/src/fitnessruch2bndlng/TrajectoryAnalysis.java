@@ -0,0 +1,742 @@
+package fitnessruch2bndlng;
+
+/*
+ *   Copyright (C) 2016
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Affero General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.openscience.cdk.interfaces.IAtomContainer;
+
+/**
+ * Analysis of the whole path of the DFT geometry optimizations, not only of
+ * their last geometry. The Gaussian outputs (<code>*_DFT.out</code> or
+ * <code>*_DFT.log</code>) found under one or more folders are read in a
+ * single pass each, collecting every geometry together with the SCF energy
+ * and the maximum force of the step. The descriptors of all geometries are
+ * then calculated in one call of the batch kernel of
+ * {@link GeometryKernel}.
+ * <br><br>
+ * The core atoms are taken from property
+ * <code>calculated_ATOM_INDECES</code> of the <code>*_FIT.sdf</code> file
+ * of the candidate, when it exists, or else are identified in the input
+ * graph (<code>*_I.sdf</code>, same name as the output without
+ * <code>_DFT</code>).
+ * <br><br>
+ * A geometry has converged when none of the descriptors changes anymore by
+ * more than {@value #DISTTOL} (distances) or {@value #ANGLETOL} degrees
+ * (angles) before the end of the job. For each output, a profile
+ * <code>NAME_traj.tsv</code> with one line per geometry is written in the
+ * output folder. File <code>summary.tsv</code> collects one line per
+ * candidate: number of geometries and of optimization steps, the geometry
+ * where the descriptors converged, the number of times the Ru=C distance
+ * changed direction, the final values, and the wall time (from Gaussian 16
+ * outputs). Statistics useful to choose the walltime and number of checks
+ * of the DFT jobs (<code>wt</code> and <code>maxwait</code> in the
+ * fitness provider script) are printed at the end.
+ */
+
+public class TrajectoryAnalysis
+{
+    private static final Logger LOGGER = Logger.getLogger(
+            TrajectoryAnalysis.class.getName());
+
+    private static final String[] DFTSUFFIXES = new String[] {
+        "_DFT.out", "_DFT.log"};
+    private static final String PROFILESUFFIX = "_traj.tsv";
+    private static final String SUMMARY = "summary.tsv";
+
+    /**
+     * Largest change of distances (Angstrom) of a converged geometry.
+     */
+    public static final double DISTTOL = 0.01;
+
+    /**
+     * Largest change of angles (degrees) of a converged geometry.
+     */
+    public static final double ANGLETOL = 1.0;
+
+    //Changes of the Ru=C distance that are too small to be oscillations
+    private static final double OSCTOL = 0.001;
+
+    private static final boolean[] ISDISTANCE = new boolean[] {
+        true, false, false, false, true, true, false};
+
+    private static final String[] LABELS = new String[] {
+        "Ru-Cl", "Cl-Ru-Cl", "Cl-Ru-C", "H-C-Ru-L", "Ru=C", "Ru-L", "C-Ru-L"};
+
+    private static final byte[] STANDARDTITLE = 
+                 "Standard orientation:".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] INPUTTITLE = 
+                      "Input orientation:".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] SCFDONE = 
+                      "SCF Done:".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] MAXFORCE = 
+                      "Maximum Force".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] STATIONARY = 
+                      "-- Stationary point found".getBytes(
+                                                   StandardCharsets.US_ASCII);
+    private static final byte[] ELAPSED = 
+                      "Elapsed time:".getBytes(StandardCharsets.US_ASCII);
+
+    private final File outFolder;
+    private final List<Trajectory> trajectories = 
+                      Collections.synchronizedList(new ArrayList<Trajectory>());
+    private final AtomicInteger numFailed = new AtomicInteger();
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Outcome of the analysis of one Gaussian output.
+     */
+    private static class Trajectory
+    {
+        String name;
+        String log;
+        String fitness;
+        int numFrames;
+        int numSteps;
+        int convergedFrame;
+        int oscillations;
+        double finalRuC;
+        double finalEnergy = Double.NaN;
+        double wallHours = Double.NaN;
+        boolean stationary;
+
+        /**
+         * @return the recorded fitness, or the one given by the final 
+         * Ru=C distance when the candidate has no fitness
+         */
+        double getFitness()
+        {
+            return fitness != null ? Double.parseDouble(fitness) 
+                                   : -finalRuC;
+        }
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * @param args the command line arguments
+     */
+    public static void main(String[] args)
+    {
+        if (args.length < 2)
+        {
+            System.err.println("Usage: java -cp FitnessRuCH2BndLng.jar "
+                    + "fitnessruch2bndlng.TrajectoryAnalysis "
+                    + "outputFolder rootFolder [rootFolder ...]");
+            System.exit(-1);
+        }
+
+        try
+        {
+            File outFolder = new File(args[0]);
+            if (!outFolder.isDirectory() && !outFolder.mkdirs())
+            {
+                throw new Exception("Cannot create folder " + outFolder);
+            }
+            List<File> roots = new ArrayList<File>();
+            for (int i=1; i<args.length; i++)
+            {
+                roots.add(new File(args[i]));
+            }
+            TrajectoryAnalysis ta = new TrajectoryAnalysis(outFolder);
+            ta.run(roots);
+        }
+        catch (Exception e)
+        {
+            LOGGER.log(Level.SEVERE, null, e);
+            System.exit(-1);
+        }
+        System.exit(0);
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * @param outFolder the folder where to write profiles and summary
+     */
+    public TrajectoryAnalysis(File outFolder)
+    {
+        this.outFolder = outFolder;
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Analyses all Gaussian outputs under the given folders, writes
+     * profiles and summary, and prints the statistics.
+     */
+    public void run(List<File> roots) throws Exception
+    {
+        long start = System.nanoTime();
+        new ResultFolderWalker(new ResultFolderWalker.Visitor() {
+            public void visit(File log, String base)
+            {
+                analyse(log, base);
+            }
+        }, DFTSUFFIXES).walk(roots);
+
+        List<Trajectory> list = new ArrayList<Trajectory>(trajectories);
+        Collections.sort(list, new Comparator<Trajectory>() {
+            public int compare(Trajectory a, Trajectory b)
+            {
+                return a.log.compareTo(b.log);
+            }
+        });
+        writeSummary(list, new File(outFolder, SUMMARY));
+        System.out.println(String.format("Analysed %d Gaussian outputs in "
+                + "%.2f s (%d failed).", list.size(),
+                (System.nanoTime() - start) / 1.0e9, numFailed.get()));
+        printStatistics(list);
+    }
+
+//------------------------------------------------------------------------------
+
+    private void analyse(File log, String base)
+    {
+        try
+        {
+            Trajectory t = new Trajectory();
+            t.log = log.getPath();
+            String molName = base.endsWith("_I") 
+                             ? base.substring(0, base.length() - 2) : base;
+            t.name = molName;
+            int[] roles = findRoles(log.getParentFile(), base, molName, t);
+
+            XYZCoordinates xyz = new XYZCoordinates();
+            double[][] steps = readLog(log, xyz, t);
+            int n = xyz.getFrameCount();
+            if (n == 0)
+            {
+                throw new Exception("No geometry found in " + log);
+            }
+
+            double[] desc = new double[GeometryKernel.NUMDESCRIPTORS * n];
+            GeometryKernel.computeDescriptors(xyz.getCoordinates(), 0,
+                    xyz.getAtomCount(), n, roles, desc);
+
+            t.numFrames = n;
+            t.finalRuC = desc[(n - 1) * GeometryKernel.NUMDESCRIPTORS + 4];
+            t.convergedFrame = getConvergedFrame(desc, n);
+            t.oscillations = countReversals(desc, 4, n);
+            for (int f=n-1; f>=0; f--)
+            {
+                if (!Double.isNaN(steps[0][f]))
+                {
+                    t.finalEnergy = steps[0][f];
+                    break;
+                }
+            }
+            writeProfile(new File(outFolder, molName + PROFILESUFFIX),
+                         desc, steps, n);
+            trajectories.add(t);
+        }
+        catch (Exception e)
+        {
+            LOGGER.log(Level.WARNING, "Skipping " + log, e);
+            numFailed.incrementAndGet();
+        }
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Finds the indexes of the core atoms, and the fitness if the candidate
+     * has been evaluated.
+     */
+    private static int[] findRoles(File dir, String base, String molName,
+                                   Trajectory t) throws Exception
+    {
+        File fitSdf = new File(dir, molName + ResultFolderWalker.FITSUFFIX);
+        if (fitSdf.exists())
+        {
+            LazySdfMolecule fit = LazySdfMolecule.read(fitSdf.getPath());
+            Object fitness = fit.getProperty("FITNESS");
+            if (fitness != null && fitness.toString().trim().length() > 0)
+            {
+                t.fitness = fitness.toString().trim();
+            }
+            Object indeces = fit.getProperty("calculated_ATOM_INDECES");
+            if (indeces != null)
+            {
+                return GeometryKernel.toRoles(
+                                       parseAtomIndexes(indeces.toString()));
+            }
+        }
+        File inpSdf = new File(dir, base + ".sdf");
+        if (!inpSdf.exists())
+        {
+            throw new Exception("Cannot find " + fitSdf + " nor " + inpSdf);
+        }
+        IAtomContainer mol = SdfIO.readSingleSDFFile(inpSdf.getPath());
+        return GeometryKernel.toRoles(
+                                   FitnessRuCH2BndLng.defineAtomIndexes(mol));
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Parses the map of atom indexes as written in the SDF property, e.g.,
+     * <code>{iCl2=3, iH2=5, iL=2, iH1=6, iC=1, iRu=0, iCl1=4}</code>.
+     */
+    static Map<String,Integer> parseAtomIndexes(String s) throws Exception
+    {
+        Map<String,Integer> map = new HashMap<String,Integer>();
+        String body = s.trim();
+        if (body.startsWith("{") && body.endsWith("}"))
+        {
+            body = body.substring(1, body.length() - 1);
+        }
+        for (String entry : body.split(","))
+        {
+            int eq = entry.indexOf('=');
+            if (eq < 0)
+            {
+                throw new Exception("Unexpected atom indexes '" + s + "'");
+            }
+            map.put(entry.substring(0, eq).trim(),
+                    Integer.parseInt(entry.substring(eq + 1).trim()));
+        }
+        for (String label : GeometryKernel.ROLELABELS)
+        {
+            if (!map.containsKey(label))
+            {
+                throw new Exception("Missing " + label + " in atom indexes '"
+                                    + s + "'");
+            }
+        }
+        return map;
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Reads all geometries of a Gaussian output line by line. Only blocks
+     * of the kind found first (standard or input orientation) are taken,
+     * since jobs using symmetry print both for each step. A last block
+     * that has not been written completely is ignored.
+     * @param log the Gaussian output
+     * @param xyz the container where to add the geometries
+     * @param t where to record the information about the whole job
+     * @return for each geometry, the SCF energy (first array) and the
+     * maximum force (second array), or NaN where not printed
+     */
+    static double[][] readLog(File log, XYZCoordinates xyz, Trajectory t)
+            throws Exception
+    {
+        String source = log.getPath();
+        double[] energies = new double[64];
+        double[] forces = new double[64];
+        RandomAccessFile raf = null;
+        try
+        {
+            raf = new RandomAccessFile(log, "r");
+            FileChannel channel = raf.getChannel();
+            if (channel.size() > Integer.MAX_VALUE)
+            {
+                throw new Exception("File larger than 2 GB: " + log);
+            }
+            MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY,
+                                               0, channel.size());
+            int limit = buf.limit();
+            int kind = 0; // 1: standard orientation, 2: input orientation
+            int pos = 0;
+            while (pos < limit)
+            {
+                int p = pos;
+                while (p < limit && buf.get(p) == ' ')
+                {
+                    p++;
+                }
+                int next = GaussianOutputReader.nextLine(buf, pos);
+                int k = GaussianOutputReader.matchesAt(buf, p, STANDARDTITLE)
+                        ? 1 : (GaussianOutputReader.matchesAt(buf, p, 
+                                                        INPUTTITLE) ? 2 : 0);
+                if (k != 0 && (kind == 0 || k == kind))
+                {
+                    kind = k;
+                    if (GaussianOutputReader.findBlockEnd(buf, pos) < 0)
+                    {
+                        break;
+                    }
+                    next = GaussianOutputReader.parseOrientationBlock(buf,
+                                                           pos, xyz, source);
+                    int f = xyz.getFrameCount() - 1;
+                    if (f == energies.length)
+                    {
+                        energies = Arrays.copyOf(energies, 2 * f);
+                        forces = Arrays.copyOf(forces, 2 * f);
+                    }
+                    energies[f] = Double.NaN;
+                    forces[f] = Double.NaN;
+                }
+                else if (xyz.getFrameCount() > 0 
+                         && GaussianOutputReader.matchesAt(buf, p, SCFDONE))
+                {
+                    int eq = p;
+                    while (eq < next && buf.get(eq) != '=')
+                    {
+                        eq++;
+                    }
+                    energies[xyz.getFrameCount() - 1] = 
+                        GaussianOutputReader.parseNumber(buf, eq + 1, source);
+                }
+                else if (xyz.getFrameCount() > 0 
+                         && GaussianOutputReader.matchesAt(buf, p, MAXFORCE))
+                {
+                    forces[xyz.getFrameCount() - 1] = 
+                           GaussianOutputReader.parseNumber(buf, 
+                                            p + MAXFORCE.length, source);
+                    t.numSteps++;
+                }
+                else if (GaussianOutputReader.matchesAt(buf, p, STATIONARY))
+                {
+                    t.stationary = true;
+                }
+                else if (GaussianOutputReader.matchesAt(buf, p, ELAPSED))
+                {
+                    double h = parseElapsedHours(buf, p + ELAPSED.length, 
+                                                 next);
+                    t.wallHours = Double.isNaN(t.wallHours) ? h 
+                                                           : t.wallHours + h;
+                }
+                pos = next;
+            }
+        }
+        finally
+        {
+            if (raf != null)
+            {
+                raf.close();
+            }
+        }
+        int n = xyz.getFrameCount();
+        return new double[][] {Arrays.copyOf(energies, n), 
+                               Arrays.copyOf(forces, n)};
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Parses "D days H hours M minutes S seconds."
+     */
+    private static double parseElapsedHours(MappedByteBuffer buf, int from,
+                                            int to)
+    {
+        byte[] bytes = new byte[to - from];
+        for (int i=0; i<bytes.length; i++)
+        {
+            bytes[i] = buf.get(from + i);
+        }
+        String[] words = new String(bytes, StandardCharsets.US_ASCII).trim()
+                                                               .split("\\s+");
+        if (words.length < 8)
+        {
+            return Double.NaN;
+        }
+        return Double.parseDouble(words[0]) * 24
+               + Double.parseDouble(words[2])
+               + Double.parseDouble(words[4]) / 60
+               + Double.parseDouble(words[6]) / 3600;
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * @param desc the descriptors of each geometry
+     * @param n the number of geometries
+     * @return the number of geometries up to the first one from which no
+     * descriptor moves anymore beyond the tolerances
+     */
+    static int getConvergedFrame(double[] desc, int n)
+    {
+        int nd = GeometryKernel.NUMDESCRIPTORS;
+        int last = (n - 1) * nd;
+        int f = n - 1;
+        while (f > 0)
+        {
+            boolean within = true;
+            for (int d=0; d<nd && within; d++)
+            {
+                double tol = ISDISTANCE[d] ? DISTTOL : ANGLETOL;
+                within = Math.abs(desc[(f - 1)*nd + d] - desc[last + d]) 
+                         <= tol;
+            }
+            if (!within)
+            {
+                break;
+            }
+            f--;
+        }
+        return f + 1;
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Counts how many times a descriptor changes direction along the
+     * geometries, ignoring changes smaller than {@value #OSCTOL}.
+     */
+    static int countReversals(double[] desc, int descriptor, int n)
+    {
+        int nd = GeometryKernel.NUMDESCRIPTORS;
+        int reversals = 0;
+        int direction = 0;
+        double last = desc[descriptor];
+        for (int f=1; f<n; f++)
+        {
+            double delta = desc[f*nd + descriptor] - last;
+            if (Math.abs(delta) < OSCTOL)
+            {
+                continue;
+            }
+            int d = delta > 0 ? 1 : -1;
+            if (direction != 0 && d != direction)
+            {
+                reversals++;
+            }
+            direction = d;
+            last = desc[f*nd + descriptor];
+        }
+        return reversals;
+    }
+
+//------------------------------------------------------------------------------
+
+    private static void writeProfile(File file, double[] desc, 
+                                     double[][] steps, int n) throws Exception
+    {
+        BufferedWriter bw = new BufferedWriter(new FileWriter(file));
+        try
+        {
+            StringBuilder sb = new StringBuilder("#frame\tenergy\tmaxForce");
+            for (String label : LABELS)
+            {
+                sb.append("\t").append(label);
+            }
+            bw.write(sb.toString());
+            bw.newLine();
+            for (int f=0; f<n; f++)
+            {
+                sb.setLength(0);
+                sb.append(f + 1).append("\t");
+                sb.append(format("%.8f", steps[0][f])).append("\t");
+                sb.append(format("%.6f", steps[1][f]));
+                for (int d=0; d<GeometryKernel.NUMDESCRIPTORS; d++)
+                {
+                    sb.append("\t").append(String.format("%.5f", 
+                            desc[f*GeometryKernel.NUMDESCRIPTORS + d]));
+                }
+                bw.write(sb.toString());
+                bw.newLine();
+            }
+        }
+        finally
+        {
+            bw.close();
+        }
+    }
+
+//------------------------------------------------------------------------------
+
+    private static String format(String format, double value)
+    {
+        return Double.isNaN(value) ? "" : String.format(format, value);
+    }
+
+//------------------------------------------------------------------------------
+
+    private static void writeSummary(List<Trajectory> list, File file) 
+            throws Exception
+    {
+        BufferedWriter bw = new BufferedWriter(new FileWriter(file));
+        try
+        {
+            bw.write("#name\tFITNESS\tframes\toptSteps\tconvergedFrame"
+                     + "\tRuCReversals\tfinalRuC\tfinalEnergy\twallHours"
+                     + "\tstationary\tlog");
+            bw.newLine();
+            for (Trajectory t : list)
+            {
+                bw.write(t.name + "\t" + (t.fitness == null ? "" : t.fitness)
+                         + "\t" + t.numFrames + "\t" + t.numSteps
+                         + "\t" + t.convergedFrame + "\t" + t.oscillations
+                         + "\t" + String.format("%.5f", t.finalRuC)
+                         + "\t" + format("%.8f", t.finalEnergy)
+                         + "\t" + format("%.3f", t.wallHours)
+                         + "\t" + (t.stationary ? "yes" : "no")
+                         + "\t" + t.log);
+                bw.newLine();
+            }
+        }
+        finally
+        {
+            bw.close();
+        }
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Prints the distribution of optimization steps and wall time, overall
+     * and by quartile of fitness.
+     */
+    private static void printStatistics(List<Trajectory> list)
+    {
+        if (list.isEmpty())
+        {
+            return;
+        }
+        int numStationary = 0;
+        for (Trajectory t : list)
+        {
+            numStationary += t.stationary ? 1 : 0;
+        }
+        System.out.println(String.format("Stationary point found for %d "
+                + "of %d.", numStationary, list.size()));
+        printDistribution("Optimization steps", list, 0);
+        printDistribution("Geometries until converged", list, 1);
+        printDistribution("Wall time (hours)", list, 2);
+
+        List<Trajectory> sorted = new ArrayList<Trajectory>(list);
+        Collections.sort(sorted, new Comparator<Trajectory>() {
+            public int compare(Trajectory a, Trajectory b)
+            {
+                return Double.compare(a.getFitness(), b.getFitness());
+            }
+        });
+        System.out.println("By quartile of fitness (recorded FITNESS, or "
+                           + "-Ru=C of the last geometry):");
+        System.out.println("  fitness range\tcount\tmedian optSteps"
+                           + "\tmedian convergedFrame\tmedian wallHours");
+        int n = sorted.size();
+        for (int q=0; q<4; q++)
+        {
+            List<Trajectory> part = sorted.subList(q * n / 4, 
+                                                   (q + 1) * n / 4);
+            if (part.isEmpty())
+            {
+                continue;
+            }
+            System.out.println(String.format("  %.5f..%.5f\t%d\t%s\t%s\t%s",
+                    part.get(0).getFitness(),
+                    part.get(part.size() - 1).getFitness(), part.size(),
+                    format("%.1f", getPercentile(part, 0, 50)),
+                    format("%.1f", getPercentile(part, 1, 50)),
+                    format("%.2f", getPercentile(part, 2, 50))));
+        }
+
+        double[] x = new double[n];
+        double[] y = new double[n];
+        for (int i=0; i<n; i++)
+        {
+            x[i] = sorted.get(i).numSteps;
+            y[i] = sorted.get(i).getFitness();
+        }
+        System.out.println(String.format("Correlation between optimization "
+                + "steps and fitness: %.3f", getCorrelation(x, y)));
+    }
+
+//------------------------------------------------------------------------------
+
+    private static void printDistribution(String title, 
+                                          List<Trajectory> list, int what)
+    {
+        double max = getPercentile(list, what, 100);
+        if (Double.isNaN(max))
+        {
+            return;
+        }
+        System.out.println(String.format("%s: median %.2f, 90th "
+                + "percentile %.2f, 95th percentile %.2f, max %.2f", title,
+                getPercentile(list, what, 50), getPercentile(list, what, 90),
+                getPercentile(list, what, 95), max));
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * @param what 0: optimization steps, 1: converged geometry, 2: wall
+     * time
+     * @return the percentile (nearest rank) of the values that are known,
+     * or NaN
+     */
+    private static double getPercentile(List<Trajectory> list, int what,
+                                        double percentile)
+    {
+        double[] values = new double[list.size()];
+        int n = 0;
+        for (Trajectory t : list)
+        {
+            double v = what == 0 ? t.numSteps 
+                       : (what == 1 ? t.convergedFrame : t.wallHours);
+            if (!Double.isNaN(v))
+            {
+                values[n++] = v;
+            }
+        }
+        if (n == 0)
+        {
+            return Double.NaN;
+        }
+        Arrays.sort(values, 0, n);
+        int rank = (int) Math.ceil(percentile / 100.0 * n);
+        return values[Math.max(0, Math.min(n - 1, rank - 1))];
+    }
+
+//------------------------------------------------------------------------------
+
+    private static double getCorrelation(double[] x, double[] y)
+    {
+        int n = x.length;
+        double mx = 0, my = 0;
+        for (int i=0; i<n; i++)
+        {
+            mx += x[i];
+            my += y[i];
+        }
+        mx /= n;
+        my /= n;
+        double sxy = 0, sxx = 0, syy = 0;
+        for (int i=0; i<n; i++)
+        {
+            sxy += (x[i] - mx) * (y[i] - my);
+            sxx += (x[i] - mx) * (x[i] - mx);
+            syy += (y[i] - my) * (y[i] - my);
+        }
+        return sxy / Math.sqrt(sxx * syy);
+    }
+
+//------------------------------------------------------------------------------
+
+}
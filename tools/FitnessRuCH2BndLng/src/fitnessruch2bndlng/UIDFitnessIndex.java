@@ -0,0 +1,528 @@
+package fitnessruch2bndlng;
+
+/*
+ *   Copyright (C) 2016
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Affero General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Index from candidate UID to the newest <code>*_FIT.sdf</code> file
+ * reporting its fitness. The index lives on disk as an append-only,
+ * tab-separated journal with one line per evaluated candidate:
+ * <pre>
+ * UID  FITNESS  FIT.sdf path  DFT.xyz path  last modified (ms)
+ * </pre>
+ * Candidates without fitness are recorded with an empty FITNESS field, so
+ * that their files are not parsed again when updating the index.
+ * The journal is loaded in memory once, after which lookups are hash-map
+ * lookups, and {@link #refresh()} reads only the lines appended since
+ * (a long-running {@link FitnessServer} answers lookups in this way).
+ * Appends are protected by a lock on the file <code>indexFile.lock</code>,
+ * so concurrent evaluations can feed the same index. Since a file that
+ * changed is appended again, the journal is compacted, keeping only the
+ * newest line of each file, by replacing it atomically with a rewritten
+ * copy (see {@link #compact()}).
+ */
+
+public class UIDFitnessIndex
+{
+    private static final Logger LOGGER = Logger.getLogger(
+            UIDFitnessIndex.class.getName());
+
+    private static final String LOCKSUFFIX = ".lock";
+
+    //Compact when the journal has this many times more lines than files
+    private static final int COMPACTRATIO = 2;
+
+    private final File indexFile;
+
+    //Newest entry with fitness for each UID
+    private final Map<String,Entry> byUID = new HashMap<String,Entry>();
+
+    //Newest entry of each file already in the index
+    private final Map<String,Entry> byFile = new HashMap<String,Entry>();
+
+    //Part of the journal already loaded: identity of the file, bytes, lines
+    private Object fileKey;
+    private long loadedBytes = 0;
+    private int numLines = 0;
+
+//------------------------------------------------------------------------------
+
+    /**
+     * A record of the index.
+     */
+    public static class Entry
+    {
+        private final String uid;
+        private final String fitness;
+        private final String fitSdf;
+        private final String xyz;
+        private final long lastModified;
+
+        public Entry(String uid, String fitness, String fitSdf, String xyz,
+                     long lastModified)
+        {
+            this.uid = uid;
+            this.fitness = fitness == null ? "" : fitness.trim();
+            this.fitSdf = fitSdf;
+            this.xyz = xyz == null ? "" : xyz;
+            this.lastModified = lastModified;
+        }
+
+        public String getUID()
+        {
+            return uid;
+        }
+
+        public String getFitness()
+        {
+            return fitness;
+        }
+
+        public boolean hasFitness()
+        {
+            return fitness.length() > 0;
+        }
+
+        public String getFitSdf()
+        {
+            return fitSdf;
+        }
+
+        public String getXYZ()
+        {
+            return xyz;
+        }
+
+        public long getLastModified()
+        {
+            return lastModified;
+        }
+
+        private String toLine()
+        {
+            return uid + "\t" + fitness + "\t" + fitSdf + "\t" + xyz + "\t"
+                   + lastModified;
+        }
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * @param args the command line arguments
+     */
+    public static void main(String[] args)
+    {
+        if (args.length < 2 || !(args[0].equals("compact") || (args.length > 2
+                && (args[0].equals("update") || args[0].equals("lookup")))))
+        {
+            System.err.println("Usage: java -cp FitnessRuCH2BndLng.jar "
+                + "fitnessruch2bndlng.UIDFitnessIndex update indexFile "
+                + "folder [folder ...]");
+            System.err.println("       java -cp FitnessRuCH2BndLng.jar "
+                + "fitnessruch2bndlng.UIDFitnessIndex lookup indexFile UID");
+            System.err.println("       java -cp FitnessRuCH2BndLng.jar "
+                + "fitnessruch2bndlng.UIDFitnessIndex compact indexFile");
+            System.exit(-1);
+        }
+
+        try
+        {
+            UIDFitnessIndex index = new UIDFitnessIndex(new File(args[1]));
+            if (args[0].equals("update"))
+            {
+                int added = 0;
+                for (int i=2; i<args.length; i++)
+                {
+                    added += index.update(new File(args[i]));
+                }
+                System.out.println("Added " + added + " files to the index.");
+                if (index.numLines > COMPACTRATIO * index.byFile.size())
+                {
+                    index.compact();
+                }
+            }
+            else if (args[0].equals("compact"))
+            {
+                index.compact();
+            }
+            else
+            {
+                Entry e = index.lookup(args[2]);
+                if (e == null)
+                {
+                    System.exit(1);
+                }
+                System.out.println(e.getFitSdf() + "\t" + e.getFitness()
+                                   + "\t" + e.getXYZ());
+            }
+        }
+        catch (Exception e)
+        {
+            LOGGER.log(Level.SEVERE, null, e);
+            System.exit(-1);
+        }
+        System.exit(0);
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Loads an index from file. A missing file is an empty index.
+     */
+    public UIDFitnessIndex(File indexFile) throws Exception
+    {
+        this.indexFile = indexFile;
+        refresh();
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Loads the lines appended to the journal since the last call. The
+     * whole journal is loaded again if it has been replaced, e.g., by
+     * compaction.
+     */
+    public synchronized void refresh() throws Exception
+    {
+        if (!indexFile.exists())
+        {
+            return;
+        }
+        Object key = Files.readAttributes(indexFile.toPath(),
+                                   BasicFileAttributes.class).fileKey();
+        long size = indexFile.length();
+        if (size < loadedBytes || (key != null && !key.equals(fileKey)))
+        {
+            byUID.clear();
+            byFile.clear();
+            loadedBytes = 0;
+            numLines = 0;
+        }
+        fileKey = key;
+        if (size == loadedBytes)
+        {
+            return;
+        }
+
+        RandomAccessFile raf = null;
+        try
+        {
+            raf = new RandomAccessFile(indexFile, "r");
+            byte[] buf = new byte[(int) (size - loadedBytes)];
+            raf.seek(loadedBytes);
+            raf.readFully(buf);
+            // Only complete lines: the last one may be being appended
+            int start = 0;
+            for (int i=0; i<buf.length; i++)
+            {
+                if (buf[i] == '\n')
+                {
+                    parseLine(new String(buf, start, i - start,
+                                         StandardCharsets.UTF_8));
+                    start = i + 1;
+                }
+            }
+            loadedBytes += start;
+        }
+        finally
+        {
+            if (raf != null)
+            {
+                raf.close();
+            }
+        }
+    }
+
+//------------------------------------------------------------------------------
+
+    private void parseLine(String line)
+    {
+        if (line.startsWith("#"))
+        {
+            return;
+        }
+        String[] parts = line.split("\t", -1);
+        if (parts.length != 5)
+        {
+            return;
+        }
+        long lastModified;
+        try
+        {
+            lastModified = Long.parseLong(parts[4]);
+        }
+        catch (NumberFormatException e)
+        {
+            return;
+        }
+        numLines++;
+        register(new Entry(parts[0], parts[1], parts[2], parts[3],
+                           lastModified));
+    }
+
+//------------------------------------------------------------------------------
+
+    private void register(Entry e)
+    {
+        Entry known = byFile.get(e.getFitSdf());
+        if (known == null || known.getLastModified() <= e.getLastModified())
+        {
+            byFile.put(e.getFitSdf(), e);
+        }
+        if (!e.hasFitness() || e.getUID().length() == 0)
+        {
+            return;
+        }
+        Entry old = byUID.get(e.getUID());
+        if (old == null || old.getLastModified() <= e.getLastModified())
+        {
+            byUID.put(e.getUID(), e);
+        }
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * @param uid the unique identifier of the candidate
+     * @return the newest entry with a fitness value for the given UID, or
+     * null if no such entry exists
+     */
+    public synchronized Entry lookup(String uid)
+    {
+        return byUID.get(uid);
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Appends an entry to the index file and to this index.
+     */
+    public synchronized void add(Entry e) throws Exception
+    {
+        append(indexFile, e);
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Appends an entry to an index file without loading the index.
+     * Synchronized, since a file lock does not exclude other threads.
+     */
+    public static synchronized void append(File indexFile, Entry e)
+            throws Exception
+    {
+        byte[] bytes = (e.toLine() + "\n").getBytes(StandardCharsets.UTF_8);
+        RandomAccessFile lockFile = lock(indexFile);
+        try
+        {
+            // Opened under the lock, so that a compaction cannot replace 
+            // the journal in the meanwhile
+            FileOutputStream fos = new FileOutputStream(indexFile, true);
+            try
+            {
+                fos.getChannel().write(ByteBuffer.wrap(bytes));
+            }
+            finally
+            {
+                fos.close();
+            }
+        }
+        finally
+        {
+            lockFile.close();
+        }
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Acquires the lock protecting an index file from concurrent writes.
+     * @return the lock file, whose closing releases the lock
+     */
+    private static RandomAccessFile lock(File indexFile) throws Exception
+    {
+        RandomAccessFile raf = new RandomAccessFile(
+                   new File(indexFile.getPath() + LOCKSUFFIX), "rw");
+        try
+        {
+            raf.getChannel().lock();
+        }
+        catch (Exception e)
+        {
+            raf.close();
+            throw e;
+        }
+        return raf;
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Rewrites the journal keeping only the newest line of each file. The
+     * rewritten journal replaces the current one atomically, so that 
+     * readers find either of them.
+     */
+    public synchronized void compact() throws Exception
+    {
+        RandomAccessFile lockFile = lock(indexFile);
+        try
+        {
+            refresh();
+            File tmp = new File(indexFile.getPath() + ".tmp");
+            BufferedWriter bw = null;
+            try
+            {
+                bw = new BufferedWriter(new OutputStreamWriter(
+                         new FileOutputStream(tmp), StandardCharsets.UTF_8));
+                for (Entry e : byFile.values())
+                {
+                    bw.write(e.toLine());
+                    bw.write("\n");
+                }
+            }
+            finally
+            {
+                if (bw != null)
+                {
+                    bw.close();
+                }
+            }
+            Files.move(tmp.toPath(), indexFile.toPath(),
+                       StandardCopyOption.REPLACE_EXISTING,
+                       StandardCopyOption.ATOMIC_MOVE);
+            LOGGER.info("Compacted " + numLines + " lines of " + indexFile
+                        + " into " + byFile.size() + ".");
+            refresh();
+        }
+        finally
+        {
+            lockFile.close();
+        }
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Adds to the index all <code>*_FIT.sdf</code> files found under the
+     * given folder that are new or have changed since they were indexed.
+     * Files already in the index are not read.
+     * @return the number of files added
+     */
+    public int update(File folder) throws Exception
+    {
+        File[] files = folder.listFiles();
+        if (files == null)
+        {
+            LOGGER.warning("Cannot list content of " + folder);
+            return 0;
+        }
+
+        int added = 0;
+        for (File f : files)
+        {
+            if (f.isDirectory())
+            {
+                added += update(f);
+                continue;
+            }
+            if (!f.getName().endsWith(ResultFolderWalker.FITSUFFIX))
+            {
+                continue;
+            }
+            String path = f.getAbsolutePath();
+            Entry known = byFile.get(path);
+            if (known != null && known.getLastModified() == f.lastModified())
+            {
+                continue;
+            }
+            add(readEntry(f));
+            added++;
+        }
+        refresh();
+        return added;
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Collects UID and FITNESS from a <code>*_FIT.sdf</code> file without
+     * parsing the molecular structure.
+     */
+    private static Entry readEntry(File fitSdf) throws Exception
+    {
+        String uid = null;
+        String fitness = null;
+        BufferedReader br = null;
+        try
+        {
+            br = new BufferedReader(new FileReader(fitSdf));
+            String line;
+            while ((line = br.readLine()) != null)
+            {
+                if (!line.startsWith(">"))
+                {
+                    continue;
+                }
+                if (line.contains("<UID>"))
+                {
+                    uid = br.readLine();
+                }
+                else if (line.contains("<FITNESS>"))
+                {
+                    fitness = br.readLine();
+                }
+            }
+        }
+        finally
+        {
+            if (br != null)
+            {
+                br.close();
+            }
+        }
+
+        String path = fitSdf.getAbsolutePath();
+        String xyz = ResultFolderWalker.getXYZFile(
+                                       fitSdf.getAbsoluteFile()).getPath();
+        if (!new File(xyz).exists())
+        {
+            xyz = "";
+        }
+        return new Entry(uid == null ? "" : uid.trim(), fitness, path, xyz,
+                         fitSdf.lastModified());
+    }
+
+//------------------------------------------------------------------------------
+
+}
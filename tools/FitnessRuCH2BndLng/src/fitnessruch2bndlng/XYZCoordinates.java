@@ -0,0 +1,118 @@
+package fitnessruch2bndlng;
+
+/*
+ *   Copyright (C) 2016
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Affero General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * One or more frames of Cartesian coordinates for a fixed list of atoms.
+ * Coordinates are stored in a flat array as x0,y0,z0,x1,y1,z1,... with
+ * frames one after the other. Buffers are reused when a new set of frames
+ * is loaded into the same instance.
+ */
+
+public class XYZCoordinates
+{
+    private String[] symbols = new String[0];
+    private double[] coords = new double[0];
+    private int numAtoms;
+    private int numFrames;
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Discards all frames and prepares to hold frames of the given size.
+     */
+    public void reset(int numAtoms)
+    {
+        this.numAtoms = numAtoms;
+        this.numFrames = 0;
+        if (symbols.length < numAtoms)
+        {
+            symbols = new String[numAtoms];
+        }
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Appends an empty frame.
+     * @return the index in the coordinates array where the new frame starts
+     */
+    public int addFrame()
+    {
+        int offset = numFrames * numAtoms * 3;
+        int needed = offset + numAtoms * 3;
+        if (coords.length < needed)
+        {
+            double[] tmp = new double[Math.max(needed, coords.length * 2)];
+            System.arraycopy(coords, 0, tmp, 0, offset);
+            coords = tmp;
+        }
+        numFrames++;
+        return offset;
+    }
+
+//------------------------------------------------------------------------------
+
+    public int getAtomCount()
+    {
+        return numAtoms;
+    }
+
+    public int getFrameCount()
+    {
+        return numFrames;
+    }
+
+    public String getSymbol(int atom)
+    {
+        return symbols[atom];
+    }
+
+    void setSymbol(int atom, String symbol)
+    {
+        symbols[atom] = symbol;
+    }
+
+    /**
+     * @return the raw coordinates buffer. It may be longer than the
+     * frames it holds.
+     */
+    public double[] getCoordinates()
+    {
+        return coords;
+    }
+
+    /**
+     * @return the index in the coordinates array where the given frame starts
+     */
+    public int getOffset(int frame)
+    {
+        return frame * numAtoms * 3;
+    }
+
+    /**
+     * @return the index in the coordinates array where the last frame starts
+     */
+    public int getLastFrameOffset()
+    {
+        return getOffset(numFrames - 1);
+    }
+
+//------------------------------------------------------------------------------
+
+}
@@ -0,0 +1,368 @@
+package fitnessruch2bndlng;
+
+/*
+ *   Copyright (C) 2016
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Affero General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Reader for single- and multi-frame XYZ files. The bytes of the file are
+ * scanned directly into the primitive buffers of an {@link XYZCoordinates}
+ * without creating a string per line or per number. Numbers with up to 15
+ * significant digits are converted exactly as {@link Double#parseDouble}
+ * would do; longer ones are handed over to {@link Double#parseDouble}.
+ * <br><br>
+ * An instance keeps its read buffer between calls and is not thread-safe.
+ */
+
+public class XYZReader
+{
+    private static final double[] POW10 = new double[] {
+        1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+        1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22};
+
+    private static final int MAXEXACTDIGITS = 15;
+
+    private byte[] buf = new byte[1 << 16];
+    private int len;
+    private int pos;
+    private String source;
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Reads all frames from an XYZ file.
+     * @param filename the file to read
+     * @return the coordinates
+     */
+    public XYZCoordinates read(String filename) throws Exception
+    {
+        XYZCoordinates xyz = new XYZCoordinates();
+        read(filename, xyz);
+        return xyz;
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Reads all frames from an XYZ file into an existing container, which is
+     * reset before reading.
+     * @param filename the file to read
+     * @param xyz the container to fill
+     */
+    public void read(String filename, XYZCoordinates xyz) throws Exception
+    {
+        InputStream is = null;
+        try
+        {
+            is = new FileInputStream(filename);
+            read(is, filename, xyz);
+        }
+        finally
+        {
+            if (is != null)
+            {
+                is.close();
+            }
+        }
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Reads all frames from a stream into an existing container, which is
+     * reset before reading.
+     * @param is the stream to read. It is not closed by this method.
+     * @param name a name used to identify the source in error messages
+     * @param xyz the container to fill
+     */
+    public void read(InputStream is, String name, XYZCoordinates xyz)
+            throws Exception
+    {
+        source = name;
+        len = 0;
+        int n;
+        while ((n = is.read(buf, len, buf.length - len)) != -1)
+        {
+            len += n;
+            if (len == buf.length)
+            {
+                byte[] tmp = new byte[buf.length * 2];
+                System.arraycopy(buf, 0, tmp, 0, len);
+                buf = tmp;
+            }
+        }
+        parse(xyz);
+    }
+
+//------------------------------------------------------------------------------
+
+    private void parse(XYZCoordinates xyz) throws Exception
+    {
+        pos = 0;
+        boolean first = true;
+        while (skipBlankLines())
+        {
+            int numAtoms = (int) parseNumber();
+            skipLine();
+            skipLine(); // comment line
+            if (first)
+            {
+                xyz.reset(numAtoms);
+                first = false;
+            }
+            else if (numAtoms != xyz.getAtomCount())
+            {
+                throw new Exception("Frames with different number of atoms "
+                                    + "in " + source);
+            }
+
+            int frame = xyz.getFrameCount();
+            int offset = xyz.addFrame();
+            double[] coords = xyz.getCoordinates();
+            for (int i=0; i<numAtoms; i++)
+            {
+                skipSpaces();
+                int start = pos;
+                while (pos < len && !isSpace(buf[pos]) && !isEOL(buf[pos]))
+                {
+                    pos++;
+                }
+                if (pos == start)
+                {
+                    throw new Exception("Missing atom " + (i+1) + " in frame "
+                                        + (frame+1) + " of " + source);
+                }
+                String sym = PeriodicTable.lookup(buf, start, pos - start);
+                if (sym == null)
+                {
+                    sym = new String(buf, start, pos - start,
+                                                    StandardCharsets.US_ASCII);
+                }
+                if (frame == 0)
+                {
+                    xyz.setSymbol(i, sym);
+                }
+                else if (!sym.equals(xyz.getSymbol(i)))
+                {
+                    throw new Exception("Inconsistent element of atom " + (i+1)
+                                        + " in frame " + (frame+1) + " of "
+                                        + source);
+                }
+                coords[offset + 3*i] = parseNumber();
+                coords[offset + 3*i + 1] = parseNumber();
+                coords[offset + 3*i + 2] = parseNumber();
+                skipLine();
+            }
+        }
+        if (first)
+        {
+            throw new Exception("No coordinates found in " + source);
+        }
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Parses the next number on the current line.
+     */
+    private double parseNumber() throws Exception
+    {
+        skipSpaces();
+        int start = pos;
+        boolean negative = false;
+        if (pos < len && (buf[pos] == '-' || buf[pos] == '+'))
+        {
+            negative = buf[pos] == '-';
+            pos++;
+        }
+
+        long mantissa = 0;
+        int digits = 0;
+        int decimals = 0;
+        boolean dot = false;
+        boolean any = false;
+        while (pos < len)
+        {
+            byte b = buf[pos];
+            if (b >= '0' && b <= '9')
+            {
+                any = true;
+                if (digits > 0 || b != '0')
+                {
+                    digits++;
+                }
+                if (digits <= MAXEXACTDIGITS)
+                {
+                    mantissa = mantissa * 10 + (b - '0');
+                    if (dot)
+                    {
+                        decimals++;
+                    }
+                }
+            }
+            else if (b == '.' && !dot)
+            {
+                dot = true;
+            }
+            else
+            {
+                break;
+            }
+            pos++;
+        }
+
+        int exponent = 0;
+        if (any && pos < len && (buf[pos] == 'e' || buf[pos] == 'E'
+                                 || buf[pos] == 'd' || buf[pos] == 'D'))
+        {
+            int expStart = pos;
+            pos++;
+            boolean negExp = false;
+            if (pos < len && (buf[pos] == '-' || buf[pos] == '+'))
+            {
+                negExp = buf[pos] == '-';
+                pos++;
+            }
+            int expDigits = 0;
+            while (pos < len && buf[pos] >= '0' && buf[pos] <= '9')
+            {
+                exponent = exponent * 10 + (buf[pos] - '0');
+                expDigits++;
+                pos++;
+            }
+            if (expDigits == 0 || expDigits > 4)
+            {
+                pos = expStart;
+                return parseSlowly(start);
+            }
+            if (negExp)
+            {
+                exponent = -exponent;
+            }
+        }
+
+        if (!any)
+        {
+            throw new Exception("Expecting a number at byte " + start
+                                + " of " + source);
+        }
+        if (pos < len && !isSpace(buf[pos]) && !isEOL(buf[pos]))
+        {
+            throw new Exception("Unexpected character '" + (char) buf[pos]
+                                + "' at byte " + pos + " of " + source);
+        }
+        if (digits > MAXEXACTDIGITS)
+        {
+            return parseSlowly(start);
+        }
+
+        // Both mantissa and power of ten are exact doubles, so a single
+        // multiplication or division gives the correctly rounded value
+        int scale = exponent - decimals;
+        double value = mantissa;
+        if (scale < 0 && -scale < POW10.length)
+        {
+            value = value / POW10[-scale];
+        }
+        else if (scale >= 0 && scale < POW10.length)
+        {
+            value = value * POW10[scale];
+        }
+        else
+        {
+            return parseSlowly(start);
+        }
+        return negative ? -value : value;
+    }
+
+//------------------------------------------------------------------------------
+
+    private double parseSlowly(int start)
+    {
+        int end = start;
+        while (end < len && !isSpace(buf[end]) && !isEOL(buf[end]))
+        {
+            end++;
+        }
+        pos = end;
+        String s = new String(buf, start, end - start,
+                                         StandardCharsets.US_ASCII);
+        return Double.parseDouble(s.replace('d', 'e').replace('D', 'E'));
+    }
+
+//------------------------------------------------------------------------------
+
+    private static boolean isSpace(byte b)
+    {
+        return b == ' ' || b == '\t';
+    }
+
+    private static boolean isEOL(byte b)
+    {
+        return b == '\n' || b == '\r';
+    }
+
+    private void skipSpaces()
+    {
+        while (pos < len && isSpace(buf[pos]))
+        {
+            pos++;
+        }
+    }
+
+    private void skipLine()
+    {
+        while (pos < len && buf[pos] != '\n')
+        {
+            pos++;
+        }
+        if (pos < len)
+        {
+            pos++;
+        }
+    }
+
+    /**
+     * Moves to the beginning of the next non-blank line.
+     * @return false if the end of the data was reached
+     */
+    private boolean skipBlankLines()
+    {
+        int lineStart = pos;
+        while (pos < len)
+        {
+            byte b = buf[pos];
+            if (b == '\n')
+            {
+                lineStart = pos + 1;
+            }
+            else if (!isSpace(b) && b != '\r')
+            {
+                pos = lineStart;
+                return true;
+            }
+            pos++;
+        }
+        return false;
+    }
+
+//------------------------------------------------------------------------------
+
+}